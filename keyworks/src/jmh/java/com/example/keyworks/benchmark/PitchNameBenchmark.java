@@ -0,0 +1,46 @@
+package com.example.keyworks.benchmark;
+
+import com.example.keyworks.service.LilyPondEmitter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of MIDI key numbers to LilyPond pitch names, spelled with sharps and with flats.
+ * Each operation writes all 128 keys.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PitchNameBenchmark {
+
+    private final LilyPondEmitter emitter = new LilyPondEmitter();
+    private final StringBuilder out = new StringBuilder(2048);
+
+    @Param({"false", "true"})
+    private boolean flats;
+
+    @Benchmark
+    @OperationsPerInvocation(128)
+    public int writePitch() throws IOException {
+        out.setLength(0);
+        for (int key = 0; key < 128; key++) {
+            emitter.writePitch(out, key, flats);
+        }
+        return out.length();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(128)
+    public int writeNote() throws IOException {
+        out.setLength(0);
+        for (int key = 0; key < 128; key++) {
+            emitter.writeNote(out, key, 500, flats);
+        }
+        return out.length();
+    }
+}
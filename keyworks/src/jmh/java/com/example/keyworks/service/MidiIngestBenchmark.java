@@ -0,0 +1,109 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.config.TranscriptionConfig;
+import org.openjdk.jmh.annotations.*;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of MIDI input: the device receiver of {@link MidiDeviceService} (trace ring, dispatch
+ * and transcription), note-on/off processing in the service, and the transcriber on its own.
+ * Every invocation plays a burst of {@value #BURST} events into a fresh recording, so memory stays
+ * bounded however long the benchmark runs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MidiIngestBenchmark {
+
+    private static final int BURST = 10_000;
+
+    private MidiDeviceService service;
+    private String recordingId;
+    private Receiver receiver;
+    private long recordingStart;
+    private ShortMessage[] messages;
+    private long[] events;
+    private IncrementalTranscriber transcriber;
+    private final LilyPondEmitter emitter = new LilyPondEmitter();
+    private final TranscriptionConfig config = SyntheticRecording.defaultConfig();
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws InvalidMidiDataException {
+        service = new MidiDeviceService(new MidiTraceService(4096), emitter, config);
+
+        events = SyntheticRecording.events(SyntheticRecording.notes(BURST / 2));
+        messages = new ShortMessage[events.length];
+        for (int i = 0; i < events.length; i++) {
+            boolean on = (events[i] & 1 << 7) != 0;
+            messages[i] = new ShortMessage(on ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF, 0,
+                    (int) events[i] & 0x7F, on ? 90 : 0);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+        // Taken before the recording starts, so no event lies before it
+        recordingStart = System.currentTimeMillis();
+        MidiDeviceService.InProcessRecording recording = service.startInProcessRecording("benchmark");
+        recordingId = recording.id();
+        receiver = recording.receiver();
+        transcriber = new IncrementalTranscriber(emitter, config);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() {
+        // In-process recordings are not kept, so this only frees the next invocation's start
+        service.stopRecording(recordingId, false);
+    }
+
+    /**
+     * Messages through the device receiver, as delivered by a MIDI port
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void receiverSend() {
+        for (ShortMessage message : messages) {
+            receiver.send(message, -1);
+        }
+    }
+
+    /**
+     * Note events through the service, as sent by the HTTP simulation endpoints
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void serviceNoteOnOff() {
+        for (long event : events) {
+            int key = (int) event & 0x7F;
+            if ((event & 1 << 7) != 0) {
+                service.processNoteOn(key, 90, recordingStart + (event >>> 8));
+            } else {
+                service.processNoteOff(key, recordingStart + (event >>> 8));
+            }
+        }
+    }
+
+    /**
+     * Note pairing and incremental transcription alone
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public IncrementalTranscriber transcriberNoteOnOff() {
+        for (long event : events) {
+            int key = (int) event & 0x7F;
+            if ((event & 1 << 7) != 0) {
+                transcriber.noteOn(key, 90, event >>> 8);
+            } else {
+                transcriber.noteOff(key, event >>> 8);
+            }
+        }
+        return transcriber;
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.config.TranscriptionConfig;
+import com.example.keyworks.service.MidiDeviceService.MidiNote;
+
+import java.util.*;
+
+/**
+ * Deterministic piano-like recordings for the benchmarks: an eighth-note melody in the right hand
+ * over quarter-note chords in the left hand at 120 BPM, with a little timing jitter.
+ */
+final class SyntheticRecording {
+
+    private static final int[] SCALE = {0, 2, 4, 5, 7, 9, 11};
+
+    private SyntheticRecording() {
+    }
+
+    /**
+     * @param noteCount Number of notes
+     * @return Notes in start-time order
+     */
+    static List<MidiNote> notes(int noteCount) {
+        Random random = new Random(42);
+        List<MidiNote> notes = new ArrayList<>(noteCount);
+        int degree = 14;
+        long time = 0;
+        for (int step = 0; notes.size() < noteCount; step++) {
+            long onset = time + random.nextInt(21) - 10;
+            degree = Math.max(7, Math.min(27, degree + random.nextInt(5) - 2));
+            notes.add(new MidiNote(pitch(degree), 60 + random.nextInt(50), Math.max(0, onset), 220));
+
+            // A left-hand triad on every beat
+            if (step % 2 == 0) {
+                int root = (step / 8) % 7;
+                for (int i = 0; i < 3 && notes.size() < noteCount; i++) {
+                    notes.add(new MidiNote(pitch(root + 2 * i) - 12, 50 + random.nextInt(30), Math.max(0, onset + i), 480));
+                }
+            }
+            time += 250;
+        }
+        notes.sort(Comparator.comparingLong(MidiNote::getStartTime));
+        return notes;
+    }
+
+    /**
+     * Note-on and note-off events of the notes in time order, packed as (time << 8 | on << 7 | key)
+     */
+    static long[] events(List<MidiNote> notes) {
+        long[] events = new long[notes.size() * 2];
+        int n = 0;
+        for (MidiNote note : notes) {
+            events[n++] = note.getStartTime() << 8 | 1 << 7 | note.getKey();
+            events[n++] = (note.getStartTime() + note.getDuration()) << 8 | note.getKey();
+        }
+        Arrays.sort(events);
+        return events;
+    }
+
+    /**
+     * The transcription settings of application.properties
+     */
+    static TranscriptionConfig defaultConfig() {
+        return new TranscriptionConfig(4, 4, 16, 40, 4, true, 8, 20_000, 32);
+    }
+
+    private static int pitch(int degree) {
+        return 48 + 12 * (degree / 7) + SCALE[degree % 7];
+    }
+}
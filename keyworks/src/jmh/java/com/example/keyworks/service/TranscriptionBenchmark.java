@@ -0,0 +1,99 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.config.TranscriptionConfig;
+import com.example.keyworks.service.MidiDeviceService.MidiNote;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole-recording work on synthetic recordings of 1k to 1M notes: transcription to LilyPond as done
+ * when a recording stops, the multi-staff conversion, plain note emission and sorting notes by onset.
+ * In the service package to call the conversion of {@link MidiDeviceService} itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class TranscriptionBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    private int noteCount;
+
+    private final LilyPondEmitter emitter = new LilyPondEmitter();
+    private final TranscriptionConfig config = SyntheticRecording.defaultConfig();
+    private MidiDeviceService service;
+    private List<MidiNote> notes;
+    private long[] events;
+    private Map<String, List<MidiNote>> staves;
+    private List<MidiNote> shuffled;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        service = new MidiDeviceService(new MidiTraceService(4096), emitter, config);
+
+        notes = SyntheticRecording.notes(noteCount);
+        events = SyntheticRecording.events(notes);
+
+        // Two staves, as a session with two devices would produce
+        staves = new LinkedHashMap<>();
+        staves.put("Right", new ArrayList<>());
+        staves.put("Left", new ArrayList<>());
+        for (MidiNote note : notes) {
+            staves.get(note.getKey() >= 60 ? "Right" : "Left").add(note);
+        }
+
+        shuffled = new ArrayList<>(notes);
+        Collections.shuffle(shuffled, new Random(42));
+    }
+
+    /**
+     * Transcribing the notes while they are played and the conversion when the recording stops
+     */
+    @Benchmark
+    public String convertToLilyPond() {
+        IncrementalTranscriber transcriber = new IncrementalTranscriber(emitter, config);
+        for (long event : events) {
+            int key = (int) event & 0x7F;
+            if ((event & 1 << 7) != 0) {
+                transcriber.noteOn(key, 90, event >>> 8);
+            } else {
+                transcriber.noteOff(key, event >>> 8);
+            }
+        }
+        return service.convertToLilyPond(transcriber);
+    }
+
+    @Benchmark
+    public String convertToMultiStaffLilyPond() {
+        return service.convertToMultiStaffLilyPond(staves);
+    }
+
+    /**
+     * Unquantized note emission, the successor of generateLilyPondCode
+     */
+    @Benchmark
+    public String generateLilyPondCode() throws IOException {
+        StringBuilder out = new StringBuilder(notes.size() * 8);
+        emitter.writeVersion(out);
+        for (MidiNote note : notes) {
+            emitter.writeNote(out, note.getKey(), note.getDuration());
+            out.append(' ');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Sorting a copy of the notes by onset, as done when merging device lanes; includes the copy
+     */
+    @Benchmark
+    public List<MidiNote> sortNotes() {
+        List<MidiNote> copy = new ArrayList<>(shuffled);
+        copy.sort(Comparator.comparingLong(MidiNote::getStartTime));
+        return copy;
+    }
+}
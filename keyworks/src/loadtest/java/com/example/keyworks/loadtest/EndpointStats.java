@@ -0,0 +1,88 @@
+package com.example.keyworks.loadtest;
+
+import com.example.keyworks.service.LatencyHistogram;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencies and errors per endpoint, shared by all virtual users.
+ * Endpoints are keyed by method and path template (e.g. {@code GET /api/midi/download/pdf/{id}}),
+ * in the order they were first called.
+ */
+class EndpointStats {
+
+    private final Map<String, Endpoint> endpoints = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    Endpoint endpoint(String name) {
+        return endpoints.computeIfAbsent(name, Endpoint::new);
+    }
+
+    List<Endpoint> getEndpoints() {
+        synchronized (endpoints) {
+            return new ArrayList<>(endpoints.values());
+        }
+    }
+
+    static class Endpoint {
+        private final String name;
+        // Failed calls are timed too: a timeout is a latency worth seeing
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong errors = new AtomicLong();
+        private final ConcurrentMap<String, AtomicLong> errorKinds = new ConcurrentHashMap<>();
+
+        Endpoint(String name) {
+            this.name = name;
+        }
+
+        void success(long nanos) {
+            latency.record(nanos);
+        }
+
+        void error(long nanos, String kind) {
+            latency.record(nanos);
+            error(kind);
+        }
+
+        /**
+         * Counts an error found in a response that was already recorded, such as an unexpected body
+         */
+        void error(String kind) {
+            errors.incrementAndGet();
+            errorKinds.computeIfAbsent(kind, k -> new AtomicLong()).incrementAndGet();
+        }
+
+        String getName() {
+            return name;
+        }
+
+        LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        long getErrors() {
+            return errors.get();
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("endpoint", name);
+            summary.put("calls", latency.getCount());
+            summary.put("errors", errors.get());
+            summary.put("p50Ms", millis(latency.percentileNanos(50)));
+            summary.put("p95Ms", millis(latency.percentileNanos(95)));
+            summary.put("p99Ms", millis(latency.percentileNanos(99)));
+            summary.put("maxMs", millis(latency.getMaxNanos()));
+            Map<String, Long> kinds = new TreeMap<>();
+            errorKinds.forEach((kind, count) -> kinds.put(kind, count.get()));
+            summary.put("errorKinds", kinds);
+            return summary;
+        }
+    }
+
+    static double millis(long nanos) {
+        return Math.round(nanos / 10_000.0) / 100.0;
+    }
+}
@@ -0,0 +1,265 @@
+package com.example.keyworks.loadtest;
+
+import com.example.keyworks.KeyworksApplication;
+import com.example.keyworks.service.MidiProcessingService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end HTTP load test: scripted virtual users record, render and download scores concurrently
+ * (see {@link VirtualUser}), and the run reports p50/p95/p99 latency and errors per endpoint.
+ * <pre>
+ * LoadTestRunner [--users=8] [--duration=60 (s)] [--iterations=0 (per user, 0 = until the duration is up)]
+ *                [--ramp-up=0 (s)] [--notes=16] [--note-think-ms=100] [--think-ms=1000]
+ *                [--username=user] [--password=password] [--request-timeout=60 (s)] [--seed=1]
+ *                [--base-url=http://host:port] [--report=target/loadtest-report.json]
+ * </pre>
+ * Without a base URL the application is started in process with the {@code loadtest} profile
+ * (embedded database, stub renderer, random port) and a loopback input device connected, so the
+ * numbers do not depend on a database server, LilyPond or MIDI hardware. Started by
+ * {@code mvn -P loadtest verify}.
+ */
+public class LoadTestRunner {
+
+    /**
+     * Load parameters
+     */
+    static class Options {
+        private int users = 8;
+        private double durationSeconds = 60;
+        private int iterations;
+        private double rampUpSeconds;
+        private int notes = 16;
+        private long noteThinkMillis = 100;
+        private long thinkMillis = 1000;
+        private String username = "user";
+        private String password = "password";
+        private long requestTimeoutSeconds = 60;
+        private long seed = 1;
+        private String baseUrl;
+        private String report = "target/loadtest-report.json";
+
+        /**
+         * Reads options from a map; absent keys keep their defaults
+         * @param values Option names in camel case
+         * @return The options
+         */
+        static Options from(Map<String, String> values) {
+            Options options = new Options();
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                String value = entry.getValue();
+                switch (entry.getKey()) {
+                    case "users" -> options.users = Integer.parseInt(value);
+                    case "duration" -> options.durationSeconds = Double.parseDouble(value);
+                    case "iterations" -> options.iterations = Integer.parseInt(value);
+                    case "rampUp" -> options.rampUpSeconds = Double.parseDouble(value);
+                    case "notes" -> options.notes = Integer.parseInt(value);
+                    case "noteThinkMs" -> options.noteThinkMillis = Long.parseLong(value);
+                    case "thinkMs" -> options.thinkMillis = Long.parseLong(value);
+                    case "username" -> options.username = value;
+                    case "password" -> options.password = value;
+                    case "requestTimeout" -> options.requestTimeoutSeconds = Long.parseLong(value);
+                    case "seed" -> options.seed = Long.parseLong(value);
+                    case "baseUrl" -> options.baseUrl = value.isBlank() ? null : value;
+                    case "report" -> options.report = value;
+                    default -> throw new IllegalArgumentException("Unknown load test option: " + entry.getKey());
+                }
+            }
+            if (options.users < 1 || !(options.durationSeconds > 0) || options.iterations < 0 || options.rampUpSeconds < 0
+                    || options.notes < 1 || options.noteThinkMillis < 0 || options.thinkMillis < 0
+                    || options.requestTimeoutSeconds < 1) {
+                throw new IllegalArgumentException("Invalid load test options: users, duration, notes and request timeout "
+                        + "must be positive, iterations, ramp-up and think times not negative");
+            }
+            return options;
+        }
+
+        int getUsers() {
+            return users;
+        }
+
+        int getIterations() {
+            return iterations;
+        }
+
+        long getRampUpMillis() {
+            return (long) (rampUpSeconds * 1000);
+        }
+
+        int getNotes() {
+            return notes;
+        }
+
+        long getNoteThinkMillis() {
+            return noteThinkMillis;
+        }
+
+        long getThinkMillis() {
+            return thinkMillis;
+        }
+
+        String getUsername() {
+            return username;
+        }
+
+        String getPassword() {
+            return password;
+        }
+
+        long getRequestTimeoutSeconds() {
+            return requestTimeoutSeconds;
+        }
+
+        long getSeed() {
+            return seed;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("users", users);
+            map.put("duration", durationSeconds);
+            map.put("iterations", iterations);
+            map.put("rampUp", rampUpSeconds);
+            map.put("notes", notes);
+            map.put("noteThinkMs", noteThinkMillis);
+            map.put("thinkMs", thinkMillis);
+            map.put("requestTimeout", requestTimeoutSeconds);
+            map.put("seed", seed);
+            map.put("baseUrl", baseUrl != null ? baseUrl : "in-process");
+            return map;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> values = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                usage("Unexpected argument: " + arg);
+                return;
+            }
+            values.put(camelCase(arg.substring(2, equals)), arg.substring(equals + 1));
+        }
+
+        Options options;
+        try {
+            options = Options.from(values);
+        } catch (IllegalArgumentException e) {
+            usage(e.getMessage());
+            return;
+        }
+
+        Map<String, Object> report;
+        if (options.baseUrl != null) {
+            report = run(options, URI.create(options.baseUrl));
+        } else {
+            // DevTools would restart main in a new class loader without these arguments; it decides
+            // before profile properties are read, so it can only be switched off here
+            System.setProperty("spring.devtools.restart.enabled", "false");
+            // As an argument, since application.properties overrides default properties
+            try (ConfigurableApplicationContext context = new SpringApplicationBuilder(KeyworksApplication.class)
+                    .profiles("loadtest")
+                    .run("--server.port=0")) {
+                context.getBean(MidiProcessingService.class).connectToDevice(new LoopbackMidiDevice());
+                int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+                report = run(options, URI.create("http://localhost:" + port));
+            }
+        }
+
+        Path reportFile = Path.of(options.report);
+        if (reportFile.getParent() != null) {
+            Files.createDirectories(reportFile.getParent());
+        }
+        new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(reportFile.toFile(), report);
+        System.out.println("Report written to " + reportFile.toAbsolutePath());
+    }
+
+    /**
+     * Runs the virtual users to completion and prints the summary
+     * @return The report: options, elapsed time, completed iterations and per-endpoint statistics
+     */
+    static Map<String, Object> run(Options options, URI baseUrl) throws InterruptedException {
+        EndpointStats stats = new EndpointStats();
+        AtomicLong completedIterations = new AtomicLong();
+        long start = System.nanoTime();
+        long deadline = start + (long) (options.durationSeconds * 1e9);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < options.users; i++) {
+            threads.add(Thread.ofPlatform().name("virtual-user-" + i)
+                    .start(new VirtualUser(i, options, baseUrl, stats, deadline, completedIterations)));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+
+        List<Map<String, Object>> endpoints = new ArrayList<>();
+        for (EndpointStats.Endpoint endpoint : stats.getEndpoints()) {
+            endpoints.add(endpoint.toMap());
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("options", options.toMap());
+        report.put("elapsedSeconds", Math.round(elapsedSeconds * 10) / 10.0);
+        report.put("completedIterations", completedIterations.get());
+        report.put("iterationsPerSecond", Math.round(completedIterations.get() / elapsedSeconds * 100) / 100.0);
+        report.put("endpoints", endpoints);
+
+        System.out.print(summary(stats, elapsedSeconds, completedIterations.get()));
+        return report;
+    }
+
+    private static String summary(EndpointStats stats, double elapsedSeconds, long completedIterations) {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%n%d iterations completed in %.1f s (%.2f/s)%n%n",
+                completedIterations, elapsedSeconds, completedIterations / elapsedSeconds));
+        out.append(String.format("%-34s %8s %7s %10s %10s %10s %10s%n",
+                "Endpoint", "Calls", "Errors", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+        for (EndpointStats.Endpoint endpoint : stats.getEndpoints()) {
+            out.append(String.format("%-34s %8d %7d %10.2f %10.2f %10.2f %10.2f%n",
+                    endpoint.getName(), endpoint.getLatency().getCount(), endpoint.getErrors(),
+                    EndpointStats.millis(endpoint.getLatency().percentileNanos(50)),
+                    EndpointStats.millis(endpoint.getLatency().percentileNanos(95)),
+                    EndpointStats.millis(endpoint.getLatency().percentileNanos(99)),
+                    EndpointStats.millis(endpoint.getLatency().getMaxNanos())));
+        }
+        for (EndpointStats.Endpoint endpoint : stats.getEndpoints()) {
+            if (endpoint.getErrors() > 0) {
+                out.append(String.format("Errors on %s: %s%n", endpoint.getName(), endpoint.toMap().get("errorKinds")));
+            }
+        }
+        return out.toString();
+    }
+
+    private static String camelCase(String kebabCase) {
+        StringBuilder out = new StringBuilder();
+        boolean upper = false;
+        for (char c : kebabCase.toCharArray()) {
+            if (c == '-') {
+                upper = true;
+            } else {
+                out.append(upper ? Character.toUpperCase(c) : c);
+                upper = false;
+            }
+        }
+        return out.toString();
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: LoadTestRunner [--users=8] [--duration=60] [--iterations=0] [--ramp-up=0] [--notes=16]");
+        System.err.println("                      [--note-think-ms=100] [--think-ms=1000] [--username=user] [--password=password]");
+        System.err.println("                      [--request-timeout=60] [--seed=1] [--base-url=http://host:port]");
+        System.err.println("                      [--report=target/loadtest-report.json]");
+    }
+}
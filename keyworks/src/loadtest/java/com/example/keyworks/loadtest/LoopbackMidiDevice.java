@@ -0,0 +1,91 @@
+package com.example.keyworks.loadtest;
+
+import javax.sound.midi.*;
+import java.util.List;
+
+/**
+ * Input device without hardware behind it. Recording through the HTTP API needs a connected input
+ * device; virtual users play their notes through {@code POST /api/midi/play/{note}}, so nothing is
+ * ever sent through this device.
+ */
+class LoopbackMidiDevice implements MidiDevice {
+
+    private static final Info INFO = new Info("KeyWorks load test", "KeyWorks", "Loopback input for load tests", "1.0") {
+    };
+
+    private final Transmitter transmitter = new Transmitter() {
+        private Receiver receiver;
+
+        @Override
+        public void setReceiver(Receiver receiver) {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public Receiver getReceiver() {
+            return receiver;
+        }
+
+        @Override
+        public void close() {
+            receiver = null;
+        }
+    };
+
+    private volatile boolean open;
+
+    @Override
+    public Info getDeviceInfo() {
+        return INFO;
+    }
+
+    @Override
+    public void open() {
+        open = true;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public long getMicrosecondPosition() {
+        return -1;
+    }
+
+    @Override
+    public int getMaxReceivers() {
+        return 0;
+    }
+
+    @Override
+    public int getMaxTransmitters() {
+        return 1;
+    }
+
+    @Override
+    public Receiver getReceiver() throws MidiUnavailableException {
+        throw new MidiUnavailableException("The load test device is input only");
+    }
+
+    @Override
+    public List<Receiver> getReceivers() {
+        return List.of();
+    }
+
+    @Override
+    public Transmitter getTransmitter() {
+        return transmitter;
+    }
+
+    @Override
+    public List<Transmitter> getTransmitters() {
+        return List.of(transmitter);
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.keyworks.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.CookieManager;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One scripted user with its own session cookie. After logging in through the login form it repeats:
+ * start recording, play notes one request at a time, stop, generate the PDF and download it, with
+ * think times between notes and between iterations.
+ * <p>
+ * The device recorder in the application holds one recording at a time, so concurrent users share it:
+ * when another user restarted the recorder in the middle of an iteration, the stop response carries
+ * the other recording's ID and the iteration counts as a "recording conflict" error.
+ */
+class VirtualUser implements Runnable {
+
+    private static final String[] NOTE_NAMES = {"C", "D", "E", "F", "G", "A", "B"};
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final int index;
+    private final LoadTestRunner.Options options;
+    private final URI baseUrl;
+    private final EndpointStats stats;
+    private final long deadlineNanos;
+    private final AtomicLong completedIterations;
+    private final Random random;
+    private final HttpClient client;
+
+    VirtualUser(int index, LoadTestRunner.Options options, URI baseUrl, EndpointStats stats, long deadlineNanos,
+                AtomicLong completedIterations) {
+        this.index = index;
+        this.options = options;
+        this.baseUrl = baseUrl;
+        this.stats = stats;
+        this.deadlineNanos = deadlineNanos;
+        this.completedIterations = completedIterations;
+        this.random = new Random(options.getSeed() + index);
+        // Redirects are not followed: a successful form login answers with a redirect
+        this.client = HttpClient.newBuilder()
+                .cookieHandler(new CookieManager())
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    @Override
+    public void run() {
+        try {
+            Thread.sleep(options.getRampUpMillis() * index / Math.max(1, options.getUsers()));
+            if (!login()) {
+                return;
+            }
+            for (int iteration = 0; !finished(iteration); iteration++) {
+                if (iterate()) {
+                    completedIterations.incrementAndGet();
+                }
+                pause(options.getThinkMillis());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean finished(int iteration) {
+        return System.nanoTime() - deadlineNanos >= 0
+                || (options.getIterations() > 0 && iteration >= options.getIterations());
+    }
+
+    private boolean login() throws InterruptedException {
+        String form = "username=" + encode(options.getUsername()) + "&password=" + encode(options.getPassword());
+        HttpRequest request = request("/login")
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form))
+                .build();
+        HttpResponse<byte[]> response = call("POST /login", request, 302);
+        if (response == null) {
+            return false;
+        }
+        // Spring Security redirects failed logins back to the login page
+        if (response.headers().firstValue("Location").orElse("").contains("error")) {
+            stats.endpoint("POST /login").error("bad credentials");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * One pass through the script
+     * @return True if every step succeeded
+     */
+    private boolean iterate() throws InterruptedException {
+        JsonNode started = callJson("POST /api/midi/record/start", post("/api/midi/record/start"));
+        if (started == null) {
+            return false;
+        }
+        String recordingId = started.path("recordingId").asText();
+
+        for (int i = 0; i < options.getNotes(); i++) {
+            String note = NOTE_NAMES[random.nextInt(NOTE_NAMES.length)] + (3 + random.nextInt(3));
+            if (call("POST /api/midi/play/{note}", post("/api/midi/play/" + encode(note)), 200) == null) {
+                return false;
+            }
+            pause(options.getNoteThinkMillis());
+        }
+
+        JsonNode stopped = callJson("POST /api/midi/record/stop", post("/api/midi/record/stop"));
+        if (stopped == null) {
+            return false;
+        }
+        if (!recordingId.equals(stopped.path("recordingId").asText())) {
+            stats.endpoint("POST /api/midi/record/stop").error("recording conflict");
+            return false;
+        }
+
+        JsonNode generated = callJson("POST /api/midi/generate/pdf", post("/api/midi/generate/pdf"));
+        if (generated == null) {
+            return false;
+        }
+        // The recorder may have moved on since the stop; download what was generated
+        String generatedId = generated.path("recordingId").asText(recordingId);
+
+        HttpRequest download = request("/api/midi/download/pdf/" + encode(generatedId)).GET().build();
+        return call("GET /api/midi/download/pdf/{id}", download, 200) != null;
+    }
+
+    /**
+     * Sends a request and records its latency under the endpoint name
+     * @return The response, or null if it failed or had another status than expected
+     */
+    private HttpResponse<byte[]> call(String endpoint, HttpRequest request, int expectedStatus) throws InterruptedException {
+        long start = System.nanoTime();
+        try {
+            HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            long elapsed = System.nanoTime() - start;
+            if (response.statusCode() != expectedStatus) {
+                stats.endpoint(endpoint).error(elapsed, "HTTP " + response.statusCode());
+                return null;
+            }
+            stats.endpoint(endpoint).success(elapsed);
+            return response;
+        } catch (IOException e) {
+            stats.endpoint(endpoint).error(System.nanoTime() - start, e.getClass().getSimpleName());
+            return null;
+        }
+    }
+
+    private JsonNode callJson(String endpoint, HttpRequest request) throws InterruptedException {
+        HttpResponse<byte[]> response = call(endpoint, request, 200);
+        if (response == null) {
+            return null;
+        }
+        try {
+            return objectMapper.readTree(response.body());
+        } catch (IOException e) {
+            stats.endpoint(endpoint).error("invalid JSON");
+            return null;
+        }
+    }
+
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(baseUrl.resolve(path))
+                .timeout(Duration.ofSeconds(options.getRequestTimeoutSeconds()));
+    }
+
+    private HttpRequest post(String path) {
+        return request(path).POST(HttpRequest.BodyPublishers.noBody()).build();
+    }
+
+    private static void pause(long millis) throws InterruptedException {
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
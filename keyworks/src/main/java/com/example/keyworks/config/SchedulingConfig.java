@@ -0,0 +1,12 @@
+package com.example.keyworks.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/**
+ * Enables background tasks such as the MIDI device registry watcher.
+ */
+@Configuration
+@EnableScheduling
+public class SchedulingConfig {
+}
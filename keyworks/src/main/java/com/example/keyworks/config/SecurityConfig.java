@@ -25,6 +25,8 @@ public class SecurityConfig {
                 .requestMatchers("/", "/piano", "/web-piano/**", "/js/**", "/css/**", "/login").permitAll()
                 // Public API endpoints - only allow GET for devices and status
                 .requestMatchers(HttpMethod.GET, "/api/midi/devices", "/api/midi/status").permitAll()
+                // Diagnostics are admin-only
+                .requestMatchers("/api/admin/**").hasRole("ADMIN")
                 // All other endpoints require authentication
                 .anyRequest().authenticated()
             )
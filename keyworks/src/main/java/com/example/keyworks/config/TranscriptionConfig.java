@@ -0,0 +1,106 @@
+package com.example.keyworks.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Settings for turning recorded notes into notation
+ */
+@Configuration
+public class TranscriptionConfig {
+    private static final Logger logger = LoggerFactory.getLogger(TranscriptionConfig.class);
+
+    private final int gridSubdivisions;
+    private final int beatsPerBar;
+    private final int tempoWarmUpNotes;
+    private final long chordToleranceMs;
+    private final int maxVoices;
+    private final boolean pianoStaff;
+    private final int handSplitLag;
+    private final long workBudgetPerThousandNotes;
+    private final int keyWindowNotes;
+
+    public TranscriptionConfig(@Value("${transcription.grid-subdivisions:4}") int gridSubdivisions,
+                               @Value("${transcription.beats-per-bar:4}") int beatsPerBar,
+                               @Value("${transcription.tempo-warm-up-notes:16}") int tempoWarmUpNotes,
+                               @Value("${transcription.chord-tolerance-ms:40}") long chordToleranceMs,
+                               @Value("${transcription.max-voices:4}") int maxVoices,
+                               @Value("${transcription.piano-staff:true}") boolean pianoStaff,
+                               @Value("${transcription.hand-split-lag:8}") int handSplitLag,
+                               @Value("${transcription.work-budget-per-1000-notes:20000}") long workBudgetPerThousandNotes,
+                               @Value("${transcription.key-window-notes:32}") int keyWindowNotes) {
+        // LilyPond durations are powers of two, so the grid has to be as well (1 = quarters ... 8 = 32nds)
+        this.gridSubdivisions = Integer.highestOneBit(Math.max(1, Math.min(8, gridSubdivisions)));
+        this.beatsPerBar = Math.max(1, beatsPerBar);
+        this.tempoWarmUpNotes = Math.max(2, tempoWarmUpNotes);
+        this.chordToleranceMs = Math.max(0, chordToleranceMs);
+        this.maxVoices = Math.max(1, maxVoices);
+        this.pianoStaff = pianoStaff;
+        this.handSplitLag = Math.max(0, handSplitLag);
+        this.workBudgetPerThousandNotes = Math.max(1, workBudgetPerThousandNotes);
+        this.keyWindowNotes = Math.max(0, keyWindowNotes);
+        logger.info("Transcription grid: 1/{} notes, {} beats per bar", this.gridSubdivisions * 4, this.beatsPerBar);
+    }
+
+    /**
+     * @return Grid steps per quarter-note beat (4 = sixteenth-note grid)
+     */
+    public int getGridSubdivisions() {
+        return gridSubdivisions;
+    }
+
+    public int getBeatsPerBar() {
+        return beatsPerBar;
+    }
+
+    /**
+     * @return Number of onsets observed before the tempo is fixed for the rest of a recording
+     */
+    public int getTempoWarmUpNotes() {
+        return tempoWarmUpNotes;
+    }
+
+    /**
+     * @return Maximum spread of onsets that are still written as one chord
+     */
+    public long getChordToleranceMs() {
+        return chordToleranceMs;
+    }
+
+    /**
+     * @return Maximum number of simultaneous voices per staff
+     */
+    public int getMaxVoices() {
+        return maxVoices;
+    }
+
+    /**
+     * @return Whether parts are written as a piano staff with the notes split between the hands
+     */
+    public boolean isPianoStaff() {
+        return pianoStaff;
+    }
+
+    /**
+     * @return Number of chords the hand splitter looks ahead before assigning a chord to a hand
+     */
+    public int getHandSplitLag() {
+        return handSplitLag;
+    }
+
+    /**
+     * @return Notation tokens quantizing 1000 notes may write before falling back to unquantized durations
+     */
+    public long getWorkBudgetPerThousandNotes() {
+        return workBudgetPerThousandNotes;
+    }
+
+    /**
+     * @return Number of recent notes a key change is detected from, or 0 to keep the initial key
+     */
+    public int getKeyWindowNotes() {
+        return keyWindowNotes;
+    }
+}
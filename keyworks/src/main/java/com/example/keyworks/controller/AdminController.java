@@ -0,0 +1,77 @@
+package com.example.keyworks.controller;
+
+import com.example.keyworks.midi.MidiLoadGenerator;
+import com.example.keyworks.service.MidiDeviceService;
+import com.example.keyworks.service.MidiTraceService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.*;
+
+@RestController
+@RequestMapping("/api/admin")
+public class AdminController {
+
+    private final MidiTraceService midiTraceService;
+    private final MidiDeviceService midiDeviceService;
+    private final double maxLoadSeconds;
+
+    public AdminController(MidiTraceService midiTraceService, MidiDeviceService midiDeviceService,
+                           @Value("${midi.load.max-duration-seconds:60}") double maxLoadSeconds) {
+        this.midiTraceService = midiTraceService;
+        this.midiDeviceService = midiDeviceService;
+        this.maxLoadSeconds = maxLoadSeconds;
+    }
+
+    /**
+     * Dumps the most recent raw MIDI input events from the trace ring
+     * @param limit Maximum number of events to return
+     * @return Events, oldest first
+     */
+    @GetMapping("/midi/trace")
+    public ResponseEntity<Map<String, Object>> getMidiTrace(@RequestParam(defaultValue = "256") int limit) {
+        List<Map<String, Object>> events = midiTraceService.dump(Math.max(0, limit));
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("events", events);
+        response.put("count", events.size());
+        response.put("totalEvents", midiTraceService.getTotalEvents());
+        response.put("capacity", midiTraceService.getCapacity());
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Runs synthetic MIDI load against the ingest path of this server and waits for the report.
+     * Records into an unsaved recording for the duration of the run; refused while a recording is in progress.
+     * @param payload Load options: rate (notes/s), polyphony, channels, ccRatio, aftertouchRatio,
+     *                duration (seconds) and seed
+     * @return Achieved rate, dropped events and latency percentiles
+     */
+    @PostMapping("/midi/load")
+    public ResponseEntity<Map<String, Object>> runMidiLoad(@RequestBody(required = false) Map<String, Object> payload) {
+        MidiLoadGenerator.Options options;
+        try {
+            options = MidiLoadGenerator.Options.from(payload != null ? payload : Map.of());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(Map.of("success", false, "message", e.getMessage()));
+        }
+        if (options.getDurationSeconds() > maxLoadSeconds) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                .body(Map.of("success", false, "message", "Load runs are limited to " + maxLoadSeconds + " seconds"));
+        }
+
+        try {
+            Map<String, Object> response = new LinkedHashMap<>(MidiLoadGenerator.runInProcess(midiDeviceService, options).toMap());
+            response.put("success", true);
+            return ResponseEntity.ok(response);
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("success", false, "message", e.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(Map.of("success", false, "message", "Interrupted"));
+        }
+    }
+}
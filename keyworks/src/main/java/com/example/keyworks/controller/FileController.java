@@ -2,6 +2,7 @@ package com.example.keyworks.controller;
 
 import com.example.keyworks.config.FileStorageConfig;
 import com.example.keyworks.service.FileService;
+import com.example.keyworks.service.PagePreviewService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.Resource;
@@ -108,6 +109,10 @@ public class FileController {
                     contentType = "audio/midi";
                 } else if (filename.endsWith(".ly")) {
                     contentType = "text/plain";
+                } else if (filename.endsWith(".svg")) {
+                    contentType = "image/svg+xml";
+                } else if (filename.endsWith(".png")) {
+                    contentType = "image/png";
                 } else {
                     contentType = "application/octet-stream";
                 }
@@ -115,10 +120,14 @@ public class FileController {
             
             logger.info("Serving file {} with content type: {}", filename, contentType);
             
-            return ResponseEntity.ok()
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok()
                     .contentType(MediaType.parseMediaType(contentType))
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + file.getName() + "\"")
-                    .body(resource);
+                    .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + file.getName() + "\"");
+            if (PagePreviewService.isPageFile(file.getName())) {
+                // Page images are named by content hash, so they never change; private since they need a login
+                response.header(HttpHeaders.CACHE_CONTROL, "private, max-age=31536000, immutable");
+            }
+            return response.body(resource);
                     
         } catch (Exception e) {
             logger.error("Failed to serve file {}: {}", filename, e.getMessage(), e);
@@ -250,6 +259,10 @@ public class FileController {
                     contentType = "audio/midi";
                 } else if (filename.endsWith(".ly")) {
                     contentType = "text/plain";
+                } else if (filename.endsWith(".svg")) {
+                    contentType = "image/svg+xml";
+                } else if (filename.endsWith(".png")) {
+                    contentType = "image/png";
                 } else {
                     contentType = "application/octet-stream";
                 }
@@ -1,20 +1,31 @@
 package com.example.keyworks.controller;
 
 import com.example.keyworks.config.FileStorageConfig;
+import com.example.keyworks.service.AudioRenderService;
 import com.example.keyworks.service.FileService;
+import com.example.keyworks.service.LilyPondService;
+import com.example.keyworks.service.MidiDeviceRegistry;
+import com.example.keyworks.service.MidiDeviceService;
+import com.example.keyworks.service.MidiDeviceService.MidiNote;
+import com.example.keyworks.service.MidiFileWriter;
 import com.example.keyworks.service.MidiProcessingService;
+import com.example.keyworks.service.MusicXmlWriter;
+import com.example.keyworks.service.PagePreviewService;
+import com.example.keyworks.service.ScoreRenderException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.sound.midi.MidiDevice;
-import javax.sound.midi.MidiSystem;
-import javax.sound.midi.MidiUnavailableException;
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -29,11 +40,29 @@ public class MidiController {
     private final MidiProcessingService midiProcessingService;
     private final FileService fileService;
     private final FileStorageConfig fileStorageConfig;
+    private final MidiDeviceRegistry deviceRegistry;
+    private final MidiDeviceService midiDeviceService;
+    private final MidiFileWriter midiFileWriter;
+    private final MusicXmlWriter musicXmlWriter;
+    private final AudioRenderService audioRenderService;
+    private final LilyPondService lilyPondService;
+    private final PagePreviewService pagePreviewService;
     
-    public MidiController(MidiProcessingService midiProcessingService, FileService fileService, FileStorageConfig fileStorageConfig) {
+    public MidiController(MidiProcessingService midiProcessingService, FileService fileService,
+                          FileStorageConfig fileStorageConfig, MidiDeviceRegistry deviceRegistry,
+                          MidiDeviceService midiDeviceService, MidiFileWriter midiFileWriter,
+                          MusicXmlWriter musicXmlWriter, AudioRenderService audioRenderService,
+                          LilyPondService lilyPondService, PagePreviewService pagePreviewService) {
         this.midiProcessingService = midiProcessingService;
         this.fileService = fileService;
         this.fileStorageConfig = fileStorageConfig;
+        this.deviceRegistry = deviceRegistry;
+        this.midiDeviceService = midiDeviceService;
+        this.midiFileWriter = midiFileWriter;
+        this.musicXmlWriter = musicXmlWriter;
+        this.audioRenderService = audioRenderService;
+        this.lilyPondService = lilyPondService;
+        this.pagePreviewService = pagePreviewService;
         logger.info("MidiController initialized");
     }
     
@@ -43,45 +72,32 @@ public class MidiController {
      */
     @GetMapping("/devices")
     public ResponseEntity<List<Map<String, String>>> getMidiDevices() {
-        logger.info("Fetching MIDI devices...");
-        List<MidiDevice.Info> deviceInfos = midiProcessingService.getMidiDevices();
         List<Map<String, String>> devices = new ArrayList<>();
         
-        for (MidiDevice.Info info : deviceInfos) {
+        for (MidiDeviceRegistry.DeviceEntry entry : deviceRegistry.getInputDevices()) {
+            MidiDevice.Info info = entry.getInfo();
             Map<String, String> device = new HashMap<>();
-            String deviceId = UUID.nameUUIDFromBytes(info.getName().getBytes()).toString();
             
-            device.put("id", deviceId);
+            device.put("id", entry.getId());
             device.put("name", info.getName());
             device.put("description", info.getDescription());
             device.put("vendor", info.getVendor());
             device.put("version", info.getVersion());
             
             // Add device type information
-            try {
-                MidiDevice midiDevice = MidiSystem.getMidiDevice(info);
-                boolean isInput = midiDevice.getMaxTransmitters() != 0;
-                boolean isOutput = midiDevice.getMaxReceivers() != 0;
-                String type = "";
-                
-                if (isInput) type += "Input";
-                if (isOutput) {
-                    if (!type.isEmpty()) type += ", ";
-                    type += "Output";
-                }
-                
-                device.put("type", type);
-                device.put("isVirtual", info.getName().toLowerCase().contains("virtual") ? "Virtual" : "Physical");
-            } catch (MidiUnavailableException e) {
-                logger.warn("Could not get additional info for device {}: {}", info.getName(), e.getMessage());
-                device.put("type", "Unknown");
-                device.put("isVirtual", "Unknown");
+            String type = "";
+            if (entry.canTransmit()) type += "Input";
+            if (entry.canReceive()) {
+                if (!type.isEmpty()) type += ", ";
+                type += "Output";
             }
             
+            device.put("type", type);
+            device.put("isVirtual", entry.isVirtual() ? "Virtual" : "Physical");
+            
             devices.add(device);
         }
         
-        logger.info("Found {} MIDI devices", devices.size());
         return ResponseEntity.ok(devices);
     }
     
@@ -95,30 +111,28 @@ public class MidiController {
         Map<String, Object> response = new HashMap<>();
         
         logger.info("Attempting to connect to MIDI device with ID: {}", deviceId);
-        List<MidiDevice.Info> deviceInfos = midiProcessingService.getMidiDevices();
+        Optional<MidiDeviceRegistry.DeviceEntry> match = deviceRegistry.findById(deviceId);
         
-        for (MidiDevice.Info info : deviceInfos) {
-            String id = UUID.nameUUIDFromBytes(info.getName().getBytes()).toString();
-            if (id.equals(deviceId)) {
-                try {
-                    boolean success = midiProcessingService.connectToDevice(info);
-                    if (success) {
-                        logger.info("Successfully connected to MIDI device: {}", info.getName());
-                        response.put("success", true);
-                        response.put("message", "Connected to MIDI device: " + info.getName());
-                        return ResponseEntity.ok(response);
-                    } else {
-                        logger.error("Failed to connect to MIDI device: {}", info.getName());
-                        response.put("success", false);
-                        response.put("message", "Failed to connect to MIDI device: " + info.getName());
-                        return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
-                    }
-                } catch (Exception e) {
-                    logger.error("Error connecting to MIDI device {}: {}", info.getName(), e.getMessage(), e);
+        if (match.isPresent() && match.get().canTransmit()) {
+            MidiDeviceRegistry.DeviceEntry entry = match.get();
+            try {
+                boolean success = midiProcessingService.connectToDevice(entry.getDevice());
+                if (success) {
+                    logger.info("Successfully connected to MIDI device: {}", entry.getName());
+                    response.put("success", true);
+                    response.put("message", "Connected to MIDI device: " + entry.getName());
+                    return ResponseEntity.ok(response);
+                } else {
+                    logger.error("Failed to connect to MIDI device: {}", entry.getName());
                     response.put("success", false);
-                    response.put("message", "Error connecting to MIDI device: " + e.getMessage());
+                    response.put("message", "Failed to connect to MIDI device: " + entry.getName());
                     return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
                 }
+            } catch (Exception e) {
+                logger.error("Error connecting to MIDI device {}: {}", entry.getName(), e.getMessage(), e);
+                response.put("success", false);
+                response.put("message", "Error connecting to MIDI device: " + e.getMessage());
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
             }
         }
         
@@ -270,6 +284,7 @@ public class MidiController {
             logger.error("Error generating PDF: {}", e.getMessage(), e);
             response.put("success", false);
             response.put("message", "Error generating PDF: " + e.getMessage());
+            ScoreRenderException.find(e).ifPresent(failure -> response.put("diagnostics", failure.getDiagnosticMaps()));
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
         }
     }
@@ -305,6 +320,7 @@ public class MidiController {
             logger.error("Error in test PDF generation: {}", e.getMessage(), e);
             response.put("success", false);
             response.put("message", "Error in test PDF generation: " + e.getMessage());
+            ScoreRenderException.find(e).ifPresent(failure -> response.put("diagnostics", failure.getDiagnosticMaps()));
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
         }
     }
@@ -399,6 +415,154 @@ public class MidiController {
         }
     }
     
+    /**
+     * Downloads a recording as a Standard MIDI File, written straight from the recorded notes
+     * without running LilyPond
+     * @param recordingId The ID of the recording (device recording or multi-device session)
+     * @param type SMF type: 0 (single track) or 1 (one track per source)
+     * @return The MIDI file
+     */
+    @GetMapping("/download/midi/{recordingId}")
+    public ResponseEntity<byte[]> downloadMidi(@PathVariable String recordingId,
+                                               @RequestParam(defaultValue = "1") int type) {
+        if (type != 0 && type != 1) {
+            return ResponseEntity.badRequest().build();
+        }
+        
+        List<MidiNote> notes = findRecordingNotes(recordingId);
+        if (notes == null) {
+            logger.error("Recording not found for MIDI download: {}", recordingId);
+            return ResponseEntity.notFound().build();
+        }
+        
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(64 + notes.size() * 10);
+            midiFileWriter.write(notes, type, findRecordingTempo(recordingId), out);
+            logger.info("Serving MIDI download for recording ID: {} ({} notes, type {})", recordingId, notes.size(), type);
+            return ResponseEntity.ok()
+                    .contentType(MediaType.parseMediaType("audio/midi"))
+                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"recording_" + recordingId + ".mid\"")
+                    .body(out.toByteArray());
+        } catch (Exception e) {
+            logger.error("Failed to write MIDI file: {}", e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+    
+    /**
+     * Exports a recording as MusicXML, one part per source. The score is streamed to the client
+     * as it is written.
+     * @param recordingId The ID of the recording (device recording or multi-device session)
+     * @return The MusicXML document
+     */
+    @GetMapping("/download/musicxml/{recordingId}")
+    public ResponseEntity<StreamingResponseBody> downloadMusicXml(@PathVariable String recordingId) {
+        List<MidiNote> notes = findRecordingNotes(recordingId);
+        if (notes == null) {
+            logger.error("Recording not found for MusicXML export: {}", recordingId);
+            return ResponseEntity.notFound().build();
+        }
+        
+        Map<String, List<MidiNote>> parts = MusicXmlWriter.partsBySource(notes, findSourceNames(recordingId));
+        int tempoBpm = findRecordingTempo(recordingId);
+        StreamingResponseBody body = out -> {
+            try {
+                musicXmlWriter.write("Recording " + recordingId, parts, tempoBpm, out);
+            } catch (XMLStreamException e) {
+                throw new IOException("Failed to write MusicXML: " + e.getMessage(), e);
+            }
+        };
+        
+        logger.info("Streaming MusicXML for recording ID: {} ({} notes, {} parts)", recordingId, notes.size(), parts.size());
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/vnd.recordare.musicxml+xml"))
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"recording_" + recordingId + ".musicxml\"")
+                .body(body);
+    }
+    
+    /**
+     * Renders a recording to WAV audio with the software synthesizer. Audio is streamed while it is
+     * synthesized; renders are cached by content hash, so repeated requests are served from disk.
+     * @param recordingId The ID of the recording (device recording or multi-device session)
+     * @return The WAV audio
+     */
+    @GetMapping("/download/wav/{recordingId}")
+    public ResponseEntity<?> downloadWav(@PathVariable String recordingId) {
+        List<MidiNote> notes = findRecordingNotes(recordingId);
+        if (notes == null) {
+            logger.error("Recording not found for audio render: {}", recordingId);
+            return ResponseEntity.notFound().build();
+        }
+        if (!audioRenderService.isAvailable()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .body(Map.of("success", false, "message", "Audio rendering is not available on this server"));
+        }
+        
+        String hash = audioRenderService.contentHash(notes);
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("audio/wav"))
+                .eTag(hash)
+                .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"recording_" + recordingId + ".wav\"");
+        Optional<Path> cached = audioRenderService.findCached(hash);
+        if (cached.isPresent()) {
+            logger.info("Serving cached audio for recording ID: {}", recordingId);
+            return response.body(new FileSystemResource(cached.get()));
+        }
+        
+        // Reserved before the response is committed, so a busy server answers 503 rather than a truncated WAV
+        Optional<AudioRenderService.Reservation> reservation;
+        try {
+            reservation = audioRenderService.reserve();
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("success", false, "message", "Failed to render audio: " + e.getMessage()));
+        }
+        if (reservation.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, "5")
+                    .body(Map.of("success", false, "message", "All audio renderers are busy; try again shortly"));
+        }
+        
+        logger.info("Rendering audio for recording ID: {} ({} notes)", recordingId, notes.size());
+        StreamingResponseBody body = out -> audioRenderService.render(reservation.get(), notes, hash, out);
+        return response.body(body);
+    }
+    
+    /**
+     * Finds the notes of the current device recording or of a stored recording
+     */
+    private List<MidiNote> findRecordingNotes(String recordingId) {
+        if (recordingId.equals(midiProcessingService.getCurrentRecordingId())) {
+            return midiProcessingService.getRecordedMidiNotes();
+        }
+        return midiDeviceService.getRecordingNotes(recordingId);
+    }
+    
+    private int findRecordingTempo(String recordingId) {
+        if (recordingId.equals(midiProcessingService.getCurrentRecordingId())) {
+            return midiProcessingService.getRecordedTempoBpm();
+        }
+        Map<String, Object> recordingData = midiDeviceService.getRecordingData(recordingId);
+        Object tempo = recordingData != null ? recordingData.get("tempoBpm") : null;
+        return tempo instanceof Number number ? number.intValue() : 0;
+    }
+    
+    /**
+     * Names of the sources of a multi-device session, by source index
+     */
+    private List<String> findSourceNames(String recordingId) {
+        List<String> names = new ArrayList<>();
+        Map<String, Object> recordingData = midiDeviceService.getRecordingData(recordingId);
+        if (recordingData != null && recordingData.get("sources") instanceof List<?> sources) {
+            for (Object source : sources) {
+                if (source instanceof Map<?, ?> entry) {
+                    names.add(String.valueOf(entry.get("name")));
+                }
+            }
+        }
+        return names;
+    }
+    
     /**
      * Views the generated PDF
      * @param recordingId The ID of the recording
@@ -439,6 +603,52 @@ public class MidiController {
         }
     }
     
+    /**
+     * Views the first pages of a PDF that is still being rendered in sections. Once the whole PDF
+     * is rendered, that is served instead.
+     * @param recordingId The ID of the recording
+     * @return The preview or the PDF, for viewing
+     */
+    @GetMapping("/preview/pdf/{recordingId}")
+    public ResponseEntity<Resource> previewPdf(@PathVariable String recordingId) {
+        try {
+            String previewFileName = lilyPondService.getPreviewFileName(recordingId);
+            String pdfFileName = previewFileName != null ? previewFileName : "music_generated_" + recordingId + ".pdf";
+            
+            Resource resource = fileService.loadFileAsResource(pdfFileName);
+            if (!resource.exists()) {
+                logger.info("No preview or PDF yet for recording ID: {}", recordingId);
+                return ResponseEntity.notFound().build();
+            }
+            
+            // The preview is replaced by the whole PDF under the same URL
+            return ResponseEntity.ok()
+                    .contentType(MediaType.APPLICATION_PDF)
+                    .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + resource.getFilename() + "\"")
+                    .header(HttpHeaders.CACHE_CONTROL, "no-store")
+                    .header("X-Preview", Boolean.toString(previewFileName != null))
+                    .body(resource);
+        } catch (Exception e) {
+            logger.error("Failed to view preview: {}", e.getMessage(), e);
+            return ResponseEntity.notFound().build();
+        }
+    }
+    
+    /**
+     * Lists the page images of the generated PDF, for thumbnails
+     * @param recordingId The ID of the recording
+     * @return URLs of the page images in page order; empty until they are rendered
+     */
+    @GetMapping("/pages/{recordingId}")
+    public ResponseEntity<Map<String, Object>> getPageImages(@PathVariable String recordingId) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("recordingId", recordingId);
+        response.put("pages", pagePreviewService.getPages(recordingId).stream()
+            .map(page -> "/api/files/output/" + page)
+            .toList());
+        return ResponseEntity.ok(response);
+    }
+    
     /**
      * Plays a virtual MIDI note
      * @param note The note to play (e.g., "C4")
@@ -465,6 +675,11 @@ public class MidiController {
             response.put("success", true);
             response.put("message", "Note played: " + note);
             return ResponseEntity.ok(response);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Cannot play note {}: {}", note, e.getMessage());
+            response.put("success", false);
+            response.put("message", e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
         } catch (Exception e) {
             logger.error("Error playing note {}: {}", note, e.getMessage(), e);
             response.put("success", false);
@@ -479,45 +694,33 @@ public class MidiController {
      */
     @GetMapping("/devices/detailed")
     public ResponseEntity<List<Map<String, Object>>> getMidiDevicesDetailed() {
-        logger.info("Fetching detailed MIDI device information...");
-        List<MidiDevice.Info> deviceInfos = midiProcessingService.getMidiDevices();
         List<Map<String, Object>> devices = new ArrayList<>();
         
-        for (MidiDevice.Info info : deviceInfos) {
+        for (MidiDeviceRegistry.DeviceEntry entry : deviceRegistry.getInputDevices()) {
+            MidiDevice.Info info = entry.getInfo();
             Map<String, Object> device = new HashMap<>();
-            String deviceId = UUID.nameUUIDFromBytes(info.getName().getBytes()).toString();
             
-            device.put("id", deviceId);
+            device.put("id", entry.getId());
             device.put("name", info.getName());
             device.put("description", info.getDescription());
             device.put("vendor", info.getVendor());
             device.put("version", info.getVersion());
             
             // Add detailed device information
-            try {
-                MidiDevice midiDevice = MidiSystem.getMidiDevice(info);
-                device.put("maxReceivers", midiDevice.getMaxReceivers());
-                device.put("maxTransmitters", midiDevice.getMaxTransmitters());
-                device.put("isOpen", midiDevice.isOpen());
-                
-                boolean isInput = midiDevice.getMaxTransmitters() != 0;
-                boolean isOutput = midiDevice.getMaxReceivers() != 0;
-                
-                Map<String, Boolean> capabilities = new HashMap<>();
-                capabilities.put("input", isInput);
-                capabilities.put("output", isOutput);
-                capabilities.put("virtual", info.getName().toLowerCase().contains("virtual"));
-                
-                device.put("capabilities", capabilities);
-            } catch (MidiUnavailableException e) {
-                logger.warn("Could not get detailed info for device {}: {}", info.getName(), e.getMessage());
-                device.put("error", "Device unavailable: " + e.getMessage());
-            }
+            device.put("maxReceivers", entry.getMaxReceivers());
+            device.put("maxTransmitters", entry.getMaxTransmitters());
+            device.put("isOpen", entry.getDevice().isOpen());
+            
+            Map<String, Boolean> capabilities = new HashMap<>();
+            capabilities.put("input", entry.canTransmit());
+            capabilities.put("output", entry.canReceive());
+            capabilities.put("virtual", entry.isVirtual());
+            
+            device.put("capabilities", capabilities);
             
             devices.add(device);
         }
         
-        logger.info("Found {} MIDI devices with detailed information", devices.size());
         return ResponseEntity.ok(devices);
     }
     
@@ -0,0 +1,178 @@
+package com.example.keyworks.controller;
+
+import com.example.keyworks.service.MidiDeviceService;
+import com.example.keyworks.service.MidiDeviceService.MidiNote;
+import com.example.keyworks.service.MidiPlayer;
+import com.example.keyworks.service.MidiProcessingService;
+import com.example.keyworks.service.PlaybackEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.*;
+
+@RestController
+@RequestMapping("/api/midi/playback")
+public class PlaybackController {
+    private static final Logger logger = LoggerFactory.getLogger(PlaybackController.class);
+
+    private final PlaybackEngine playbackEngine;
+    private final MidiProcessingService midiProcessingService;
+    private final MidiDeviceService midiDeviceService;
+
+    public PlaybackController(PlaybackEngine playbackEngine, MidiProcessingService midiProcessingService,
+                              MidiDeviceService midiDeviceService) {
+        this.playbackEngine = playbackEngine;
+        this.midiProcessingService = midiProcessingService;
+        this.midiDeviceService = midiDeviceService;
+    }
+
+    /**
+     * Starts playing a recording on the server
+     * @param payload recordingId, and optional target ("synth", "none" or an output device ID),
+     *                tempo (scale, default 1.0), loop (default false) and startMs
+     * @return The playback ID and status
+     */
+    @PostMapping
+    public ResponseEntity<Map<String, Object>> startPlayback(@RequestBody Map<String, Object> payload) {
+        Object recordingId = payload.get("recordingId");
+        List<MidiNote> notes = recordingId != null ? findRecordingNotes(recordingId.toString()) : null;
+        if (notes == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                .body(Map.of("success", false, "message", "Recording not found: " + recordingId));
+        }
+
+        try {
+            Object target = payload.get("target");
+            MidiPlayer player = playbackEngine.start(notes,
+                target != null ? target.toString() : null,
+                payload.get("tempo") instanceof Number tempo ? tempo.doubleValue() : 1.0,
+                Boolean.parseBoolean(String.valueOf(payload.get("loop"))),
+                payload.get("startMs") instanceof Number startMs ? startMs.longValue() : 0);
+
+            Map<String, Object> response = status(player);
+            response.put("success", true);
+            return ResponseEntity.ok(response);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                .body(Map.of("success", false, "message", e.getMessage()));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .body(Map.of("success", false, "message", e.getMessage()));
+        } catch (Exception e) {
+            logger.error("Error starting playback of {}: {}", recordingId, e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                .body(Map.of("success", false, "message", "Error starting playback: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Lists current and recently finished playbacks
+     */
+    @GetMapping
+    public ResponseEntity<List<Map<String, Object>>> listPlaybacks() {
+        List<Map<String, Object>> playbacks = new ArrayList<>();
+        for (MidiPlayer player : playbackEngine.getPlayers()) {
+            Map<String, Object> summary = status(player);
+            summary.remove("lateness");
+            playbacks.add(summary);
+        }
+        return ResponseEntity.ok(playbacks);
+    }
+
+    /**
+     * Gets the status of a playback, including the lateness histogram of the sent events
+     * @param playbackId The playback ID
+     */
+    @GetMapping("/{playbackId}")
+    public ResponseEntity<Map<String, Object>> getPlayback(@PathVariable String playbackId) {
+        return playbackEngine.find(playbackId)
+            .map(player -> ResponseEntity.ok(status(player)))
+            .orElse(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Moves a playback to a position
+     * @param playbackId The playback ID
+     * @param positionMs Position in milliseconds
+     */
+    @PostMapping("/{playbackId}/seek")
+    public ResponseEntity<Map<String, Object>> seek(@PathVariable String playbackId, @RequestParam long positionMs) {
+        return playbackEngine.find(playbackId)
+            .map(player -> {
+                player.seek(positionMs);
+                return ResponseEntity.ok(status(player));
+            })
+            .orElse(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Changes the tempo of a playback
+     * @param playbackId The playback ID
+     * @param scale Tempo factor; 2.0 plays twice as fast
+     */
+    @PostMapping("/{playbackId}/tempo")
+    public ResponseEntity<Map<String, Object>> setTempo(@PathVariable String playbackId, @RequestParam double scale) {
+        if (!(scale > 0)) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                .body(Map.of("success", false, "message", "Tempo scale must be positive"));
+        }
+        return playbackEngine.find(playbackId)
+            .map(player -> {
+                player.setTempoScale(scale);
+                return ResponseEntity.ok(status(player));
+            })
+            .orElse(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Turns looping of a playback on or off
+     * @param playbackId The playback ID
+     * @param enabled Whether to loop
+     */
+    @PostMapping("/{playbackId}/loop")
+    public ResponseEntity<Map<String, Object>> setLoop(@PathVariable String playbackId, @RequestParam boolean enabled) {
+        return playbackEngine.find(playbackId)
+            .map(player -> {
+                player.setLooping(enabled);
+                return ResponseEntity.ok(status(player));
+            })
+            .orElse(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Stops a playback
+     * @param playbackId The playback ID
+     */
+    @PostMapping("/{playbackId}/stop")
+    public ResponseEntity<Map<String, Object>> stop(@PathVariable String playbackId) {
+        if (!playbackEngine.stop(playbackId)) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(Map.of("success", true, "playbackId", playbackId));
+    }
+
+    private Map<String, Object> status(MidiPlayer player) {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("playbackId", player.getName());
+        status.put("target", playbackEngine.getTarget(player.getName()));
+        status.put("playing", player.isPlaying());
+        status.put("positionMs", player.getPositionMs());
+        status.put("durationMs", player.getDurationMs());
+        status.put("tempoScale", player.getTempoScale());
+        status.put("looping", player.isLooping());
+        status.put("loops", player.getLoops());
+        status.put("eventsSent", player.getEventsSent());
+        status.put("lateness", player.getLateness().toMap());
+        return status;
+    }
+
+    private List<MidiNote> findRecordingNotes(String recordingId) {
+        if (recordingId.equals(midiProcessingService.getCurrentRecordingId())) {
+            return midiProcessingService.getRecordedMidiNotes();
+        }
+        return midiDeviceService.getRecordingNotes(recordingId);
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.keyworks.controller;
+
+import com.example.keyworks.service.MidiEventLane;
+import com.example.keyworks.service.MultiDeviceRecordingService;
+import com.example.keyworks.service.MultiDeviceRecordingService.RecordingSession;
+import com.example.keyworks.service.MultiDeviceRecordingService.StaffLayout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.*;
+
+@RestController
+@RequestMapping("/api/midi/sessions")
+public class RecordingSessionController {
+    private static final Logger logger = LoggerFactory.getLogger(RecordingSessionController.class);
+
+    private final MultiDeviceRecordingService multiDeviceRecordingService;
+
+    public RecordingSessionController(MultiDeviceRecordingService multiDeviceRecordingService) {
+        this.multiDeviceRecordingService = multiDeviceRecordingService;
+    }
+
+    /**
+     * Starts recording from several MIDI devices at once
+     * @param payload deviceIds (list of registry IDs) and optional staffLayout ("device" or "channel")
+     * @return The session ID
+     */
+    @PostMapping
+    public ResponseEntity<Map<String, Object>> startSession(@RequestBody Map<String, Object> payload) {
+        Map<String, Object> response = new HashMap<>();
+
+        try {
+            List<String> deviceIds = new ArrayList<>();
+            Object ids = payload.get("deviceIds");
+            if (ids instanceof Collection<?> collection) {
+                for (Object id : collection) {
+                    deviceIds.add(id.toString());
+                }
+            }
+
+            Object layoutValue = payload.get("staffLayout");
+            StaffLayout layout = layoutValue != null
+                ? StaffLayout.valueOf(layoutValue.toString().toUpperCase())
+                : StaffLayout.DEVICE;
+
+            RecordingSession session = multiDeviceRecordingService.startSession(deviceIds, layout);
+
+            response.put("success", true);
+            response.put("sessionId", session.getId());
+            response.put("devices", sourceNames(session));
+            response.put("staffLayout", layout.name().toLowerCase());
+            return ResponseEntity.ok(response);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Cannot start multi-device session: {}", e.getMessage());
+            response.put("success", false);
+            response.put("message", e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
+        } catch (Exception e) {
+            logger.error("Error starting multi-device session: {}", e.getMessage(), e);
+            response.put("success", false);
+            response.put("message", "Error starting session: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
+        }
+    }
+
+    /**
+     * Stops a session and returns the merged multi-staff recording
+     * @param sessionId The session ID
+     * @return Recording data including LilyPond code
+     */
+    @PostMapping("/{sessionId}/stop")
+    public ResponseEntity<Map<String, Object>> stopSession(@PathVariable String sessionId) {
+        try {
+            Map<String, Object> recordingData = multiDeviceRecordingService.stopSession(sessionId);
+            if (recordingData == null) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("success", false, "message", "Session not found: " + sessionId));
+            }
+
+            Map<String, Object> response = new HashMap<>(recordingData);
+            response.put("success", true);
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            logger.error("Error stopping multi-device session {}: {}", sessionId, e.getMessage(), e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                .body(Map.of("success", false, "message", "Error stopping session: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Gets the live status of a session
+     * @param sessionId The session ID
+     * @return Per-device event counts
+     */
+    @GetMapping("/{sessionId}")
+    public ResponseEntity<Map<String, Object>> getSession(@PathVariable String sessionId) {
+        return multiDeviceRecordingService.getSession(sessionId)
+            .map(session -> {
+                Map<String, Object> response = new HashMap<>();
+                List<Map<String, Object>> sources = new ArrayList<>();
+                for (MidiEventLane lane : session.getLanes()) {
+                    Map<String, Object> source = new HashMap<>();
+                    source.put("source", lane.getSource());
+                    source.put("name", lane.getSourceName());
+                    source.put("events", lane.size());
+                    sources.add(source);
+                }
+                response.put("sessionId", session.getId());
+                response.put("isRecording", session.isRecording());
+                response.put("staffLayout", session.getLayout().name().toLowerCase());
+                response.put("sources", sources);
+                return ResponseEntity.ok(response);
+            })
+            .orElse(ResponseEntity.notFound().build());
+    }
+
+    private List<String> sourceNames(RecordingSession session) {
+        List<String> names = new ArrayList<>();
+        for (MidiEventLane lane : session.getLanes()) {
+            names.add(lane.getSourceName());
+        }
+        return names;
+    }
+}
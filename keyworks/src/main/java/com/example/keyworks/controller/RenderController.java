@@ -0,0 +1,34 @@
+package com.example.keyworks.controller;
+
+import com.example.keyworks.service.RenderScheduler;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/render")
+public class RenderController {
+
+    private final RenderScheduler renderScheduler;
+
+    public RenderController(RenderScheduler renderScheduler) {
+        this.renderScheduler = renderScheduler;
+    }
+
+    /**
+     * Shows the render queue from the point of view of the logged-in user: slot usage, queue lengths
+     * per priority class, and the user's own renders with their queue position and estimated wait.
+     * Renders requested with the X-Render-Priority header (interactive, background or bulk) are
+     * queued in that class.
+     * @param authentication The logged-in user
+     * @return The queue
+     */
+    @GetMapping("/queue")
+    public ResponseEntity<Map<String, Object>> getQueue(Authentication authentication) {
+        return ResponseEntity.ok(renderScheduler.getQueue(authentication.getName()));
+    }
+}
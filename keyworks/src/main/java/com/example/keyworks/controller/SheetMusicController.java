@@ -1,10 +1,18 @@
 package com.example.keyworks.controller;
 
+import com.example.keyworks.config.FileStorageConfig;
 import com.example.keyworks.model.SheetMusic;
+import com.example.keyworks.service.AudioRenderService;
 import com.example.keyworks.service.SheetMusicService;
 import com.example.keyworks.service.UserService;
 import com.example.keyworks.service.LilyPondService;
+import com.example.keyworks.service.LilyPondValidator;
 import com.example.keyworks.service.MidiDeviceService;
+import com.example.keyworks.service.MidiDeviceService.MidiNote;
+import com.example.keyworks.service.MidiFileReader;
+import com.example.keyworks.service.MidiImportService;
+import com.example.keyworks.service.PagePreviewService;
+import com.example.keyworks.service.ScoreRenderException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.core.io.FileSystemResource;
@@ -13,12 +21,20 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
 @RestController
 @RequestMapping("/api/sheet-music")
@@ -27,14 +43,29 @@ public class SheetMusicController {
     private final SheetMusicService sheetMusicService;
     private final UserService userService;
     private final LilyPondService lilyPondService;
+    private final MidiImportService midiImportService;
+    private final MidiFileReader midiFileReader;
+    private final AudioRenderService audioRenderService;
+    private final FileStorageConfig fileStorageConfig;
+    private final LilyPondValidator lilyPondValidator;
+    private final PagePreviewService pagePreviewService;
     
     @Autowired
     private ApplicationContext applicationContext;
 
-    public SheetMusicController(SheetMusicService sheetMusicService, UserService userService, LilyPondService lilyPondService) {
+    public SheetMusicController(SheetMusicService sheetMusicService, UserService userService, LilyPondService lilyPondService,
+                                MidiImportService midiImportService, MidiFileReader midiFileReader,
+                                AudioRenderService audioRenderService, FileStorageConfig fileStorageConfig,
+                                LilyPondValidator lilyPondValidator, PagePreviewService pagePreviewService) {
         this.sheetMusicService = sheetMusicService;
         this.userService = userService;
         this.lilyPondService = lilyPondService;
+        this.midiImportService = midiImportService;
+        this.midiFileReader = midiFileReader;
+        this.audioRenderService = audioRenderService;
+        this.fileStorageConfig = fileStorageConfig;
+        this.lilyPondValidator = lilyPondValidator;
+        this.pagePreviewService = pagePreviewService;
     }
 
     @GetMapping
@@ -68,6 +99,10 @@ public class SheetMusicController {
             String title = (String) payload.get("title");
             String description = (String) payload.get("description");
             String lilyPondCode = (String) payload.get("lilyPondCode");
+            LilyPondValidator.Validation validation = lilyPondValidator.validate(lilyPondCode);
+            if (!validation.isValid()) {
+                return ResponseEntity.badRequest().body(invalidCode(validation));
+            }
 
             return userService.findUserById(userId)
                     .map(user -> {
@@ -83,15 +118,26 @@ public class SheetMusicController {
 
     @PutMapping("/{id}")
     public ResponseEntity<?> updateSheetMusic(@PathVariable Long id, @RequestBody SheetMusic sheetMusic) {
+        LilyPondValidator.Validation validation = lilyPondValidator.validate(sheetMusic.getLilyPondCode());
+        if (!validation.isValid()) {
+            return ResponseEntity.badRequest().body(invalidCode(validation));
+        }
         return sheetMusicService.findSheetMusicById(id)
-                .map(existingSheetMusic -> {
-                    sheetMusic.setId(id);
-                    sheetMusic.setUser(existingSheetMusic.getUser());
-                    return ResponseEntity.ok(sheetMusicService.saveSheetMusic(sheetMusic));
-                })
+                .map(existingSheetMusic -> ResponseEntity.ok(sheetMusicService.updateSheetMusic(existingSheetMusic, sheetMusic)))
                 .orElse(ResponseEntity.notFound().build());
     }
 
+    /**
+     * Checks LilyPond code without rendering it
+     * @param payload lilyPondCode
+     * @return valid, diagnostics, contentHash (of the normalized code) and the estimated render cost
+     */
+    @PostMapping("/validate")
+    public ResponseEntity<Map<String, Object>> validateLilyPond(@RequestBody Map<String, Object> payload) {
+        Object code = payload.get("lilyPondCode");
+        return ResponseEntity.ok(lilyPondValidator.validate(code != null ? code.toString() : null).toMap());
+    }
+
     @DeleteMapping("/{id}")
     public ResponseEntity<Void> deleteSheetMusic(@PathVariable Long id) {
         return sheetMusicService.findSheetMusicById(id)
@@ -102,17 +148,110 @@ public class SheetMusicController {
                 .orElse(ResponseEntity.notFound().build());
     }
 
+    /**
+     * Render the MIDI file of a sheet music to WAV audio with the software synthesizer.
+     * Audio is streamed while it is synthesized and cached by content hash.
+     * @param id Sheet music ID; its files must have been generated
+     * @return The WAV audio
+     */
+    @GetMapping("/{id}/audio")
+    public ResponseEntity<?> getSheetMusicAudio(@PathVariable Long id) {
+        Optional<SheetMusic> sheetMusic = sheetMusicService.findSheetMusicById(id);
+        if (sheetMusic.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        if (sheetMusic.get().getMidiPath() == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(Map.of("error", "No MIDI file for sheet music " + id + "; generate its files first"));
+        }
+        if (!audioRenderService.isAvailable()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .body(Map.of("error", "Audio rendering is not available on this server"));
+        }
+
+        // The MIDI file is only parsed when its audio is not cached yet
+        Path midiFile = fileStorageConfig.resolveFilePath(sheetMusic.get().getMidiPath());
+        Optional<String> knownHash = audioRenderService.findFileHash(midiFile);
+        Optional<Path> cached = knownHash.flatMap(audioRenderService::findCached);
+        if (cached.isPresent()) {
+            return audioResponse(id, knownHash.get()).body(new FileSystemResource(cached.get()));
+        }
+
+        List<MidiNote> notes = new ArrayList<>();
+        try (InputStream in = Files.newInputStream(midiFile)) {
+            for (MidiFileReader.ImportedTrack track : midiFileReader.readSequence(in).getTracks()) {
+                notes.addAll(track.getNotes());
+            }
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Failed to read MIDI file: " + e.getMessage()));
+        }
+
+        String hash = audioRenderService.contentHash(notes);
+        audioRenderService.rememberFileHash(midiFile, hash);
+        cached = audioRenderService.findCached(hash);
+        if (cached.isPresent()) {
+            return audioResponse(id, hash).body(new FileSystemResource(cached.get()));
+        }
+        // Reserved before the response is committed, so a busy server answers 503 rather than a truncated WAV
+        Optional<AudioRenderService.Reservation> reservation;
+        try {
+            reservation = audioRenderService.reserve();
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Failed to render audio: " + e.getMessage()));
+        }
+        if (reservation.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, "5")
+                    .body(Map.of("error", "All audio renderers are busy; try again shortly"));
+        }
+        StreamingResponseBody body = out -> audioRenderService.render(reservation.get(), notes, hash, out);
+        return audioResponse(id, hash).body(body);
+    }
+
+    private static ResponseEntity.BodyBuilder audioResponse(Long id, String hash) {
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("audio/wav"))
+                .eTag(hash)
+                .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"sheet-music-" + id + ".wav\"");
+    }
+
+    /**
+     * List the page images of a sheet music's PDF, for library grids and thumbnails.
+     * Images are rendered in the background after the PDF and served with long-lived cache headers.
+     * @param id Sheet music ID
+     * @return URLs of the page images in page order; empty until they are rendered
+     */
+    @GetMapping("/{id}/pages")
+    public ResponseEntity<?> getSheetMusicPages(@PathVariable Long id) {
+        if (sheetMusicService.findSheetMusicById(id).isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        List<String> pages = pagePreviewService.getPages(id.toString()).stream()
+                .map(page -> "/api/files/output/" + page)
+                .toList();
+        return ResponseEntity.ok(Map.of("id", id, "pages", pages));
+    }
+
+    /**
+     * Generates the PDF and MIDI files of a sheet music, unless they are up to date
+     * @param id Sheet music ID
+     * @param force Render even if the files are up to date
+     * @return The sheet music with its file paths and render state
+     */
     @PostMapping("/generate/{id}")
-    public ResponseEntity<?> generateSheetMusicFiles(@PathVariable Long id) {
+    public ResponseEntity<?> generateSheetMusicFiles(@PathVariable Long id,
+                                                     @RequestParam(defaultValue = "false") boolean force) {
         try {
             return sheetMusicService.findSheetMusicById(id)
                     .map(sheetMusic -> {
                         try {
-                            SheetMusic updatedSheetMusic = sheetMusicService.generateSheetMusic(sheetMusic);
+                            SheetMusic updatedSheetMusic = sheetMusicService.generateSheetMusic(sheetMusic, force);
                             return ResponseEntity.ok(updatedSheetMusic);
                         } catch (Exception e) {
                             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                                    .body(Map.of("error", "Failed to generate files: " + e.getMessage()));
+                                    .body(renderError("Failed to generate files: " + e.getMessage(), e));
                         }
                     })
                     .orElse(ResponseEntity.notFound().build());
@@ -129,6 +268,10 @@ public class SheetMusicController {
             String title = (String) payload.get("title");
             String description = (String) payload.get("description");
             String lilyPondCode = (String) payload.get("lilyPondCode");
+            LilyPondValidator.Validation validation = lilyPondValidator.validate(lilyPondCode);
+            if (!validation.isValid()) {
+                return ResponseEntity.badRequest().body(invalidCode(validation));
+            }
 
             return userService.findUserById(userId)
                     .map(user -> {
@@ -142,7 +285,7 @@ public class SheetMusicController {
                             return ResponseEntity.status(HttpStatus.CREATED).body(updatedSheetMusic);
                         } catch (Exception e) {
                             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                                    .body(Map.of("error", "Failed to generate files: " + e.getMessage()));
+                                    .body(renderError("Failed to generate files: " + e.getMessage(), e));
                         }
                     })
                     .orElse(ResponseEntity.badRequest().body(Map.of("error", "User not found")));
@@ -151,6 +294,33 @@ public class SheetMusicController {
         }
     }
     
+    /**
+     * Import a Standard MIDI File as sheet music, one staff per track
+     * @param file The .mid file
+     * @param userId Owner of the new sheet music
+     * @return The sheet music ID and per-track statistics
+     */
+    @PostMapping(value = "/import/midi", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<?> importMidi(@RequestParam("file") MultipartFile file, @RequestParam Long userId) {
+        if (file.isEmpty()) {
+            return ResponseEntity.badRequest().body(Map.of("error", "No file uploaded"));
+        }
+        return userService.findUserById(userId)
+                .<ResponseEntity<?>>map(user -> {
+                    try {
+                        Map<String, Object> importData = midiImportService.importMidi(file.getInputStream(),
+                                file.getSize(), file.getOriginalFilename(), user);
+                        return ResponseEntity.status(HttpStatus.CREATED).body(importData);
+                    } catch (IOException | IllegalArgumentException e) {
+                        return ResponseEntity.badRequest().body(Map.of("error", "Cannot import MIDI file: " + e.getMessage()));
+                    } catch (Exception e) {
+                        return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                                .body(Map.of("error", "Failed to import MIDI file: " + e.getMessage()));
+                    }
+                })
+                .orElse(ResponseEntity.badRequest().body(Map.of("error", "User not found")));
+    }
+    
     @PostMapping("/test-lilypond")
     public ResponseEntity<?> testLilyPond() {
         try {
@@ -174,9 +344,9 @@ public class SheetMusicController {
                     "pdfPath", result.getPdfPath(),
                     "midiPath", result.getMidiPath() != null ? result.getMidiPath() : "No MIDI generated"
             ));
-        } catch (IOException | InterruptedException e) {
+        } catch (IOException | InterruptedException | ScoreRenderException e) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(Map.of("error", "Failed to generate files: " + e.getMessage()));
+                    .body(renderError("Failed to generate files: " + e.getMessage(), e));
         }
     }
     
@@ -238,7 +408,23 @@ public class SheetMusicController {
                     
         } catch (Exception e) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(Map.of("error", "Failed to generate PDF: " + e.getMessage()));
+                    .body(renderError("Failed to generate PDF: " + e.getMessage(), e));
         }
     }
-}
\ No newline at end of file
+
+    private static Map<String, Object> invalidCode(LilyPondValidator.Validation validation) {
+        Map<String, Object> body = new HashMap<>(validation.toMap());
+        body.put("error", "Invalid LilyPond code: " + validation.getErrors().get(0));
+        return body;
+    }
+
+    /**
+     * Error body for a failed generation, with LilyPond's diagnostics when rendering failed
+     */
+    private static Map<String, Object> renderError(String message, Exception e) {
+        Map<String, Object> body = new HashMap<>();
+        body.put("error", message);
+        ScoreRenderException.find(e).ifPresent(failure -> body.put("diagnostics", failure.getDiagnosticMaps()));
+        return body;
+    }
+}
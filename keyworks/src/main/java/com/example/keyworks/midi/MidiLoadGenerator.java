@@ -0,0 +1,316 @@
+package com.example.keyworks.midi;
+
+import com.example.keyworks.service.LatencyHistogram;
+import com.example.keyworks.service.MidiDeviceService;
+
+import javax.sound.midi.*;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Synthetic MIDI load for stressing the ingest path.
+ * Events are sent on a fixed schedule: notes at the configured rate, mixed with control change and
+ * aftertouch floods in the configured ratios, across several channels, with at most the configured
+ * number of notes sounding at once. The same seed always produces the same event stream.
+ * <p>
+ * Latency is measured from the time each event was scheduled, not from when it was actually sent,
+ * so a target that slows the generator down shows up in the latency instead of being hidden by it.
+ * It ends when the in-process target has processed the event, or when the event arrives on the
+ * loopback input for a real port; without a loopback only the send call is timed.
+ */
+public class MidiLoadGenerator {
+
+    // How long to wait for loopback events after the last one was sent
+    private static final long LOOPBACK_GRACE_NANOS = 1_000_000_000L;
+
+    private static final int[] CONTROLLERS = {1, 7, 10, 11, 64, 74};
+
+    /**
+     * Load parameters
+     */
+    public static class Options {
+        private double notesPerSecond = 1000;
+        private int polyphony = 8;
+        private int channels = 1;
+        private double controlChangeRatio = 0;
+        private double aftertouchRatio = 0;
+        private double durationSeconds = 10;
+        private long seed = 1;
+
+        /**
+         * Reads options from a map; absent keys keep their defaults
+         * @param values rate, polyphony, channels, ccRatio, aftertouchRatio, duration (seconds) and seed
+         * @return The options
+         */
+        public static Options from(Map<String, ?> values) {
+            Options options = new Options();
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                String value = String.valueOf(entry.getValue());
+                switch (entry.getKey()) {
+                    case "rate" -> options.notesPerSecond = Double.parseDouble(value);
+                    case "polyphony" -> options.polyphony = Integer.parseInt(value);
+                    case "channels" -> options.channels = Integer.parseInt(value);
+                    case "ccRatio" -> options.controlChangeRatio = Double.parseDouble(value);
+                    case "aftertouchRatio" -> options.aftertouchRatio = Double.parseDouble(value);
+                    case "duration" -> options.durationSeconds = Double.parseDouble(value);
+                    case "seed" -> options.seed = Long.parseLong(value);
+                    default -> throw new IllegalArgumentException("Unknown load option: " + entry.getKey());
+                }
+            }
+            if (!(options.notesPerSecond > 0) || options.polyphony < 1 || options.channels < 1 || options.channels > 16
+                    || options.controlChangeRatio < 0 || options.aftertouchRatio < 0 || !(options.durationSeconds > 0)) {
+                throw new IllegalArgumentException("Invalid load options: rate and duration must be positive, "
+                        + "polyphony at least 1, channels between 1 and 16 and ratios not negative");
+            }
+            return options;
+        }
+
+        public double getDurationSeconds() {
+            return durationSeconds;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("rate", notesPerSecond);
+            map.put("polyphony", polyphony);
+            map.put("channels", channels);
+            map.put("ccRatio", controlChangeRatio);
+            map.put("aftertouchRatio", aftertouchRatio);
+            map.put("duration", durationSeconds);
+            map.put("seed", seed);
+            return map;
+        }
+    }
+
+    /**
+     * Outcome of a run
+     */
+    public static class Report {
+        private final Map<String, Object> values = new LinkedHashMap<>();
+
+        private Report() {
+        }
+
+        public Map<String, Object> toMap() {
+            return values;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                if (entry.getValue() instanceof Map<?, ?> map) {
+                    text.append(entry.getKey()).append(":\n");
+                    map.forEach((key, value) -> {
+                        if (!"buckets".equals(key)) {
+                            text.append("  ").append(key).append(": ").append(value).append('\n');
+                        }
+                    });
+                } else {
+                    text.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+                }
+            }
+            return text.toString();
+        }
+    }
+
+    private final Options options;
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    // Scheduled times of events sent to a port, waiting for their loopback, by message bytes
+    private final Map<Integer, ArrayDeque<Long>> pending = new HashMap<>();
+    private long received;
+    private boolean loopbackAttached;
+
+    public MidiLoadGenerator(Options options) {
+        this.options = options;
+    }
+
+    /**
+     * Runs the load against the ingest path of {@link MidiDeviceService}, as a recording that is not saved
+     * @param midiDeviceService The service to feed
+     * @param options Load parameters
+     * @return Report including the number of notes the recording captured
+     * @throws IllegalStateException If a recording is in progress; load runs never interrupt one
+     */
+    public static Report runInProcess(MidiDeviceService midiDeviceService, Options options) throws InterruptedException {
+        MidiDeviceService.InProcessRecording recording = midiDeviceService.startInProcessRecording("load-generator");
+        Report report;
+        Map<String, Object> recordingData;
+        try {
+            report = new MidiLoadGenerator(options).run(recording.receiver(), null);
+        } finally {
+            // Only this run's recording: a user may have started their own meanwhile
+            recordingData = midiDeviceService.stopRecording(recording.id(), false);
+            recording.receiver().close();
+        }
+        report.values.put("target", "in-process");
+        report.values.put("recordingId", recording.id());
+        report.values.put("recordedNotes", recordingData != null ? recordingData.get("noteCount") : null);
+        return report;
+    }
+
+    /**
+     * Runs the load
+     * @param target Where to send the events; events are synchronously processed for in-process targets
+     * @param loopback Input that receives the events back from a real port, or null
+     * @return The report
+     */
+    public Report run(Receiver target, Transmitter loopback) throws InterruptedException {
+        if (loopback != null) {
+            loopbackAttached = true;
+            loopback.setReceiver(new LoopbackReceiver());
+        }
+
+        Random random = new Random(options.seed);
+        double weightSum = 1 + options.controlChangeRatio + options.aftertouchRatio;
+        long intervalNanos = Math.max(1, (long) (1e9 / (options.notesPerSecond * weightSum)));
+        long totalEvents = (long) (options.durationSeconds * options.notesPerSecond * weightSum);
+
+        // Sounding notes as channel << 8 | key, oldest first
+        ArrayDeque<Integer> sounding = new ArrayDeque<>();
+        long notes = 0;
+        long controlChanges = 0;
+        long aftertouches = 0;
+        long sent = 0;
+        long failed = 0;
+        long maxLagNanos = 0;
+
+        long start = System.nanoTime();
+        for (long i = 0; i < totalEvents; i++) {
+            long deadline = start + i * intervalNanos;
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+            maxLagNanos = Math.max(maxLagNanos, -remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException("Load generation interrupted");
+            }
+
+            double pick = random.nextDouble() * weightSum;
+            int channel = random.nextInt(options.channels);
+            try {
+                if (pick < 1) {
+                    if (sounding.size() >= options.polyphony) {
+                        int oldest = sounding.poll();
+                        failed += send(target, ShortMessage.NOTE_OFF, oldest >> 8, oldest & 0x7F, 0, deadline);
+                        sent++;
+                    }
+                    int key = 36 + random.nextInt(61);
+                    sounding.add(channel << 8 | key);
+                    failed += send(target, ShortMessage.NOTE_ON, channel, key, 1 + random.nextInt(127), deadline);
+                    notes++;
+                } else if (pick < 1 + options.controlChangeRatio) {
+                    int controller = CONTROLLERS[random.nextInt(CONTROLLERS.length)];
+                    failed += send(target, ShortMessage.CONTROL_CHANGE, channel, controller, random.nextInt(128), deadline);
+                    controlChanges++;
+                } else {
+                    failed += send(target, ShortMessage.CHANNEL_PRESSURE, channel, random.nextInt(128), 0, deadline);
+                    aftertouches++;
+                }
+                sent++;
+            } catch (InvalidMidiDataException e) {
+                throw new IllegalStateException("Generated an invalid message: " + e.getMessage(), e);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // Release what is still sounding
+        while (!sounding.isEmpty()) {
+            int note = sounding.poll();
+            try {
+                failed += send(target, ShortMessage.NOTE_OFF, note >> 8, note & 0x7F, 0, System.nanoTime());
+                sent++;
+            } catch (InvalidMidiDataException e) {
+                throw new IllegalStateException("Generated an invalid message: " + e.getMessage(), e);
+            }
+        }
+
+        long lost = 0;
+        if (loopback != null) {
+            long waitUntil = System.nanoTime() + LOOPBACK_GRACE_NANOS;
+            while (System.nanoTime() < waitUntil && receivedCount() < sent - failed) {
+                Thread.sleep(10);
+            }
+            lost = sent - failed - receivedCount();
+        }
+
+        Report report = new Report();
+        report.values.put("options", options.toMap());
+        report.values.put("durationMs", elapsed / 1_000_000);
+        report.values.put("eventsSent", sent);
+        report.values.put("notes", notes);
+        report.values.put("controlChanges", controlChanges);
+        report.values.put("aftertouches", aftertouches);
+        report.values.put("targetNotesPerSecond", options.notesPerSecond);
+        report.values.put("achievedNotesPerSecond", Math.round(notes * 1e9 / Math.max(1, elapsed)));
+        report.values.put("achievedEventsPerSecond", Math.round(sent * 1e9 / Math.max(1, elapsed)));
+        report.values.put("failed", failed);
+        report.values.put("lost", loopback != null ? lost : null);
+        report.values.put("dropped", failed + lost);
+        report.values.put("maxLagMs", maxLagNanos / 1_000_000.0);
+        report.values.put("latency", latency.toMap());
+        return report;
+    }
+
+    /**
+     * Sends one event
+     * @return 1 if the target rejected the event, otherwise 0
+     */
+    private int send(Receiver target, int command, int channel, int data1, int data2, long scheduled)
+            throws InvalidMidiDataException {
+        ShortMessage message = new ShortMessage(command, channel, data1, data2);
+        if (loopbackAttached) {
+            synchronized (pending) {
+                pending.computeIfAbsent(key(message), k -> new ArrayDeque<>()).add(scheduled);
+            }
+        }
+        try {
+            target.send(message, -1);
+        } catch (RuntimeException e) {
+            return 1;
+        }
+        if (!loopbackAttached) {
+            latency.record(System.nanoTime() - scheduled);
+        }
+        return 0;
+    }
+
+    private long receivedCount() {
+        synchronized (pending) {
+            return received;
+        }
+    }
+
+    private static int key(MidiMessage message) {
+        byte[] bytes = message.getMessage();
+        int key = 0;
+        for (int i = 0; i < Math.min(3, message.getLength()); i++) {
+            key = key << 8 | (bytes[i] & 0xFF);
+        }
+        return key;
+    }
+
+    /**
+     * Matches events coming back from the port with the time they were scheduled
+     */
+    private class LoopbackReceiver implements Receiver {
+        @Override
+        public void send(MidiMessage message, long timeStamp) {
+            long now = System.nanoTime();
+            synchronized (pending) {
+                ArrayDeque<Long> times = pending.get(key(message));
+                Long scheduled = times != null ? times.poll() : null;
+                if (scheduled != null) {
+                    received++;
+                    latency.record(now - scheduled);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -1,86 +1,157 @@
 package com.example.keyworks.midi;
 
+import com.example.keyworks.KeyworksApplication;
+import com.example.keyworks.service.MidiDeviceService;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
 import javax.sound.midi.*;
-import java.util.Scanner;
+import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * Headless MIDI load generator.
+ * <pre>
+ * MidiTestSender --list
+ * MidiTestSender --target=&lt;port index or name&gt; [--loopback=&lt;input port&gt;] [load options]
+ * MidiTestSender --target=in-process [load options]
+ *
+ * Load options: --rate=1000 (notes/s) --polyphony=8 --channels=1 --cc-ratio=0 --aftertouch-ratio=0
+ *               --duration=10 (s) --seed=1
+ * </pre>
+ * The in-process target starts the application context without the web server, using the regular
+ * application configuration, and feeds {@link MidiDeviceService} directly.
+ */
 public class MidiTestSender {
     public static void main(String[] args) {
-        Scanner scanner = null;
-        try {
-            // List all MIDI devices
-            MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo();
-            System.out.println("Available MIDI devices:");
-            for (int i = 0; i < infos.length; i++) {
-                MidiDevice device = MidiSystem.getMidiDevice(infos[i]);
-                String deviceType = "";
-                
-                if (device.getMaxTransmitters() != 0) {
-                    deviceType += "Input";
-                }
-                
-                if (device.getMaxReceivers() != 0) {
-                    if (!deviceType.isEmpty()) {
-                        deviceType += "/";
-                    }
-                    deviceType += "Output";
-                }
-                
-                System.out.println(i + ": " + infos[i].getName() + " - " + infos[i].getDescription() + " (" + deviceType + ")");
+        Map<String, String> arguments = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                usage("Unexpected argument: " + arg);
+                return;
             }
-            
-            // Ask user to select a device
-            System.out.print("Enter the number of the MIDI device to use: ");
-            scanner = new Scanner(System.in);
-            int deviceIndex = scanner.nextInt();
-            
-            if (deviceIndex < 0 || deviceIndex >= infos.length) {
-                System.out.println("Invalid device number");
+            int equals = arg.indexOf('=');
+            arguments.put(equals > 0 ? arg.substring(2, equals) : arg.substring(2), equals > 0 ? arg.substring(equals + 1) : "");
+        }
+
+        try {
+            if (arguments.containsKey("list")) {
+                listDevices();
                 return;
             }
-            
-            // Open the selected device
-            MidiDevice outputDevice = MidiSystem.getMidiDevice(infos[deviceIndex]);
-            outputDevice.open();
-            
-            // Get a receiver from the device
-            Receiver receiver = outputDevice.getReceiver();
-            System.out.println("Connected to " + infos[deviceIndex].getName());
-            
-            // Play a C major scale
-            int[] notes = {60, 62, 64, 65, 67, 69, 71, 72};
-            
-            System.out.println("Playing C major scale...");
-            for (int note : notes) {
-                // Note on
-                ShortMessage noteOn = new ShortMessage();
-                noteOn.setMessage(ShortMessage.NOTE_ON, 0, note, 100);
-                receiver.send(noteOn, -1);
-                System.out.println("Note On: " + note);
-                
-                // Wait
-                Thread.sleep(500);
-                
-                // Note off
-                ShortMessage noteOff = new ShortMessage();
-                noteOff.setMessage(ShortMessage.NOTE_OFF, 0, note, 0);
-                receiver.send(noteOff, -1);
-                System.out.println("Note Off: " + note);
-                
-                Thread.sleep(100);
+            String target = arguments.remove("target");
+            String loopback = arguments.remove("loopback");
+            if (target == null) {
+                usage("Missing --target");
+                return;
             }
-            
-            // Clean up
-            receiver.close();
-            outputDevice.close();
-            System.out.println("Test complete!");
-            
+
+            // Load options are given in kebab case on the command line
+            Map<String, String> values = new HashMap<>();
+            arguments.forEach((key, value) -> values.put(camelCase(key), value));
+            MidiLoadGenerator.Options options = MidiLoadGenerator.Options.from(values);
+
+            MidiLoadGenerator.Report report = "in-process".equals(target)
+                    ? runInProcess(options)
+                    : runOnPort(options, target, loopback);
+            System.out.print(report);
+        } catch (IllegalArgumentException e) {
+            usage(e.getMessage());
         } catch (Exception e) {
             e.printStackTrace();
+        }
+    }
+
+    private static MidiLoadGenerator.Report runInProcess(MidiLoadGenerator.Options options) throws InterruptedException {
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(KeyworksApplication.class)
+                .web(WebApplicationType.NONE)
+                .run()) {
+            return MidiLoadGenerator.runInProcess(context.getBean(MidiDeviceService.class), options);
+        }
+    }
+
+    private static MidiLoadGenerator.Report runOnPort(MidiLoadGenerator.Options options, String target, String loopback)
+            throws MidiUnavailableException, InterruptedException {
+        MidiDevice output = findDevice(target, false);
+        MidiDevice input = loopback != null ? findDevice(loopback, true) : null;
+        output.open();
+        try (Receiver receiver = output.getReceiver()) {
+            Transmitter transmitter = null;
+            if (input != null) {
+                input.open();
+                transmitter = input.getTransmitter();
+            }
+            System.out.println("Sending to " + output.getDeviceInfo().getName()
+                    + (input != null ? ", loopback from " + input.getDeviceInfo().getName() : ""));
+            MidiLoadGenerator.Report report = new MidiLoadGenerator(options).run(receiver, transmitter);
+            report.toMap().put("target", output.getDeviceInfo().getName());
+            return report;
         } finally {
-            // Close the scanner in the finally block to ensure it's always closed
-            if (scanner != null) {
-                scanner.close();
+            output.close();
+            if (input != null) {
+                input.close();
+            }
+        }
+    }
+
+    /**
+     * Finds a device by index in the device list or by name
+     */
+    private static MidiDevice findDevice(String nameOrIndex, boolean input) throws MidiUnavailableException {
+        MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo();
+        for (int i = 0; i < infos.length; i++) {
+            if (String.valueOf(i).equals(nameOrIndex) || infos[i].getName().equals(nameOrIndex)) {
+                MidiDevice device = MidiSystem.getMidiDevice(infos[i]);
+                if (input ? device.getMaxTransmitters() != 0 : device.getMaxReceivers() != 0) {
+                    return device;
+                }
+            }
+        }
+        throw new IllegalArgumentException("No MIDI " + (input ? "input" : "output") + " device: " + nameOrIndex);
+    }
+
+    private static void listDevices() throws MidiUnavailableException {
+        MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo();
+        System.out.println("Available MIDI devices:");
+        for (int i = 0; i < infos.length; i++) {
+            MidiDevice device = MidiSystem.getMidiDevice(infos[i]);
+            String deviceType = "";
+
+            if (device.getMaxTransmitters() != 0) {
+                deviceType += "Input";
+            }
+
+            if (device.getMaxReceivers() != 0) {
+                if (!deviceType.isEmpty()) {
+                    deviceType += "/";
+                }
+                deviceType += "Output";
+            }
+
+            System.out.println(i + ": " + infos[i].getName() + " - " + infos[i].getDescription() + " (" + deviceType + ")");
+        }
+    }
+
+    private static String camelCase(String kebab) {
+        StringBuilder camel = new StringBuilder();
+        boolean upper = false;
+        for (char c : kebab.toCharArray()) {
+            if (c == '-') {
+                upper = true;
+            } else {
+                camel.append(upper ? Character.toUpperCase(c) : c);
+                upper = false;
             }
         }
+        return camel.toString();
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: MidiTestSender --list");
+        System.err.println("       MidiTestSender --target=<port index or name|in-process> [--loopback=<input port>]");
+        System.err.println("                      [--rate=1000] [--polyphony=8] [--channels=1] [--cc-ratio=0]");
+        System.err.println("                      [--aftertouch-ratio=0] [--duration=10] [--seed=1]");
     }
-}
\ No newline at end of file
+}
@@ -6,6 +6,15 @@ import java.time.LocalDateTime;
 @Entity
 @Table(name = "sheet_music")
 public class SheetMusic {
+
+    /**
+     * State of the generated files: RENDERED from the stored source hash, FAILED to render, or
+     * STALE because the code changed since. Null until the files are first generated.
+     */
+    public enum RenderStatus {
+        RENDERED, FAILED, STALE
+    }
+
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
@@ -25,6 +34,23 @@ public class SheetMusic {
     @Column(name = "midi_path")
     private String midiPath;
 
+    // What the files at pdfPath and midiPath were rendered from, see LilyPondService#isUpToDate
+    @Column(name = "rendered_source_hash", length = 64)
+    private String renderedSourceHash;
+
+    @Column(name = "renderer_version", length = 64)
+    private String rendererVersion;
+
+    @Column(name = "render_options", length = 512)
+    private String renderOptions;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "render_status", length = 16)
+    private RenderStatus renderStatus;
+
+    @Column(name = "rendered_at")
+    private LocalDateTime renderedAt;
+
     @Column(name = "created_at")
     private LocalDateTime createdAt;
 
@@ -98,6 +124,46 @@ public class SheetMusic {
         this.midiPath = midiPath;
     }
 
+    public String getRenderedSourceHash() {
+        return renderedSourceHash;
+    }
+
+    public void setRenderedSourceHash(String renderedSourceHash) {
+        this.renderedSourceHash = renderedSourceHash;
+    }
+
+    public String getRendererVersion() {
+        return rendererVersion;
+    }
+
+    public void setRendererVersion(String rendererVersion) {
+        this.rendererVersion = rendererVersion;
+    }
+
+    public String getRenderOptions() {
+        return renderOptions;
+    }
+
+    public void setRenderOptions(String renderOptions) {
+        this.renderOptions = renderOptions;
+    }
+
+    public RenderStatus getRenderStatus() {
+        return renderStatus;
+    }
+
+    public void setRenderStatus(RenderStatus renderStatus) {
+        this.renderStatus = renderStatus;
+    }
+
+    public LocalDateTime getRenderedAt() {
+        return renderedAt;
+    }
+
+    public void setRenderedAt(LocalDateTime renderedAt) {
+        this.renderedAt = renderedAt;
+    }
+
     public LocalDateTime getCreatedAt() {
         return createdAt;
     }
@@ -2,9 +2,15 @@ package com.example.keyworks.repository;
 
 import com.example.keyworks.model.SheetMusic;
 import com.example.keyworks.model.User;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDateTime;
 import java.util.List;
 
 @Repository
@@ -12,4 +18,26 @@ public interface SheetMusicRepository extends JpaRepository<SheetMusic, Long> {
     List<SheetMusic> findByUser(User user);
     List<SheetMusic> findByUserOrderByCreatedAtDesc(User user);
     List<SheetMusic> findByTitleContainingIgnoreCase(String title);
+
+    @Query("SELECT s.id FROM SheetMusic s WHERE s.pdfPath IS NOT NULL AND s.id > :afterId AND ("
+            + "s.renderStatus IS NULL OR s.renderStatus = :stale "
+            + "OR s.rendererVersion IS NULL OR s.rendererVersion <> :version "
+            + "OR s.renderOptions IS NULL OR s.renderOptions <> :options) ORDER BY s.id")
+    List<Long> findDirtyIds(@Param("version") String version, @Param("options") String options,
+                            @Param("stale") SheetMusic.RenderStatus stale, @Param("afterId") long afterId,
+                            Pageable pageable);
+
+    // Writes only the outcome of a render, and only if the code is still the code that was rendered
+    @Transactional
+    @Modifying
+    @Query("UPDATE SheetMusic s SET s.pdfPath = :pdfPath, s.midiPath = :midiPath, "
+            + "s.renderedSourceHash = :sourceHash, s.rendererVersion = :rendererVersion, "
+            + "s.renderOptions = :renderOptions, s.renderStatus = :renderStatus, s.renderedAt = :renderedAt "
+            + "WHERE s.id = :id AND s.lilyPondCode = :lilyPondCode")
+    int updateRenderState(@Param("id") Long id, @Param("lilyPondCode") String lilyPondCode,
+                          @Param("pdfPath") String pdfPath, @Param("midiPath") String midiPath,
+                          @Param("sourceHash") String sourceHash, @Param("rendererVersion") String rendererVersion,
+                          @Param("renderOptions") String renderOptions,
+                          @Param("renderStatus") SheetMusic.RenderStatus renderStatus,
+                          @Param("renderedAt") LocalDateTime renderedAt);
 }
\ No newline at end of file
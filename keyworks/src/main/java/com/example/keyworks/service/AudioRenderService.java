@@ -0,0 +1,456 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.config.FileStorageConfig;
+import com.example.keyworks.service.MidiDeviceService.MidiNote;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.sound.midi.*;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders notes to WAV audio with the JDK software synthesizer (Gervill), faster than real time.
+ * The synthesizer is opened in offline mode through {@code AudioSynthesizer.openStream}: instead of
+ * playing to a sound card it produces PCM on demand, so audio is pulled block by block as fast as
+ * it can be synthesized and written to the client while it is generated. Note events are fed just
+ * ahead of each block, which keeps memory flat for long recordings.
+ * <p>
+ * Synthesizers are expensive to set up, so a fixed number of them are kept in a pool. A synthesizer
+ * is reserved with {@link #reserve()} before the response is committed, waiting briefly for a free
+ * one, so a busy server can still answer with an error status. Finished renders are cached under
+ * the SHA-256 hash of their notes and format, so the same audio is never rendered twice; the cache
+ * is limited to {@code audio.render.cache-max-bytes}, least recently served files are deleted first.
+ * <p>
+ * {@code AudioSynthesizer} lives in the non-exported package {@code com.sun.media.sound} and is
+ * called reflectively; the JVM needs {@code --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED}
+ * (set in the jar manifest and for {@code spring-boot:run}). Without it rendering is reported as
+ * unavailable.
+ */
+@Service
+public class AudioRenderService {
+
+    private static final Logger logger = LoggerFactory.getLogger(AudioRenderService.class);
+
+    private static final String SOUND_PACKAGE = "com.sun.media.sound";
+    private static final String AUDIO_SYNTHESIZER = SOUND_PACKAGE + ".AudioSynthesizer";
+
+    // Release tail after the last note, and frames synthesized per block
+    private static final long TAIL_MICROS = 1_500_000L;
+    private static final int BLOCK_FRAMES = 4096;
+    private static final int FILE_HASHES = 1024;
+
+    private final FileStorageConfig fileStorageConfig;
+    private final AudioFormat format;
+    private final long acquireTimeoutMs;
+    private final Method openStream;
+    private final BlockingQueue<Synthesizer> pool;
+    private final int poolSize;
+    private final long cacheMaxBytes;
+    private int created;
+
+    // Note hashes of MIDI files by path, size and modification time, so cached audio is found without parsing
+    private final Map<String, String> fileHashes = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > FILE_HASHES;
+        }
+    });
+
+    public AudioRenderService(FileStorageConfig fileStorageConfig,
+                              @Value("${audio.render.pool-size:2}") int poolSize,
+                              @Value("${audio.render.sample-rate:44100}") float sampleRate,
+                              @Value("${audio.render.acquire-timeout-ms:5000}") long acquireTimeoutMs,
+                              @Value("${audio.render.cache-max-bytes:1073741824}") long cacheMaxBytes) {
+        this.fileStorageConfig = fileStorageConfig;
+        this.format = new AudioFormat(sampleRate, 16, 2, true, false);
+        this.acquireTimeoutMs = acquireTimeoutMs;
+        this.cacheMaxBytes = cacheMaxBytes;
+        this.poolSize = Math.max(1, poolSize);
+        this.pool = new ArrayBlockingQueue<>(this.poolSize);
+        this.openStream = findOpenStream();
+    }
+
+    private Method findOpenStream() {
+        if (!Synthesizer.class.getModule().isExported(SOUND_PACKAGE, AudioRenderService.class.getModule())) {
+            logger.warn("Audio rendering unavailable: start the JVM with --add-exports java.desktop/{}=ALL-UNNAMED",
+                SOUND_PACKAGE);
+            return null;
+        }
+        try {
+            return Class.forName(AUDIO_SYNTHESIZER).getMethod("openStream", AudioFormat.class, Map.class);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Audio rendering unavailable: {}", e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * @return Whether offline synthesis is available in this JVM
+     */
+    public boolean isAvailable() {
+        return openStream != null;
+    }
+
+    /**
+     * Computes the cache key of a render
+     * @param notes The notes
+     * @return Hex SHA-256 of the notes and the output format
+     */
+    public String contentHash(List<MidiNote> notes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(format.toString().getBytes(StandardCharsets.US_ASCII));
+            byte[] record = new byte[24];
+            for (MidiNote note : notes) {
+                putLong(record, 0, note.getStartTime());
+                putLong(record, 8, note.getDuration());
+                record[16] = (byte) note.getKey();
+                record[17] = (byte) note.getVelocity();
+                record[18] = (byte) note.getChannel();
+                digest.update(record, 0, 19);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Finds a finished render
+     * @param hash Cache key from {@link #contentHash}
+     * @return The cached WAV file, if any
+     */
+    public Optional<Path> findCached(String hash) {
+        Path file = cachePath(hash);
+        if (!Files.isRegularFile(file)) {
+            return Optional.empty();
+        }
+        try {
+            // The modification time orders eviction: recently served files are kept
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            logger.debug("Could not touch {}: {}", file, e.getMessage());
+        }
+        return Optional.of(file);
+    }
+
+    /**
+     * Gets the hash of the notes of a MIDI file computed earlier, if the file has not changed since
+     * @param midiFile The MIDI file
+     * @return Cache key from {@link #contentHash}, or empty if the file has to be read
+     */
+    public Optional<String> findFileHash(Path midiFile) {
+        String key = fileKey(midiFile);
+        return key != null ? Optional.ofNullable(fileHashes.get(key)) : Optional.empty();
+    }
+
+    /**
+     * Remembers the hash of the notes of a MIDI file for {@link #findFileHash}
+     */
+    public void rememberFileHash(Path midiFile, String hash) {
+        String key = fileKey(midiFile);
+        if (key != null) {
+            fileHashes.put(key, hash);
+        }
+    }
+
+    private static String fileKey(Path file) {
+        try {
+            return file.toAbsolutePath() + ":" + Files.size(file) + ":" + Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A synthesizer reserved for one render; closing it returns an unused synthesizer to the pool
+     */
+    public final class Reservation implements AutoCloseable {
+        private Synthesizer synth;
+
+        private Reservation(Synthesizer synth) {
+            this.synth = synth;
+        }
+
+        private synchronized Synthesizer take() {
+            Synthesizer taken = synth;
+            synth = null;
+            if (taken == null) {
+                throw new IllegalStateException("Reservation already used");
+            }
+            return taken;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (synth != null) {
+                release(synth);
+                synth = null;
+            }
+        }
+    }
+
+    /**
+     * Reserves a synthesizer, waiting up to {@code audio.render.acquire-timeout-ms} for a free one.
+     * Call this before committing the response, so that a busy server can answer 503.
+     * @return The reservation, or empty if all synthesizers stayed busy
+     */
+    public Optional<Reservation> reserve() throws IOException {
+        if (!isAvailable()) {
+            throw new IllegalStateException("Audio rendering is not available in this JVM");
+        }
+        Synthesizer synth = acquire();
+        return synth != null ? Optional.of(new Reservation(synth)) : Optional.empty();
+    }
+
+    /**
+     * Renders notes to a WAV stream. The audio is written to {@code out} as it is synthesized and
+     * stored in the cache once complete.
+     * @param reservation Synthesizer from {@link #reserve()}; released when the render ends
+     * @param notes The notes; times relative to the start of the recording
+     * @param hash Cache key from {@link #contentHash}
+     * @param out Target; not closed
+     */
+    public void render(Reservation reservation, List<MidiNote> notes, String hash, OutputStream out) throws IOException {
+        try (reservation) {
+            render(reservation.take(), notes, hash, out);
+        }
+    }
+
+    private void render(Synthesizer synth, List<MidiNote> notes, String hash, OutputStream out) throws IOException {
+        long[] events = toEvents(notes);
+        long endMicros = (events.length > 0 ? events[events.length - 1] >>> 25 : 0) + TAIL_MICROS;
+        long totalFrames = (long) Math.ceil(endMicros * (double) format.getFrameRate() / 1_000_000.0);
+
+        Path cacheFile = cachePath(hash);
+        Files.createDirectories(cacheFile.getParent());
+        Path partFile = Files.createTempFile(cacheFile.getParent(), "audio_", ".part");
+
+        long started = System.nanoTime();
+        boolean complete = false;
+        try (OutputStream cache = new BufferedOutputStream(Files.newOutputStream(partFile), 64 * 1024)) {
+            AudioInputStream stream = (AudioInputStream) openStream.invoke(synth, format, null);
+            Receiver receiver = synth.getReceiver();
+
+            byte[] header = wavHeader(totalFrames);
+            out.write(header);
+            cache.write(header);
+
+            int frameSize = format.getFrameSize();
+            byte[] buffer = new byte[BLOCK_FRAMES * frameSize];
+            long frames = 0;
+            int next = 0;
+            while (frames < totalFrames) {
+                // Queue every event that falls into the next block
+                long blockEndMicros = (long) ((frames + BLOCK_FRAMES) * 1_000_000.0 / format.getFrameRate());
+                while (next < events.length && (events[next] >>> 25) < blockEndMicros) {
+                    receiver.send(toMessage(events[next]), events[next] >>> 25);
+                    next++;
+                }
+
+                int length = (int) Math.min(BLOCK_FRAMES, totalFrames - frames) * frameSize;
+                int read = readFully(stream, buffer, length);
+                if (read <= 0) {
+                    break;
+                }
+                out.write(buffer, 0, read);
+                cache.write(buffer, 0, read);
+                frames += read / frameSize;
+            }
+            complete = frames == totalFrames;
+        } catch (InvocationTargetException e) {
+            throw new IOException("Failed to open synthesizer stream: " + e.getCause().getMessage(), e.getCause());
+        } catch (IllegalAccessException | InvalidMidiDataException | MidiUnavailableException e) {
+            throw new IOException("Failed to render audio: " + e.getMessage(), e);
+        } finally {
+            release(synth);
+            if (complete) {
+                Files.move(partFile, cacheFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                evict(cacheFile.getParent());
+            } else {
+                Files.deleteIfExists(partFile);
+            }
+        }
+
+        double seconds = endMicros / 1_000_000.0;
+        double elapsed = (System.nanoTime() - started) / 1e9;
+        logger.info("Rendered {} s of audio for {} notes in {} s ({}x real time)", String.format("%.1f", seconds),
+            notes.size(), String.format("%.2f", elapsed), String.format("%.1f", seconds / Math.max(elapsed, 1e-6)));
+    }
+
+    /**
+     * Packs note-on and note-off events as (micros << 25 | on << 24 | status << 16 | key << 8 | velocity),
+     * sorted by time with note-offs before note-ons at the same time
+     */
+    private static long[] toEvents(List<MidiNote> notes) {
+        long[] events = new long[notes.size() * 2];
+        int n = 0;
+        for (MidiNote note : notes) {
+            long start = Math.max(0, note.getStartTime()) * 1000L;
+            long end = start + Math.max(1, note.getDuration()) * 1000L;
+            int channel = note.getChannel() & 0x0F;
+            int velocity = Math.max(1, Math.min(127, note.getVelocity()));
+            events[n++] = (start << 25) | (1L << 24) | ((long) (ShortMessage.NOTE_ON | channel) << 16)
+                | ((long) note.getKey() << 8) | velocity;
+            events[n++] = (end << 25) | ((long) (ShortMessage.NOTE_OFF | channel) << 16) | ((long) note.getKey() << 8);
+        }
+        Arrays.sort(events);
+        return events;
+    }
+
+    private static ShortMessage toMessage(long event) throws InvalidMidiDataException {
+        int status = (int) (event >>> 16) & 0xFF;
+        return new ShortMessage(status & 0xF0, status & 0x0F, (int) (event >>> 8) & 0x7F, (int) event & 0x7F);
+    }
+
+    private static int readFully(AudioInputStream stream, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = stream.read(buffer, total, length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private byte[] wavHeader(long frames) {
+        int channels = format.getChannels();
+        int sampleRate = (int) format.getSampleRate();
+        int frameSize = format.getFrameSize();
+        long dataLength = frames * frameSize;
+
+        byte[] header = new byte[44];
+        putAscii(header, 0, "RIFF");
+        putIntLE(header, 4, (int) (36 + dataLength));
+        putAscii(header, 8, "WAVE");
+        putAscii(header, 12, "fmt ");
+        putIntLE(header, 16, 16);
+        putShortLE(header, 20, 1); // PCM
+        putShortLE(header, 22, channels);
+        putIntLE(header, 24, sampleRate);
+        putIntLE(header, 28, sampleRate * frameSize);
+        putShortLE(header, 32, frameSize);
+        putShortLE(header, 34, format.getSampleSizeInBits());
+        putAscii(header, 36, "data");
+        putIntLE(header, 40, (int) dataLength);
+        return header;
+    }
+
+    private Synthesizer acquire() throws IOException {
+        Synthesizer synth = pool.poll();
+        if (synth == null) {
+            synth = createIfBelowLimit();
+        }
+        if (synth == null) {
+            try {
+                synth = pool.poll(acquireTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a synthesizer");
+            }
+        }
+        if (synth == null) {
+            logger.warn("All {} synthesizers are busy", poolSize);
+        }
+        return synth;
+    }
+
+    /**
+     * Deletes the least recently served files until the cache fits its size limit
+     */
+    private synchronized void evict(Path directory) {
+        List<Path> files = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "audio_*.wav")) {
+            for (Path file : stream) {
+                files.add(file);
+                total += Files.size(file);
+            }
+            if (total <= cacheMaxBytes) {
+                return;
+            }
+            Map<Path, Long> modified = new HashMap<>();
+            for (Path file : files) {
+                modified.put(file, Files.getLastModifiedTime(file).toMillis());
+            }
+            files.sort(Comparator.comparing(modified::get));
+            for (Path file : files) {
+                if (total <= cacheMaxBytes) {
+                    break;
+                }
+                long size = Files.size(file);
+                Files.deleteIfExists(file);
+                total -= size;
+                logger.debug("Evicted {} from the audio cache", file.getFileName());
+            }
+        } catch (IOException e) {
+            logger.warn("Could not trim the audio cache: {}", e.getMessage());
+        }
+    }
+
+    private synchronized Synthesizer createIfBelowLimit() throws IOException {
+        if (created >= poolSize) {
+            return null;
+        }
+        try {
+            Synthesizer synth = MidiSystem.getSynthesizer();
+            created++;
+            return synth;
+        } catch (MidiUnavailableException e) {
+            throw new IOException("No software synthesizer available: " + e.getMessage(), e);
+        }
+    }
+
+    private void release(Synthesizer synth) {
+        // Closing ends the offline stream; the instance is reopened for the next render
+        synth.close();
+        pool.offer(synth);
+    }
+
+    private Path cachePath(String hash) {
+        return fileStorageConfig.resolveFilePath("audio/audio_" + hash + ".wav");
+    }
+
+    private static void putLong(byte[] b, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            b[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+    private static void putIntLE(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >>> 8);
+        b[offset + 2] = (byte) (value >>> 16);
+        b[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static void putShortLE(byte[] b, int offset, int value) {
+        b[offset] = (byte) value;
+        b[offset + 1] = (byte) (value >>> 8);
+    }
+
+    private static void putAscii(byte[] b, int offset, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, b, offset, bytes.length);
+    }
+}
@@ -0,0 +1,255 @@
+package com.example.keyworks.service;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Assigns notes to the right or left hand for a grand staff.
+ * Notes are grouped into time slices (onsets within the chord tolerance). For every slice the split
+ * is a key among k candidates: keys at or above it are played by the right hand. A dynamic program
+ * picks the sequence of splits minimizing the hand-span and register cost of each slice plus a cost
+ * proportional to how far the split moves between slices. Because that movement cost is linear in the
+ * distance, the minimum over all previous splits is a one-dimensional distance transform computed in
+ * two passes, so each slice costs O(k) and a whole recording O(n·k).
+ * <p>
+ * Decisions are made with a fixed lag: once a slice is {@code lag} slices old, its split is read off
+ * the current best path and its notes are passed on. This lets the splitter run on a live recording.
+ */
+public class HandSplitter {
+
+    /**
+     * Receives notes with their assigned hand, in start order
+     */
+    @FunctionalInterface
+    public interface Sink {
+        void accept(int key, long startMs, long durationMs, boolean rightHand) throws IOException;
+    }
+
+    // Candidate splits: G2 (43) to G5 (79)
+    private static final int LOWEST_SPLIT = 43;
+    private static final int SPLITS = 79 - LOWEST_SPLIT + 1;
+    private static final int PREFERRED_SPLIT = 60;
+
+    // Largest comfortable stretch of one hand, in semitones, and notes one hand can play at once
+    private static final int MAX_SPAN = 14;
+    private static final int MAX_NOTES_PER_HAND = 5;
+
+    // Lowest comfortable right-hand key and highest comfortable left-hand key
+    private static final int RIGHT_HAND_FLOOR = 55;
+    private static final int LEFT_HAND_CEILING = 67;
+
+    private static final double SPAN_COST = 4.0;
+    private static final double CROWD_COST = 8.0;
+    private static final double REGISTER_COST = 0.5;
+    private static final double PRIOR_COST = 0.05;
+    private static final double MOVE_COST = 0.3;
+
+    private final Sink sink;
+    private final long toleranceMs;
+    private final int lag;
+
+    // Slices that have been scored but not emitted, as a ring of lag + 1 slots
+    private final int[][] sliceKeys;
+    private final long[][] sliceStarts;
+    private final long[][] sliceDurations;
+    private final int[] sliceSizes;
+    private final int[][] backPointers;
+    private long slices;
+    private long emitted;
+
+    // Slice currently being collected
+    private long openStartMs = Long.MIN_VALUE;
+
+    // Best total cost of ending the previous slice with each split
+    private double[] cost = new double[SPLITS];
+    private double[] next = new double[SPLITS];
+    private final double[] local = new double[SPLITS];
+    private final int[] argmin = new int[SPLITS];
+
+    /**
+     * @param sink Receives the assigned notes
+     * @param toleranceMs Onsets within this time of a slice's first onset belong to the slice
+     * @param lag Number of slices to wait before committing a slice's split
+     */
+    public HandSplitter(Sink sink, long toleranceMs, int lag) {
+        this.sink = sink;
+        this.toleranceMs = toleranceMs;
+        this.lag = Math.max(0, lag);
+        int ring = this.lag + 1;
+        this.sliceKeys = new int[ring][8];
+        this.sliceStarts = new long[ring][8];
+        this.sliceDurations = new long[ring][8];
+        this.sliceSizes = new int[ring];
+        this.backPointers = new int[ring][SPLITS];
+    }
+
+    /**
+     * Adds a note. Notes must be given in start order.
+     * @param key MIDI key number
+     * @param startMs Start time in milliseconds
+     * @param durationMs Duration in milliseconds
+     */
+    public void addNote(int key, long startMs, long durationMs) throws IOException {
+        if (openStartMs != Long.MIN_VALUE && startMs - openStartMs > toleranceMs) {
+            closeSlice();
+        }
+        if (openStartMs == Long.MIN_VALUE) {
+            openStartMs = startMs;
+            // The slot is free: the slice that used it last was emitted when the previous slice closed
+            sliceSizes[slot(slices)] = 0;
+        }
+
+        int slot = slot(slices);
+        int size = sliceSizes[slot];
+        if (size == sliceKeys[slot].length) {
+            sliceKeys[slot] = Arrays.copyOf(sliceKeys[slot], size * 2);
+            sliceStarts[slot] = Arrays.copyOf(sliceStarts[slot], size * 2);
+            sliceDurations[slot] = Arrays.copyOf(sliceDurations[slot], size * 2);
+        }
+        sliceKeys[slot][size] = key;
+        sliceStarts[slot][size] = startMs;
+        sliceDurations[slot][size] = durationMs;
+        sliceSizes[slot] = size + 1;
+    }
+
+    /**
+     * Decides and emits every remaining slice
+     */
+    public void finish() throws IOException {
+        if (openStartMs != Long.MIN_VALUE) {
+            score();
+        }
+        if (emitted == slices) {
+            return;
+        }
+
+        // Backtrack from the best final split over all slices not yet emitted
+        int pending = (int) (slices - emitted);
+        int[] splits = new int[pending];
+        int split = best();
+        for (int i = pending - 1; i >= 0; i--) {
+            splits[i] = split;
+            split = backPointers[slot(emitted + i)][split];
+        }
+        for (int i = 0; i < pending; i++) {
+            emit(slot(emitted + i), splits[i]);
+        }
+        emitted = slices;
+    }
+
+    private void closeSlice() throws IOException {
+        score();
+        if (slices - emitted > lag) {
+            // Follow the current best path back to the oldest pending slice
+            int split = best();
+            for (long s = slices - 1; s > emitted; s--) {
+                split = backPointers[slot(s)][split];
+            }
+            emit(slot(emitted), split);
+            emitted++;
+        }
+    }
+
+    /**
+     * Runs one DP step for the open slice
+     */
+    private void score() {
+        int slot = slot(slices);
+        localCosts(sliceKeys[slot], sliceSizes[slot]);
+        int[] back = backPointers[slot];
+
+        if (slices == 0) {
+            for (int s = 0; s < SPLITS; s++) {
+                next[s] = local[s];
+                back[s] = s;
+            }
+        } else {
+            // L1 distance transform: next[s] = min over p of cost[p] + MOVE_COST * |s - p|
+            for (int s = 0; s < SPLITS; s++) {
+                next[s] = cost[s];
+                argmin[s] = s;
+                if (s > 0 && next[s - 1] + MOVE_COST < next[s]) {
+                    next[s] = next[s - 1] + MOVE_COST;
+                    argmin[s] = argmin[s - 1];
+                }
+            }
+            for (int s = SPLITS - 2; s >= 0; s--) {
+                if (next[s + 1] + MOVE_COST < next[s]) {
+                    next[s] = next[s + 1] + MOVE_COST;
+                    argmin[s] = argmin[s + 1];
+                }
+            }
+            for (int s = 0; s < SPLITS; s++) {
+                next[s] += local[s];
+                back[s] = argmin[s];
+            }
+        }
+
+        double[] swap = cost;
+        cost = next;
+        next = swap;
+        slices++;
+        openStartMs = Long.MIN_VALUE;
+    }
+
+    private void localCosts(int[] keys, int size) {
+        for (int s = 0; s < SPLITS; s++) {
+            int split = LOWEST_SPLIT + s;
+            int rightCount = 0;
+            int leftCount = 0;
+            int rightLow = Integer.MAX_VALUE;
+            int rightHigh = Integer.MIN_VALUE;
+            int leftLow = Integer.MAX_VALUE;
+            int leftHigh = Integer.MIN_VALUE;
+            double c = PRIOR_COST * Math.abs(split - PREFERRED_SPLIT);
+
+            for (int i = 0; i < size; i++) {
+                int key = keys[i];
+                if (key >= split) {
+                    rightCount++;
+                    rightLow = Math.min(rightLow, key);
+                    rightHigh = Math.max(rightHigh, key);
+                    c += REGISTER_COST * Math.max(0, RIGHT_HAND_FLOOR - key);
+                } else {
+                    leftCount++;
+                    leftLow = Math.min(leftLow, key);
+                    leftHigh = Math.max(leftHigh, key);
+                    c += REGISTER_COST * Math.max(0, key - LEFT_HAND_CEILING);
+                }
+            }
+            if (rightCount > 0) {
+                c += SPAN_COST * Math.max(0, rightHigh - rightLow - MAX_SPAN);
+                c += CROWD_COST * Math.max(0, rightCount - MAX_NOTES_PER_HAND);
+            }
+            if (leftCount > 0) {
+                c += SPAN_COST * Math.max(0, leftHigh - leftLow - MAX_SPAN);
+                c += CROWD_COST * Math.max(0, leftCount - MAX_NOTES_PER_HAND);
+            }
+            local[s] = c;
+        }
+    }
+
+    private int best() {
+        int best = 0;
+        for (int s = 1; s < SPLITS; s++) {
+            if (cost[s] < cost[best]) {
+                best = s;
+            }
+        }
+        return best;
+    }
+
+    private void emit(int slot, int splitIndex) throws IOException {
+        int split = LOWEST_SPLIT + splitIndex;
+        int[] keys = sliceKeys[slot];
+        long[] starts = sliceStarts[slot];
+        long[] durations = sliceDurations[slot];
+        for (int i = 0; i < sliceSizes[slot]; i++) {
+            sink.accept(keys[i], starts[i], durations[i], keys[i] >= split);
+        }
+    }
+
+    private int slot(long slice) {
+        return (int) (slice % (lag + 1));
+    }
+}
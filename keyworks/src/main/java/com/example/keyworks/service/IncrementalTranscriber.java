@@ -0,0 +1,224 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.config.TranscriptionConfig;
+import com.example.keyworks.service.MidiDeviceService.MidiNote;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Transcribes a recording while it is being played.
+ * Notes complete in note-off order, but the score needs them in onset order. Closed notes wait in a
+ * small buffer sorted by onset until no sounding note started before them; at that point they can
+ * never be preceded by another note and are handed to the {@link StaffWriter}, which splits them
+ * between the hands, groups them into chords and voices and extends the LilyPond staves. Stopping
+ * a recording therefore only has to flush the few notes still buffered.
+ * <p>
+ * The tempo and the starting key are estimated from the first notes and then fixed, so that everything
+ * written to the staves stays valid; notes committed during that warm-up are written once the tempo
+ * is known. Later key changes are picked up by the {@link StaffWriter}.
+ */
+public class IncrementalTranscriber {
+
+    private final LilyPondEmitter emitter;
+    private final TranscriptionConfig config;
+    private final TempoEstimator tempoEstimator = new TempoEstimator();
+    private final KeyDetector keyDetector = new KeyDetector(1);
+    private StaffWriter staffWriter;
+    private int lockedBpm;
+    private boolean finished;
+
+    // Sounding notes by key; -1 when the key is not held
+    private final long[] activeStart = new long[128];
+    private final int[] activeVelocity = new int[128];
+    private int activeCount;
+
+    // Closed notes not yet committed, sorted by start time
+    private final List<MidiNote> pending = new ArrayList<>();
+
+    // Committed notes in start-time order; the first 'written' of them are already quantized
+    private final List<MidiNote> notes = new ArrayList<>();
+    private int written;
+
+    public IncrementalTranscriber(LilyPondEmitter emitter, TranscriptionConfig config) {
+        this.emitter = emitter;
+        this.config = config;
+        Arrays.fill(activeStart, -1L);
+    }
+
+    /**
+     * Registers a note on
+     * @param key MIDI note number
+     * @param velocity Velocity (1-127)
+     * @param timeMs Time since the start of the recording in milliseconds
+     */
+    public synchronized void noteOn(int key, int velocity, long timeMs) {
+        checkKey(key);
+        // A retriggered key closes the sounding note first
+        if (activeStart[key] >= 0) {
+            noteOff(key, timeMs);
+        }
+        activeStart[key] = timeMs;
+        activeVelocity[key] = velocity;
+        activeCount++;
+        tempoEstimator.addOnset(timeMs);
+    }
+
+    private static void checkKey(int key) {
+        if (key < 0 || key > 127) {
+            throw new IllegalArgumentException("MIDI note number out of range: " + key);
+        }
+    }
+
+    /**
+     * Registers a note off; ignored if the key is not sounding
+     * @param key MIDI note number
+     * @param timeMs Time since the start of the recording in milliseconds
+     */
+    public synchronized void noteOff(int key, long timeMs) {
+        checkKey(key);
+        long start = activeStart[key];
+        if (start < 0) {
+            return;
+        }
+        activeStart[key] = -1L;
+        activeCount--;
+
+        insertPending(new MidiNote(key, activeVelocity[key], start, timeMs - start));
+        commitReady();
+    }
+
+    /**
+     * Commits all buffered notes and completes the last bar. Notes still sounding are dropped.
+     * Calling it again has no effect.
+     */
+    public synchronized void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        Arrays.fill(activeStart, -1L);
+        activeCount = 0;
+        commitReady();
+        try {
+            lockTempo();
+            writeCommitted();
+            staffWriter.finish();
+        } catch (IOException e) {
+            // StringBuilder never throws
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return Tempo in quarter notes per minute; fixed once the warm-up is over or {@link #finish()} was called
+     */
+    public synchronized int getTempoBpm() {
+        return staffWriter != null ? lockedBpm : tempoEstimator.getBpm();
+    }
+
+    /**
+     * @return Whether quantizing ran over its time budget and later notes were written unquantized
+     */
+    public synchronized boolean isQuantizationDegraded() {
+        return staffWriter != null && staffWriter.isFallback();
+    }
+
+    /**
+     * @return Whether no note has been committed
+     */
+    public synchronized boolean isEmpty() {
+        return notes.isEmpty();
+    }
+
+    /**
+     * @return Number of committed notes
+     */
+    public synchronized int getNoteCount() {
+        return notes.size();
+    }
+
+    /**
+     * @return Copy of the committed notes in start-time order
+     */
+    public synchronized List<MidiNote> getNotes() {
+        return new ArrayList<>(notes);
+    }
+
+    /**
+     * Writes the staff (or piano staff) with all notes quantized so far
+     * @param out Target
+     * @param indent Indentation of the staff line
+     * @param instrumentName Instrument name, or null for none
+     */
+    public synchronized void writeStaff(Appendable out, String indent, String instrumentName) throws IOException {
+        lockTempo();
+        staffWriter.writeStaff(out, indent, instrumentName, lockedBpm);
+    }
+
+    private void insertPending(MidiNote note) {
+        // Notes mostly close in onset order, so the insertion point is almost always at the end
+        int i = pending.size();
+        while (i > 0 && pending.get(i - 1).getStartTime() > note.getStartTime()) {
+            i--;
+        }
+        pending.add(i, note);
+    }
+
+    /**
+     * Moves every buffered note that starts before the earliest sounding note into the body
+     */
+    private void commitReady() {
+        long horizon = Long.MAX_VALUE;
+        if (activeCount > 0) {
+            for (long start : activeStart) {
+                if (start >= 0 && start < horizon) {
+                    horizon = start;
+                }
+            }
+        }
+
+        int ready = 0;
+        while (ready < pending.size() && pending.get(ready).getStartTime() < horizon) {
+            MidiNote note = pending.get(ready++);
+            notes.add(note);
+            if (staffWriter == null) {
+                keyDetector.addNote(note.getKey(), note.getDuration());
+            }
+        }
+        if (ready == 0) {
+            return;
+        }
+        pending.subList(0, ready).clear();
+
+        if (staffWriter == null && tempoEstimator.getOnsetCount() >= config.getTempoWarmUpNotes()) {
+            lockTempo();
+        }
+        if (staffWriter != null) {
+            try {
+                writeCommitted();
+            } catch (IOException e) {
+                // StringBuilder never throws
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void lockTempo() {
+        if (staffWriter == null) {
+            lockedBpm = tempoEstimator.getBpm();
+            staffWriter = new StaffWriter(emitter, config, tempoEstimator.getBeatMs(),
+                notes.isEmpty() ? 0 : notes.get(0).getStartTime(), keyDetector.getKey());
+        }
+    }
+
+    private void writeCommitted() throws IOException {
+        while (written < notes.size()) {
+            MidiNote note = notes.get(written++);
+            staffWriter.addNote(note.getKey(), note.getStartTime(), note.getDuration());
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.keyworks.service;
+
+/**
+ * Streaming key detection with the Krumhansl-Kessler key profiles.
+ * A duration-weighted pitch-class histogram is kept for the whole piece and for a sliding window of
+ * the most recent notes; both are updated in constant time per note. The key is the major or minor
+ * profile that correlates best with the histogram, so comparing the whole-piece key with the window
+ * key reveals modulations.
+ */
+public class KeyDetector {
+
+    private static final double[] MAJOR_PROFILE = {6.35, 2.23, 3.48, 2.33, 4.38, 4.09, 2.52, 5.19, 2.39, 3.66, 2.29, 2.88};
+    private static final double[] MINOR_PROFILE = {6.33, 2.68, 3.52, 5.38, 2.60, 3.53, 2.54, 4.75, 3.98, 2.69, 3.34, 3.17};
+
+    // Profiles centred on their mean, for the correlation
+    private static final double[] MAJOR_CENTRED = centre(MAJOR_PROFILE);
+    private static final double[] MINOR_CENTRED = centre(MINOR_PROFILE);
+    private static final double MAJOR_NORM = norm(MAJOR_CENTRED);
+    private static final double MINOR_NORM = norm(MINOR_CENTRED);
+
+    // Tonics of major keys written with flats: F, B flat, E flat, A flat, D flat
+    private static final boolean[] MAJOR_USES_FLATS = {false, true, false, true, false, true, false, false, true, false, true, false};
+
+    private static final String[] SHARP_NAMES = {"c", "cis", "d", "dis", "e", "f", "fis", "g", "gis", "a", "ais", "b"};
+    private static final String[] FLAT_NAMES = {"c", "des", "d", "es", "e", "f", "ges", "g", "as", "a", "bes", "b"};
+
+    private static final Key[] KEYS = new Key[24];
+
+    static {
+        for (int tonic = 0; tonic < 12; tonic++) {
+            KEYS[tonic] = new Key(tonic, false, MAJOR_USES_FLATS[tonic]);
+            // A minor key is spelled like its relative major
+            KEYS[12 + tonic] = new Key(tonic, true, MAJOR_USES_FLATS[(tonic + 3) % 12]);
+        }
+    }
+
+    /**
+     * A major or minor key
+     */
+    public static final class Key {
+        private final int tonic;
+        private final boolean minor;
+        private final boolean flats;
+        private final String lilyPond;
+
+        private Key(int tonic, boolean minor, boolean flats) {
+            this.tonic = tonic;
+            this.minor = minor;
+            this.flats = flats;
+            this.lilyPond = (flats ? FLAT_NAMES : SHARP_NAMES)[tonic] + (minor ? " \\minor" : " \\major");
+        }
+
+        public int getTonic() {
+            return tonic;
+        }
+
+        public boolean isMinor() {
+            return minor;
+        }
+
+        /**
+         * @return Whether black keys are spelled as flats (es) rather than sharps (is) in this key
+         */
+        public boolean usesFlats() {
+            return flats;
+        }
+
+        /**
+         * @return Number of sharps (positive) or flats (negative) in the key signature
+         */
+        public int getFifths() {
+            int major = minor ? (tonic + 3) % 12 : tonic;
+            int fifths = major * 7 % 12;
+            return flats ? fifths - 12 : fifths;
+        }
+
+        /**
+         * @return Argument of the LilyPond \key command, e.g. "d \major"
+         */
+        public String toLilyPond() {
+            return lilyPond;
+        }
+
+        @Override
+        public String toString() {
+            return lilyPond.replace("\\", "");
+        }
+    }
+
+    private final double[] histogram = new double[12];
+    private final double[] windowHistogram = new double[12];
+
+    // Most recent notes in the window, as a ring
+    private final int[] windowPitchClasses;
+    private final double[] windowWeights;
+    private int windowSize;
+    private int windowNext;
+
+    /**
+     * @param windowNotes Number of recent notes the window key is computed from
+     */
+    public KeyDetector(int windowNotes) {
+        this.windowPitchClasses = new int[Math.max(1, windowNotes)];
+        this.windowWeights = new double[Math.max(1, windowNotes)];
+    }
+
+    /**
+     * @return C major, used when nothing is known about the key
+     */
+    public static Key defaultKey() {
+        return KEYS[0];
+    }
+
+    /**
+     * Adds a note
+     * @param key MIDI key number
+     * @param durationMs Duration in milliseconds; longer notes weigh more, up to two seconds
+     */
+    public void addNote(int key, long durationMs) {
+        int pitchClass = key % 12;
+        double weight = Math.min(Math.max(durationMs, 50), 2000) / 1000.0;
+        histogram[pitchClass] += weight;
+
+        if (windowSize == windowPitchClasses.length) {
+            windowHistogram[windowPitchClasses[windowNext]] -= windowWeights[windowNext];
+        } else {
+            windowSize++;
+        }
+        windowPitchClasses[windowNext] = pitchClass;
+        windowWeights[windowNext] = weight;
+        windowHistogram[pitchClass] += weight;
+        windowNext = (windowNext + 1) % windowPitchClasses.length;
+    }
+
+    /**
+     * @return Best matching key over all notes, or C major if there are none
+     */
+    public Key getKey() {
+        return bestKey(histogram);
+    }
+
+    /**
+     * @return Best matching key over the most recent notes, or null until the window is full
+     */
+    public Key getWindowKey() {
+        return windowSize < windowPitchClasses.length ? null : bestKey(windowHistogram);
+    }
+
+    private static Key bestKey(double[] h) {
+        double mean = 0;
+        for (double v : h) {
+            mean += v;
+        }
+        mean /= 12;
+
+        double norm = 0;
+        for (double v : h) {
+            norm += (v - mean) * (v - mean);
+        }
+        if (norm == 0) {
+            return defaultKey();
+        }
+
+        Key best = defaultKey();
+        double bestCorrelation = Double.NEGATIVE_INFINITY;
+        for (int tonic = 0; tonic < 12; tonic++) {
+            double major = 0;
+            double minor = 0;
+            for (int pc = 0; pc < 12; pc++) {
+                double d = h[(tonic + pc) % 12] - mean;
+                major += d * MAJOR_CENTRED[pc];
+                minor += d * MINOR_CENTRED[pc];
+            }
+            major /= MAJOR_NORM;
+            minor /= MINOR_NORM;
+            if (major > bestCorrelation) {
+                bestCorrelation = major;
+                best = KEYS[tonic];
+            }
+            if (minor > bestCorrelation) {
+                bestCorrelation = minor;
+                best = KEYS[12 + tonic];
+            }
+        }
+        return best;
+    }
+
+    private static double[] centre(double[] profile) {
+        double mean = 0;
+        for (double v : profile) {
+            mean += v;
+        }
+        mean /= profile.length;
+        double[] centred = new double[profile.length];
+        for (int i = 0; i < profile.length; i++) {
+            centred[i] = profile[i] - mean;
+        }
+        return centred;
+    }
+
+    private static double norm(double[] values) {
+        double sum = 0;
+        for (double v : values) {
+            sum += v * v;
+        }
+        return Math.sqrt(sum);
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.keyworks.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An error or warning reported by LilyPond, parsed from lines such as
+ * {@code music_generated_7.ly:12:5: error: syntax error, unexpected '}'}.
+ * Messages without a location (e.g. {@code fatal error: failed files: "music.ly"}) have no file,
+ * and line and column 0. Diagnostics from {@link LilyPondValidator} have a line and column but no file.
+ */
+public class LilyPondDiagnostic {
+
+    private static final Pattern LOCATED = Pattern.compile(
+        "^(.+?):(\\d+):(\\d+): (error|warning|programming error|fatal error): (.*)$");
+    private static final Pattern UNLOCATED = Pattern.compile(
+        "^(error|warning|programming error|fatal error): (.*)$");
+
+    private final String file;
+    private final int line;
+    private final int column;
+    private final String severity;
+    private final String message;
+
+    public LilyPondDiagnostic(String file, int line, int column, String severity, String message) {
+        this.file = file;
+        this.line = line;
+        this.column = column;
+        this.severity = severity;
+        this.message = message;
+    }
+
+    /**
+     * Parses one line of LilyPond output
+     * @param outputLine The line
+     * @return The diagnostic, or null if the line is not one
+     */
+    public static LilyPondDiagnostic parse(String outputLine) {
+        Matcher located = LOCATED.matcher(outputLine);
+        if (located.matches()) {
+            return new LilyPondDiagnostic(located.group(1), Integer.parseInt(located.group(2)),
+                Integer.parseInt(located.group(3)), located.group(4), located.group(5).trim());
+        }
+        Matcher unlocated = UNLOCATED.matcher(outputLine);
+        if (unlocated.matches()) {
+            return new LilyPondDiagnostic(null, 0, 0, unlocated.group(1), unlocated.group(2).trim());
+        }
+        return null;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * @return error, warning, programming error or fatal error
+     */
+    public String getSeverity() {
+        return severity;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isError() {
+        return !"warning".equals(severity);
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("file", file);
+        map.put("line", line);
+        map.put("column", column);
+        map.put("severity", severity);
+        map.put("message", message);
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        String location = line > 0 ? line + ":" + column + ": " : "";
+        return (file != null ? file + ":" : "") + location + severity + ": " + message;
+    }
+}
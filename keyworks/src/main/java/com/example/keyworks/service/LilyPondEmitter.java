@@ -0,0 +1,245 @@
+package com.example.keyworks.service;
+
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Writes LilyPond source for recorded notes.
+ * Pitch names and octave marks for all 128 MIDI keys are computed once, and all output goes
+ * straight to an {@link Appendable} (a StringBuilder, or a writer on the .ly file channel), so
+ * emitting a note never builds an intermediate note-name string.
+ */
+@Component
+public class LilyPondEmitter {
+
+    public static final String VERSION = "2.24.0";
+
+    private static final String[] PITCH_CLASS_NAMES = {"c", "cis", "d", "dis", "e", "f", "fis", "g", "gis", "a", "ais", "b"};
+    private static final String[] FLAT_PITCH_CLASS_NAMES = {"c", "des", "d", "es", "e", "f", "ges", "g", "as", "a", "bes", "b"};
+
+    // MIDI key -> LilyPond pitch name (absolute mode: key 48 is c, key 60 is c'), spelled with sharps or flats
+    private static final String[] PITCH_NAMES = new String[128];
+    private static final String[] FLAT_PITCH_NAMES = new String[128];
+    private static final String[] OCTAVE_MARKS = new String[128];
+
+    static {
+        for (int key = 0; key < 128; key++) {
+            int octave = key / 12 - 1;
+            PITCH_NAMES[key] = PITCH_CLASS_NAMES[key % 12];
+            FLAT_PITCH_NAMES[key] = FLAT_PITCH_CLASS_NAMES[key % 12];
+            if (octave < 3) {
+                OCTAVE_MARKS[key] = ",".repeat(3 - octave);
+            } else {
+                OCTAVE_MARKS[key] = "'".repeat(octave - 3);
+            }
+        }
+    }
+
+    /**
+     * Something that writes a complete LilyPond document
+     */
+    @FunctionalInterface
+    public interface Document {
+        void writeTo(Appendable out) throws IOException;
+    }
+
+    /**
+     * Renders a document into a string
+     * @param document The document
+     * @return LilyPond code
+     */
+    public String toString(Document document) {
+        StringBuilder out = new StringBuilder(1024);
+        try {
+            document.writeTo(out);
+        } catch (IOException e) {
+            // StringBuilder never throws
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes the version statement
+     */
+    public void writeVersion(Appendable out) throws IOException {
+        out.append("\\version \"").append(VERSION).append("\"\n");
+    }
+
+    /**
+     * Writes the version statement followed by a header block
+     * @param out Target
+     * @param title Score title
+     * @param composer Composer line
+     */
+    public void writeHeader(Appendable out, String title, String composer) throws IOException {
+        writeVersion(out);
+        out.append("\\header {\n");
+        out.append("  title = \"");
+        appendEscaped(out, title);
+        out.append("\"\n");
+        out.append("  composer = \"");
+        appendEscaped(out, composer);
+        out.append("\"\n");
+        out.append("  tagline = \"Created on ").append(LocalDate.now().format(DateTimeFormatter.ISO_LOCAL_DATE)).append("\"\n");
+        out.append("}\n\n");
+    }
+
+    /**
+     * Writes the placeholder document used when nothing was recorded
+     */
+    public void writeEmpty(Appendable out) throws IOException {
+        out.append("% No notes recorded\n");
+        writeVersion(out);
+        out.append("{ c'4 }");
+    }
+
+    /**
+     * Opens a staff with clef, key and time signature and optionally the tempo
+     * @param out Target
+     * @param indent Indentation of the staff line
+     * @param instrumentName Instrument name shown at the staff, or null for none
+     * @param clef Clef name, e.g. treble or bass
+     * @param key Key signature, or null for none
+     * @param beatsPerBar Quarter notes per bar
+     * @param tempoBpm Quarter notes per minute, or 0 to omit the tempo mark
+     */
+    public void openStaff(Appendable out, String indent, String instrumentName, String clef,
+                          KeyDetector.Key key, int beatsPerBar, int tempoBpm) throws IOException {
+        out.append(indent).append("\\new Staff ");
+        appendInstrumentName(out, instrumentName);
+        out.append("{\n");
+        out.append(indent).append("  \\clef ").append(clef).append('\n');
+        if (key != null) {
+            out.append(indent).append("  ");
+            writeKey(out, key);
+            out.append('\n');
+        }
+        out.append(indent).append("  \\time ").append(Integer.toString(beatsPerBar)).append("/4\n");
+        if (tempoBpm > 0) {
+            out.append(indent).append("  \\tempo 4 = ").append(Integer.toString(tempoBpm)).append('\n');
+        }
+        out.append(indent).append("  ");
+    }
+
+    /**
+     * Opens a piano staff; the two staves follow, then {@link #closePianoStaff}
+     * @param out Target
+     * @param indent Indentation of the piano staff line
+     * @param instrumentName Instrument name shown at the brace, or null for none
+     */
+    public void openPianoStaff(Appendable out, String indent, String instrumentName) throws IOException {
+        out.append(indent).append("\\new PianoStaff ");
+        appendInstrumentName(out, instrumentName);
+        out.append("<<\n");
+    }
+
+    /**
+     * Closes a piano staff opened with {@link #openPianoStaff}
+     */
+    public void closePianoStaff(Appendable out, String indent) throws IOException {
+        out.append(indent).append(">>\n");
+    }
+
+    /**
+     * Closes a staff opened with {@link #openStaff}
+     */
+    public void closeStaff(Appendable out, String indent) throws IOException {
+        out.append('\n').append(indent).append("}\n");
+    }
+
+    /**
+     * Writes the layout and MIDI blocks and closes the score
+     */
+    public void closeScore(Appendable out) throws IOException {
+        out.append("  \\layout { }\n");
+        out.append("  \\midi { }\n");
+        out.append("}\n");
+    }
+
+    /**
+     * Writes a key signature command, e.g. \key d \major
+     * @param out Target
+     * @param key The key
+     */
+    public void writeKey(Appendable out, KeyDetector.Key key) throws IOException {
+        out.append("\\key ").append(key.toLilyPond());
+    }
+
+    /**
+     * Writes a pitch spelled with sharps, e.g. cis''
+     * @param out Target
+     * @param key MIDI key number (0-127)
+     */
+    public void writePitch(Appendable out, int key) throws IOException {
+        writePitch(out, key, false);
+    }
+
+    /**
+     * Writes a pitch, e.g. cis'' or des''
+     * @param out Target
+     * @param key MIDI key number (0-127)
+     * @param flats Whether black keys are spelled as flats, as in keys with flats in the signature
+     */
+    public void writePitch(Appendable out, int key, boolean flats) throws IOException {
+        out.append(flats ? FLAT_PITCH_NAMES[key] : PITCH_NAMES[key]).append(OCTAVE_MARKS[key]);
+    }
+
+    /**
+     * Writes an unquantized note followed by a separating space
+     * @param out Target
+     * @param key MIDI key number (0-127)
+     * @param durationMs Sounding duration in milliseconds
+     */
+    public void writeNote(Appendable out, int key, long durationMs) throws IOException {
+        writeNote(out, key, durationMs, false);
+    }
+
+    /**
+     * Writes an unquantized note followed by a separating space
+     * @param out Target
+     * @param key MIDI key number (0-127)
+     * @param durationMs Sounding duration in milliseconds
+     * @param flats Whether black keys are spelled as flats
+     */
+    public void writeNote(Appendable out, int key, long durationMs, boolean flats) throws IOException {
+        writePitch(out, key, flats);
+        out.append(durationCode(durationMs)).append(' ');
+    }
+
+    /**
+     * Maps a duration in milliseconds to a LilyPond duration, assuming 120 BPM.
+     * Only used where notes are not quantized (see {@link Quantizer}).
+     * @param durationMs Duration in milliseconds
+     * @return LilyPond duration
+     */
+    public String durationCode(long durationMs) {
+        if (durationMs < 200) return "16";      // Sixteenth note
+        else if (durationMs < 400) return "8";  // Eighth note
+        else if (durationMs < 800) return "4";  // Quarter note
+        else if (durationMs < 1600) return "2"; // Half note
+        else return "1";                        // Whole note
+    }
+
+    private static void appendInstrumentName(Appendable out, String instrumentName) throws IOException {
+        if (instrumentName != null) {
+            out.append("\\with { instrumentName = \"");
+            appendEscaped(out, instrumentName);
+            out.append("\" } ");
+        }
+    }
+
+    private static void appendEscaped(Appendable out, String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\');
+            }
+            out.append(c);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.example.keyworks.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Renders scores by running the LilyPond executable as a subprocess under the {@link ProcessSupervisor}.
+ * The executable, its arguments, the timeout and extra environment variables come from the
+ * {@code lilypond.*} properties; page images use LilyPond's SVG backend or PNG output instead of the
+ * configured arguments. The process output is written to a .log file next to the source, and
+ * the errors and warnings in it are returned as {@link LilyPondDiagnostic}s.
+ * <p>
+ * Scores come from users, so by default LilyPond runs with {@code -dsafe}, which disables Scheme
+ * procedures that reach files, processes or the environment and restricts {@code \include}.
+ * {@code lilypond.safe=false} turns this off for trusted installations only.
+ */
+@Component
+@ConditionalOnProperty(name = "render.renderer", havingValue = "lilypond", matchIfMissing = true)
+public class LilyPondProcessRenderer implements ScoreRenderer {
+    private static final Logger logger = LoggerFactory.getLogger(LilyPondProcessRenderer.class);
+    private static final int MAX_DIAGNOSTICS = 50;
+    private static final long VERSION_TIMEOUT_SECONDS = 10;
+    private static final long VERSION_RETRY_MIN_MS = 10_000;
+    private static final long VERSION_RETRY_MAX_MS = 600_000;
+    private static final Pattern VERSION = Pattern.compile("LilyPond (\\S+)");
+
+    private final String executable;
+    private final List<String> arguments;
+    private final long timeoutSeconds;
+    private final Map<String, String> environment;
+    private final boolean safe;
+    private final ProcessSupervisor processSupervisor;
+    private volatile String version;
+    // After a failed version check: when to ask again, and the delay after the next failure
+    private long versionRetryAt;
+    private long versionRetryDelayMs = VERSION_RETRY_MIN_MS;
+
+    public LilyPondProcessRenderer(ProcessSupervisor processSupervisor,
+                                   @Value("${lilypond.executable:lilypond}") String executable,
+                                   @Value("${lilypond.arguments:--pdf}") String[] arguments,
+                                   @Value("${lilypond.timeout-seconds:30}") long timeoutSeconds,
+                                   @Value("${lilypond.environment:}") String[] environment,
+                                   @Value("${lilypond.safe:true}") boolean safe) {
+        this.processSupervisor = processSupervisor;
+        this.executable = executable;
+        this.arguments = List.of(arguments);
+        this.timeoutSeconds = timeoutSeconds;
+        this.environment = parseEnvironment(environment);
+        this.safe = safe;
+        logger.info("LilyPond renderer: {} {} (timeout {} s{})", executable, String.join(" ", this.arguments), timeoutSeconds,
+            safe ? ", safe mode" : ", SAFE MODE OFF");
+    }
+
+    @Override
+    public List<LilyPondDiagnostic> render(Path source, Path outputDirectory) throws IOException, InterruptedException {
+        List<String> command = baseCommand();
+        command.addAll(arguments);
+        command.add("--output=" + outputDirectory);
+        command.add(source.getFileName().toString());
+        return run(command, source);
+    }
+
+    @Override
+    public List<Path> renderPages(Path source, Path outputDirectory, String format, int resolution)
+            throws IOException, InterruptedException {
+        // Only the format options: the configured arguments select PDF output
+        List<String> command = baseCommand();
+        if (format.equals("svg")) {
+            command.add("-dbackend=svg");
+        } else {
+            // Thumbnails: PNGs cropped to the music instead of whole pages with margins
+            command.add("--png");
+            command.add("-dresolution=" + resolution);
+            command.add("-dcrop");
+        }
+        command.add("--output=" + outputDirectory);
+        command.add(source.getFileName().toString());
+        run(command, source);
+
+        // One page is written as music_generated_7.svg, several as music_generated_7-1.svg (PNG: -page1.png);
+        // cropped images have .cropped before the extension and are used when there are any
+        String baseName = baseName(source);
+        String extension = "." + format;
+        Map<Integer, Path> pages = new TreeMap<>();
+        Map<Integer, Path> croppedPages = new TreeMap<>();
+        try (Stream<Path> files = Files.list(outputDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (!name.startsWith(baseName) || !name.endsWith(extension)) {
+                    continue;
+                }
+                String page = name.substring(baseName.length(), name.length() - extension.length());
+                Map<Integer, Path> target = pages;
+                if (page.endsWith(".cropped")) {
+                    page = page.substring(0, page.length() - ".cropped".length());
+                    target = croppedPages;
+                }
+                if (page.isEmpty()) {
+                    target.put(1, file);
+                } else if (page.matches("-(page)?\\d{1,4}")) {
+                    target.put(Integer.parseInt(page.replaceAll("\\D", "")), file);
+                }
+            }
+        }
+        if (!croppedPages.isEmpty()) {
+            pages = croppedPages;
+        }
+        if (pages.isEmpty()) {
+            throw new ScoreRenderException("LilyPond wrote no " + format + " pages for " + source.getFileName(), List.of());
+        }
+        return new ArrayList<>(pages.values());
+    }
+
+    private List<String> baseCommand() {
+        List<String> command = new ArrayList<>();
+        command.add(executable);
+        if (safe) {
+            command.add("-dsafe");
+        }
+        return command;
+    }
+
+    /**
+     * Runs LilyPond and writes its output to a .log file next to the source
+     * @return The warnings
+     * @throws ScoreRenderException If LilyPond fails or times out
+     */
+    private List<LilyPondDiagnostic> run(List<String> command, Path source) throws IOException, InterruptedException {
+        logger.debug("Command: {}", String.join(" ", command));
+        // Diagnostics are parsed as the lines arrive, so they survive output truncation. Errors and
+        // warnings are capped separately: thousands of warnings must not crowd out the error
+        List<LilyPondDiagnostic> errors = Collections.synchronizedList(new ArrayList<>());
+        List<LilyPondDiagnostic> warnings = Collections.synchronizedList(new ArrayList<>());
+        ProcessSupervisor.Result result = processSupervisor.run(command, source.toAbsolutePath().getParent(),
+            environment, timeoutSeconds, line -> {
+                LilyPondDiagnostic diagnostic = LilyPondDiagnostic.parse(line);
+                if (diagnostic != null) {
+                    List<LilyPondDiagnostic> target = diagnostic.isError() ? errors : warnings;
+                    if (target.size() < MAX_DIAGNOSTICS) {
+                        target.add(diagnostic);
+                    }
+                }
+            });
+        List<LilyPondDiagnostic> diagnostics = new ArrayList<>(errors);
+        diagnostics.addAll(warnings);
+
+        Path logFile = source.resolveSibling(baseName(source) + ".log");
+        String log = result.droppedLines() > 0
+            ? result.output() + "[" + result.droppedLines() + " more lines not kept]\n"
+            : result.output();
+        Files.writeString(logFile, log);
+
+        if (result.timedOut()) {
+            throw new ScoreRenderException("LilyPond process timed out after " + timeoutSeconds + " seconds", diagnostics);
+        }
+        if (result.exitCode() != 0) {
+            String firstError = errors.isEmpty() ? "see " + logFile.getFileName() : errors.get(0).toString();
+            throw new ScoreRenderException("LilyPond process failed with exit code: " + result.exitCode()
+                + " (" + firstError + ")", diagnostics);
+        }
+        return List.copyOf(warnings);
+    }
+
+    @Override
+    public String getName() {
+        return "lilypond";
+    }
+
+    /**
+     * Asks the executable for its version once. A failure is remembered: until a retry delay has
+     * passed, which doubles after each failure up to ten minutes, {@link #UNKNOWN_VERSION} is
+     * returned without running the executable again
+     */
+    @Override
+    public String getVersion() {
+        String known = version;
+        if (known != null) {
+            return known;
+        }
+        synchronized (this) {
+            if (version != null) {
+                return version;
+            }
+            if (System.currentTimeMillis() < versionRetryAt) {
+                return UNKNOWN_VERSION;
+            }
+            String read = readVersion();
+            if (read != null) {
+                version = read;
+                return read;
+            }
+            versionRetryAt = System.currentTimeMillis() + versionRetryDelayMs;
+            logger.warn("LilyPond version unknown; asking again in {} s", versionRetryDelayMs / 1000);
+            versionRetryDelayMs = Math.min(versionRetryDelayMs * 2, VERSION_RETRY_MAX_MS);
+            return UNKNOWN_VERSION;
+        }
+    }
+
+    /**
+     * Runs {@code executable --version}
+     * @return The version, or null if it could not be read
+     */
+    private String readVersion() {
+        StringBuilder firstLine = new StringBuilder();
+        try {
+            ProcessSupervisor.Result result = processSupervisor.run(List.of(executable, "--version"), Path.of("."),
+                environment, VERSION_TIMEOUT_SECONDS, line -> {
+                    synchronized (firstLine) {
+                        if (firstLine.isEmpty()) {
+                            firstLine.append(line);
+                        }
+                    }
+                });
+            Matcher matcher = VERSION.matcher(firstLine);
+            if (result.exitCode() == 0 && matcher.find()) {
+                return matcher.group(1);
+            }
+            logger.warn("Could not read the LilyPond version from: {}", firstLine);
+        } catch (IOException e) {
+            logger.warn("Could not run {} --version: {}", executable, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    @Override
+    public String getOptions() {
+        return (safe ? "-dsafe " : "") + String.join(" ", arguments);
+    }
+
+    /**
+     * Parses KEY=VALUE entries
+     */
+    private static Map<String, String> parseEnvironment(String[] entries) {
+        Map<String, String> environment = new LinkedHashMap<>();
+        for (String entry : entries) {
+            int equals = entry.indexOf('=');
+            if (equals > 0) {
+                environment.put(entry.substring(0, equals).trim(), entry.substring(equals + 1).trim());
+            } else if (!entry.isBlank()) {
+                throw new IllegalArgumentException("lilypond.environment entries must be KEY=VALUE: " + entry);
+            }
+        }
+        return environment;
+    }
+
+    static String baseName(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+}
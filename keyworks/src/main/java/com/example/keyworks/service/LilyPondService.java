@@ -5,170 +5,358 @@ import com.example.keyworks.model.SheetMusic;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
 import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
 
 @Service
 public class LilyPondService {
     private static final Logger logger = LoggerFactory.getLogger(LilyPondService.class);
     
+    // Below the output directory, so that finished files can be moved into place atomically
+    private static final String JOB_DIRECTORY = ".render";
+    
+    // First section of a score rendered in sections, available until the whole PDF is
+    private static final String PREVIEW_SUFFIX = "-preview.pdf";
+    
     private final FileStorageConfig fileStorageConfig;
+    private final ScoreRenderer scoreRenderer;
+    private final LilyPondValidator lilyPondValidator;
+    private final SectionedScoreRenderer sectionedScoreRenderer;
+    private final PagePreviewService pagePreviewService;
+    private final RenderScheduler renderScheduler;
     
-    public LilyPondService(FileStorageConfig fileStorageConfig) {
+    // Renders in progress by file ID and content hash
+    private final ConcurrentMap<String, CompletableFuture<Map<String, String>>> inFlight = new ConcurrentHashMap<>();
+    
+    public LilyPondService(FileStorageConfig fileStorageConfig, ScoreRenderer scoreRenderer,
+                           LilyPondValidator lilyPondValidator, SectionedScoreRenderer sectionedScoreRenderer,
+                           PagePreviewService pagePreviewService, RenderScheduler renderScheduler) {
         this.fileStorageConfig = fileStorageConfig;
-        logger.info("LilyPondService initialized with output directory: {}", fileStorageConfig.getOutputDirectory());
+        this.scoreRenderer = scoreRenderer;
+        this.lilyPondValidator = lilyPondValidator;
+        this.sectionedScoreRenderer = sectionedScoreRenderer;
+        this.pagePreviewService = pagePreviewService;
+        this.renderScheduler = renderScheduler;
+        logger.info("LilyPondService initialized with output directory: {}, renderer: {}",
+            fileStorageConfig.getOutputDirectory(), scoreRenderer.getName());
     }
     
     /**
-     * Generates PDF and MIDI files from a SheetMusic entity
+     * Generates PDF and MIDI files from a SheetMusic entity and records what they were rendered from:
+     * the content hash of the code, the renderer version and options, the status and the time
      * @param sheetMusic The SheetMusic entity containing LilyPond code
-     * @return The updated SheetMusic entity with file paths
+     * @return The updated SheetMusic entity with file paths; on failure the entity is marked FAILED
+     * @throws ScoreRenderException If the code is invalid or rendering fails
      */
     public SheetMusic generateFiles(SheetMusic sheetMusic) throws InterruptedException, IOException {
         String lilyPondCode = sheetMusic.getLilyPondCode();
-        
-        // Convert Long ID to String
-        Long id = sheetMusic.getId();
-        String fileId = id != null ? id.toString() : UUID.randomUUID().toString();
-        
-        Map<String, String> generatedFiles = generateFilesInternal(lilyPondCode, fileId);
-        
-        // Update the SheetMusic object with the generated file paths
-        if (generatedFiles.containsKey("pdf")) {
-            sheetMusic.setPdfPath(generatedFiles.get("pdf"));
+        // Rows rendered while the version is unknown keep no version, so they are checked again later
+        String rendererVersion = isRendererVersionKnown() ? getRendererVersion() : null;
+        String renderOptions = getRenderOptions();
+        try {
+            // Stored code may predate validation; a broken score should not cost a LilyPond run
+            LilyPondValidator.Validation validation = lilyPondValidator.validate(lilyPondCode);
+            validation.orThrow();
+            
+            // Convert Long ID to String
+            Long id = sheetMusic.getId();
+            String fileId = id != null ? id.toString() : UUID.randomUUID().toString();
+            
+            // Concurrent requests for the same score and content share one render
+            String key = fileId + ":" + validation.getContentHash();
+            long estimatedMs = validation.getCost().estimatedMillis();
+            Map<String, String> generatedFiles = coalesce(key,
+                () -> generateFilesInternal(out -> out.append(lilyPondCode), fileId, estimatedMs));
+            
+            // Update the SheetMusic object with the generated file paths
+            if (generatedFiles.containsKey("pdf")) {
+                sheetMusic.setPdfPath(generatedFiles.get("pdf"));
+            }
+            
+            if (generatedFiles.containsKey("midi")) {
+                sheetMusic.setMidiPath(generatedFiles.get("midi"));
+            }
+            
+            setRenderState(sheetMusic, SheetMusic.RenderStatus.RENDERED, validation.getContentHash(),
+                rendererVersion, renderOptions);
+        } catch (IOException | RuntimeException e) {
+            setRenderState(sheetMusic, SheetMusic.RenderStatus.FAILED, null, rendererVersion, renderOptions);
+            throw e;
         }
         
-        if (generatedFiles.containsKey("midi")) {
-            sheetMusic.setMidiPath(generatedFiles.get("midi"));
+        return sheetMusic;
+    }
+    
+    private static void setRenderState(SheetMusic sheetMusic, SheetMusic.RenderStatus status, String sourceHash,
+                                       String rendererVersion, String renderOptions) {
+        sheetMusic.setRenderStatus(status);
+        sheetMusic.setRenderedSourceHash(sourceHash);
+        sheetMusic.setRendererVersion(rendererVersion);
+        sheetMusic.setRenderOptions(renderOptions);
+        sheetMusic.setRenderedAt(LocalDateTime.now());
+    }
+    
+    /**
+     * Whether the generated files of a sheet music are current: rendered without errors from the
+     * same code (ignoring comments and whitespace) by the same renderer version with the same
+     * options, and still present. While the renderer version is unknown it is assumed unchanged.
+     * @param sheetMusic The sheet music
+     * @return True if generating its files again would produce the same files
+     */
+    public boolean isUpToDate(SheetMusic sheetMusic) {
+        if (sheetMusic.getRenderStatus() != SheetMusic.RenderStatus.RENDERED || sheetMusic.getPdfPath() == null
+                || isRendererVersionKnown() && !Objects.equals(sheetMusic.getRendererVersion(), getRendererVersion())
+                || !Objects.equals(sheetMusic.getRenderOptions(), getRenderOptions())) {
+            return false;
+        }
+        String contentHash = lilyPondValidator.validate(sheetMusic.getLilyPondCode()).getContentHash();
+        return Objects.equals(sheetMusic.getRenderedSourceHash(), contentHash)
+            && Files.exists(fileStorageConfig.resolveFilePath(sheetMusic.getPdfPath()));
+    }
+    
+    /**
+     * Whether two versions of LilyPond code render the same, i.e. differ at most in comments and whitespace
+     */
+    public boolean isSameSource(String lilyPondCode, String otherLilyPondCode) {
+        return Objects.equals(lilyPondValidator.validate(lilyPondCode).getContentHash(),
+            lilyPondValidator.validate(otherLilyPondCode).getContentHash());
+    }
+    
+    /**
+     * @return Name and version of the renderer, as stored with rendered sheet music
+     */
+    public String getRendererVersion() {
+        return scoreRenderer.getName() + " " + scoreRenderer.getVersion();
+    }
+    
+    /**
+     * @return False while the renderer cannot tell its version, e.g. because LilyPond failed to start
+     */
+    public boolean isRendererVersionKnown() {
+        return !ScoreRenderer.UNKNOWN_VERSION.equals(scoreRenderer.getVersion());
+    }
+    
+    /**
+     * @return The renderer and sectioning options, as stored with rendered sheet music
+     */
+    public String getRenderOptions() {
+        return scoreRenderer.getOptions() + "; " + sectionedScoreRenderer.getOptions();
+    }
+    
+    /**
+     * Runs a render unless the same render is already in flight, in which case its result is shared
+     * @param key Identifies the render: file ID and content hash
+     * @param render Produces the generated files
+     * @return A map containing the paths to the generated files
+     */
+    private Map<String, String> coalesce(String key, RenderJob render) throws InterruptedException, IOException {
+        CompletableFuture<Map<String, String>> ownFuture = new CompletableFuture<>();
+        CompletableFuture<Map<String, String>> future = inFlight.putIfAbsent(key, ownFuture);
+        if (future == null) {
+            try {
+                Map<String, String> generatedFiles = render.run();
+                ownFuture.complete(generatedFiles);
+                return generatedFiles;
+            } catch (Throwable e) {
+                ownFuture.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, ownFuture);
+            }
         }
         
-        return sheetMusic;
+        logger.info("Joining the render already in flight for {}", key);
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            // The caller that ran the render was interrupted; this caller was not
+            throw new RuntimeException("The shared render was cancelled", cause);
+        }
+    }
+    
+    @FunctionalInterface
+    private interface RenderJob {
+        Map<String, String> run() throws InterruptedException, IOException;
     }
     
     /**
-     * Internal method to generate PDF and MIDI files from LilyPond code
-     * @param lilyPondCode The LilyPond code to generate files from
+     * Internal method to generate PDF and MIDI files from LilyPond code.
+     * Each job renders in its own directory below the output directory; the results are then moved
+     * into place atomically, so concurrent jobs never write the same file and readers never see a
+     * partially written PDF. Long scores are rendered in sections by the {@link SectionedScoreRenderer};
+     * the first section is published as a preview ({@link #getPreviewFileName}) while the rest renders.
+     * Page images are rendered afterwards by the {@link PagePreviewService}. Every LilyPond run waits
+     * for a slot from the {@link RenderScheduler}, in the class and on behalf of the user of the request.
+     * @param document Writes the LilyPond code to generate files from
      * @param fileId The ID to use for the generated files
+     * @param estimatedMs Expected render time, or 0 if unknown
      * @return A map containing the paths to the generated files
      */
-    private Map<String, String> generateFilesInternal(String lilyPondCode, String fileId) throws InterruptedException, IOException {
+    private Map<String, String> generateFilesInternal(LilyPondEmitter.Document document, String fileId, long estimatedMs)
+            throws InterruptedException, IOException {
+        // All LilyPond runs of this render, e.g. its sections, count as one render of the requester
+        String jobId = UUID.randomUUID().toString();
+        RenderScheduler.Requester requester = renderScheduler.currentRequester().forJob(jobId);
         // Generate a unique identifier for the files
         String uniqueId = fileId != null ? fileId : UUID.randomUUID().toString();
         String filePrefix = "music_generated_" + uniqueId;
         String lilyFileName = filePrefix + ".ly";
-        String pdfFileName = filePrefix + ".pdf";
-        String midiFileName = filePrefix + ".midi";
+        String previewFileName = filePrefix + PREVIEW_SUFFIX;
         
-        // Get output directory
+        // Get output directory and a job directory on the same file system, so moves can be atomic
         Path outputDir = fileStorageConfig.getOutputDirectoryPath();
-        File outputDirFile = outputDir.toFile();
-        
-        // Ensure output directory exists
-        if (!outputDirFile.exists()) {
-            logger.info("Creating output directory: {}", outputDir);
-            Files.createDirectories(outputDir);
-        }
-        
-        // Create the LilyPond file path
-        Path lilyFilePath = outputDir.resolve(lilyFileName);
-        
-        logger.info("Creating LilyPond file at: {}", lilyFilePath);
-        try (BufferedWriter writer = Files.newBufferedWriter(lilyFilePath)) {
-            writer.write(lilyPondCode);
-        }
-        
-        // Execute LilyPond to generate PDF and MIDI
-        ProcessBuilder processBuilder = new ProcessBuilder(
-            "lilypond",
-            "--pdf",
-            "--output=" + outputDir.toString(),
-            lilyFilePath.getFileName().toString()
-        );
-        
-        // Set working directory to output directory
-        processBuilder.directory(outputDirFile);
-        
-        // Redirect error stream to standard output for better logging
-        processBuilder.redirectErrorStream(true);
-        
-        logger.info("Executing LilyPond command in directory: {}", outputDir);
-        logger.debug("Command: lilypond --pdf --output={} {}", 
-                outputDir.toString(), lilyFilePath.getFileName().toString());
-        
-        Process process = processBuilder.start();
-        
-        // Wait for the process to complete with timeout
-        boolean completed = process.waitFor(30L, TimeUnit.SECONDS);
-        if (!completed) {
-            process.destroyForcibly();
-            throw new RuntimeException("LilyPond process timed out");
-        }
-        
-        int exitCode = process.exitValue();
-        if (exitCode != 0) {
-            throw new RuntimeException("LilyPond process failed with exit code: " + exitCode);
-        }
-        
-        // Check generated files
-        Path pdfFilePath = outputDir.resolve(pdfFileName);
-        Path midiFilePath = outputDir.resolve(midiFileName);
+        Path jobDir = Files.createDirectories(outputDir.resolve(JOB_DIRECTORY)).resolve(jobId);
+        Files.createDirectory(jobDir);
         
-        // Log the directory contents for debugging
-        logger.debug("Output directory contents after LilyPond execution:");
-        File[] files = outputDirFile.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                logger.debug(" - {}: {} bytes", file.getName(), file.length());
+        try {
+            // Create the LilyPond file path
+            Path lilyFilePath = jobDir.resolve(lilyFileName);
+            
+            logger.info("Creating LilyPond file at: {}", lilyFilePath);
+            // The document is encoded straight into the file channel, without building the code as a string first
+            try (FileChannel channel = FileChannel.open(lilyFilePath,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                 Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8)) {
+                document.writeTo(writer);
             }
-        }
-        
-        Map<String, String> generatedFiles = new HashMap<>();
-        
-        if (!Files.exists(pdfFilePath)) {
-            logger.error("PDF file was not generated at expected path: {}", pdfFilePath);
             
-            // Try to find the PDF file by listing the directory
-            File[] pdfFiles = outputDirFile.listFiles((dir, name) -> name.endsWith(".pdf") && name.contains(uniqueId));
-            if (pdfFiles != null && pdfFiles.length > 0) {
-                pdfFilePath = pdfFiles[0].toPath();
-                pdfFileName = pdfFiles[0].getName();
-                logger.info("Found PDF file at alternative location: {}", pdfFilePath);
-            } else {
+            // Render PDF and MIDI next to the source
+            logger.info("Rendering {} with the {} renderer", lilyFileName, scoreRenderer.getName());
+            try {
+                List<LilyPondDiagnostic> warnings = sectionedScoreRenderer.render(lilyFilePath, jobDir, requester,
+                    estimatedMs, firstSection -> publishPreview(firstSection, jobDir, outputDir, previewFileName));
+                if (warnings == null) {
+                    try (RenderScheduler.Ticket ticket = renderScheduler.acquire(requester, lilyFileName, estimatedMs)) {
+                        warnings = scoreRenderer.render(lilyFilePath, jobDir);
+                    }
+                }
+                for (LilyPondDiagnostic warning : warnings) {
+                    logger.warn("LilyPond: {}", warning);
+                }
+            } finally {
+                // Keep the source and log next to the outputs, also of failed renders for debugging
+                try {
+                    moveIntoPlace(jobDir, outputDir, lilyFileName);
+                    moveIntoPlace(jobDir, outputDir, filePrefix + ".log");
+                } catch (IOException e) {
+                    logger.warn("Could not keep the source and log of {}: {}", lilyFileName, e.getMessage());
+                }
+            }
+            
+            Map<String, String> generatedFiles = new HashMap<>();
+            
+            String pdfFileName = findOutput(jobDir, filePrefix, ".pdf");
+            if (pdfFileName == null) {
+                logger.error("PDF file was not generated in {}", jobDir);
                 throw new RuntimeException("PDF file was not generated");
             }
-        }
-        
-        // Add PDF file to the map
-        generatedFiles.put("pdf", pdfFileName);
-        logger.info("Generated PDF file: {}", pdfFileName);
-        
-        if (Files.exists(midiFilePath)) {
-            generatedFiles.put("midi", midiFileName);
-            logger.info("Generated MIDI file: {}", midiFileName);
-        } else {
-            logger.warn("MIDI file was not generated at expected path: {}", midiFilePath);
             
-            // Try to find the MIDI file by listing the directory
-            File[] midiFiles = outputDirFile.listFiles((dir, name) -> 
-                (name.endsWith(".midi") || name.endsWith(".mid")) && name.contains(uniqueId));
-            if (midiFiles != null && midiFiles.length > 0) {
-                midiFileName = midiFiles[0].getName();
+            // MIDI first: once the PDF is in place the score counts as generated
+            String midiFileName = findOutput(jobDir, filePrefix, ".midi");
+            if (midiFileName == null) {
+                midiFileName = findOutput(jobDir, filePrefix, ".mid");
+            }
+            if (midiFileName != null) {
+                moveIntoPlace(jobDir, outputDir, midiFileName);
                 generatedFiles.put("midi", midiFileName);
-                logger.info("Found MIDI file at alternative location: {}", midiFiles[0].getPath());
+                logger.info("Generated MIDI file: {}", midiFileName);
             } else {
                 logger.warn("No MIDI file was generated");
             }
+            
+            moveIntoPlace(jobDir, outputDir, pdfFileName);
+            generatedFiles.put("pdf", pdfFileName);
+            logger.info("Generated PDF file: {}", pdfFileName);
+            
+            // Page images for thumbnails follow in the background
+            pagePreviewService.schedule(uniqueId, outputDir.resolve(lilyFileName), requester);
+            
+            return generatedFiles;
+        } finally {
+            // The preview is superseded by the full PDF, or was of a render that failed
+            Files.deleteIfExists(outputDir.resolve(previewFileName));
+            FileSystemUtils.deleteRecursively(jobDir);
+        }
+    }
+    
+    /**
+     * Moves a copy of the first section's PDF into place as the preview; the original is still
+     * needed for the full PDF
+     */
+    private void publishPreview(Path firstSection, Path jobDir, Path outputDir, String previewFileName) {
+        try {
+            Files.copy(firstSection, jobDir.resolve(previewFileName));
+            moveIntoPlace(jobDir, outputDir, previewFileName);
+            logger.info("Published preview {}", previewFileName);
+        } catch (IOException e) {
+            logger.warn("Could not publish preview {}: {}", previewFileName, e.getMessage());
+        }
+    }
+    
+    /**
+     * Gets the preview of a score that is still being rendered in sections
+     * @param fileId The ID of the score
+     * @return The file name of the preview PDF (the first section), or null if there is none
+     */
+    public String getPreviewFileName(String fileId) {
+        String previewFileName = "music_generated_" + fileId + PREVIEW_SUFFIX;
+        return Files.exists(fileStorageConfig.resolveFilePath(previewFileName)) ? previewFileName : null;
+    }
+    
+    /**
+     * Finds an output in the job directory: the expected name, or another file of the type that
+     * contains the prefix (LilyPond appends suffixes in some configurations)
+     * @return The file name, or null if there is none
+     */
+    private String findOutput(Path jobDir, String filePrefix, String extension) throws IOException {
+        if (Files.exists(jobDir.resolve(filePrefix + extension))) {
+            return filePrefix + extension;
+        }
+        try (Stream<Path> files = Files.list(jobDir)) {
+            return files.map(file -> file.getFileName().toString())
+                .filter(name -> name.endsWith(extension) && name.contains(filePrefix))
+                .sorted()
+                .findFirst()
+                .orElse(null);
+        }
+    }
+    
+    private static void moveIntoPlace(Path jobDir, Path outputDir, String fileName) throws IOException {
+        Path source = jobDir.resolve(fileName);
+        if (Files.exists(source)) {
+            Files.move(source, outputDir.resolve(fileName), StandardCopyOption.ATOMIC_MOVE);
         }
-        
-        return generatedFiles;
     }
     
     /**
@@ -178,7 +366,66 @@ public class LilyPondService {
      * @return A map containing the paths to the generated files
      */
     public Map<String, String> generateFiles(String lilyPondCode, String fileId) throws InterruptedException, IOException {
-        return generateFilesInternal(lilyPondCode, fileId);
+        LilyPondValidator.Validation validation = lilyPondValidator.validate(lilyPondCode);
+        validation.orThrow();
+        String key = fileId + ":" + validation.getContentHash();
+        long estimatedMs = validation.getCost().estimatedMillis();
+        return coalesce(key, () -> generateFilesInternal(out -> out.append(lilyPondCode), fileId, estimatedMs));
+    }
+    
+    /**
+     * Generates PDF and MIDI files, streaming the LilyPond code directly into the .ly file.
+     * The document is generated, not user input, so it is not validated; it is written once more
+     * into a digest to find concurrent renders of the same document
+     * @param document Writes the LilyPond code, e.g. via {@link LilyPondEmitter}
+     * @param fileId The ID to use for the generated files
+     * @return A map containing the paths to the generated files
+     */
+    public Map<String, String> generateFiles(LilyPondEmitter.Document document, String fileId) throws InterruptedException, IOException {
+        String key = fileId + ":" + contentHash(document);
+        return coalesce(key, () -> generateFilesInternal(document, fileId, 0));
+    }
+    
+    /**
+     * SHA-256 of the characters a document writes, without keeping them
+     */
+    private static String contentHash(LilyPondEmitter.Document document) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        byte[] buffer = new byte[8192];
+        int[] length = new int[1];
+        Appendable sink = new Appendable() {
+            @Override
+            public Appendable append(CharSequence text) {
+                return append(text, 0, text.length());
+            }
+            
+            @Override
+            public Appendable append(CharSequence text, int start, int end) {
+                for (int i = start; i < end; i++) {
+                    append(text.charAt(i));
+                }
+                return this;
+            }
+            
+            @Override
+            public Appendable append(char c) {
+                if (length[0] == buffer.length) {
+                    digest.update(buffer);
+                    length[0] = 0;
+                }
+                buffer[length[0]++] = (byte) (c >> 8);
+                buffer[length[0]++] = (byte) c;
+                return this;
+            }
+        };
+        document.writeTo(sink);
+        digest.update(buffer, 0, length[0]);
+        return HexFormat.of().formatHex(digest.digest());
     }
     
     /**
@@ -0,0 +1,528 @@
+package com.example.keyworks.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Checks LilyPond code before it is rendered, in a single pass without regular expressions.
+ * It covers the subset that KeyWorks generates and users commonly submit: music in braces, chords,
+ * simultaneous music, commands, strings, comments and Scheme expressions. Unbalanced brackets,
+ * unterminated strings, comments or Scheme, {@code \include}, a list of well-known Scheme procedures
+ * that touch files or processes, and input over the size, nesting or note limits are rejected, so a
+ * broken score fails in microseconds instead of costing a LilyPond run.
+ * <p>
+ * The Scheme check is a quick rejection, not a sandbox: Scheme can reach the same procedures in ways
+ * no list anticipates. Untrusted code is contained by running LilyPond in safe mode
+ * ({@code lilypond.safe}, see {@link LilyPondProcessRenderer}).
+ * <p>
+ * The same pass produces a normalized form for cache keys (comments dropped, whitespace runs
+ * collapsed to one space, strings and Scheme kept verbatim) and a render cost estimate.
+ */
+@Component
+public class LilyPondValidator {
+
+    private static final int MAX_ERRORS = 20;
+
+    // Rough LilyPond timings: process start and font loading, then per note, staff and bar
+    private static final long BASE_MILLIS = 800;
+    private static final double MILLIS_PER_NOTE = 0.4;
+    private static final long MILLIS_PER_STAFF = 150;
+    private static final double MILLIS_PER_BAR = 2;
+
+    // Contexts ending in "Staff" that group staves rather than being one
+    private static final Set<String> STAFF_GROUPS = Set.of("PianoStaff", "GrandStaff", "ChoirStaff");
+
+    private static final Set<String> FORBIDDEN_SCHEME = Set.of(
+        "system", "system*", "ly:system", "ly:spawn", "primitive-fork", "execl", "execlp", "execle", "execv",
+        "execvp", "open-file", "open-input-file", "open-output-file", "open-input-pipe", "open-output-pipe",
+        "open-pipe", "call-with-input-file", "call-with-output-file", "with-input-from-file", "with-output-to-file",
+        "delete-file", "rename-file", "load", "primitive-load", "eval", "primitive-eval", "eval-string",
+        "ly:gulp-file", "ly:parse-file", "ly:parser-include-string", "getenv", "setenv", "chdir", "mkdir",
+        "rmdir", "exit", "primitive-exit", "resolve-module", "module-ref");
+
+    private final int maxLength;
+    private final int maxDepth;
+    private final int maxNotes;
+
+    public LilyPondValidator(@Value("${lilypond.validation.max-length:200000}") int maxLength,
+                             @Value("${lilypond.validation.max-depth:64}") int maxDepth,
+                             @Value("${lilypond.validation.max-notes:50000}") int maxNotes) {
+        this.maxLength = maxLength;
+        this.maxDepth = maxDepth;
+        this.maxNotes = maxNotes;
+    }
+
+    /**
+     * Estimated rendering work
+     * @param notes Notes and rests
+     * @param staves Staves (at least 1)
+     * @param bars Bar checks, or notes / 4 if there are none
+     * @param estimatedMillis Expected LilyPond time
+     */
+    public record RenderCost(int notes, int staves, int bars, long estimatedMillis) {
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("notes", notes);
+            map.put("staves", staves);
+            map.put("bars", bars);
+            map.put("estimatedMillis", estimatedMillis);
+            return map;
+        }
+    }
+
+    /**
+     * Outcome of a validation
+     */
+    public static class Validation {
+        private final List<LilyPondDiagnostic> errors;
+        private final String normalized;
+        private final RenderCost cost;
+
+        Validation(List<LilyPondDiagnostic> errors, String normalized, RenderCost cost) {
+            this.errors = List.copyOf(errors);
+            this.normalized = normalized;
+            this.cost = cost;
+        }
+
+        public boolean isValid() {
+            return errors.isEmpty();
+        }
+
+        public List<LilyPondDiagnostic> getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return The normalized code, or null if the input was rejected before it was read
+         */
+        public String getNormalized() {
+            return normalized;
+        }
+
+        /**
+         * @return SHA-256 of the normalized code in hex, or null if there is none
+         */
+        public String getContentHash() {
+            return normalized != null ? sha256(normalized) : null;
+        }
+
+        public RenderCost getCost() {
+            return cost;
+        }
+
+        /**
+         * @throws ScoreRenderException If the code is invalid, with the errors as diagnostics
+         */
+        public void orThrow() {
+            if (!errors.isEmpty()) {
+                throw new ScoreRenderException("Invalid LilyPond code: " + errors.get(0), errors);
+            }
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("valid", isValid());
+            List<Map<String, Object>> diagnostics = new ArrayList<>();
+            for (LilyPondDiagnostic error : errors) {
+                diagnostics.add(error.toMap());
+            }
+            map.put("diagnostics", diagnostics);
+            map.put("contentHash", getContentHash());
+            map.put("cost", cost != null ? cost.toMap() : null);
+            return map;
+        }
+    }
+
+    /**
+     * Validates and normalizes LilyPond code
+     * @param code The code
+     * @return The validation; check {@link Validation#isValid()}
+     */
+    public Validation validate(String code) {
+        if (code == null || code.isBlank()) {
+            return new Validation(List.of(error(0, 0, "No LilyPond code")), null, null);
+        }
+        if (code.length() > maxLength) {
+            return new Validation(List.of(error(0, 0, "LilyPond code is " + code.length()
+                + " characters long, the limit is " + maxLength)), null, null);
+        }
+        return new Scanner(code).scan();
+    }
+
+    private static LilyPondDiagnostic error(int line, int column, String message) {
+        return new LilyPondDiagnostic(null, line, column, "error", message);
+    }
+
+    private static String sha256(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * One pass over the code; not thread-safe, one instance per validation
+     */
+    private class Scanner {
+        private final String code;
+        private final StringBuilder normalized;
+        private final List<LilyPondDiagnostic> errors = new ArrayList<>();
+        // Open brackets: '{', 'S' for <<, '<' for a chord; with their positions for error messages
+        private final Deque<int[]> open = new ArrayDeque<>();
+
+        private int position;
+        private int line = 1;
+        private int lineStart;
+        private boolean pendingSpace;
+        private boolean stopped;
+
+        private int notes;
+        private int staves;
+        private int bars;
+        private boolean newContext;
+
+        Scanner(String code) {
+            this.code = code;
+            this.normalized = new StringBuilder(code.length());
+        }
+
+        Validation scan() {
+            while (position < code.length() && !stopped) {
+                char c = code.charAt(position);
+                if (Character.isWhitespace(c)) {
+                    advance();
+                    pendingSpace = true;
+                } else if (c == '%') {
+                    skipComment();
+                } else if (c == '"') {
+                    emit(readString());
+                } else if (c == '#' || c == '$') {
+                    scheme();
+                } else if (c == '\\') {
+                    command();
+                } else if (c == '{') {
+                    push('{', 1);
+                } else if (c == '}') {
+                    pop('{', "}", 1);
+                } else if (c == '<') {
+                    if (peek(1) == '<' && !inChord()) {
+                        push('S', 2);
+                    } else {
+                        push('<', 1);
+                    }
+                } else if (c == '>') {
+                    if (inChord()) {
+                        pop('<', ">", 1);
+                    } else if (peek(1) == '>') {
+                        pop('S', ">>", 2);
+                    } else {
+                        fail("'>' without an open chord");
+                        emitChars(1);
+                    }
+                } else if ((c == '-' || c == '^' || c == '_') && position + 1 < code.length()
+                        && ">^+|.-_!".indexOf(code.charAt(position + 1)) >= 0) {
+                    // Articulation shorthand such as c4-> or c-.
+                    emitChars(2);
+                } else if (c == '|') {
+                    bars++;
+                    emitChars(1);
+                } else if (Character.isLetter(c)) {
+                    word();
+                } else {
+                    emitChars(1);
+                }
+            }
+
+            if (!stopped) {
+                for (int[] bracket : open) {
+                    String name = switch (bracket[0]) {
+                        case '{' -> "'{'";
+                        case 'S' -> "'<<'";
+                        default -> "chord '<'";
+                    };
+                    errors.add(error(bracket[1], bracket[2], "Unclosed " + name));
+                    if (errors.size() >= MAX_ERRORS) {
+                        break;
+                    }
+                }
+            }
+
+            int staffCount = Math.max(1, staves);
+            int barCount = bars > 0 ? bars : notes / 4;
+            long estimate = BASE_MILLIS + Math.round(notes * MILLIS_PER_NOTE + barCount * MILLIS_PER_BAR)
+                + staffCount * MILLIS_PER_STAFF;
+            return new Validation(errors, normalized.toString(), new RenderCost(notes, staffCount, barCount, estimate));
+        }
+
+        private void command() {
+            int start = position;
+            int column = column();
+            advance();
+            if (position < code.length() && Character.isLetter(code.charAt(position))) {
+                while (position < code.length()
+                        && (Character.isLetter(code.charAt(position)) || code.charAt(position) == '-')) {
+                    advance();
+                }
+            } else if (position < code.length()) {
+                // \< \> \! \( \) \[ \] \\ and the like
+                advance();
+            }
+            String command = code.substring(start, position);
+            if (command.equals("\\include")) {
+                fail(line, column, "\\include is not allowed");
+            }
+            newContext = command.equals("\\new") || command.equals("\\context");
+            emit(command);
+        }
+
+        private void word() {
+            int start = position;
+            while (position < code.length()
+                    && (Character.isLetter(code.charAt(position)) || code.charAt(position) == '-' && isLetterAt(position + 1))) {
+                advance();
+            }
+            String word = code.substring(start, position);
+            if (newContext) {
+                if (word.endsWith("Staff") && !STAFF_GROUPS.contains(word)) {
+                    staves++;
+                }
+                newContext = false;
+            } else if (isNoteName(word)) {
+                notes++;
+                if (notes > maxNotes) {
+                    fail("More than " + maxNotes + " notes");
+                    stopped = true;
+                }
+            }
+            emit(word);
+        }
+
+        private void scheme() {
+            int start = position;
+            int startLine = line;
+            int startColumn = column();
+            advance();
+            if (position < code.length() && code.charAt(position) == '\'') {
+                advance();
+            }
+            if (position >= code.length()) {
+                fail(startLine, startColumn, "Empty Scheme expression");
+                return;
+            }
+            char c = code.charAt(position);
+            if (c == '(') {
+                schemeList(startLine, startColumn);
+            } else if (c == '"') {
+                readString();
+            } else {
+                // Atom: #t, #42, #'symbol, #red
+                int atomStart = position;
+                while (position < code.length() && !Character.isWhitespace(code.charAt(position))
+                        && "{}<>()\"|".indexOf(code.charAt(position)) < 0) {
+                    advance();
+                }
+                checkSchemeIdentifier(code.substring(atomStart, position), startLine, startColumn);
+            }
+            emit(code.substring(start, position));
+        }
+
+        private void schemeList(int startLine, int startColumn) {
+            int depth = 0;
+            int tokenStart = -1;
+            while (position < code.length()) {
+                char c = code.charAt(position);
+                boolean delimiter = Character.isWhitespace(c) || c == '(' || c == ')' || c == '"' || c == ';';
+                if (delimiter && tokenStart >= 0) {
+                    checkSchemeIdentifier(code.substring(tokenStart, position), line, tokenStart - lineStart + 1);
+                    tokenStart = -1;
+                }
+                if (c == '(') {
+                    depth++;
+                    if (depth + open.size() > maxDepth) {
+                        fail("Nesting deeper than " + maxDepth);
+                        stopped = true;
+                        return;
+                    }
+                    advance();
+                } else if (c == ')') {
+                    depth--;
+                    advance();
+                    if (depth == 0) {
+                        return;
+                    }
+                } else if (c == '"') {
+                    readString();
+                } else if (c == ';') {
+                    while (position < code.length() && code.charAt(position) != '\n') {
+                        advance();
+                    }
+                } else if (c == '#' && peek(1) == '\\') {
+                    // Character literal such as #\( or #\space
+                    advance();
+                    advance();
+                    advance();
+                } else {
+                    if (!delimiter && tokenStart < 0) {
+                        tokenStart = position;
+                    }
+                    advance();
+                }
+            }
+            fail(startLine, startColumn, "Unterminated Scheme expression");
+        }
+
+        private void checkSchemeIdentifier(String identifier, int atLine, int atColumn) {
+            if (FORBIDDEN_SCHEME.contains(identifier)) {
+                fail(atLine, atColumn, "Scheme procedure " + identifier + " is not allowed");
+            }
+        }
+
+        private String readString() {
+            int start = position;
+            int startLine = line;
+            int startColumn = column();
+            advance();
+            while (position < code.length()) {
+                char c = code.charAt(position);
+                if (c == '\\' && position + 1 < code.length()) {
+                    advance();
+                    advance();
+                } else if (c == '"') {
+                    advance();
+                    return code.substring(start, position);
+                } else {
+                    advance();
+                }
+            }
+            fail(startLine, startColumn, "Unterminated string");
+            return code.substring(start, position);
+        }
+
+        private void skipComment() {
+            if (peek(1) == '{') {
+                int startLine = line;
+                int startColumn = column();
+                int end = code.indexOf("%}", position + 2);
+                if (end < 0) {
+                    fail(startLine, startColumn, "Unterminated block comment");
+                    end = code.length() - 2;
+                }
+                while (position < end + 2) {
+                    advance();
+                }
+            } else {
+                while (position < code.length() && code.charAt(position) != '\n') {
+                    advance();
+                }
+            }
+            pendingSpace = true;
+        }
+
+        private void push(char kind, int length) {
+            if (open.size() >= maxDepth) {
+                fail("Nesting deeper than " + maxDepth);
+                stopped = true;
+                return;
+            }
+            open.push(new int[] {kind, line, column()});
+            emitChars(length);
+        }
+
+        private void pop(char kind, String symbol, int length) {
+            if (open.isEmpty()) {
+                fail("'" + symbol + "' without an opening bracket");
+            } else if (open.peek()[0] != kind) {
+                int[] bracket = open.peek();
+                fail("'" + symbol + "' does not match the bracket opened at " + bracket[1] + ":" + bracket[2]);
+            } else {
+                open.pop();
+            }
+            emitChars(length);
+        }
+
+        private boolean inChord() {
+            return !open.isEmpty() && open.peek()[0] == '<';
+        }
+
+        private void emitChars(int length) {
+            int start = position;
+            for (int i = 0; i < length && position < code.length(); i++) {
+                advance();
+            }
+            emit(code.substring(start, position));
+        }
+
+        private void emit(String token) {
+            if (pendingSpace && !normalized.isEmpty()) {
+                normalized.append(' ');
+            }
+            pendingSpace = false;
+            normalized.append(token);
+        }
+
+        private void advance() {
+            if (code.charAt(position) == '\n') {
+                line++;
+                lineStart = position + 1;
+            }
+            position++;
+        }
+
+        private char peek(int offset) {
+            int index = position + offset;
+            return index < code.length() ? code.charAt(index) : 0;
+        }
+
+        private boolean isLetterAt(int index) {
+            return index < code.length() && Character.isLetter(code.charAt(index));
+        }
+
+        private int column() {
+            return position - lineStart + 1;
+        }
+
+        private void fail(String message) {
+            fail(line, column(), message);
+        }
+
+        private void fail(int atLine, int atColumn, String message) {
+            errors.add(error(atLine, atColumn, message));
+            if (errors.size() >= MAX_ERRORS) {
+                stopped = true;
+            }
+        }
+    }
+
+    /**
+     * Pitch names with Dutch accidentals (c, cis, ees, es, as, bisis...) and rests (r, R, s)
+     */
+    static boolean isNoteName(String word) {
+        if (word.equals("r") || word.equals("R") || word.equals("s")) {
+            return true;
+        }
+        char first = word.charAt(0);
+        if (first < 'a' || first > 'g') {
+            return false;
+        }
+        int i = 1;
+        // "es" after e and a may be shortened to "s": es, as, eses, ases
+        if ((first == 'e' || first == 'a') && word.startsWith("s", i)) {
+            i++;
+        }
+        while (i < word.length()) {
+            if (word.startsWith("is", i) || word.startsWith("es", i)) {
+                i += 2;
+            } else {
+                return false;
+            }
+        }
+        return i == word.length() && word.length() <= 7;
+    }
+}
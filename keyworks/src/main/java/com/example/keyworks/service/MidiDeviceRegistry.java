@@ -0,0 +1,303 @@
+package com.example.keyworks.service;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.sound.midi.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Cached view of the MIDI subsystem.
+ * Enumerating devices through {@link MidiSystem} is slow on some ALSA setups, so the
+ * registry enumerates on a background schedule and serves every request from an
+ * immutable snapshot indexed by a stable device ID.
+ */
+@Service
+public class MidiDeviceRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(MidiDeviceRegistry.class);
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    // Current snapshot, replaced atomically on every refresh
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyMap());
+
+    public MidiDeviceRegistry(ApplicationEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    /**
+     * Populates the registry once at startup so the first request never enumerates
+     */
+    @PostConstruct
+    public void init() {
+        refresh();
+    }
+
+    /**
+     * Re-enumerates the MIDI subsystem and publishes attach/detach events for any changes.
+     * Runs on the scheduler thread; requests only ever read the published snapshot.
+     */
+    @Scheduled(fixedDelayString = "${midi.registry.refresh-interval-ms:2000}",
+               initialDelayString = "${midi.registry.refresh-interval-ms:2000}")
+    public void refresh() {
+        Snapshot previous = snapshot;
+        Map<String, DeviceEntry> entries = new LinkedHashMap<>();
+
+        MidiDevice.Info[] infos;
+        try {
+            infos = enumerate();
+        } catch (Exception e) {
+            logger.error("Error enumerating MIDI devices: {}", e.getMessage());
+            return;
+        }
+
+        for (MidiDevice.Info info : infos) {
+            String baseKey = info.getName() + '\u0000' + info.getVendor() + '\u0000'
+                    + info.getDescription() + '\u0000' + info.getVersion();
+
+            // Devices with identical descriptors (e.g. ALSA in/out port pairs) are told apart by ordinal
+            String id = deviceId(baseKey);
+            for (int ordinal = 1; entries.containsKey(id); ordinal++) {
+                id = deviceId(baseKey + '#' + ordinal);
+            }
+
+            // The ID encodes the full descriptor, so a known ID means an unchanged device; keep its device object
+            DeviceEntry existing = previous.byId.get(id);
+            if (existing != null && existing.isAvailable()) {
+                entries.put(id, existing);
+                continue;
+            }
+
+            try {
+                MidiDevice device = lookup(info);
+                entries.put(id, new DeviceEntry(id, info, device));
+            } catch (MidiUnavailableException e) {
+                logger.warn("MIDI device unavailable: {}", info.getName());
+                entries.put(id, new DeviceEntry(id, info, null));
+            }
+        }
+
+        Snapshot next = new Snapshot(entries);
+        snapshot = next;
+
+        for (DeviceEntry entry : next.byId.values()) {
+            if (!previous.byId.containsKey(entry.getId())) {
+                logger.info("MIDI device attached: {} ({})", entry.getName(), entry.getId());
+                eventPublisher.publishEvent(new MidiDeviceEvent(MidiDeviceEvent.Type.ATTACHED, entry));
+            }
+        }
+        for (DeviceEntry entry : previous.byId.values()) {
+            if (!next.byId.containsKey(entry.getId())) {
+                logger.info("MIDI device detached: {} ({})", entry.getName(), entry.getId());
+                eventPublisher.publishEvent(new MidiDeviceEvent(MidiDeviceEvent.Type.DETACHED, entry));
+            }
+        }
+    }
+
+    /**
+     * Gets all known devices in enumeration order
+     * @return Unmodifiable list of device entries
+     */
+    public List<DeviceEntry> getDevices() {
+        return snapshot.ordered;
+    }
+
+    /**
+     * Gets all devices that can transmit MIDI data (usable for recording)
+     * @return Unmodifiable list of input-capable device entries
+     */
+    public List<DeviceEntry> getInputDevices() {
+        return snapshot.inputs;
+    }
+
+    /**
+     * Looks up a device by its stable ID
+     * @param id The device ID
+     * @return The device entry, if present
+     */
+    public Optional<DeviceEntry> findById(String id) {
+        return Optional.ofNullable(snapshot.byId.get(id));
+    }
+
+    /**
+     * Finds the first input-capable device whose name or description matches the given name.
+     * Matching is deliberately loose (substring in either direction) to mirror how users type device names.
+     * @param deviceName Name or description fragment
+     * @param matchDescription Whether the device description should be considered as well
+     * @return The matching device entry, if any
+     */
+    public Optional<DeviceEntry> findInputByName(String deviceName, boolean matchDescription) {
+        for (DeviceEntry entry : snapshot.inputs) {
+            MidiDevice.Info info = entry.getInfo();
+            boolean nameMatches = info.getName().contains(deviceName) || deviceName.contains(info.getName());
+            boolean descriptionMatches = matchDescription &&
+                    (info.getDescription().contains(deviceName) || deviceName.contains(info.getDescription()));
+            if (nameMatches || descriptionMatches) {
+                return Optional.of(entry);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Finds the first input-capable hardware port, ignoring sequencers and synthesizers
+     * @return The first physical input device, if any
+     */
+    public Optional<DeviceEntry> findFirstPhysicalInput() {
+        for (DeviceEntry entry : snapshot.inputs) {
+            if (entry.isPort()) {
+                return Optional.of(entry);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Lists the devices of the MIDI subsystem; the only enumeration the registry performs
+     */
+    MidiDevice.Info[] enumerate() {
+        return MidiSystem.getMidiDeviceInfo();
+    }
+
+    /**
+     * Obtains the device object for a newly seen descriptor
+     */
+    MidiDevice lookup(MidiDevice.Info info) throws MidiUnavailableException {
+        return MidiSystem.getMidiDevice(info);
+    }
+
+    private static String deviceId(String key) {
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * Immutable registry state; lookups never lock
+     */
+    private static final class Snapshot {
+        private final Map<String, DeviceEntry> byId;
+        private final List<DeviceEntry> ordered;
+        private final List<DeviceEntry> inputs;
+
+        private Snapshot(Map<String, DeviceEntry> entries) {
+            this.byId = Collections.unmodifiableMap(new HashMap<>(entries));
+            this.ordered = List.copyOf(entries.values());
+            List<DeviceEntry> inputList = new ArrayList<>();
+            for (DeviceEntry entry : ordered) {
+                if (entry.canTransmit()) {
+                    inputList.add(entry);
+                }
+            }
+            this.inputs = Collections.unmodifiableList(inputList);
+        }
+    }
+
+    /**
+     * Cached descriptor and capabilities of a single MIDI device
+     */
+    public static class DeviceEntry {
+        private final String id;
+        private final MidiDevice.Info info;
+        private final MidiDevice device;
+        private final int maxReceivers;
+        private final int maxTransmitters;
+        private final boolean sequencer;
+        private final boolean synthesizer;
+
+        public DeviceEntry(String id, MidiDevice.Info info, MidiDevice device) {
+            this.id = id;
+            this.info = info;
+            this.device = device;
+            this.maxReceivers = device != null ? device.getMaxReceivers() : 0;
+            this.maxTransmitters = device != null ? device.getMaxTransmitters() : 0;
+            this.sequencer = device instanceof Sequencer;
+            this.synthesizer = device instanceof Synthesizer;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return info.getName();
+        }
+
+        public MidiDevice.Info getInfo() {
+            return info;
+        }
+
+        /**
+         * @return The device, or null if it was unavailable when enumerated
+         */
+        public MidiDevice getDevice() {
+            return device;
+        }
+
+        public boolean isAvailable() {
+            return device != null;
+        }
+
+        public int getMaxReceivers() {
+            return maxReceivers;
+        }
+
+        public int getMaxTransmitters() {
+            return maxTransmitters;
+        }
+
+        public boolean canTransmit() {
+            return maxTransmitters != 0;
+        }
+
+        public boolean canReceive() {
+            return maxReceivers != 0;
+        }
+
+        public boolean isSequencer() {
+            return sequencer;
+        }
+
+        public boolean isSynthesizer() {
+            return synthesizer;
+        }
+
+        /**
+         * @return True if this is a plain MIDI port rather than a software sequencer or synthesizer
+         */
+        public boolean isPort() {
+            return device != null && !sequencer && !synthesizer;
+        }
+
+        public boolean isVirtual() {
+            return info.getName().toLowerCase().contains("virtual");
+        }
+    }
+
+    /**
+     * Published when a device appears in or disappears from the MIDI subsystem
+     */
+    public static class MidiDeviceEvent {
+        public enum Type { ATTACHED, DETACHED }
+
+        private final Type type;
+        private final DeviceEntry device;
+
+        public MidiDeviceEvent(Type type, DeviceEntry device) {
+            this.type = type;
+            this.device = device;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public DeviceEntry getDevice() {
+            return device;
+        }
+    }
+}
@@ -1,10 +1,12 @@
 package com.example.keyworks.service;
 
+import com.example.keyworks.config.TranscriptionConfig;
 import com.example.keyworks.model.SheetMusic;
 import com.example.keyworks.model.User;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 
 import javax.sound.midi.*;
@@ -18,22 +20,18 @@ public class MidiDeviceService {
     private static final Logger logger = LoggerFactory.getLogger(MidiDeviceService.class);
     private final Map<String, MidiDevice> openDevices = new ConcurrentHashMap<>();
     
-    // Store active notes and their start times for duration calculation
-    private final Map<Integer, Long> activeNotes = new HashMap<>();
-    
-    // Store velocities of active notes
-    private final Map<Integer, Integer> activeNoteVelocities = new HashMap<>();
-    
-    // Store recorded notes for conversion to LilyPond
-    private final List<MidiNote> recordedNotes = new ArrayList<>();
+    // Pairs notes and converts them to LilyPond while the recording is running
+    private volatile IncrementalTranscriber transcriber;
     
     // Map to store recordings by ID
-    private final Map<String, Map<String, Object>> recordings = new HashMap<>();
+    private final Map<String, Map<String, Object>> recordings = new ConcurrentHashMap<>();
     
-    // Recording state
-    private boolean isRecording = false;
-    private long recordingStartTime = 0;
-    private String currentRecordingId = null;
+    // Recording state (written by request threads, read by MIDI receiver threads)
+    private volatile boolean isRecording = false;
+    private volatile long recordingStartTime = 0;
+    private volatile String currentRecordingId = null;
+    // False for in-process recordings such as load runs, which are neither saved as sheet music nor kept
+    private boolean currentRecordingSavable;
     
     // Add database service dependencies
     @Autowired
@@ -42,9 +40,39 @@ public class MidiDeviceService {
     @Autowired
     private UserService userService;
     
+    @Autowired
+    private MidiDeviceRegistry deviceRegistry;
+    
+    @Autowired
+    private MidiTraceService traceService;
+    
+    @Autowired
+    private LilyPondEmitter lilyPondEmitter;
+    
+    @Autowired
+    private TranscriptionConfig transcriptionConfig;
+    
     // Add a field to store the current user ID
     private Long currentUserId = null;
     
+    public MidiDeviceService() {
+    }
+    
+    /**
+     * Service outside Spring, e.g. for benchmarks: transcribes recordings but has no devices or database
+     */
+    MidiDeviceService(MidiTraceService traceService, LilyPondEmitter lilyPondEmitter, TranscriptionConfig transcriptionConfig) {
+        this.traceService = traceService;
+        this.lilyPondEmitter = lilyPondEmitter;
+        this.transcriptionConfig = transcriptionConfig;
+    }
+    
+    MidiDeviceService(MidiDeviceRegistry deviceRegistry, MidiTraceService traceService,
+                      LilyPondEmitter lilyPondEmitter, TranscriptionConfig transcriptionConfig) {
+        this(traceService, lilyPondEmitter, transcriptionConfig);
+        this.deviceRegistry = deviceRegistry;
+    }
+    
     /**
      * Set the current user ID for recording association
      * @param userId ID of the user who is recording
@@ -60,15 +88,11 @@ public class MidiDeviceService {
      */
     public List<MidiDeviceWrapper> getAvailableInputDevices() {
         List<MidiDeviceWrapper> deviceList = new ArrayList<>();
-        MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo();
         
-        for (MidiDevice.Info info : infos) {
-            try {
-                MidiDevice device = MidiSystem.getMidiDevice(info);
-                // Include all devices for now, we'll check capabilities later
-                deviceList.add(new MidiDeviceWrapper(device));
-            } catch (MidiUnavailableException e) {
-                logger.error("Error accessing MIDI device: {}", info.getName(), e);
+        for (MidiDeviceRegistry.DeviceEntry entry : deviceRegistry.getDevices()) {
+            // Include all devices for now, we'll check capabilities later
+            if (entry.isAvailable()) {
+                deviceList.add(new MidiDeviceWrapper(entry.getDevice()));
             }
         }
         
@@ -81,36 +105,24 @@ public class MidiDeviceService {
      * @return True if the device can be used for recording
      */
     public boolean canDeviceRecord(String deviceName) {
-        MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo();
-        
-        for (MidiDevice.Info info : infos) {
-            if (info.getName().contains(deviceName) || deviceName.contains(info.getName())) {
-                try {
-                    MidiDevice device = MidiSystem.getMidiDevice(info);
-                    boolean canTransmit = device.getMaxTransmitters() != 0;
-                    logger.info("Device {} can transmit: {}", deviceName, canTransmit);
-                    return canTransmit;
-                } catch (MidiUnavailableException e) {
-                    logger.error("Error checking MIDI device: {}", deviceName, e);
+        for (MidiDeviceRegistry.DeviceEntry entry : deviceRegistry.getDevices()) {
+            String name = entry.getName();
+            if (name.contains(deviceName) || deviceName.contains(name)) {
+                if (!entry.isAvailable()) {
+                    logger.error("MIDI device unavailable: {}", deviceName);
                     return false;
                 }
+                boolean canTransmit = entry.canTransmit();
+                logger.info("Device {} can transmit: {}", deviceName, canTransmit);
+                return canTransmit;
             }
         }
         
         // If no exact match, try a more flexible approach
-        for (MidiDevice.Info info : infos) {
-            try {
-                MidiDevice device = MidiSystem.getMidiDevice(info);
-                // Check if it's a physical MIDI device that can transmit
-                if (device.getMaxTransmitters() != 0 && 
-                    !(device instanceof Sequencer) && 
-                    !(device instanceof Synthesizer)) {
-                    logger.info("Found potential recording device: {}", info.getName());
-                    return true;
-                }
-            } catch (MidiUnavailableException e) {
-                logger.error("Error checking MIDI device: {}", info.getName(), e);
-            }
+        Optional<MidiDeviceRegistry.DeviceEntry> fallback = deviceRegistry.findFirstPhysicalInput();
+        if (fallback.isPresent()) {
+            logger.info("Found potential recording device: {}", fallback.get().getName());
+            return true;
         }
         
         logger.warn("Device not found: {}", deviceName);
@@ -170,23 +182,19 @@ public class MidiDeviceService {
         // If all methods failed, try to find any available input device
         if (!connected) {
             try {
-                MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo();
-                for (MidiDevice.Info info : infos) {
+                for (MidiDeviceRegistry.DeviceEntry entry : deviceRegistry.getInputDevices()) {
+                    if (!entry.isPort()) {
+                        continue;
+                    }
                     try {
-                        MidiDevice device = MidiSystem.getMidiDevice(info);
-                        if (device.getMaxTransmitters() != 0 && 
-                            !(device instanceof Sequencer) && 
-                            !(device instanceof Synthesizer)) {
-                            
-                            logger.info("Trying fallback device: {}", info.getName());
-                            startListening(info.getName());
-                            connected = true;
-                            logger.info("Successfully connected to fallback device: {}", info.getName());
-                            break;
-                        }
+                        logger.info("Trying fallback device: {}", entry.getName());
+                        startListening(entry.getName());
+                        connected = true;
+                        logger.info("Successfully connected to fallback device: {}", entry.getName());
+                        break;
                     } catch (Exception e) {
                         logger.warn("Failed to connect to fallback device {}: {}", 
-                            info.getName(), e.getMessage());
+                            entry.getName(), e.getMessage());
                     }
                 }
             } catch (Exception e) {
@@ -201,20 +209,18 @@ public class MidiDeviceService {
                 lastException.getMessage());
         }
         
-        // Clear previous recording data
-        recordedNotes.clear();
-        activeNotes.clear();
-        activeNoteVelocities.clear();
-        
-        // Generate a unique recording ID
-        currentRecordingId = UUID.randomUUID().toString();
-        
-        // Start recording
-        isRecording = true;
-        recordingStartTime = System.currentTimeMillis();
-        logger.info("Started recording MIDI input with ID: {}", currentRecordingId);
+        // Clear previous recording data and start recording; note events wait for the monitor
+        String recordingId = UUID.randomUUID().toString();
+        synchronized (this) {
+            resetTranscription();
+            currentRecordingId = recordingId;
+            currentRecordingSavable = true;
+            recordingStartTime = System.currentTimeMillis();
+            isRecording = true;
+        }
+        logger.info("Started recording MIDI input with ID: {}", recordingId);
         
-        return currentRecordingId;
+        return recordingId;
     }
     
     /**
@@ -227,56 +233,31 @@ public class MidiDeviceService {
         // Close any previously open device with this name
         stopListening(deviceName);
         
-        MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo();
         MidiDevice inputDevice = null;
         
         // Log all available devices for debugging
         logger.info("Available MIDI devices:");
-        for (MidiDevice.Info info : infos) {
-            try {
-                MidiDevice device = MidiSystem.getMidiDevice(info);
-                logger.info("Device: {} - {} (Max transmitters: {}, Max receivers: {})",
-                    info.getName(), info.getDescription(),
-                    device.getMaxTransmitters(), device.getMaxReceivers());
-            } catch (MidiUnavailableException e) {
-                logger.error("Error accessing MIDI device: {}", info.getName(), e);
-            }
+        for (MidiDeviceRegistry.DeviceEntry entry : deviceRegistry.getDevices()) {
+            logger.info("Device: {} - {} (Max transmitters: {}, Max receivers: {})",
+                entry.getName(), entry.getInfo().getDescription(),
+                entry.getMaxTransmitters(), entry.getMaxReceivers());
         }
         
         // First, try to find a device that contains the provided name
-        for (MidiDevice.Info info : infos) {
-            if (info.getName().contains(deviceName) || deviceName.contains(info.getName())) {
-                try {
-                    MidiDevice device = MidiSystem.getMidiDevice(info);
-                    // We need a device that can transmit (has transmitters)
-                    if (device.getMaxTransmitters() != 0) {
-                        inputDevice = device;
-                        logger.info("Found matching input device by name: {} - {}", 
-                            info.getName(), info.getDescription());
-                        break;
-                    }
-                } catch (MidiUnavailableException e) {
-                    logger.error("Error accessing MIDI device: {}", info.getName(), e);
-                }
-            }
+        Optional<MidiDeviceRegistry.DeviceEntry> match = deviceRegistry.findInputByName(deviceName, false);
+        if (match.isPresent()) {
+            inputDevice = match.get().getDevice();
+            logger.info("Found matching input device by name: {} - {}", 
+                match.get().getName(), match.get().getInfo().getDescription());
         }
         
         // If we didn't find a match by name, try to find any input device
         if (inputDevice == null) {
-            for (MidiDevice.Info info : infos) {
-                try {
-                    MidiDevice device = MidiSystem.getMidiDevice(info);
-                    if (device.getMaxTransmitters() != 0 && 
-                        !(device instanceof Sequencer) && 
-                        !(device instanceof Synthesizer)) {
-                        inputDevice = device;
-                        logger.info("Found fallback input device: {} - {}", 
-                            info.getName(), info.getDescription());
-                        break;
-                    }
-                } catch (MidiUnavailableException e) {
-                    logger.error("Error accessing MIDI device: {}", info.getName(), e);
-                }
+            Optional<MidiDeviceRegistry.DeviceEntry> fallback = deviceRegistry.findFirstPhysicalInput();
+            if (fallback.isPresent()) {
+                inputDevice = fallback.get().getDevice();
+                logger.info("Found fallback input device: {} - {}", 
+                    fallback.get().getName(), fallback.get().getInfo().getDescription());
             }
         }
         
@@ -311,48 +292,24 @@ public class MidiDeviceService {
         // Close any previously open device with this name
         stopListening(deviceName);
         
-        MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo();
         MidiDevice selectedDevice = null;
         
         // Find the device by name (more flexible matching)
-        for (MidiDevice.Info info : infos) {
-            if (info.getName().contains(deviceName) || 
-                deviceName.contains(info.getName()) ||
-                info.getDescription().contains(deviceName) ||
-                deviceName.contains(info.getDescription())) {
-                
-                try {
-                    MidiDevice device = MidiSystem.getMidiDevice(info);
-                    // We need a device that can transmit (has transmitters)
-                    if (device.getMaxTransmitters() != 0) {
-                        selectedDevice = device;
-                        logger.info("Found device: {} - {}", info.getName(), info.getDescription());
-                        logger.info("Max transmitters: {}, Max receivers: {}", 
-                            device.getMaxTransmitters(), device.getMaxReceivers());
-                        break;
-                    }
-                } catch (MidiUnavailableException e) {
-                    logger.error("Error accessing MIDI device: {}", info.getName(), e);
-                }
-            }
+        Optional<MidiDeviceRegistry.DeviceEntry> match = deviceRegistry.findInputByName(deviceName, true);
+        if (match.isPresent()) {
+            selectedDevice = match.get().getDevice();
+            logger.info("Found device: {} - {}", match.get().getName(), match.get().getInfo().getDescription());
+            logger.info("Max transmitters: {}, Max receivers: {}", 
+                match.get().getMaxTransmitters(), match.get().getMaxReceivers());
         }
         
         // If no match found, try to find any physical MIDI input device
         if (selectedDevice == null) {
-            for (MidiDevice.Info info : infos) {
-                try {
-                    MidiDevice device = MidiSystem.getMidiDevice(info);
-                    if (device.getMaxTransmitters() != 0 && 
-                        !(device instanceof Sequencer) && 
-                        !(device instanceof Synthesizer)) {
-                        selectedDevice = device;
-                        logger.info("Found fallback physical device: {} - {}", 
-                            info.getName(), info.getDescription());
-                        break;
-                    }
-                } catch (MidiUnavailableException e) {
-                    logger.error("Error accessing MIDI device: {}", info.getName(), e);
-                }
+            Optional<MidiDeviceRegistry.DeviceEntry> fallback = deviceRegistry.findFirstPhysicalInput();
+            if (fallback.isPresent()) {
+                selectedDevice = fallback.get().getDevice();
+                logger.info("Found fallback physical device: {} - {}", 
+                    fallback.get().getName(), fallback.get().getInfo().getDescription());
             }
         }
         
@@ -410,31 +367,108 @@ public class MidiDeviceService {
                deviceName.contains("Novation");
     }
     
+    /**
+     * A recording fed by an in-process receiver
+     * @param id Recording ID, to stop exactly this recording with {@link #stopRecording(String, boolean)}
+     * @param receiver Receiver for the input
+     */
+    public record InProcessRecording(String id, Receiver receiver) {
+    }
+    
+    /**
+     * Starts a recording fed by an in-process receiver instead of a MIDI device, e.g. by a load generator.
+     * Messages sent to the receiver take exactly the path of device input. The recording is never
+     * saved as sheet music or kept; its data is only returned when it is stopped.
+     * @param sourceName Name the input is traced under
+     * @return The recording
+     * @throws IllegalStateException If another recording is running; it is not interrupted
+     */
+    public synchronized InProcessRecording startInProcessRecording(String sourceName) {
+        if (isRecording) {
+            throw new IllegalStateException("Recording " + currentRecordingId + " is in progress");
+        }
+        resetTranscription();
+        currentRecordingId = UUID.randomUUID().toString();
+        currentRecordingSavable = false;
+        recordingStartTime = System.currentTimeMillis();
+        isRecording = true;
+        logger.info("Started in-process recording from {} with ID: {}", sourceName, currentRecordingId);
+        return new InProcessRecording(currentRecordingId, new MidiInputReceiver(sourceName));
+    }
+    
+    /**
+     * Stops a recording if it is still the current one
+     * @param recordingId ID of the recording to stop
+     * @param save Whether to save the recording as sheet music of the current user
+     * @return Recording data, or null if that recording is not running (any other recording continues)
+     */
+    public Map<String, Object> stopRecording(String recordingId, boolean save) {
+        return stopRecording(recordingId, save, true);
+    }
+    
     /**
      * Stop recording MIDI input
      * @return Recording data including LilyPond code
      */
     public Map<String, Object> stopRecording() {
-        if (!isRecording) {
-            throw new IllegalStateException("No active recording to stop");
+        return stopRecording(true);
+    }
+    
+    /**
+     * Stop recording MIDI input
+     * @param save Whether to save the recording as sheet music of the current user
+     * @return Recording data including LilyPond code
+     */
+    public Map<String, Object> stopRecording(boolean save) {
+        return stopRecording(null, save, false);
+    }
+    
+    /**
+     * @param expectedRecordingId Only stop this recording, or null for any
+     * @param lenient Return null instead of failing if there is nothing to stop
+     */
+    private Map<String, Object> stopRecording(String expectedRecordingId, boolean save, boolean lenient) {
+        // Under the monitor of the note handlers: once recording is off no event reaches the transcriber
+        IncrementalTranscriber transcription;
+        String recordingId;
+        long startTime;
+        boolean savable;
+        synchronized (this) {
+            if (!isRecording || expectedRecordingId != null && !expectedRecordingId.equals(currentRecordingId)) {
+                if (lenient) {
+                    return null;
+                }
+                throw new IllegalStateException("No active recording to stop");
+            }
+            isRecording = false;
+            transcription = transcriber;
+            recordingId = currentRecordingId;
+            startTime = recordingStartTime;
+            savable = currentRecordingSavable;
+            currentRecordingId = null;
         }
         
-        isRecording = false;
-        logger.info("Stopped recording. Captured {} notes", recordedNotes.size());
-        
-        // Convert recorded notes to LilyPond notation
-        String lilyPondCode = convertToLilyPond();
+        // Notes were transcribed as they were played; only the tail and header remain
+        String lilyPondCode = convertToLilyPond(transcription);
+        int noteCount = transcription.getNoteCount();
+        logger.info("Stopped recording. Captured {} notes", noteCount);
         
         // Create recording data
         Map<String, Object> recordingData = new HashMap<>();
-        recordingData.put("id", currentRecordingId);
-        recordingData.put("noteCount", recordedNotes.size());
-        recordingData.put("duration", System.currentTimeMillis() - recordingStartTime);
+        recordingData.put("id", recordingId);
+        recordingData.put("noteCount", noteCount);
+        recordingData.put("duration", System.currentTimeMillis() - startTime);
         recordingData.put("lilyPondCode", lilyPondCode);
-        recordingData.put("notes", new ArrayList<>(recordedNotes)); // Clone the list
+        recordingData.put("notes", transcription.getNotes());
+        recordingData.put("tempoBpm", transcription.getTempoBpm());
+        
+        if (!savable) {
+            // In-process recordings only go to the caller, so repeated load runs don't pile up here
+            return recordingData;
+        }
         
         // Try to save to database if user ID is set
-        if (currentUserId != null) {
+        if (save && currentUserId != null) {
             try {
                 // Find the user
                 User user = userService.findUserById(currentUserId)
@@ -445,7 +479,7 @@ public class MidiDeviceService {
                 sheetMusic.setTitle("Recorded MIDI Performance - " +
                     new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new java.util.Date()));
                 sheetMusic.setDescription("Automatically generated from MIDI recording with " +
-                    recordedNotes.size() + " notes");
+                    noteCount + " notes");
                 sheetMusic.setLilyPondCode(lilyPondCode);
                 sheetMusic.setUser(user);
                 sheetMusic.setCreatedAt(LocalDateTime.now());
@@ -462,18 +496,14 @@ public class MidiDeviceService {
                 logger.error("Error saving sheet music to database", e);
                 recordingData.put("databaseError", e.getMessage());
             }
-        } else {
+        } else if (save) {
             logger.info("No user ID set, skipping database save");
         }
         
         // Store the recording
-        recordings.put(currentRecordingId, recordingData);
-        
-        // Reset current recording ID
-        String completedRecordingId = currentRecordingId;
-        currentRecordingId = null;
+        recordings.put(recordingId, recordingData);
         
-        return recordings.get(completedRecordingId);
+        return recordings.get(recordingId);
     }
     
     /**
@@ -485,26 +515,47 @@ public class MidiDeviceService {
         return recordings.get(id);
     }
     
+    /**
+     * Get the notes of a stored recording
+     * @param id Recording ID
+     * @return Notes in start-time order, or null if there is no such recording
+     */
+    @SuppressWarnings("unchecked")
+    public List<MidiNote> getRecordingNotes(String id) {
+        Map<String, Object> recordingData = recordings.get(id);
+        return recordingData != null ? (List<MidiNote>) recordingData.get("notes") : null;
+    }
+    
+    /**
+     * Store recording data produced outside this service (e.g. multi-device sessions)
+     * so it can be looked up by ID like any other recording
+     * @param id Recording ID
+     * @param recordingData Recording data including LilyPond code
+     */
+    public void storeRecording(String id, Map<String, Object> recordingData) {
+        recordings.put(id, recordingData);
+    }
+    
     /**
      * Lists all available MIDI devices
      * @return List of device information strings
      */
     public List<String> listMidiDevices() {
         List<String> deviceList = new ArrayList<>();
-        MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo();
+        List<MidiDeviceRegistry.DeviceEntry> entries = deviceRegistry.getDevices();
         
-        logger.info("Found {} MIDI devices", infos.length);
+        logger.info("Found {} MIDI devices", entries.size());
         
-        for (MidiDevice.Info info : infos) {
-            try {
-                MidiDevice device = MidiSystem.getMidiDevice(info);
+        for (MidiDeviceRegistry.DeviceEntry entry : entries) {
+            MidiDevice.Info info = entry.getInfo();
+            if (entry.isAvailable()) {
                 String deviceType = "";
                 
-                if (device.getMaxTransmitters() != 0) {
+                if (entry.canTransmit()) {
                     deviceType += "Input";
                 }
                 
-                if (device.getMaxReceivers() != 0) {
+                if (entry.canReceive()) {
                     if (!deviceType.isEmpty()) {
                         deviceType += "/";
                     }
@@ -516,9 +567,9 @@ public class MidiDeviceService {
                     deviceCategory = "Virtual";
                 } else if (isPhysicalMidiDevice(info.getName())) {
                     deviceCategory = "Physical";
-                } else if (device instanceof Sequencer) {
+                } else if (entry.isSequencer()) {
                     deviceCategory = "Sequencer";
-                } else if (device instanceof Synthesizer) {
+                } else if (entry.isSynthesizer()) {
                     deviceCategory = "Synthesizer";
                 }
                 
@@ -534,8 +585,8 @@ public class MidiDeviceService {
                     deviceType,
                     deviceCategory);
                 
-            } catch (MidiUnavailableException e) {
-                logger.error("Error accessing MIDI device: {}", info.getName(), e);
+            } else {
+                logger.error("Error accessing MIDI device: {}", info.getName());
                 deviceList.add(String.format("%s - %s (Unavailable)", 
                     info.getName(), 
                     info.getDescription()));
@@ -555,48 +606,24 @@ public class MidiDeviceService {
         // Close any previously open device with this name
         stopListening(deviceName);
         
-        MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo();
         MidiDevice selectedDevice = null;
         MidiDevice.Info selectedInfo = null;
         
         // Find the device by name (more flexible matching)
-        for (MidiDevice.Info info : infos) {
-            if (info.getName().contains(deviceName) || 
-                deviceName.contains(info.getName()) ||
-                info.getDescription().contains(deviceName) ||
-                deviceName.contains(info.getDescription())) {
-                
-                try {
-                    MidiDevice device = MidiSystem.getMidiDevice(info);
-                    // We need a device that can transmit
-                    if (device.getMaxTransmitters() != 0) {
-                        selectedDevice = device;
-                        selectedInfo = info;
-                        break;
-                    }
-                } catch (MidiUnavailableException e) {
-                    logger.error("Error accessing MIDI device: {}", info.getName(), e);
-                }
-            }
+        Optional<MidiDeviceRegistry.DeviceEntry> match = deviceRegistry.findInputByName(deviceName, true);
+        if (match.isPresent()) {
+            selectedDevice = match.get().getDevice();
+            selectedInfo = match.get().getInfo();
         }
         
         // If no match found, try to find any physical MIDI input device
         if (selectedDevice == null) {
-            for (MidiDevice.Info info : infos) {
-                try {
-                    MidiDevice device = MidiSystem.getMidiDevice(info);
-                    if (device.getMaxTransmitters() != 0 && 
-                        !(device instanceof Sequencer) && 
-                        !(device instanceof Synthesizer)) {
-                        selectedDevice = device;
-                        selectedInfo = info;
-                        logger.info("Found fallback physical device: {} - {}", 
-                            info.getName(), info.getDescription());
-                        break;
-                    }
-                } catch (MidiUnavailableException e) {
-                    logger.error("Error accessing MIDI device: {}", info.getName(), e);
-                }
+            Optional<MidiDeviceRegistry.DeviceEntry> fallback = deviceRegistry.findFirstPhysicalInput();
+            if (fallback.isPresent()) {
+                selectedDevice = fallback.get().getDevice();
+                selectedInfo = fallback.get().getInfo();
+                logger.info("Found fallback physical device: {} - {}", 
+                    selectedInfo.getName(), selectedInfo.getDescription());
             }
         }
         
@@ -656,6 +683,46 @@ public class MidiDeviceService {
         }
     }
     
+    /**
+     * Releases a device that was unplugged. If it was the last device being listened to, the running
+     * recording is ended (and saved) so the notes played so far are kept.
+     * @param event Attach/detach event from the device registry
+     */
+    @EventListener
+    public void onDeviceEvent(MidiDeviceRegistry.MidiDeviceEvent event) {
+        MidiDevice device = event.getDevice().getDevice();
+        if (event.getType() != MidiDeviceRegistry.MidiDeviceEvent.Type.DETACHED || device == null) {
+            return;
+        }
+        
+        boolean closed = false;
+        for (Iterator<Map.Entry<String, MidiDevice>> it = openDevices.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, MidiDevice> entry = it.next();
+            if (entry.getValue() == device) {
+                it.remove();
+                closed = true;
+                logger.warn("MIDI device {} was detached, stopped listening to it", entry.getKey());
+            }
+        }
+        if (!closed) {
+            return;
+        }
+        device.close();
+        
+        // In-process recordings have no device and keep running
+        String recordingId;
+        synchronized (this) {
+            recordingId = isRecording && currentRecordingSavable && openDevices.isEmpty() ? currentRecordingId : null;
+        }
+        if (recordingId != null) {
+            Map<String, Object> recordingData = stopRecording(recordingId, true);
+            if (recordingData != null) {
+                recordingData.put("deviceDetached", event.getDevice().getName());
+                logger.warn("Ended recording {} because its MIDI device was detached", recordingId);
+            }
+        }
+    }
+    
     /**
      * Stops listening to all MIDI devices
      */
@@ -673,12 +740,9 @@ public class MidiDeviceService {
      * @param velocity Velocity (0-127)
      * @param timeStamp Timestamp of the event
      */
-    public void processNoteOn(int key, int velocity, long timeStamp) {
-        logger.info("processNoteOn called - Recording state: {}", isRecording);
+    public synchronized void processNoteOn(int key, int velocity, long timeStamp) {
         if (isRecording) {
-            activeNotes.put(key, timeStamp);
-            activeNoteVelocities.put(key, velocity);
-            logger.info("Stored Note On: {} velocity: {} at time: {}", key, velocity, timeStamp);
+            transcriber.noteOn(key, velocity, timeStamp - recordingStartTime);
         }
     }
     
@@ -687,20 +751,19 @@ public class MidiDeviceService {
      * @param key MIDI note number
      * @param timeStamp Timestamp of the event
      */
-    public void processNoteOff(int key, long timeStamp) {
-        logger.info("processNoteOff called - Recording state: {}", isRecording);
-        if (isRecording && activeNotes.containsKey(key)) {
-            long startTime = activeNotes.remove(key);
-            int velocity = activeNoteVelocities.remove(key);
-            long duration = timeStamp - startTime;
-            
-            MidiNote note = new MidiNote(key, velocity, startTime - recordingStartTime, duration);
-            recordedNotes.add(note);
-            
-            logger.info("Recorded note: {} velocity: {} duration: {} ms", key, velocity, duration);
+    public synchronized void processNoteOff(int key, long timeStamp) {
+        if (isRecording) {
+            transcriber.noteOff(key, timeStamp - recordingStartTime);
         }
     }
     
+    /**
+     * Start a fresh transcription for a new recording
+     */
+    private synchronized void resetTranscription() {
+        transcriber = new IncrementalTranscriber(lilyPondEmitter, transcriptionConfig);
+    }
+    
     /**
      * Process a direct MIDI event from HTTP
      * @param isNoteOn Whether this is a note on event
@@ -725,16 +788,14 @@ public class MidiDeviceService {
      * @param notes Array of MIDI note numbers to simulate
      * @return Recording ID
      */
-    public String simulateMidiInput(int[] notes) {
+    public synchronized String simulateMidiInput(int[] notes) {
         // Start a new recording
         currentRecordingId = UUID.randomUUID().toString();
-        isRecording = true;
         recordingStartTime = System.currentTimeMillis();
         
         // Clear previous recording data
-        recordedNotes.clear();
-        activeNotes.clear();
-        activeNoteVelocities.clear();
+        resetTranscription();
+        isRecording = true;
         
         // Simulate playing each note
         long currentTime = System.currentTimeMillis();
@@ -750,11 +811,12 @@ public class MidiDeviceService {
         
         // Stop recording and return the data
         Map<String, Object> recordingData = new HashMap<>();
+        String lilyPondCode = convertToLilyPond(transcriber);
         recordingData.put("id", currentRecordingId);
-        recordingData.put("noteCount", recordedNotes.size());
+        recordingData.put("noteCount", transcriber.getNoteCount());
         recordingData.put("duration", currentTime - recordingStartTime);
-        recordingData.put("lilyPondCode", convertToLilyPond());
-        recordingData.put("notes", new ArrayList<>(recordedNotes));
+        recordingData.put("lilyPondCode", lilyPondCode);
+        recordingData.put("notes", transcriber.getNotes());
         
         // Store the recording
         recordings.put(currentRecordingId, recordingData);
@@ -768,83 +830,113 @@ public class MidiDeviceService {
     }
     
     /**
-     * Convert recorded MIDI notes to LilyPond notation
+     * Finish a transcription that no longer receives notes and wrap it in a complete LilyPond score
+     * @param transcription The transcription of a stopped recording
      * @return LilyPond code
      */
-    private String convertToLilyPond() {
-        if (recordedNotes.isEmpty()) {
-            return "% No notes recorded\n\\version \"2.24.0\"\n{ c'4 }";
+    String convertToLilyPond(IncrementalTranscriber transcription) {
+        transcription.finish();
+        if (transcription.isEmpty()) {
+            return lilyPondEmitter.toString(lilyPondEmitter::writeEmpty);
         }
-        
-        StringBuilder lilyPond = new StringBuilder();
-        lilyPond.append("\\version \"2.24.0\"\n");
-        lilyPond.append("\\header {\n");
-        lilyPond.append("  title = \"Recorded MIDI Performance\"\n");
-        lilyPond.append("  composer = \"Generated by KeyWorks\"\n");
-        lilyPond.append("  tagline = \"Created on " + new java.text.SimpleDateFormat("yyyy-MM-dd").format(new java.util.Date()) + "\"\n");
-        lilyPond.append("}\n\n");
-        
-        lilyPond.append("\\score {\n");
-        lilyPond.append("  \\new Staff {\n");
-        lilyPond.append("    \\clef treble\n");
-        lilyPond.append("    \\time 4/4\n");
-        lilyPond.append("    \\tempo 4 = 120\n\n");
-        lilyPond.append("    ");
-        
-        // Sort notes by start time
-        recordedNotes.sort(Comparator.comparing(MidiNote::getStartTime));
-        
-        // Simple conversion - this can be enhanced for better rhythm detection
-        for (MidiNote note : recordedNotes) {
-            lilyPond.append(midiNoteToLilyPond(note)).append(" ");
+        if (transcription.isQuantizationDegraded()) {
+            logger.warn("Quantization exceeded its work budget; part of the recording was written unquantized");
         }
         
-        lilyPond.append("\n  }\n");
-        lilyPond.append("  \\layout { }\n");
-        lilyPond.append("  \\midi { }\n");
-        lilyPond.append("}\n");
-        
-        return lilyPond.toString();
+        return lilyPondEmitter.toString(out -> {
+            lilyPondEmitter.writeHeader(out, "Recorded MIDI Performance", "Generated by KeyWorks");
+            out.append("\\score {\n");
+            transcription.writeStaff(out, "  ", null);
+            lilyPondEmitter.closeScore(out);
+        });
     }
     
     /**
-     * Convert a MIDI note to LilyPond notation
-     * @param note The MIDI note to convert
-     * @return LilyPond notation for the note
+     * Convert several note streams to a multi-staff LilyPond score, one staff per stream
+     * @param staves Staff name to notes sorted by start time, in the order the staves should appear
+     * @return LilyPond code
      */
-    private String midiNoteToLilyPond(MidiNote note) {
-        // MIDI note 60 is middle C (c')
-        String[] noteNames = {"c", "cis", "d", "dis", "e", "f", "fis", "g", "gis", "a", "ais", "b"};
-        int octave = note.getKey() / 12 - 1;
-        int noteIndex = note.getKey() % 12;
-        
-        String noteName = noteNames[noteIndex];
-        
-        // Add octave markers
-        if (octave < 3) {
-            noteName += ",".repeat(3 - octave);
-        } else if (octave > 3) {
-            noteName += "'".repeat(octave - 3);
+    public String convertToMultiStaffLilyPond(Map<String, List<MidiNote>> staves) {
+        return convertToMultiStaffLilyPond(staves, "Recorded MIDI Performance");
+    }
+    
+    /**
+     * Estimates the tempo a multi-staff score of the staves is written in
+     * @param staves Staff name to notes
+     * @return Quarter notes per minute
+     */
+    public int estimateTempoBpm(Map<String, List<MidiNote>> staves) {
+        return estimateTempo(staves).getBpm();
+    }
+    
+    private static TempoEstimator estimateTempo(Map<String, List<MidiNote>> staves) {
+        int noteCount = 0;
+        for (List<MidiNote> staffNotes : staves.values()) {
+            noteCount += staffNotes.size();
         }
-        
-        // Determine note duration (simplified)
-        String duration = determineDuration(note.getDuration());
-        
-        return noteName + duration;
+        long[] onsets = new long[noteCount];
+        int n = 0;
+        for (List<MidiNote> staffNotes : staves.values()) {
+            for (MidiNote note : staffNotes) {
+                onsets[n++] = note.getStartTime();
+            }
+        }
+        Arrays.sort(onsets);
+        TempoEstimator tempoEstimator = new TempoEstimator();
+        for (long onset : onsets) {
+            tempoEstimator.addOnset(onset);
+        }
+        return tempoEstimator;
     }
     
     /**
-     * Determine the LilyPond duration based on the note duration in milliseconds
-     * @param durationMs Duration in milliseconds
-     * @return LilyPond duration string
+     * Convert several note streams to a multi-staff LilyPond score, one staff per stream
+     * @param staves Staff name to notes sorted by start time, in the order the staves should appear
+     * @param title Score title
+     * @return LilyPond code
      */
-    private String determineDuration(long durationMs) {
-        // Simple duration mapping - can be enhanced for better rhythm detection
-        if (durationMs < 200) return "16";      // Sixteenth note
-        else if (durationMs < 400) return "8";  // Eighth note
-        else if (durationMs < 800) return "4";  // Quarter note
-        else if (durationMs < 1600) return "2"; // Half note
-        else return "1";                        // Whole note
+    public String convertToMultiStaffLilyPond(Map<String, List<MidiNote>> staves, String title) {
+        if (staves.isEmpty()) {
+            return lilyPondEmitter.toString(lilyPondEmitter::writeEmpty);
+        }
+        
+        // All staves share one tempo, one bar grid and one starting key, estimated from the combined notes
+        KeyDetector keyDetector = new KeyDetector(1);
+        long firstOnset = Long.MAX_VALUE;
+        for (List<MidiNote> staffNotes : staves.values()) {
+            for (MidiNote note : staffNotes) {
+                keyDetector.addNote(note.getKey(), note.getDuration());
+                firstOnset = Math.min(firstOnset, note.getStartTime());
+            }
+        }
+        long origin = firstOnset != Long.MAX_VALUE ? firstOnset : 0;
+        TempoEstimator tempoEstimator = estimateTempo(staves);
+        KeyDetector.Key key = keyDetector.getKey();
+        
+        return lilyPondEmitter.toString(out -> {
+            lilyPondEmitter.writeHeader(out, title, "Generated by KeyWorks");
+            out.append("\\score {\n");
+            out.append("  <<\n");
+            
+            boolean first = true;
+            for (Map.Entry<String, List<MidiNote>> staff : staves.entrySet()) {
+                StaffWriter staffWriter = new StaffWriter(lilyPondEmitter, transcriptionConfig,
+                    tempoEstimator.getBeatMs(), origin, key);
+                
+                // Notes are expected in start-time order
+                for (MidiNote note : staff.getValue()) {
+                    staffWriter.addNote(note.getKey(), note.getStartTime(), note.getDuration());
+                }
+                staffWriter.finish();
+                
+                // Tempo goes on the first staff only
+                staffWriter.writeStaff(out, "    ", staff.getKey(), first ? tempoEstimator.getBpm() : 0);
+                first = false;
+            }
+            
+            out.append("  >>\n");
+            lilyPondEmitter.closeScore(out);
+        });
     }
     
     /**
@@ -852,79 +944,41 @@ public class MidiDeviceService {
      */
     private class MidiInputReceiver implements Receiver {
         private final String deviceName;
+        private final int traceSource;
         
         public MidiInputReceiver(String deviceName) {
             this.deviceName = deviceName;
+            this.traceSource = traceService.registerSource(deviceName);
             logger.info("Created new MidiInputReceiver for device: {}", deviceName);
         }
         
         @Override
         public void send(MidiMessage message, long timeStamp) {
-            // Log ALL incoming messages in hex format for debugging
-            byte[] data = message.getMessage();
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : data) {
-                hexString.append(String.format("%02X ", b));
-            }
-            logger.info("RAW MIDI: {} - bytes: {} hex: {}", deviceName, data.length, hexString.toString());
+            // Raw messages go to the trace ring (dumped via the admin API) instead of the log
+            traceService.record(traceSource, message);
             
             // Process ShortMessage (Note On/Off)
             if (message instanceof ShortMessage) {
                 ShortMessage sm = (ShortMessage) message;
                 int command = sm.getCommand();
-                int channel = sm.getChannel();
-                int data1 = sm.getData1();
-                int data2 = sm.getData2();
-                
-                logger.info("MIDI Command: {} (0x{}) Channel: {} Data1: {} Data2: {}", 
-                    commandToString(command), String.format("%02X", command), 
-                    channel, data1, data2);
                 
                 // Process Note On (including all channels)
                 if (command == ShortMessage.NOTE_ON) {
-                    int key = data1;
-                    int velocity = data2;
+                    int key = sm.getData1();
+                    int velocity = sm.getData2();
                     
                     // Note: Some devices send NOTE_ON with velocity 0 instead of NOTE_OFF
                     if (velocity > 0) {
-                        logger.info("Processing Note On - Device: {} - Note: {} velocity: {}", 
-                            deviceName, key, velocity);
                         processNoteOn(key, velocity, System.currentTimeMillis());
                     } else {
-                        logger.info("Processing Note Off (via velocity 0) - Device: {} - Note: {}", 
-                            deviceName, key);
                         processNoteOff(key, System.currentTimeMillis());
                     }
                 } 
                 // Process Note Off
                 else if (command == ShortMessage.NOTE_OFF) {
-                    int key = data1;
-                    logger.info("Processing Note Off - Device: {} - Note: {}", deviceName, key);
-                    processNoteOff(key, System.currentTimeMillis());
-                }
-                // Log other MIDI commands for debugging
-                else {
-                    logger.info("Other MIDI command received: {}", commandToString(command));
+                    processNoteOff(sm.getData1(), System.currentTimeMillis());
                 }
             }
-            // Log other message types
-            else {
-                logger.info("Non-ShortMessage received: {}", message.getClass().getSimpleName());
-            }
-        }
-        
-        // Helper method to convert MIDI command to string
-        private String commandToString(int command) {
-            switch (command) {
-                case ShortMessage.NOTE_ON: return "NOTE_ON";
-                case ShortMessage.NOTE_OFF: return "NOTE_OFF";
-                case ShortMessage.CONTROL_CHANGE: return "CONTROL_CHANGE";
-                case ShortMessage.PROGRAM_CHANGE: return "PROGRAM_CHANGE";
-                case ShortMessage.PITCH_BEND: return "PITCH_BEND";
-                case ShortMessage.CHANNEL_PRESSURE: return "CHANNEL_PRESSURE";
-                case ShortMessage.POLY_PRESSURE: return "POLY_PRESSURE";
-                default: return "UNKNOWN(" + command + ")";
-            }
         }
         
         @Override
@@ -941,12 +995,20 @@ public class MidiDeviceService {
         private final int velocity;
         private final long startTime;
         private final long duration;
+        private final int channel;
+        private final int source;
         
         public MidiNote(int key, int velocity, long startTime, long duration) {
+            this(key, velocity, startTime, duration, 0, 0);
+        }
+        
+        public MidiNote(int key, int velocity, long startTime, long duration, int channel, int source) {
             this.key = key;
             this.velocity = velocity;
             this.startTime = startTime;
             this.duration = duration;
+            this.channel = channel;
+            this.source = source;
         }
         
         public int getKey() {
@@ -964,6 +1026,17 @@ public class MidiDeviceService {
         public long getDuration() {
             return duration;
         }
+        
+        public int getChannel() {
+            return channel;
+        }
+        
+        /**
+         * @return Index of the input the note was captured from (0 for single-device recordings)
+         */
+        public int getSource() {
+            return source;
+        }
     }
     
     /**
@@ -1037,6 +1110,7 @@ public class MidiDeviceService {
      * Convert a note name to MIDI note number
      * @param noteName The note name (e.g., "C4", "F#5")
      * @return The MIDI note number
+     * @throws IllegalArgumentException If the note lies outside the MIDI range (C-1 to G9)
      */
     private int noteNameToMidiNumber(String noteName) {
         // Parse the note name to get the MIDI note number
@@ -1060,6 +1134,10 @@ public class MidiDeviceService {
         if (sharp) baseNote++;
         if (flat) baseNote--;
         
-        return baseNote + (octave + 1) * 12;
+        int noteNumber = baseNote + (octave + 1) * 12;
+        if (noteNumber < 0 || noteNumber > 127) {
+            throw new IllegalArgumentException("Note is outside the MIDI range (C-1 to G9): " + noteName);
+        }
+        return noteNumber;
     }
 }
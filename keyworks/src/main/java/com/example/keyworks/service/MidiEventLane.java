@@ -0,0 +1,112 @@
+package com.example.keyworks.service;
+
+import java.util.Arrays;
+
+/**
+ * Single-producer, single-consumer ingest lane for one MIDI source.
+ * The device's receiver thread appends events without locking; readers see every event up to
+ * the last published count. Storage is an append-only list of fixed-size primitive chunks, so
+ * appends never copy earlier events and nothing is ever dropped.
+ */
+public class MidiEventLane {
+
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final int source;
+    private final String sourceName;
+
+    // Chunk directories are replaced (never mutated in place) when they grow, then published via volatile write
+    private volatile long[][] timeChunks = new long[4][];
+    private volatile int[][] messageChunks = new int[4][];
+
+    // Number of events visible to readers; written only by the producer
+    private volatile long published;
+
+    public MidiEventLane(int source, String sourceName) {
+        this.source = source;
+        this.sourceName = sourceName;
+    }
+
+    /**
+     * Appends an event. Must only be called from the lane's producer thread.
+     * @param timeNanos Event time from {@link System#nanoTime()}
+     * @param status MIDI status byte (command and channel)
+     * @param data1 First data byte
+     * @param data2 Second data byte
+     */
+    public void append(long timeNanos, int status, int data1, int data2) {
+        long index = published;
+        int chunk = (int) (index >>> CHUNK_BITS);
+        int offset = (int) (index & CHUNK_MASK);
+
+        long[][] times = timeChunks;
+        int[][] messages = messageChunks;
+        if (chunk >= times.length) {
+            times = Arrays.copyOf(times, times.length * 2);
+            messages = Arrays.copyOf(messages, messages.length * 2);
+        }
+        if (times[chunk] == null) {
+            times[chunk] = new long[CHUNK_SIZE];
+            messages[chunk] = new int[CHUNK_SIZE];
+            timeChunks = times;
+            messageChunks = messages;
+        }
+
+        times[chunk][offset] = timeNanos;
+        messages[chunk][offset] = pack(status, data1, data2);
+
+        // Volatile write publishes the event (and any new chunk) to readers
+        published = index + 1;
+    }
+
+    /**
+     * @return Number of events currently visible to readers
+     */
+    public long size() {
+        return published;
+    }
+
+    /**
+     * Gets the timestamp of a published event
+     * @param index Event index, less than {@link #size()}
+     * @return Event time in nanoseconds
+     */
+    public long timeAt(long index) {
+        return timeChunks[(int) (index >>> CHUNK_BITS)][(int) (index & CHUNK_MASK)];
+    }
+
+    /**
+     * Gets the packed message of a published event
+     * @param index Event index, less than {@link #size()}
+     * @return Message packed as status | data1 &lt;&lt; 8 | data2 &lt;&lt; 16
+     */
+    public int messageAt(long index) {
+        return messageChunks[(int) (index >>> CHUNK_BITS)][(int) (index & CHUNK_MASK)];
+    }
+
+    public int getSource() {
+        return source;
+    }
+
+    public String getSourceName() {
+        return sourceName;
+    }
+
+    public static int pack(int status, int data1, int data2) {
+        return (status & 0xFF) | (data1 & 0xFF) << 8 | (data2 & 0xFF) << 16;
+    }
+
+    public static int status(int packed) {
+        return packed & 0xFF;
+    }
+
+    public static int data1(int packed) {
+        return (packed >>> 8) & 0xFF;
+    }
+
+    public static int data2(int packed) {
+        return (packed >>> 16) & 0xFF;
+    }
+}
@@ -0,0 +1,741 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.service.MidiDeviceService.MidiNote;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.sound.midi.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads Standard MIDI Files into the note model used by the recorders.
+ * Small files are parsed with {@link MidiSystem#getSequence}; large files are read chunk by chunk
+ * with a byte-level parser, so only the track chunks currently being parsed are held in memory and
+ * no {@link Sequence} is built for the whole file. In both cases every track is turned into notes
+ * (in ticks) on its own worker, and once the tempo map from all tracks is known the ticks are
+ * converted to milliseconds, again one track per worker.
+ * <p>
+ * Chunk lengths come from the file, so neither reader allocates for a chunk before checking that the
+ * file actually holds that many bytes; events running past the end of their chunk are rejected.
+ */
+@Component
+public class MidiFileReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(MidiFileReader.class);
+
+    private static final int MTHD = 0x4D546864;
+    private static final int MTRK = 0x4D54726B;
+    private static final int META_TRACK_NAME = 0x03;
+    private static final int META_TEMPO = 0x51;
+    private static final int META_END_OF_TRACK = 0x2F;
+    private static final int DEFAULT_MICROS_PER_QUARTER = 500_000;
+
+    private final ExecutorService executor;
+    private final int workers;
+
+    public MidiFileReader() {
+        this.workers = Math.max(1, Runtime.getRuntime().availableProcessors());
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "midi-import-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A parsed file
+     */
+    public static final class Result {
+        private final int format;
+        private final boolean streamed;
+        private final List<ImportedTrack> tracks;
+        private final long durationMs;
+
+        Result(int format, boolean streamed, List<ImportedTrack> tracks) {
+            this.format = format;
+            this.streamed = streamed;
+            this.tracks = tracks;
+            long duration = 0;
+            for (ImportedTrack track : tracks) {
+                duration = Math.max(duration, track.getEndMs());
+            }
+            this.durationMs = duration;
+        }
+
+        /**
+         * @return SMF format (0, 1 or 2)
+         */
+        public int getFormat() {
+            return format;
+        }
+
+        /**
+         * @return Whether the file was read with the streaming parser
+         */
+        public boolean isStreamed() {
+            return streamed;
+        }
+
+        public List<ImportedTrack> getTracks() {
+            return tracks;
+        }
+
+        public long getDurationMs() {
+            return durationMs;
+        }
+    }
+
+    /**
+     * The notes and statistics of one track
+     */
+    public static final class ImportedTrack {
+        private final int index;
+        private final String name;
+        private final int eventCount;
+        private final List<MidiNote> notes;
+        private final int channelMask;
+        private final int lowestKey;
+        private final int highestKey;
+        private final long endMs;
+
+        ImportedTrack(int index, String name, int eventCount, List<MidiNote> notes, int channelMask) {
+            this.index = index;
+            this.name = name;
+            this.eventCount = eventCount;
+            this.notes = notes;
+            this.channelMask = channelMask;
+            int low = 127;
+            int high = 0;
+            long end = 0;
+            for (MidiNote note : notes) {
+                low = Math.min(low, note.getKey());
+                high = Math.max(high, note.getKey());
+                end = Math.max(end, note.getStartTime() + note.getDuration());
+            }
+            this.lowestKey = notes.isEmpty() ? -1 : low;
+            this.highestKey = notes.isEmpty() ? -1 : high;
+            this.endMs = end;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return Track name from the file, or null if it has none
+         */
+        public String getName() {
+            return name;
+        }
+
+        public int getEventCount() {
+            return eventCount;
+        }
+
+        /**
+         * @return Notes in start-time order, with the track index as their source
+         */
+        public List<MidiNote> getNotes() {
+            return notes;
+        }
+
+        /**
+         * @return MIDI channels (1-16) the track plays notes on
+         */
+        public List<Integer> getChannels() {
+            List<Integer> channels = new ArrayList<>();
+            for (int channel = 0; channel < 16; channel++) {
+                if ((channelMask & (1 << channel)) != 0) {
+                    channels.add(channel + 1);
+                }
+            }
+            return channels;
+        }
+
+        /**
+         * @return Lowest key, or -1 if the track has no notes
+         */
+        public int getLowestKey() {
+            return lowestKey;
+        }
+
+        /**
+         * @return Highest key, or -1 if the track has no notes
+         */
+        public int getHighestKey() {
+            return highestKey;
+        }
+
+        public long getEndMs() {
+            return endMs;
+        }
+    }
+
+    /**
+     * Reads a whole file with {@link MidiSystem#getSequence}
+     * @param in The file contents
+     * @return The parsed file
+     */
+    public Result readSequence(InputStream in) throws IOException {
+        // The JDK parser allocates every track at its declared length, so check those against the file first
+        byte[] file = in.readAllBytes();
+        checkChunkLengths(file);
+
+        Sequence sequence;
+        int format;
+        try {
+            format = MidiSystem.getMidiFileFormat(new ByteArrayInputStream(file)).getType();
+            sequence = MidiSystem.getSequence(new ByteArrayInputStream(file));
+        } catch (InvalidMidiDataException e) {
+            throw new IOException("Not a valid MIDI file: " + e.getMessage(), e);
+        }
+
+        Timing timing = new Timing(sequence.getDivisionType(), sequence.getResolution());
+        Track[] tracks = sequence.getTracks();
+        List<Future<TrackBuilder>> parsed = new ArrayList<>(tracks.length);
+        for (int i = 0; i < tracks.length; i++) {
+            int index = i;
+            parsed.add(executor.submit(() -> parseTrack(index, tracks[index])));
+        }
+        return convert(format, false, timing, parsed);
+    }
+
+    /**
+     * Reads a file chunk by chunk without building a {@link Sequence}.
+     * Track chunks are handed to the workers as they are read; at most a few are in memory at once.
+     * The single track of a format 0 file is the whole file, so it is parsed as it is read instead.
+     * @param in The file contents
+     * @param size Number of bytes in the stream; no chunk may claim more than what is left of it
+     * @return The parsed file
+     */
+    public Result readStreaming(InputStream in, long size) throws IOException {
+        ByteReader data = new ByteReader(in, size);
+        int format;
+        int division;
+        try {
+            if (data.readInt() != MTHD) {
+                throw new IOException("Not a valid MIDI file: missing MThd header");
+            }
+            long headerLength = data.readUnsignedInt();
+            if (headerLength < 6) {
+                throw new IOException("Not a valid MIDI file: header too short");
+            }
+            format = data.readUnsignedShort();
+            data.readUnsignedShort(); // Track count; the chunks themselves are authoritative
+            division = data.readUnsignedShort();
+            data.skip(headerLength - 6);
+        } catch (EOFException e) {
+            throw new IOException("Not a valid MIDI file: truncated header");
+        }
+
+        Timing timing;
+        if ((division & 0x8000) != 0) {
+            // SMPTE: negative frame rate in the high byte, ticks per frame in the low byte
+            int fps = -(byte) (division >> 8);
+            float divisionType = fps == 29 ? Sequence.SMPTE_30DROP : fps;
+            timing = new Timing(divisionType, division & 0xFF);
+        } else {
+            timing = new Timing(Sequence.PPQ, division);
+        }
+
+        // Bounds the track chunks read but not yet parsed
+        Semaphore inFlight = new Semaphore(workers * 2);
+        List<Future<TrackBuilder>> parsed = new ArrayList<>();
+        try {
+            while (data.remaining() > 0) {
+                int type;
+                long length;
+                try {
+                    type = data.readInt();
+                    length = data.readUnsignedInt();
+                } catch (EOFException e) {
+                    throw new IOException("Not a valid MIDI file: truncated chunk header");
+                }
+                if (length > data.remaining()) {
+                    throw new IOException("Not a valid MIDI file: chunk of " + length + " bytes, but only "
+                        + data.remaining() + " bytes left");
+                }
+                if (type != MTRK) {
+                    // Unknown chunks must be skipped
+                    data.skip(length);
+                    continue;
+                }
+
+                int index = parsed.size();
+                if (format == 0) {
+                    ByteReader track = data.slice(length);
+                    parsed.add(CompletableFuture.completedFuture(parseTrack(index, track)));
+                    data.resumeAfter(track);
+                    continue;
+                }
+
+                inFlight.acquire();
+                byte[] chunk;
+                try {
+                    chunk = data.readBytes(length);
+                } catch (IOException e) {
+                    inFlight.release();
+                    throw e;
+                }
+                parsed.add(executor.submit(() -> {
+                    try {
+                        return parseTrack(index, new ByteReader(chunk));
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading MIDI file");
+        }
+        return convert(format, true, timing, parsed);
+    }
+
+    /**
+     * Rejects files whose chunks claim more bytes than the file has
+     */
+    private static void checkChunkLengths(byte[] file) throws IOException {
+        long pos = 0;
+        while (pos + 8 <= file.length) {
+            long length = ((file[(int) pos + 4] & 0xFFL) << 24) | ((file[(int) pos + 5] & 0xFFL) << 16)
+                | ((file[(int) pos + 6] & 0xFFL) << 8) | (file[(int) pos + 7] & 0xFFL);
+            pos += 8;
+            if (length > file.length - pos) {
+                throw new IOException("Not a valid MIDI file: chunk of " + length + " bytes, but only "
+                    + (file.length - pos) + " bytes left");
+            }
+            pos += length;
+        }
+    }
+
+    /**
+     * Waits for the parsed tracks, builds the tempo map and converts every track to milliseconds
+     */
+    private Result convert(int format, boolean streamed, Timing timing, List<Future<TrackBuilder>> parsed)
+            throws IOException {
+        List<TrackBuilder> builders = new ArrayList<>(parsed.size());
+        for (Future<TrackBuilder> future : parsed) {
+            builders.add(await(future));
+        }
+        timing.buildTempoMap(builders);
+
+        List<Future<ImportedTrack>> converted = new ArrayList<>(builders.size());
+        for (TrackBuilder builder : builders) {
+            converted.add(executor.submit(() -> builder.toTrack(timing)));
+        }
+        List<ImportedTrack> tracks = new ArrayList<>(converted.size());
+        for (Future<ImportedTrack> future : converted) {
+            tracks.add(await(future));
+        }
+
+        logger.info("Read MIDI file: format {}, {} tracks, {} ({})", format, tracks.size(),
+            streamed ? "streamed" : "sequence", timing.describe());
+        return new Result(format, streamed, tracks);
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading MIDI file");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Failed to read MIDI track: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private static TrackBuilder parseTrack(int index, Track track) {
+        TrackBuilder builder = new TrackBuilder(index);
+        for (int i = 0; i < track.size(); i++) {
+            MidiEvent event = track.get(i);
+            MidiMessage message = event.getMessage();
+            if (message instanceof ShortMessage sm) {
+                builder.channelMessage(event.getTick(), sm.getStatus(), sm.getData1(), sm.getData2());
+            } else if (message instanceof MetaMessage meta) {
+                builder.meta(event.getTick(), meta.getType(), meta.getData());
+            } else {
+                builder.eventCount++;
+            }
+        }
+        builder.finish(track.ticks());
+        return builder;
+    }
+
+    /**
+     * Parses the events of one MTrk chunk
+     */
+    private static TrackBuilder parseTrack(int index, ByteReader data) throws IOException {
+        TrackBuilder builder = new TrackBuilder(index);
+        long tick = 0;
+        int running = 0;
+        try {
+            while (data.remaining() > 0) {
+                tick += readVarInt(data, index);
+                int status = data.read();
+                int data1 = -1;
+                if (status < 0x80) {
+                    if (running == 0) {
+                        throw new IOException("Malformed track " + index + ": data byte without status");
+                    }
+                    // Running status: the byte just read is the first data byte
+                    data1 = status;
+                    status = running;
+                }
+
+                if (status == 0xFF) {
+                    int type = data.read();
+                    long length = readVarInt(data, index);
+                    builder.meta(tick, type, data.readBytes(length));
+                    running = 0;
+                    if (type == META_END_OF_TRACK) {
+                        break;
+                    }
+                } else if (status == 0xF0 || status == 0xF7) {
+                    data.skip(readVarInt(data, index));
+                    running = 0;
+                    builder.eventCount++;
+                } else {
+                    running = status;
+                    int command = status & 0xF0;
+                    if (data1 < 0) {
+                        data1 = data.read();
+                    }
+                    int data2 = command == ShortMessage.PROGRAM_CHANGE || command == ShortMessage.CHANNEL_PRESSURE
+                        ? 0 : data.read() & 0x7F;
+                    builder.channelMessage(tick, status, data1 & 0x7F, data2);
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException("Malformed track " + index + ": truncated event");
+        }
+        builder.finish(tick);
+        return builder;
+    }
+
+    private static long readVarInt(ByteReader data, int index) throws IOException {
+        long value = 0;
+        // Variable-length quantities have at most four bytes
+        for (int i = 0; i < 4; i++) {
+            int b = data.read();
+            value = (value << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed track " + index + ": variable-length quantity too long");
+    }
+
+    /**
+     * Reads bytes from a chunk in memory or straight from the file, and never past a known end:
+     * every read that would cross it throws {@link EOFException}, and nothing is allocated for a
+     * length before it is checked against the bytes left.
+     */
+    private static final class ByteReader {
+        private final InputStream in;
+        private final byte[] buffer;
+        private final long length;
+        private int pos;
+        private int limit;
+        private long remaining;
+
+        /**
+         * Reads a chunk held in memory
+         */
+        ByteReader(byte[] data) {
+            this(null, data, data.length);
+            this.limit = data.length;
+        }
+
+        /**
+         * Reads the given number of bytes from a stream
+         */
+        ByteReader(InputStream in, long length) {
+            this(in, new byte[64 * 1024], length);
+        }
+
+        private ByteReader(InputStream in, byte[] buffer, long length) {
+            this.in = in;
+            this.buffer = buffer;
+            this.length = length;
+            this.remaining = length;
+        }
+
+        long remaining() {
+            return remaining;
+        }
+
+        int read() throws IOException {
+            if (remaining == 0) {
+                throw new EOFException();
+            }
+            if (pos == limit) {
+                fill();
+            }
+            remaining--;
+            return buffer[pos++] & 0xFF;
+        }
+
+        int readUnsignedShort() throws IOException {
+            return read() << 8 | read();
+        }
+
+        int readInt() throws IOException {
+            return read() << 24 | read() << 16 | read() << 8 | read();
+        }
+
+        long readUnsignedInt() throws IOException {
+            return readInt() & 0xFFFFFFFFL;
+        }
+
+        byte[] readBytes(long count) throws IOException {
+            if (count > remaining || count > Integer.MAX_VALUE - 8) {
+                throw new EOFException();
+            }
+            byte[] bytes = new byte[(int) count];
+            int copied = 0;
+            while (copied < count) {
+                if (pos == limit) {
+                    fill();
+                }
+                int n = Math.min(limit - pos, bytes.length - copied);
+                System.arraycopy(buffer, pos, bytes, copied, n);
+                pos += n;
+                copied += n;
+            }
+            remaining -= count;
+            return bytes;
+        }
+
+        void skip(long count) throws IOException {
+            if (count > remaining) {
+                throw new EOFException();
+            }
+            long left = count;
+            while (left > 0) {
+                if (pos == limit) {
+                    fill();
+                }
+                int n = (int) Math.min(limit - pos, left);
+                pos += n;
+                left -= n;
+            }
+            remaining -= count;
+        }
+
+        /**
+         * @return A reader over the next bytes that shares this reader's stream and buffer; call
+         * {@link #resumeAfter} once done with it
+         */
+        ByteReader slice(long count) throws EOFException {
+            if (count > remaining) {
+                throw new EOFException();
+            }
+            ByteReader slice = new ByteReader(in, buffer, count);
+            slice.pos = pos;
+            slice.limit = limit;
+            return slice;
+        }
+
+        /**
+         * Continues after a slice, skipping whatever of it was not read
+         */
+        void resumeAfter(ByteReader slice) throws IOException {
+            slice.skip(slice.remaining);
+            pos = slice.pos;
+            limit = slice.limit;
+            remaining -= slice.length;
+        }
+
+        private void fill() throws IOException {
+            int n = in != null ? in.read(buffer, 0, buffer.length) : -1;
+            if (n <= 0) {
+                throw new EOFException();
+            }
+            pos = 0;
+            limit = n;
+        }
+    }
+
+    /**
+     * Collects the notes of one track in ticks, pairing note-ons and note-offs per channel and key
+     */
+    private static final class TrackBuilder {
+        private final int index;
+        private String name;
+        private int eventCount;
+        private int channelMask;
+
+        private long[] starts = new long[256];
+        private long[] ends = new long[256];
+        private int[] keys = new int[256];
+        private int[] velocities = new int[256];
+        private int[] channels = new int[256];
+        private int size;
+
+        private final long[] activeStart = new long[16 * 128];
+        private final int[] activeVelocity = new int[16 * 128];
+
+        // Tempo changes as (tick, microseconds per quarter note)
+        private final List<long[]> tempoChanges = new ArrayList<>();
+
+        TrackBuilder(int index) {
+            this.index = index;
+            Arrays.fill(activeStart, -1L);
+        }
+
+        void channelMessage(long tick, int status, int data1, int data2) {
+            eventCount++;
+            int command = status & 0xF0;
+            if (command != ShortMessage.NOTE_ON && command != ShortMessage.NOTE_OFF) {
+                return;
+            }
+            int channel = status & 0x0F;
+            int slot = channel * 128 + data1;
+
+            // A retriggered key closes the sounding note first
+            if (activeStart[slot] >= 0) {
+                close(slot, tick);
+            }
+            if (command == ShortMessage.NOTE_ON && data2 > 0) {
+                activeStart[slot] = tick;
+                activeVelocity[slot] = data2;
+            }
+        }
+
+        void meta(long tick, int type, byte[] data) {
+            eventCount++;
+            if (type == META_TRACK_NAME && name == null && data.length > 0) {
+                name = new String(data, StandardCharsets.ISO_8859_1).trim();
+            } else if (type == META_TEMPO && data.length >= 3) {
+                long micros = ((data[0] & 0xFFL) << 16) | ((data[1] & 0xFFL) << 8) | (data[2] & 0xFFL);
+                if (micros > 0) {
+                    tempoChanges.add(new long[] {tick, micros});
+                }
+            }
+        }
+
+        void finish(long endTick) {
+            // Notes never released end with the track
+            for (int slot = 0; slot < activeStart.length; slot++) {
+                if (activeStart[slot] >= 0) {
+                    close(slot, Math.max(endTick, activeStart[slot]));
+                }
+            }
+        }
+
+        private void close(int slot, long tick) {
+            if (size == starts.length) {
+                int capacity = size * 2;
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+                keys = Arrays.copyOf(keys, capacity);
+                velocities = Arrays.copyOf(velocities, capacity);
+                channels = Arrays.copyOf(channels, capacity);
+            }
+            starts[size] = activeStart[slot];
+            ends[size] = tick;
+            keys[size] = slot % 128;
+            velocities[size] = activeVelocity[slot];
+            channels[size] = slot / 128;
+            channelMask |= 1 << (slot / 128);
+            size++;
+            activeStart[slot] = -1L;
+        }
+
+        ImportedTrack toTrack(Timing timing) {
+            List<MidiNote> notes = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                long start = timing.toMillis(starts[i]);
+                long end = timing.toMillis(ends[i]);
+                notes.add(new MidiNote(keys[i], velocities[i], start, end - start, channels[i], index));
+            }
+            // Notes were closed in note-off order
+            notes.sort(Comparator.comparingLong(MidiNote::getStartTime));
+            return new ImportedTrack(index, name, eventCount, notes, channelMask);
+        }
+    }
+
+    /**
+     * Converts ticks to milliseconds, following the tempo map for PPQ files
+     */
+    private static final class Timing {
+        private final float divisionType;
+        private final int resolution;
+
+        // Tempo map: tick of each change, its tempo, and the time at which it starts
+        private long[] ticks = {0};
+        private long[] micros = {DEFAULT_MICROS_PER_QUARTER};
+        private double[] startMs = {0};
+
+        Timing(float divisionType, int resolution) {
+            this.divisionType = divisionType;
+            this.resolution = Math.max(1, resolution);
+        }
+
+        void buildTempoMap(List<TrackBuilder> builders) {
+            if (divisionType != Sequence.PPQ) {
+                return;
+            }
+            // Changes from all tracks, by tick; on a tie the later track wins
+            List<long[]> changes = new ArrayList<>();
+            for (TrackBuilder builder : builders) {
+                changes.addAll(builder.tempoChanges);
+            }
+            changes.sort(Comparator.comparingLong(change -> change[0]));
+
+            int count = 1;
+            long[] t = new long[changes.size() + 1];
+            long[] m = new long[changes.size() + 1];
+            double[] s = new double[changes.size() + 1];
+            m[0] = DEFAULT_MICROS_PER_QUARTER;
+            for (long[] change : changes) {
+                if (change[0] == t[count - 1]) {
+                    m[count - 1] = change[1];
+                } else {
+                    t[count] = change[0];
+                    m[count] = change[1];
+                    count++;
+                }
+            }
+            for (int i = 1; i < count; i++) {
+                s[i] = s[i - 1] + (t[i] - t[i - 1]) * m[i - 1] / (resolution * 1000.0);
+            }
+            this.ticks = Arrays.copyOf(t, count);
+            this.micros = Arrays.copyOf(m, count);
+            this.startMs = Arrays.copyOf(s, count);
+        }
+
+        long toMillis(long tick) {
+            if (divisionType != Sequence.PPQ) {
+                return Math.round(tick * 1000.0 / (divisionType * resolution));
+            }
+            int i = Arrays.binarySearch(ticks, tick);
+            if (i < 0) {
+                i = -i - 2;
+            }
+            return Math.round(startMs[i] + (tick - ticks[i]) * micros[i] / (resolution * 1000.0));
+        }
+
+        String describe() {
+            return divisionType == Sequence.PPQ
+                ? resolution + " PPQ, " + ticks.length + " tempo segments"
+                : "SMPTE " + divisionType + " fps, " + resolution + " ticks per frame";
+        }
+    }
+}
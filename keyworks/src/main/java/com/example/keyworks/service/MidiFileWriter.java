@@ -0,0 +1,92 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.service.MidiDeviceService.MidiNote;
+import org.springframework.stereotype.Component;
+
+import javax.sound.midi.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes recorded notes as a Standard MIDI File.
+ * The file is built directly from the notes with {@link Sequence} and {@link MidiSystem#write}, so a
+ * MIDI download takes milliseconds and never has to wait for a LilyPond run. Type 0 files hold every
+ * note in one track; type 1 files have a conductor track with the tempo and one track per source.
+ */
+@Component
+public class MidiFileWriter {
+
+    // Ticks per quarter note
+    private static final int RESOLUTION = 480;
+
+    private static final int META_TRACK_NAME = 0x03;
+    private static final int META_TEMPO = 0x51;
+
+    /**
+     * Writes notes as a Standard MIDI File
+     * @param notes Notes with start times relative to the start of the recording
+     * @param fileType SMF type, 0 or 1
+     * @param tempoBpm Quarter notes per minute, used to convert milliseconds to ticks
+     * @param out Target; not closed
+     */
+    public void write(List<MidiNote> notes, int fileType, int tempoBpm, OutputStream out) throws IOException {
+        if (fileType != 0 && fileType != 1) {
+            throw new IllegalArgumentException("Unsupported MIDI file type: " + fileType);
+        }
+        int bpm = tempoBpm > 0 ? tempoBpm : 120;
+        double ticksPerMs = RESOLUTION * bpm / 60000.0;
+
+        try {
+            Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+            Track conductor = sequence.createTrack();
+            conductor.add(tempoEvent(bpm));
+
+            if (fileType == 0) {
+                for (MidiNote note : notes) {
+                    addNote(conductor, note, ticksPerMs);
+                }
+            } else {
+                // One track per source, in source order
+                Map<Integer, Track> tracks = new TreeMap<>();
+                for (MidiNote note : notes) {
+                    Track track = tracks.computeIfAbsent(note.getSource(), source -> sequence.createTrack());
+                    addNote(track, note, ticksPerMs);
+                }
+                for (Map.Entry<Integer, Track> entry : tracks.entrySet()) {
+                    entry.getValue().add(metaEvent(META_TRACK_NAME,
+                        ("Source " + (entry.getKey() + 1)).getBytes(StandardCharsets.US_ASCII), 0));
+                }
+            }
+
+            MidiSystem.write(sequence, fileType, out);
+        } catch (InvalidMidiDataException e) {
+            // Only reachable with out-of-range note data
+            throw new IllegalStateException("Invalid note data for MIDI file", e);
+        }
+    }
+
+    private void addNote(Track track, MidiNote note, double ticksPerMs) throws InvalidMidiDataException {
+        long start = Math.round(note.getStartTime() * ticksPerMs);
+        long end = Math.max(start + 1, Math.round((note.getStartTime() + note.getDuration()) * ticksPerMs));
+        int channel = note.getChannel() & 0x0F;
+        int velocity = Math.max(1, Math.min(127, note.getVelocity()));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, channel, note.getKey(), velocity), start));
+        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, channel, note.getKey(), 0), end));
+    }
+
+    private MidiEvent tempoEvent(int bpm) throws InvalidMidiDataException {
+        int microsPerQuarter = 60_000_000 / bpm;
+        byte[] data = {
+            (byte) (microsPerQuarter >> 16), (byte) (microsPerQuarter >> 8), (byte) microsPerQuarter
+        };
+        return metaEvent(META_TEMPO, data, 0);
+    }
+
+    private MidiEvent metaEvent(int type, byte[] data, long tick) throws InvalidMidiDataException {
+        return new MidiEvent(new MetaMessage(type, data, data.length), tick);
+    }
+}
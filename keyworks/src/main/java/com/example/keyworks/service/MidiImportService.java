@@ -0,0 +1,127 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.model.SheetMusic;
+import com.example.keyworks.model.User;
+import com.example.keyworks.service.MidiDeviceService.MidiNote;
+import com.example.keyworks.service.MidiFileReader.ImportedTrack;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Imports Standard MIDI Files as sheet music.
+ * Every track with notes becomes a staff, converted with the same transcription as multi-device
+ * recordings, and the result is saved and rendered like any other sheet music.
+ */
+@Service
+public class MidiImportService {
+
+    private static final Logger logger = LoggerFactory.getLogger(MidiImportService.class);
+
+    private final MidiFileReader midiFileReader;
+    private final MidiDeviceService midiDeviceService;
+    private final SheetMusicService sheetMusicService;
+    private final long streamingThresholdBytes;
+
+    public MidiImportService(MidiFileReader midiFileReader, MidiDeviceService midiDeviceService,
+                             SheetMusicService sheetMusicService,
+                             @Value("${midi.import.streaming-threshold-bytes:4194304}") long streamingThresholdBytes) {
+        this.midiFileReader = midiFileReader;
+        this.midiDeviceService = midiDeviceService;
+        this.sheetMusicService = sheetMusicService;
+        this.streamingThresholdBytes = streamingThresholdBytes;
+    }
+
+    /**
+     * Imports a MIDI file for a user
+     * @param in The file contents
+     * @param size File size in bytes; files above the streaming threshold are not read as a whole
+     * @param fileName Original file name, used as the title
+     * @param user Owner of the new sheet music
+     * @return Import data: sheetMusicId, per-track statistics and whether rendering succeeded
+     */
+    public Map<String, Object> importMidi(InputStream in, long size, String fileName, User user) throws IOException {
+        long started = System.currentTimeMillis();
+        MidiFileReader.Result result = size > streamingThresholdBytes
+            ? midiFileReader.readStreaming(in, size)
+            : midiFileReader.readSequence(in);
+
+        String title = fileName != null && !fileName.isBlank()
+            ? fileName.replaceFirst("(?i)\\.midi?$", "")
+            : "Imported MIDI File";
+
+        // One staff per track with notes, named after the track
+        Map<String, List<MidiNote>> staves = new LinkedHashMap<>();
+        List<Map<String, Object>> trackStats = new ArrayList<>();
+        int noteCount = 0;
+        for (ImportedTrack track : result.getTracks()) {
+            trackStats.add(trackStats(track));
+            if (track.getNotes().isEmpty()) {
+                continue;
+            }
+            String name = track.getName() != null && !track.getName().isEmpty()
+                ? track.getName()
+                : "Track " + (track.getIndex() + 1);
+            String staffName = name;
+            for (int n = 2; staves.containsKey(staffName); n++) {
+                staffName = name + " (" + n + ")";
+            }
+            staves.put(staffName, track.getNotes());
+            noteCount += track.getNotes().size();
+        }
+        if (staves.isEmpty()) {
+            throw new IllegalArgumentException("MIDI file contains no notes");
+        }
+
+        String lilyPondCode = midiDeviceService.convertToMultiStaffLilyPond(staves, title);
+        SheetMusic sheetMusic = sheetMusicService.saveSheetMusic(new SheetMusic(title,
+            "Imported from MIDI file with " + noteCount + " notes in " + staves.size() + " tracks",
+            lilyPondCode, user));
+        logger.info("Imported MIDI file {} as sheet music {} in {} ms", fileName, sheetMusic.getId(),
+            System.currentTimeMillis() - started);
+
+        Map<String, Object> importData = new HashMap<>();
+        importData.put("sheetMusicId", sheetMusic.getId());
+        importData.put("title", title);
+        importData.put("format", result.getFormat());
+        importData.put("streamed", result.isStreamed());
+        importData.put("durationMs", result.getDurationMs());
+        importData.put("noteCount", noteCount);
+        importData.put("tracks", trackStats);
+
+        // The sheet music is kept even if LilyPond fails; it can be regenerated later
+        try {
+            SheetMusic rendered = sheetMusicService.generateSheetMusic(sheetMusic);
+            importData.put("rendered", true);
+            importData.put("pdfPath", rendered.getPdfPath());
+            importData.put("midiPath", rendered.getMidiPath());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            importData.put("rendered", false);
+            importData.put("renderError", "Interrupted");
+        } catch (Exception e) {
+            logger.error("Error rendering imported sheet music {}: {}", sheetMusic.getId(), e.getMessage());
+            importData.put("rendered", false);
+            importData.put("renderError", e.getMessage());
+        }
+        return importData;
+    }
+
+    private Map<String, Object> trackStats(ImportedTrack track) {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("index", track.getIndex());
+        stats.put("name", track.getName());
+        stats.put("events", track.getEventCount());
+        stats.put("notes", track.getNotes().size());
+        stats.put("channels", track.getChannels());
+        stats.put("lowestKey", track.getLowestKey());
+        stats.put("highestKey", track.getHighestKey());
+        stats.put("durationMs", track.getEndMs());
+        return stats;
+    }
+}
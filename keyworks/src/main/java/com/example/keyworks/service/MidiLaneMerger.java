@@ -0,0 +1,90 @@
+package com.example.keyworks.service;
+
+import java.util.List;
+
+/**
+ * k-way merge of per-source ingest lanes into one time-ordered event stream.
+ * Each lane is already ordered (a single receiver thread appends with a monotonic clock),
+ * so a binary heap over the lane heads yields the merged stream in O(n log k).
+ */
+public final class MidiLaneMerger {
+
+    /**
+     * Receives merged events in timestamp order
+     */
+    @FunctionalInterface
+    public interface EventSink {
+        void accept(long timeNanos, int source, int packedMessage);
+    }
+
+    private MidiLaneMerger() {
+    }
+
+    /**
+     * Merges the events currently published in the given lanes
+     * @param lanes The lanes to merge
+     * @param sink Receives each event in timestamp order; ties are broken by lane order
+     * @return Number of events merged
+     */
+    public static long merge(List<MidiEventLane> lanes, EventSink sink) {
+        int k = lanes.size();
+        long[] cursors = new long[k];
+        long[] limits = new long[k];
+        int[] heap = new int[k];
+        int heapSize = 0;
+
+        // Snapshot each lane's published size so a live lane yields a consistent prefix
+        for (int lane = 0; lane < k; lane++) {
+            limits[lane] = lanes.get(lane).size();
+            if (limits[lane] > 0) {
+                heap[heapSize++] = lane;
+            }
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(heap, heapSize, i, lanes, cursors);
+        }
+
+        long merged = 0;
+        while (heapSize > 0) {
+            int lane = heap[0];
+            MidiEventLane head = lanes.get(lane);
+            long index = cursors[lane];
+            sink.accept(head.timeAt(index), head.getSource(), head.messageAt(index));
+            merged++;
+
+            cursors[lane] = index + 1;
+            if (cursors[lane] >= limits[lane]) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(heap, heapSize, 0, lanes, cursors);
+        }
+        return merged;
+    }
+
+    private static void siftDown(int[] heap, int size, int i, List<MidiEventLane> lanes, long[] cursors) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) {
+                return;
+            }
+            int smallest = left;
+            int right = left + 1;
+            if (right < size && before(heap[right], heap[left], lanes, cursors)) {
+                smallest = right;
+            }
+            if (!before(heap[smallest], heap[i], lanes, cursors)) {
+                return;
+            }
+            int tmp = heap[i];
+            heap[i] = heap[smallest];
+            heap[smallest] = tmp;
+            i = smallest;
+        }
+    }
+
+    private static boolean before(int a, int b, List<MidiEventLane> lanes, long[] cursors) {
+        long ta = lanes.get(a).timeAt(cursors[a]);
+        long tb = lanes.get(b).timeAt(cursors[b]);
+        return ta < tb || (ta == tb && a < b);
+    }
+}
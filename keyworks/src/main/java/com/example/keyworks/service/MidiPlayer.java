@@ -0,0 +1,349 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.service.MidiDeviceService.MidiNote;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays notes onto a {@link Receiver} with sub-millisecond timing.
+ * Events are sent from a dedicated maximum-priority thread that parks until shortly before each
+ * deadline and spins for the rest, so the wake-up slack of the OS timer does not show up as jitter.
+ * All messages are built before playback starts, so the timing loop does not allocate.
+ * <p>
+ * Tempo scale, looping and seek can be changed while playing: controls take effect immediately by
+ * re-anchoring the schedule at the current position. How late each event was sent relative to its
+ * deadline is recorded in a {@link LatencyHistogram}.
+ */
+public class MidiPlayer {
+
+    private static final Logger logger = LoggerFactory.getLogger(MidiPlayer.class);
+
+    private final String name;
+    private final Receiver receiver;
+    private final long spinNanos;
+
+    // Event times in microseconds and the prebuilt messages, sorted by time
+    private final long[] times;
+    private final ShortMessage[] messages;
+    private final long durationMicros;
+
+    // Notes currently sounding, by channel * 128 + key, so seek and stop can silence them
+    private final boolean[] sounding = new boolean[16 * 128];
+
+    private final LatencyHistogram lateness = new LatencyHistogram();
+    private final Thread thread;
+
+    // Controls, written by request threads under the lock; the version tells the player to re-read them
+    private volatile int controlVersion;
+    private double tempoScale = 1.0;
+    private boolean looping;
+    private long seekMicros = -1;
+    private boolean stopRequested;
+
+    // Published schedule for status reads: position at anchorNanos, and the scale since then
+    private volatile Anchor anchor;
+    private volatile boolean finished;
+    private volatile long eventsSent;
+    private volatile int loops;
+
+    private record Anchor(long nanos, long micros, double scale) {
+    }
+
+    /**
+     * @param name Name of the playback, used for the thread name
+     * @param notes The notes; times relative to the start of the recording
+     * @param receiver Target; closed when playback ends
+     * @param spinNanos How long before a deadline to stop parking and start spinning
+     */
+    public MidiPlayer(String name, List<MidiNote> notes, Receiver receiver, long spinNanos) {
+        this.name = name;
+        this.receiver = receiver;
+        this.spinNanos = Math.max(0, spinNanos);
+
+        long[] events = new long[notes.size() * 2];
+        int n = 0;
+        for (MidiNote note : notes) {
+            // Packed as (micros << 24 | on << 23 | channel << 16 | key << 8 | velocity): offs sort before ons
+            long start = Math.max(0, note.getStartTime()) * 1000L;
+            long end = start + Math.max(1, note.getDuration()) * 1000L;
+            long channelKey = (long) (note.getChannel() & 0x0F) << 16 | (long) (note.getKey() & 0x7F) << 8;
+            events[n++] = start << 24 | 1L << 23 | channelKey | Math.max(1, Math.min(127, note.getVelocity()));
+            events[n++] = end << 24 | channelKey;
+        }
+        Arrays.sort(events);
+
+        this.times = new long[events.length];
+        this.messages = new ShortMessage[events.length];
+        for (int i = 0; i < events.length; i++) {
+            long event = events[i];
+            times[i] = event >>> 24;
+            int command = (event & 1L << 23) != 0 ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF;
+            messages[i] = message(command, (int) (event >>> 16) & 0x0F, (int) (event >>> 8) & 0x7F, (int) event & 0x7F);
+        }
+        this.durationMicros = times.length > 0 ? times[times.length - 1] : 0;
+
+        this.thread = Thread.ofPlatform()
+            .name("midi-playback-" + name)
+            .daemon()
+            .priority(Thread.MAX_PRIORITY)
+            .unstarted(this::run);
+    }
+
+    /**
+     * Starts playback
+     * @param startMs Position to start from in milliseconds
+     */
+    public void start(long startMs) {
+        synchronized (this) {
+            seekMicros = Math.max(0, startMs) * 1000L;
+            controlVersion++;
+        }
+        thread.start();
+    }
+
+    /**
+     * Moves playback to a position; sounding notes are released
+     * @param positionMs Position in milliseconds, clamped to the recording
+     */
+    public void seek(long positionMs) {
+        synchronized (this) {
+            seekMicros = Math.min(Math.max(0, positionMs) * 1000L, durationMicros);
+            controlVersion++;
+            // Reported right away; the player re-anchors the same way when it picks the seek up
+            anchor = new Anchor(System.nanoTime(), seekMicros, tempoScale);
+        }
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Changes the playback speed from the current position on
+     * @param scale Tempo factor; 2.0 plays twice as fast
+     */
+    public void setTempoScale(double scale) {
+        if (!(scale > 0)) {
+            throw new IllegalArgumentException("Tempo scale must be positive");
+        }
+        synchronized (this) {
+            tempoScale = scale;
+            controlVersion++;
+        }
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * @param looping Whether to restart from the beginning at the end
+     */
+    public void setLooping(boolean looping) {
+        synchronized (this) {
+            this.looping = looping;
+            controlVersion++;
+        }
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Stops playback and releases all sounding notes
+     */
+    public void stop() {
+        synchronized (this) {
+            stopRequested = true;
+            controlVersion++;
+        }
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Waits for playback to end
+     * @param timeoutMs Maximum time to wait
+     * @return Whether playback has ended
+     */
+    public boolean join(long timeoutMs) throws InterruptedException {
+        return thread.join(Duration.ofMillis(timeoutMs));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isPlaying() {
+        return thread.isAlive() && !finished;
+    }
+
+    public synchronized double getTempoScale() {
+        return tempoScale;
+    }
+
+    public synchronized boolean isLooping() {
+        return looping;
+    }
+
+    public int getLoops() {
+        return loops;
+    }
+
+    public long getEventsSent() {
+        return eventsSent;
+    }
+
+    public long getDurationMs() {
+        return durationMicros / 1000;
+    }
+
+    /**
+     * @return Current position in milliseconds
+     */
+    public long getPositionMs() {
+        Anchor current = anchor;
+        if (current == null) {
+            return 0;
+        }
+        if (finished) {
+            return current.micros / 1000;
+        }
+        return Math.min(positionAt(current, System.nanoTime()), durationMicros) / 1000;
+    }
+
+    /**
+     * @return How late events were sent relative to their scheduled time
+     */
+    public LatencyHistogram getLateness() {
+        return lateness;
+    }
+
+    private void run() {
+        int appliedVersion = -1;
+        int next = 0;
+        Anchor current = null;
+        try {
+            while (true) {
+                if (controlVersion != appliedVersion) {
+                    synchronized (this) {
+                        appliedVersion = controlVersion;
+                        if (stopRequested) {
+                            break;
+                        }
+                        long now = System.nanoTime();
+                        long position;
+                        if (seekMicros >= 0) {
+                            silence();
+                            position = seekMicros;
+                            next = firstEventAt(position);
+                            seekMicros = -1;
+                        } else {
+                            position = positionAt(current, now);
+                        }
+                        current = new Anchor(now, position, tempoScale);
+                        anchor = current;
+                    }
+                }
+
+                if (next >= times.length) {
+                    if (!isLooping()) {
+                        break;
+                    }
+                    silence();
+                    loops++;
+                    next = 0;
+                    current = new Anchor(System.nanoTime(), 0, current.scale);
+                    anchor = current;
+                    continue;
+                }
+
+                long deadline = current.nanos + (long) ((times[next] - current.micros) * 1000 / current.scale);
+                if (!awaitDeadline(deadline, appliedVersion)) {
+                    continue;
+                }
+                lateness.record(System.nanoTime() - deadline);
+                send(next);
+                next++;
+            }
+        } catch (RuntimeException e) {
+            logger.error("Playback {} failed: {}", name, e.getMessage(), e);
+        } finally {
+            silence();
+            if (current != null) {
+                anchor = new Anchor(System.nanoTime(), Math.min(positionAt(current, System.nanoTime()), durationMicros), current.scale);
+            }
+            finished = true;
+            receiver.close();
+            logger.info("Playback {} ended after {} events; lateness p99 {} us, max {} us", name, eventsSent,
+                lateness.percentileNanos(99) / 1000, lateness.getMaxNanos() / 1000);
+        }
+    }
+
+    /**
+     * Parks until shortly before the deadline, then spins until it passes
+     * @return true when the deadline was reached, false when a control changed first
+     */
+    private boolean awaitDeadline(long deadline, int version) {
+        while (true) {
+            if (controlVersion != version) {
+                return false;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return true;
+            }
+            if (remaining > spinNanos) {
+                LockSupport.parkNanos(this, remaining - spinNanos);
+                if (Thread.interrupted()) {
+                    stop();
+                }
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    private void send(int index) {
+        ShortMessage message = messages[index];
+        int slot = message.getChannel() * 128 + message.getData1();
+        sounding[slot] = message.getCommand() == ShortMessage.NOTE_ON;
+        receiver.send(message, -1);
+        eventsSent++;
+    }
+
+    private void silence() {
+        for (int slot = 0; slot < sounding.length; slot++) {
+            if (sounding[slot]) {
+                sounding[slot] = false;
+                receiver.send(message(ShortMessage.NOTE_OFF, slot / 128, slot % 128, 0), -1);
+            }
+        }
+    }
+
+    private int firstEventAt(long micros) {
+        int index = Arrays.binarySearch(times, micros);
+        if (index < 0) {
+            return -index - 1;
+        }
+        // Equal times are not unique; start at the first of them
+        while (index > 0 && times[index - 1] == micros) {
+            index--;
+        }
+        return index;
+    }
+
+    private static long positionAt(Anchor anchor, long nanos) {
+        if (anchor == null) {
+            return 0;
+        }
+        return anchor.micros + (long) (TimeUnit.NANOSECONDS.toMicros(nanos - anchor.nanos) * anchor.scale);
+    }
+
+    private static ShortMessage message(int command, int channel, int key, int velocity) {
+        try {
+            return new ShortMessage(command, channel, key, velocity);
+        } catch (InvalidMidiDataException e) {
+            throw new IllegalArgumentException("Invalid note event: " + e.getMessage(), e);
+        }
+    }
+}
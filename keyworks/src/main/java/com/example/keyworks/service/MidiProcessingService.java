@@ -1,6 +1,7 @@
 package com.example.keyworks.service;
 
 import com.example.keyworks.config.FileStorageConfig;
+import com.example.keyworks.config.TranscriptionConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
@@ -21,26 +22,43 @@ public class MidiProcessingService {
     
     private final FileStorageConfig fileStorageConfig;
     private final LilyPondService lilyPondService;
+    private final LilyPondEmitter lilyPondEmitter;
+    private final TranscriptionConfig transcriptionConfig;
+    private final MidiDeviceRegistry deviceRegistry;
+    private final MidiTraceService traceService;
     
     // MIDI device management
     private Receiver midiReceiver;
     private Transmitter midiTransmitter;
     private MidiDevice currentDevice;
-    private boolean isRecording = false;
+    // Recording state; changed under this service's monitor, which the note handlers hold too
+    private volatile boolean isRecording = false;
     private List<MidiEvent> recordedEvents = new CopyOnWriteArrayList<>();
-    private long startTime;
-    private String currentRecordingId;
+    private volatile long startTime;
+    private volatile String currentRecordingId;
     
     // Note tracking
     private final Map<Integer, Long> activeNotes = new ConcurrentHashMap<>();
-    private final List<String> recordedNotes = new CopyOnWriteArrayList<>();
+    // Recorded MIDI key numbers in order of onset; guarded by this service's monitor
+    private int[] recordedKeys = new int[256];
+    private int recordedKeyCount;
+    
+    // Score for the current recording, built up while notes are played
+    private volatile IncrementalTranscriber transcriber;
     
     // Note name mapping
     private static final String[] NOTE_NAMES = {"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
     
-    public MidiProcessingService(FileStorageConfig fileStorageConfig, LilyPondService lilyPondService) {
+    public MidiProcessingService(FileStorageConfig fileStorageConfig, LilyPondService lilyPondService,
+                                 LilyPondEmitter lilyPondEmitter, TranscriptionConfig transcriptionConfig,
+                                 MidiDeviceRegistry deviceRegistry, MidiTraceService traceService) {
         this.fileStorageConfig = fileStorageConfig;
         this.lilyPondService = lilyPondService;
+        this.lilyPondEmitter = lilyPondEmitter;
+        this.transcriptionConfig = transcriptionConfig;
+        this.deviceRegistry = deviceRegistry;
+        this.traceService = traceService;
+        this.transcriber = new IncrementalTranscriber(lilyPondEmitter, transcriptionConfig);
         
         // Ensure output directory exists
         Path outputDir = fileStorageConfig.getOutputDirectoryPath();
@@ -57,50 +75,33 @@ public class MidiProcessingService {
      * @return List of MIDI device info objects
      */
     public List<MidiDevice.Info> getMidiDevices() {
-        logger.info("Fetching MIDI devices...");
+        // Only include devices that can transmit MIDI data
         List<MidiDevice.Info> deviceInfos = new ArrayList<>();
-        
-        try {
-            MidiDevice.Info[] infos = MidiSystem.getMidiDeviceInfo();
-            for (MidiDevice.Info info : infos) {
-                try {
-                    MidiDevice device = MidiSystem.getMidiDevice(info);
-                    // Only include devices that can transmit MIDI data
-                    if (device.getMaxTransmitters() != 0) {
-                        deviceInfos.add(info);
-                    }
-                } catch (MidiUnavailableException e) {
-                    logger.warn("MIDI device unavailable: {}", info.getName());
-                }
-            }
-            logger.info("Found {} MIDI devices", deviceInfos.size());
-        } catch (Exception e) {
-            logger.error("Error getting MIDI devices: {}", e.getMessage());
+        for (MidiDeviceRegistry.DeviceEntry entry : deviceRegistry.getInputDevices()) {
+            deviceInfos.add(entry.getInfo());
         }
-        
         return deviceInfos;
     }
     
     /**
      * Connects to a MIDI device
-     * @param deviceInfo The MIDI device info
+     * @param device The MIDI device, as cached by the device registry
      * @return True if connection was successful
      */
-    public boolean connectToDevice(MidiDevice.Info deviceInfo) {
+    public boolean connectToDevice(MidiDevice device) {
         try {
-            logger.info("Connecting to MIDI device: {}...", deviceInfo.getName());
+            logger.info("Connecting to MIDI device: {}...", device.getDeviceInfo().getName());
             
             // Close any existing connection
             disconnectFromDevice();
             
             // Open the new device
-            MidiDevice device = MidiSystem.getMidiDevice(deviceInfo);
             if (!device.isOpen()) {
                 device.open();
             }
             
             // Set up the MIDI receiver
-            midiReceiver = new MidiInputReceiver();
+            midiReceiver = new MidiInputReceiver(traceService.registerSource(device.getDeviceInfo().getName()));
             
             // Get a transmitter from the device
             midiTransmitter = device.getTransmitter();
@@ -156,17 +157,20 @@ public class MidiProcessingService {
         }
         
         logger.info("Starting recording...");
-        isRecording = true;
-        recordedEvents.clear();
-        recordedNotes.clear();
-        activeNotes.clear();
-        startTime = System.currentTimeMillis();
-        
         // Generate a unique ID for this recording
-        currentRecordingId = UUID.randomUUID().toString();
-        logger.info("Recording started with ID: {}", currentRecordingId);
+        String recordingId = UUID.randomUUID().toString();
+        synchronized (this) {
+            recordedEvents.clear();
+            clearRecordedKeys();
+            activeNotes.clear();
+            transcriber = new IncrementalTranscriber(lilyPondEmitter, transcriptionConfig);
+            startTime = System.currentTimeMillis();
+            currentRecordingId = recordingId;
+            isRecording = true;
+        }
+        logger.info("Recording started with ID: {}", recordingId);
         
-        return currentRecordingId;
+        return recordingId;
     }
     
     /**
@@ -174,22 +178,30 @@ public class MidiProcessingService {
      * @return The list of recorded notes
      */
     public List<String> stopRecording() {
-        if (!isRecording) {
-            logger.warn("Cannot stop recording: Not currently recording");
-            return Collections.emptyList();
+        IncrementalTranscriber transcription;
+        synchronized (this) {
+            if (!isRecording) {
+                logger.warn("Cannot stop recording: Not currently recording");
+                return Collections.emptyList();
+            }
+            
+            logger.info("Stopping recording...");
+            // No note event reaches the transcriber after this
+            isRecording = false;
+            transcription = transcriber;
         }
         
-        logger.info("Stopping recording...");
-        isRecording = false;
-        
         // Calculate duration
         long duration = System.currentTimeMillis() - startTime;
         
+        // Only the notes still buffered in the transcriber are left to convert
+        transcription.finish();
+        
         logger.info("Recording stopped and processed");
-        logger.info("Notes recorded: {}", recordedNotes.size());
+        logger.info("Notes recorded: {}", getRecordedKeys().length);
         logger.info("Duration: {} seconds", duration / 1000.0);
         
-        return new ArrayList<>(recordedNotes);
+        return getRecordedNotes();
     }
     
     /**
@@ -232,27 +244,71 @@ public class MidiProcessingService {
      * @return The path to the generated PDF file
      */
     public String generatePDFFromRecording() {
-        if (recordedNotes.isEmpty()) {
+        IncrementalTranscriber transcription = transcriptionToFinish();
+        transcription.finish();
+        if (transcription.isEmpty()) {
             logger.warn("No notes recorded to generate PDF");
             return null;
         }
         
-        return generatePDF(recordedNotes, currentRecordingId);
+        return generatePDF(out -> {
+            lilyPondEmitter.writeVersion(out);
+            out.append("\\score {\n");
+            transcription.writeStaff(out, "  ", null);
+            lilyPondEmitter.closeScore(out);
+        }, currentRecordingId);
+    }
+    
+    /**
+     * Gets a transcription that no more notes are added to: the transcriber of a stopped recording,
+     * or a copy of the notes committed so far while recording, since the live one must not be finished
+     */
+    private synchronized IncrementalTranscriber transcriptionToFinish() {
+        if (!isRecording) {
+            return transcriber;
+        }
+        IncrementalTranscriber copy = new IncrementalTranscriber(lilyPondEmitter, transcriptionConfig);
+        for (MidiDeviceService.MidiNote note : transcriber.getNotes()) {
+            copy.noteOn(note.getKey(), note.getVelocity(), note.getStartTime());
+            copy.noteOff(note.getKey(), note.getStartTime() + note.getDuration());
+        }
+        return copy;
     }
     
     /**
      * Generates a PDF from a list of notes
-     * @param notes The list of notes
+     * @param notes The list of notes (e.g., "C4")
      * @param id The ID to use for the generated files
      * @return The path to the generated PDF file
      */
     public String generatePDF(List<String> notes, String id) {
+        int[] keys = new int[notes.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = noteNameToMidiNumber(notes.get(i));
+        }
+        return generatePDF(keys, id);
+    }
+    
+    /**
+     * Generates a PDF from MIDI key numbers
+     * @param keys The MIDI key numbers, in order
+     * @param id The ID to use for the generated files
+     * @return The path to the generated PDF file
+     */
+    public String generatePDF(int[] keys, String id) {
+        return generatePDF(out -> writeLilyPondCode(out, keys), id);
+    }
+    
+    /**
+     * Generates a PDF from a LilyPond document
+     * @param document Writes the LilyPond code
+     * @param id The ID to use for the generated files
+     * @return The path to the generated PDF file
+     */
+    private String generatePDF(LilyPondEmitter.Document document, String id) {
         try {
-            // Generate LilyPond code from notes
-            String lilyPondCode = generateLilyPondCode(notes);
-            
-            // Use LilyPondService to generate PDF
-            Map<String, String> generatedFiles = lilyPondService.generateFiles(lilyPondCode, id);
+            // Use LilyPondService to generate PDF; the code is emitted straight into the .ly file
+            Map<String, String> generatedFiles = lilyPondService.generateFiles(document, id);
             
             if (!generatedFiles.containsKey("pdf")) {
                 logger.error("PDF generation failed: No PDF file returned");
@@ -296,77 +352,29 @@ public class MidiProcessingService {
     }
     
     /**
-     * Generates LilyPond code from a list of notes
-     * @param notes The list of notes
-     * @return The generated LilyPond code
-     */
-    private String generateLilyPondCode(List<String> notes) {
-        StringBuilder lilyPondCode = new StringBuilder();
-        
-        // Add LilyPond header
-        lilyPondCode.append("\\version \"2.20.0\"\n");
-        lilyPondCode.append("\\score {\n");
-        lilyPondCode.append("  \\new Staff {\n");
-        lilyPondCode.append("    \\clef treble\n");
-        lilyPondCode.append("    \\time 4/4\n");
-        lilyPondCode.append("    \\tempo 4 = 120\n");
-        
-        // Add notes
-        lilyPondCode.append("    ");
-        for (String note : notes) {
-            // Convert MIDI note name to LilyPond format
-            String lilyNote = convertToLilyPondNote(note);
-            lilyPondCode.append(lilyNote).append(" ");
-        }
-        lilyPondCode.append("\n");
-        
-        // Close LilyPond code
-        lilyPondCode.append("  }\n");
-        lilyPondCode.append("  \\layout { }\n");
-        lilyPondCode.append("  \\midi { }\n");
-        lilyPondCode.append("}\n");
-        
-        return lilyPondCode.toString();
-    }
-    
-    /**
-     * Converts a MIDI note name to LilyPond format
-     * @param midiNote The MIDI note name (e.g., "C4")
-     * @return The LilyPond note name
+     * Writes LilyPond code for a sequence of notes
+     * @param out Target
+     * @param keys The MIDI key numbers, in order
      */
-    private String convertToLilyPondNote(String midiNote) {
-        if (midiNote == null || midiNote.length() < 2) {
-            return "c'";
+    private void writeLilyPondCode(Appendable out, int[] keys) throws IOException {
+        lilyPondEmitter.writeVersion(out);
+        out.append("\\score {\n");
+        // Durations are not tracked here, so every note weighs the same for the key and takes the
+        // default (quarter) length
+        KeyDetector keyDetector = new KeyDetector(1);
+        for (int key : keys) {
+            keyDetector.addNote(key, 500);
         }
+        KeyDetector.Key key = keyDetector.getKey();
+        lilyPondEmitter.openStaff(out, "  ", null, "treble", key, 4, 120);
         
-        // Extract note name and octave
-        String noteName = midiNote.substring(0, midiNote.length() - 1).toLowerCase();
-        int octave = Integer.parseInt(midiNote.substring(midiNote.length() - 1));
-        
-        // Convert sharp/flat notation
-        if (noteName.contains("#")) {
-            noteName = noteName.replace("#", "is");
-        } else if (noteName.contains("b")) {
-            noteName = noteName.replace("b", "es");
+        for (int k : keys) {
+            lilyPondEmitter.writePitch(out, k, key.usesFlats());
+            out.append(' ');
         }
         
-        // Add octave markers
-        StringBuilder lilyNote = new StringBuilder(noteName);
-        
-        // Middle C (C4) in LilyPond is c'
-        if (octave == 4) {
-            lilyNote.append("'");
-        } else if (octave > 4) {
-            for (int i = 0; i < octave - 4; i++) {
-                lilyNote.append("'");
-            }
-        } else if (octave < 4) {
-            for (int i = 0; i < 4 - octave; i++) {
-                lilyNote.append(",");
-            }
-        }
-        
-        return lilyNote.toString();
+        lilyPondEmitter.closeStaff(out, "  ");
+        lilyPondEmitter.closeScore(out);
     }
     
     /**
@@ -384,6 +392,7 @@ public class MidiProcessingService {
      * Converts a note name to a MIDI note number
      * @param noteName The note name (e.g., "C4")
      * @return The MIDI note number
+     * @throws IllegalArgumentException If the note lies outside the MIDI range (C-1 to G9)
      */
     private int noteNameToMidiNumber(String noteName) {
         if (noteName == null || noteName.length() < 2) {
@@ -405,7 +414,11 @@ public class MidiProcessingService {
             return 60; // Default to middle C
         }
         
-        return (octave + 1) * 12 + noteIndex;
+        int noteNumber = (octave + 1) * 12 + noteIndex;
+        if (noteNumber > 127) {
+            throw new IllegalArgumentException("Note is outside the MIDI range (C-1 to G9): " + noteName);
+        }
+        return noteNumber;
     }
     
     /**
@@ -413,12 +426,15 @@ public class MidiProcessingService {
      * @param noteNumber The MIDI note number
      * @param velocity The velocity of the note
      */
-    private void processNoteOn(int noteNumber, int velocity) {
+    private synchronized void processNoteOn(int noteNumber, int velocity) {
+        if (!isRecording) {
+            return;
+        }
         if (velocity > 0) {
-            String noteName = midiNumberToNoteName(noteNumber);
-            activeNotes.put(noteNumber, System.currentTimeMillis());
-            recordedNotes.add(noteName);
-            logger.info("Note On: {}", noteName);
+            long now = System.currentTimeMillis();
+            activeNotes.put(noteNumber, now);
+            addRecordedKey(noteNumber);
+            transcriber.noteOn(noteNumber, velocity, now - startTime);
         } else {
             processNoteOff(noteNumber);
         }
@@ -428,12 +444,31 @@ public class MidiProcessingService {
      * Processes a note off event
      * @param noteNumber The MIDI note number
      */
-    private void processNoteOff(int noteNumber) {
-        if (activeNotes.containsKey(noteNumber)) {
-            String noteName = midiNumberToNoteName(noteNumber);
-            activeNotes.remove(noteNumber);
-            logger.info("Note Off: {}", noteName);
+    private synchronized void processNoteOff(int noteNumber) {
+        if (!isRecording) {
+            return;
         }
+        activeNotes.remove(noteNumber);
+        transcriber.noteOff(noteNumber, System.currentTimeMillis() - startTime);
+    }
+    
+    private synchronized void addRecordedKey(int key) {
+        if (recordedKeyCount == recordedKeys.length) {
+            recordedKeys = Arrays.copyOf(recordedKeys, recordedKeyCount * 2);
+        }
+        recordedKeys[recordedKeyCount++] = key;
+    }
+    
+    private synchronized void clearRecordedKeys() {
+        recordedKeyCount = 0;
+    }
+    
+    /**
+     * Gets the recorded MIDI key numbers
+     * @return A copy of the recorded keys, in order
+     */
+    public synchronized int[] getRecordedKeys() {
+        return Arrays.copyOf(recordedKeys, recordedKeyCount);
     }
     
     /**
@@ -452,6 +487,22 @@ public class MidiProcessingService {
         return result;
     }
     
+    /**
+     * Gets the notes of the current (or last) recording with their timing
+     * @return Notes in start-time order, relative to the start of the recording
+     */
+    public List<MidiDeviceService.MidiNote> getRecordedMidiNotes() {
+        return transcriber.getNotes();
+    }
+    
+    /**
+     * Gets the tempo estimated for the current (or last) recording
+     * @return Quarter notes per minute
+     */
+    public int getRecordedTempoBpm() {
+        return transcriber.getTempoBpm();
+    }
+    
     /**
      * Gets the current recording ID
      * @return The current recording ID
@@ -465,7 +516,12 @@ public class MidiProcessingService {
      * @return The list of recorded notes
      */
     public List<String> getRecordedNotes() {
-        return new ArrayList<>(recordedNotes);
+        int[] keys = getRecordedKeys();
+        List<String> notes = new ArrayList<>(keys.length);
+        for (int key : keys) {
+            notes.add(midiNumberToNoteName(key));
+        }
+        return notes;
     }
     
     /**
@@ -480,8 +536,16 @@ public class MidiProcessingService {
      * Inner class to handle MIDI input
      */
     private class MidiInputReceiver implements Receiver {
+        private final int traceSource;
+        
+        MidiInputReceiver(int traceSource) {
+            this.traceSource = traceSource;
+        }
+        
         @Override
         public void send(MidiMessage message, long timeStamp) {
+            traceService.record(traceSource, message);
+            
             if (!isRecording) {
                 return;
             }
@@ -510,16 +574,21 @@ public class MidiProcessingService {
     }
 
    
+    /**
+     * Plays a note into the running recording
+     * @param note The note name (e.g., "C4")
+     * @throws IllegalArgumentException If the note name is invalid or outside the MIDI range
+     */
     public void simulateNote(String note) {
+        // Convert note name to MIDI note number; invalid notes are the caller's error
+        int noteNumber = noteNameToMidiNumber(note);
+        
         if (!isRecording) {
             logger.warn("Cannot simulate note: Not recording");
             return;
         }
         
         try {
-            // Convert note name to MIDI note number
-            int noteNumber = noteNameToMidiNumber(note);
-            
             // Simulate note on
             logger.info("Simulated Note On: {}", note);
             processNoteOn(noteNumber, 64);
@@ -0,0 +1,243 @@
+package com.example.keyworks.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import java.lang.invoke.VarHandle;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Low-overhead diagnostics for raw MIDI input.
+ * Every received message is written into a fixed-size in-memory ring of primitives without
+ * allocating, and counted per kind. Instead of logging each event, a once-per-second summary
+ * of the event rates is logged; the ring itself is only formatted when dumped on demand.
+ */
+@Service
+public class MidiTraceService {
+
+    private static final Logger logger = LoggerFactory.getLogger(MidiTraceService.class);
+
+    private final int mask;
+    private final long[] times;
+    private final int[] messages;
+    private final int[] sources;
+
+    // Per-slot seqlock stamp: 2 * seq + 1 while event seq is being written, 2 * seq + 2 once it is
+    // published, 0 for a slot never written. Readers accept a slot only if the stamp is the published
+    // stamp of the event they want both before and after reading the fields.
+    private final AtomicLongArray slotSequences;
+    private final AtomicLong sequence = new AtomicLong();
+
+    // Source names are registered once per receiver, never on the hot path
+    private final Map<String, Integer> sourceIds = new ConcurrentHashMap<>();
+    private final List<String> sourceNames = new CopyOnWriteArrayList<>();
+
+    // Events since the last summary, by kind
+    private final LongAdder noteOnCount = new LongAdder();
+    private final LongAdder noteOffCount = new LongAdder();
+    private final LongAdder controlCount = new LongAdder();
+    private final LongAdder otherCount = new LongAdder();
+
+    public MidiTraceService(@Value("${midi.trace.capacity:4096}") int capacity) {
+        int size = Integer.highestOneBit((Math.max(16, capacity) - 1) << 1);
+        this.mask = size - 1;
+        this.times = new long[size];
+        this.messages = new int[size];
+        this.sources = new int[size];
+        this.slotSequences = new AtomicLongArray(size);
+    }
+
+    /**
+     * Registers a named input and returns the compact ID to pass to {@link #record}
+     * @param name Device or source name
+     * @return Source ID
+     */
+    public int registerSource(String name) {
+        return sourceIds.computeIfAbsent(name, n -> {
+            synchronized (sourceNames) {
+                sourceNames.add(n);
+                return sourceNames.size() - 1;
+            }
+        });
+    }
+
+    /**
+     * Records a raw message. Safe to call from any number of receiver threads; does not allocate.
+     * @param source Source ID from {@link #registerSource}
+     * @param message The received message
+     */
+    public void record(int source, MidiMessage message) {
+        int status = message.getStatus();
+        int data1 = 0;
+        int data2 = 0;
+        if (message instanceof ShortMessage sm) {
+            data1 = sm.getData1();
+            data2 = sm.getData2();
+        }
+        record(source, status, data1, data2, message.getLength());
+    }
+
+    /**
+     * Records a raw message given as its components
+     * @param source Source ID from {@link #registerSource}
+     * @param status Status byte
+     * @param data1 First data byte
+     * @param data2 Second data byte
+     * @param length Total message length in bytes
+     */
+    public void record(int source, int status, int data1, int data2, int length) {
+        long seq = sequence.getAndIncrement();
+        int slot = (int) (seq & mask);
+        long writing = 2 * seq + 1;
+
+        // Claim the slot. Writers only meet here when the ring laps a preempted writer: wait out one
+        // that is mid-write, and drop this event if a newer one already owns the slot.
+        boolean claimed = false;
+        while (true) {
+            long stamp = slotSequences.get(slot);
+            if (stamp > writing) {
+                break;
+            }
+            if ((stamp & 1) != 0) {
+                Thread.onSpinWait();
+            } else if (slotSequences.compareAndSet(slot, stamp, writing)) {
+                claimed = true;
+                break;
+            }
+        }
+
+        if (claimed) {
+            // The CAS keeps these writes after the odd stamp; the release store keeps them before the even one
+            times[slot] = System.nanoTime();
+            messages[slot] = (status & 0xFF) | (data1 & 0xFF) << 8 | (data2 & 0xFF) << 16 | Math.min(length, 0xFF) << 24;
+            sources[slot] = source;
+            slotSequences.setRelease(slot, writing + 1);
+        }
+
+        int command = status & 0xF0;
+        if (command == ShortMessage.NOTE_ON && data2 > 0) {
+            noteOnCount.increment();
+        } else if (command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF) {
+            noteOffCount.increment();
+        } else if (command == ShortMessage.CONTROL_CHANGE) {
+            controlCount.increment();
+        } else {
+            otherCount.increment();
+        }
+    }
+
+    /**
+     * Logs the event rates of the last second, if there were any events
+     */
+    @Scheduled(fixedRate = 1000)
+    public void logRateSummary() {
+        long noteOn = noteOnCount.sumThenReset();
+        long noteOff = noteOffCount.sumThenReset();
+        long control = controlCount.sumThenReset();
+        long other = otherCount.sumThenReset();
+        long total = noteOn + noteOff + control + other;
+        if (total > 0) {
+            logger.info("MIDI input: {} events/s (note on: {}, note off: {}, control: {}, other: {})",
+                total, noteOn, noteOff, control, other);
+        }
+    }
+
+    /**
+     * @return Number of events the ring holds
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return Total number of messages recorded since startup
+     */
+    public long getTotalEvents() {
+        return sequence.get();
+    }
+
+    /**
+     * Formats the most recent events, oldest first
+     * @param limit Maximum number of events to return
+     * @return Decoded events
+     */
+    public List<Map<String, Object>> dump(int limit) {
+        long end = sequence.get();
+        long start = Math.max(0, end - Math.min(limit, mask + 1));
+        long now = System.nanoTime();
+
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (long seq = start; seq < end; seq++) {
+            int slot = (int) (seq & mask);
+            long published = 2 * seq + 2;
+
+            // Give a writer that is filling in exactly this event a moment to finish
+            long stamp = slotSequences.getAcquire(slot);
+            for (int spins = 0; stamp == published - 1 && spins < 1000; spins++) {
+                Thread.onSpinWait();
+                stamp = slotSequences.getAcquire(slot);
+            }
+            if (stamp != published) {
+                // Not written yet, or already overwritten by a newer event
+                continue;
+            }
+            long time = times[slot];
+            int packed = messages[slot];
+            int source = sources[slot];
+            // Keep the field reads before the re-check, then skip slots that were overwritten while we read them
+            VarHandle.loadLoadFence();
+            if (slotSequences.get(slot) != published) {
+                continue;
+            }
+
+            int status = packed & 0xFF;
+            int data1 = (packed >>> 8) & 0xFF;
+            int data2 = (packed >>> 16) & 0xFF;
+            int length = (packed >>> 24) & 0xFF;
+
+            Map<String, Object> event = new LinkedHashMap<>();
+            event.put("sequence", seq);
+            event.put("ageMs", (now - time) / 1_000_000.0);
+            event.put("source", source < sourceNames.size() ? sourceNames.get(source) : "unknown");
+            event.put("command", commandToString(status));
+            event.put("channel", status < 0xF0 ? (status & 0x0F) + 1 : null);
+            event.put("data1", data1);
+            event.put("data2", data2);
+            event.put("length", length);
+            event.put("hex", length >= 3
+                ? String.format("%02X %02X %02X", status, data1, data2)
+                : length == 2 ? String.format("%02X %02X", status, data1) : String.format("%02X", status));
+            events.add(event);
+        }
+        return events;
+    }
+
+    /**
+     * Convert a MIDI status byte to a readable command name
+     */
+    private static String commandToString(int status) {
+        if (status >= 0xF0) {
+            return status == 0xF0 || status == 0xF7 ? "SYSEX" : String.format("SYSTEM(%02X)", status);
+        }
+        switch (status & 0xF0) {
+            case ShortMessage.NOTE_ON: return "NOTE_ON";
+            case ShortMessage.NOTE_OFF: return "NOTE_OFF";
+            case ShortMessage.CONTROL_CHANGE: return "CONTROL_CHANGE";
+            case ShortMessage.PROGRAM_CHANGE: return "PROGRAM_CHANGE";
+            case ShortMessage.PITCH_BEND: return "PITCH_BEND";
+            case ShortMessage.CHANNEL_PRESSURE: return "CHANNEL_PRESSURE";
+            case ShortMessage.POLY_PRESSURE: return "POLY_PRESSURE";
+            default: return "UNKNOWN(" + (status & 0xF0) + ")";
+        }
+    }
+}
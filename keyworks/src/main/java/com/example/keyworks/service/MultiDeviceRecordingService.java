@@ -0,0 +1,417 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.service.MidiDeviceService.MidiNote;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.sound.midi.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records from several MIDI inputs at once.
+ * Every device gets its own lock-free ingest lane tagged with a source index; when the session
+ * stops, the lanes are k-way merged into one time-ordered stream and written as a multi-staff score.
+ */
+@Service
+public class MultiDeviceRecordingService {
+
+    private static final Logger logger = LoggerFactory.getLogger(MultiDeviceRecordingService.class);
+
+    private final MidiDeviceRegistry deviceRegistry;
+    private final MidiDeviceService midiDeviceService;
+    private final MidiTraceService traceService;
+    private final long idleTimeoutNanos;
+
+    // Active sessions by ID
+    private final Map<String, RecordingSession> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * How merged notes are distributed over staves
+     */
+    public enum StaffLayout {
+        /** One staff per input device */
+        DEVICE,
+        /** One staff per MIDI channel of each input device */
+        CHANNEL
+    }
+
+    public MultiDeviceRecordingService(MidiDeviceRegistry deviceRegistry, MidiDeviceService midiDeviceService,
+                                       MidiTraceService traceService,
+                                       @Value("${midi.sessions.idle-timeout-ms:600000}") long idleTimeoutMs) {
+        this.deviceRegistry = deviceRegistry;
+        this.midiDeviceService = midiDeviceService;
+        this.traceService = traceService;
+        this.idleTimeoutNanos = idleTimeoutMs * 1_000_000L;
+    }
+
+    /**
+     * Starts capturing from all given devices simultaneously
+     * @param deviceIds Registry IDs of the input devices to record from
+     * @param layout How notes are distributed over staves
+     * @return The new session
+     * @throws MidiUnavailableException If one of the devices cannot be opened
+     */
+    public RecordingSession startSession(List<String> deviceIds, StaffLayout layout) throws MidiUnavailableException {
+        if (deviceIds == null || deviceIds.isEmpty()) {
+            throw new IllegalArgumentException("At least one device ID is required");
+        }
+
+        List<MidiDeviceRegistry.DeviceEntry> entries = new ArrayList<>();
+        for (String deviceId : deviceIds) {
+            MidiDeviceRegistry.DeviceEntry entry = deviceRegistry.findById(deviceId)
+                .orElseThrow(() -> new IllegalArgumentException("MIDI device not found with ID: " + deviceId));
+            if (!entry.isAvailable() || !entry.canTransmit()) {
+                throw new IllegalArgumentException("MIDI device cannot be used for recording: " + entry.getName());
+            }
+            entries.add(entry);
+        }
+
+        RecordingSession session = new RecordingSession(UUID.randomUUID().toString(), layout);
+        try {
+            for (MidiDeviceRegistry.DeviceEntry entry : entries) {
+                session.attach(entry, traceService);
+            }
+        } catch (MidiUnavailableException e) {
+            session.close();
+            throw e;
+        }
+
+        sessions.put(session.getId(), session);
+        logger.info("Started multi-device session {} with {} devices", session.getId(), entries.size());
+        return session;
+    }
+
+    /**
+     * Stops a session, merges its lanes and converts the result to LilyPond
+     * @param sessionId The session ID
+     * @return Recording data including LilyPond code, or null if the session does not exist
+     */
+    public Map<String, Object> stopSession(String sessionId) {
+        RecordingSession session = sessions.remove(sessionId);
+        if (session == null) {
+            return null;
+        }
+
+        // Closing the transmitters guarantees no producer is still appending while we merge
+        long stopNanos = session.close();
+
+        List<MidiEventLane> lanes = session.getLanes();
+        NotePairing pairing = new NotePairing(lanes.size(), session.getStartNanos());
+        long eventCount = MidiLaneMerger.merge(lanes, pairing);
+        // Keys still held when the session stopped end with it
+        pairing.closeAll(stopNanos);
+
+        // Notes complete in note-off order; staves and stored recordings list them by onset
+        List<MidiNote> notes = pairing.notes;
+        notes.sort(Comparator.comparingLong(MidiNote::getStartTime));
+
+        Map<String, List<MidiNote>> staves = buildStaves(session, notes);
+        String lilyPondCode = midiDeviceService.convertToMultiStaffLilyPond(staves);
+        // Stored so that every export of the recording uses the tempo of the LilyPond score
+        int tempoBpm = midiDeviceService.estimateTempoBpm(staves);
+
+        List<Map<String, Object>> sources = new ArrayList<>();
+        for (MidiEventLane lane : lanes) {
+            Map<String, Object> source = new HashMap<>();
+            source.put("source", lane.getSource());
+            source.put("name", lane.getSourceName());
+            source.put("events", lane.size());
+            sources.add(source);
+        }
+
+        Map<String, Object> recordingData = new HashMap<>();
+        recordingData.put("id", session.getId());
+        recordingData.put("noteCount", notes.size());
+        recordingData.put("eventCount", eventCount);
+        recordingData.put("duration", (stopNanos - session.getStartNanos()) / 1_000_000L);
+        recordingData.put("lilyPondCode", lilyPondCode);
+        recordingData.put("notes", notes);
+        recordingData.put("tempoBpm", tempoBpm);
+        recordingData.put("staves", new ArrayList<>(staves.keySet()));
+        recordingData.put("sources", sources);
+
+        // Make the session available to the regular recording lookups (e.g. PDF generation)
+        midiDeviceService.storeRecording(session.getId(), recordingData);
+
+        logger.info("Stopped multi-device session {}: {} events, {} notes, {} staves",
+            session.getId(), eventCount, notes.size(), staves.size());
+        return recordingData;
+    }
+
+    /**
+     * Ends every session that records from a device that was unplugged. The notes captured so far are
+     * merged and stored as usual, with the detached device noted in the recording data.
+     * @param event Attach/detach event from the device registry
+     */
+    @EventListener
+    public void onDeviceEvent(MidiDeviceRegistry.MidiDeviceEvent event) {
+        if (event.getType() != MidiDeviceRegistry.MidiDeviceEvent.Type.DETACHED) {
+            return;
+        }
+
+        String deviceId = event.getDevice().getId();
+        for (RecordingSession session : sessions.values()) {
+            if (!session.usesDevice(deviceId)) {
+                continue;
+            }
+            logger.warn("MIDI device {} was detached, ending session {}", event.getDevice().getName(), session.getId());
+            Map<String, Object> recordingData = stopSession(session.getId());
+            if (recordingData != null) {
+                recordingData.put("deviceDetached", event.getDevice().getName());
+            }
+        }
+    }
+
+    /**
+     * Stops sessions that have received no MIDI event for longer than the idle timeout, so sessions
+     * nobody stops don't keep their devices and lanes forever. Their notes are stored as usual.
+     */
+    @Scheduled(fixedDelay = 30000)
+    public void stopIdleSessions() {
+        long now = System.nanoTime();
+        for (RecordingSession session : sessions.values()) {
+            if (now - session.getLastEventNanos() <= idleTimeoutNanos) {
+                continue;
+            }
+            logger.warn("Stopping multi-device session {} after {} ms without input",
+                session.getId(), (now - session.getLastEventNanos()) / 1_000_000L);
+            Map<String, Object> recordingData = stopSession(session.getId());
+            if (recordingData != null) {
+                recordingData.put("idleTimeout", true);
+            }
+        }
+    }
+
+    /**
+     * Releases the devices of all sessions still running at shutdown
+     */
+    @PreDestroy
+    public void shutdown() {
+        for (Iterator<RecordingSession> it = sessions.values().iterator(); it.hasNext(); ) {
+            RecordingSession session = it.next();
+            it.remove();
+            session.close();
+            logger.info("Closed multi-device session {} at shutdown", session.getId());
+        }
+    }
+
+    /**
+     * Gets an active session
+     * @param sessionId The session ID
+     * @return The session, if it is still recording
+     */
+    public Optional<RecordingSession> getSession(String sessionId) {
+        return Optional.ofNullable(sessions.get(sessionId));
+    }
+
+    /**
+     * Groups merged notes into staves according to the session layout
+     */
+    private Map<String, List<MidiNote>> buildStaves(RecordingSession session, List<MidiNote> notes) {
+        List<MidiEventLane> lanes = session.getLanes();
+
+        // Key staves by source (and channel) so they come out in a stable order
+        TreeMap<Integer, List<MidiNote>> byStaff = new TreeMap<>();
+        for (MidiNote note : notes) {
+            int staffKey = session.getLayout() == StaffLayout.CHANNEL
+                ? note.getSource() * 16 + note.getChannel()
+                : note.getSource();
+            byStaff.computeIfAbsent(staffKey, k -> new ArrayList<>()).add(note);
+        }
+
+        Map<String, List<MidiNote>> staves = new LinkedHashMap<>();
+        for (Map.Entry<Integer, List<MidiNote>> entry : byStaff.entrySet()) {
+            int source = session.getLayout() == StaffLayout.CHANNEL ? entry.getKey() / 16 : entry.getKey();
+            String name = lanes.get(source).getSourceName();
+            if (session.getLayout() == StaffLayout.CHANNEL) {
+                name += " ch" + (entry.getKey() % 16 + 1);
+            }
+
+            // Notes are in onset order, as the staff needs them
+            staves.put(name, entry.getValue());
+        }
+        return staves;
+    }
+
+    /**
+     * Turns the merged event stream back into notes by pairing note-on and note-off per source, channel and key
+     */
+    private static class NotePairing implements MidiLaneMerger.EventSink {
+        private final long startNanos;
+        private final long[] activeStart;
+        private final int[] activeVelocity;
+        private final List<MidiNote> notes = new ArrayList<>();
+
+        NotePairing(int sourceCount, long startNanos) {
+            this.startNanos = startNanos;
+            this.activeStart = new long[sourceCount * 16 * 128];
+            this.activeVelocity = new int[sourceCount * 16 * 128];
+            Arrays.fill(activeStart, -1L);
+        }
+
+        @Override
+        public void accept(long timeNanos, int source, int packedMessage) {
+            int status = MidiEventLane.status(packedMessage);
+            int command = status & 0xF0;
+            if (command != ShortMessage.NOTE_ON && command != ShortMessage.NOTE_OFF) {
+                return;
+            }
+
+            int channel = status & 0x0F;
+            int key = MidiEventLane.data1(packedMessage);
+            int velocity = MidiEventLane.data2(packedMessage);
+            int slot = (source * 16 + channel) * 128 + key;
+
+            // A retriggered key closes the sounding note first
+            if (activeStart[slot] >= 0) {
+                close(slot, timeNanos, source, channel, key);
+            }
+            if (command == ShortMessage.NOTE_ON && velocity > 0) {
+                activeStart[slot] = timeNanos;
+                activeVelocity[slot] = velocity;
+            }
+        }
+
+        /**
+         * Ends every note that is still sounding
+         */
+        void closeAll(long timeNanos) {
+            for (int slot = 0; slot < activeStart.length; slot++) {
+                if (activeStart[slot] >= 0) {
+                    close(slot, Math.max(timeNanos, activeStart[slot]), slot / (16 * 128), (slot / 128) % 16, slot % 128);
+                }
+            }
+        }
+
+        private void close(int slot, long timeNanos, int source, int channel, int key) {
+            long start = activeStart[slot];
+            notes.add(new MidiNote(key, activeVelocity[slot],
+                (start - startNanos) / 1_000_000L, (timeNanos - start) / 1_000_000L, channel, source));
+            activeStart[slot] = -1L;
+        }
+    }
+
+    /**
+     * A set of devices being captured together
+     */
+    public static class RecordingSession {
+        private final String id;
+        private final StaffLayout layout;
+        private final long startNanos = System.nanoTime();
+        private final List<MidiEventLane> lanes = new ArrayList<>();
+        private final List<Transmitter> transmitters = new ArrayList<>();
+        private final List<MidiDevice> openedDevices = new ArrayList<>();
+        private final Set<String> deviceIds = new HashSet<>();
+        private volatile boolean recording = true;
+        private volatile long lastEventNanos = startNanos;
+
+        RecordingSession(String id, StaffLayout layout) {
+            this.id = id;
+            this.layout = layout;
+        }
+
+        private void attach(MidiDeviceRegistry.DeviceEntry entry, MidiTraceService traceService)
+                throws MidiUnavailableException {
+            MidiDevice device = entry.getDevice();
+            if (!device.isOpen()) {
+                device.open();
+                openedDevices.add(device);
+            }
+
+            MidiEventLane lane = new MidiEventLane(lanes.size(), entry.getName());
+            Transmitter transmitter = device.getTransmitter();
+            transmitter.setReceiver(new LaneReceiver(lane, this, traceService, traceService.registerSource(entry.getName())));
+            lanes.add(lane);
+            transmitters.add(transmitter);
+            deviceIds.add(entry.getId());
+        }
+
+        /**
+         * @return Time the session stopped recording
+         */
+        private long close() {
+            recording = false;
+            long stopNanos = System.nanoTime();
+            for (Transmitter transmitter : transmitters) {
+                transmitter.close();
+            }
+            for (MidiDevice device : openedDevices) {
+                device.close();
+            }
+            return stopNanos;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public StaffLayout getLayout() {
+            return layout;
+        }
+
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        public List<MidiEventLane> getLanes() {
+            return Collections.unmodifiableList(lanes);
+        }
+
+        public boolean isRecording() {
+            return recording;
+        }
+
+        /**
+         * @return Time of the last event received from any device, or the start time if there was none
+         */
+        public long getLastEventNanos() {
+            return lastEventNanos;
+        }
+
+        /**
+         * @return True if one of the session's lanes records from the given registry device
+         */
+        public boolean usesDevice(String deviceId) {
+            return deviceIds.contains(deviceId);
+        }
+    }
+
+    /**
+     * Receiver bound to one lane; runs on the device's delivery thread, which is the lane's only producer
+     */
+    private static class LaneReceiver implements Receiver {
+        private final MidiEventLane lane;
+        private final RecordingSession session;
+        private final MidiTraceService traceService;
+        private final int traceSource;
+
+        LaneReceiver(MidiEventLane lane, RecordingSession session, MidiTraceService traceService, int traceSource) {
+            this.lane = lane;
+            this.session = session;
+            this.traceService = traceService;
+            this.traceSource = traceSource;
+        }
+
+        @Override
+        public void send(MidiMessage message, long timeStamp) {
+            traceService.record(traceSource, message);
+            // Device timestamps use per-device clocks, so stamp with the shared monotonic clock instead
+            if (session.isRecording() && message instanceof ShortMessage sm) {
+                long now = System.nanoTime();
+                lane.append(now, sm.getStatus(), sm.getData1(), sm.getData2());
+                session.lastEventNanos = now;
+            }
+        }
+
+        @Override
+        public void close() {
+            // Nothing to close
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.config.TranscriptionConfig;
+import com.example.keyworks.service.MidiDeviceService.MidiNote;
+import org.springframework.stereotype.Component;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.OutputStream;
+import java.util.*;
+
+/**
+ * Writes recorded notes as a MusicXML (partwise) score for other notation programs.
+ * Output goes straight to a {@link XMLStreamWriter}, measure by measure: only the notes of the
+ * measure being written (and ties into the next one) are held, so memory does not grow with the
+ * length of the recording. Notes are quantized on the same grid as the LilyPond transcription:
+ * onsets within the chord tolerance form chords, notes still sounding at the next onset go to
+ * further voices (separated by {@code <backup>}), and notes crossing a barline are tied.
+ */
+@Component
+public class MusicXmlWriter {
+
+    private static final XMLOutputFactory XML_OUTPUT = XMLOutputFactory.newFactory();
+
+    // Note types by log2 of the length in 32nd notes
+    private static final String[] TYPES = {"32nd", "16th", "eighth", "quarter", "half", "whole"};
+
+    private static final String[] SHARP_STEPS = {"C", "C", "D", "D", "E", "F", "F", "G", "G", "A", "A", "B"};
+    private static final int[] SHARP_ALTERS = {0, 1, 0, 1, 0, 0, 1, 0, 1, 0, 1, 0};
+    private static final String[] FLAT_STEPS = {"C", "D", "D", "E", "E", "F", "G", "G", "A", "A", "B", "B"};
+    private static final int[] FLAT_ALTERS = {0, -1, 0, -1, 0, 0, -1, 0, -1, 0, -1, 0};
+
+    // Lowest average key still written in the treble clef (G3)
+    private static final int TREBLE_CLEF_FLOOR = 55;
+
+    private final TranscriptionConfig config;
+
+    public MusicXmlWriter(TranscriptionConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Groups notes into parts by source
+     * @param notes Notes in any order
+     * @param sourceNames Part name per source index; sources without a name are called "Part n"
+     * @return Part name to notes sorted by start time, in source order
+     */
+    public static Map<String, List<MidiNote>> partsBySource(List<MidiNote> notes, List<String> sourceNames) {
+        TreeMap<Integer, List<MidiNote>> bySource = new TreeMap<>();
+        for (MidiNote note : notes) {
+            bySource.computeIfAbsent(note.getSource(), source -> new ArrayList<>()).add(note);
+        }
+        Map<String, List<MidiNote>> parts = new LinkedHashMap<>();
+        for (Map.Entry<Integer, List<MidiNote>> entry : bySource.entrySet()) {
+            int source = entry.getKey();
+            String name = source < sourceNames.size() ? sourceNames.get(source) : "Part " + (source + 1);
+            List<MidiNote> partNotes = entry.getValue();
+            partNotes.sort(Comparator.comparingLong(MidiNote::getStartTime));
+            parts.put(name, partNotes);
+        }
+        return parts;
+    }
+
+    /**
+     * Writes a score
+     * @param title Work title
+     * @param parts Part name to notes sorted by start time, in the order the parts should appear
+     * @param tempoBpm Quarter notes per minute, or 0 to estimate it from the notes
+     * @param out Target; not closed
+     */
+    public void write(String title, Map<String, List<MidiNote>> parts, int tempoBpm, OutputStream out)
+            throws XMLStreamException {
+        // All parts share one origin, tempo and key, and end on the same measure
+        long origin = Long.MAX_VALUE;
+        KeyDetector keyDetector = new KeyDetector(1);
+        int noteCount = 0;
+        for (List<MidiNote> notes : parts.values()) {
+            if (!notes.isEmpty()) {
+                origin = Math.min(origin, notes.get(0).getStartTime());
+            }
+            for (MidiNote note : notes) {
+                keyDetector.addNote(note.getKey(), note.getDuration());
+            }
+            noteCount += notes.size();
+        }
+        if (origin == Long.MAX_VALUE) {
+            origin = 0;
+        }
+
+        int bpm = tempoBpm > 0 ? tempoBpm : estimateBpm(parts, noteCount);
+        double stepMs = 60000.0 / bpm / config.getGridSubdivisions();
+        int stepsPerBar = config.getGridSubdivisions() * config.getBeatsPerBar();
+        long lastStep = 1;
+        for (List<MidiNote> notes : parts.values()) {
+            for (MidiNote note : notes) {
+                lastStep = Math.max(lastStep, Math.round((note.getStartTime() + note.getDuration() - origin) / stepMs));
+            }
+        }
+        long measures = (lastStep + stepsPerBar - 1) / stepsPerBar;
+        KeyDetector.Key key = keyDetector.getKey();
+
+        XMLStreamWriter xml = XML_OUTPUT.createXMLStreamWriter(out, "UTF-8");
+        xml.writeStartDocument("UTF-8", "1.0");
+        xml.writeDTD("<!DOCTYPE score-partwise PUBLIC \"-//Recordare//DTD MusicXML 4.0 Partwise//EN\" "
+            + "\"http://www.musicxml.org/dtds/partwise.dtd\">");
+        xml.writeStartElement("score-partwise");
+        xml.writeAttribute("version", "4.0");
+
+        xml.writeStartElement("work");
+        element(xml, "work-title", title);
+        xml.writeEndElement();
+        xml.writeStartElement("identification");
+        xml.writeStartElement("encoding");
+        element(xml, "software", "KeyWorks");
+        xml.writeEndElement();
+        xml.writeEndElement();
+
+        xml.writeStartElement("part-list");
+        int partNumber = 1;
+        for (String name : parts.keySet()) {
+            xml.writeStartElement("score-part");
+            xml.writeAttribute("id", "P" + partNumber++);
+            element(xml, "part-name", name);
+            xml.writeEndElement();
+        }
+        xml.writeEndElement();
+
+        partNumber = 1;
+        for (List<MidiNote> notes : parts.values()) {
+            PartWriter part = new PartWriter(xml, stepMs, stepsPerBar, origin, key.usesFlats());
+            xml.writeStartElement("part");
+            xml.writeAttribute("id", "P" + partNumber);
+            part.setAttributes(key, isTreble(notes), partNumber == 1 ? bpm : 0);
+            for (MidiNote note : notes) {
+                part.addNote(note.getKey(), note.getStartTime(), note.getDuration());
+            }
+            part.finish(measures);
+            xml.writeEndElement();
+            partNumber++;
+        }
+
+        xml.writeEndElement();
+        xml.writeEndDocument();
+        xml.flush();
+    }
+
+    private static int estimateBpm(Map<String, List<MidiNote>> parts, int noteCount) {
+        long[] onsets = new long[noteCount];
+        int n = 0;
+        for (List<MidiNote> notes : parts.values()) {
+            for (MidiNote note : notes) {
+                onsets[n++] = note.getStartTime();
+            }
+        }
+        Arrays.sort(onsets);
+        TempoEstimator tempoEstimator = new TempoEstimator();
+        for (long onset : onsets) {
+            tempoEstimator.addOnset(onset);
+        }
+        return tempoEstimator.getBpm();
+    }
+
+    private static boolean isTreble(List<MidiNote> notes) {
+        long sum = 0;
+        for (MidiNote note : notes) {
+            sum += note.getKey();
+        }
+        return notes.isEmpty() || sum / notes.size() >= TREBLE_CLEF_FLOOR;
+    }
+
+    private static void element(XMLStreamWriter xml, String name, String text) throws XMLStreamException {
+        xml.writeStartElement(name);
+        xml.writeCharacters(text);
+        xml.writeEndElement();
+    }
+
+    /**
+     * A chord within one measure, in grid steps
+     */
+    private static final class Event {
+        final long start;
+        long end;
+        int[] keys;
+        final boolean tiedFromPrevious;
+        boolean tiedToNext;
+
+        Event(long start, long end, int[] keys, boolean tiedFromPrevious, boolean tiedToNext) {
+            this.start = start;
+            this.end = end;
+            this.keys = keys;
+            this.tiedFromPrevious = tiedFromPrevious;
+            this.tiedToNext = tiedToNext;
+        }
+    }
+
+    /**
+     * Quantizes the notes of one part and writes its measures as soon as they are complete
+     */
+    private final class PartWriter {
+        private final XMLStreamWriter xml;
+        private final double stepMs;
+        private final int stepsPerBar;
+        private final int stepsPerWhole;
+        private final long origin;
+        private final boolean flats;
+        private final int maxVoices;
+
+        // Current chord group, as in Quantizer
+        private long groupStartMs = Long.MIN_VALUE;
+        private long groupOnset;
+        private int[] groupKeys = new int[16];
+        private long[] groupEnds = new long[16];
+        private int groupSize;
+
+        // Per voice: events of the current measure, the part continuing past it, and the step written up to
+        private final List<List<Event>> measureEvents = new ArrayList<>();
+        private final Event[] carry;
+        private final long[] cursors;
+        private final long[] lastOnsets;
+        private int voiceCount = 1;
+        private long measure;
+        private boolean attributesPending = true;
+        private int tempoBpm;
+        private KeyDetector.Key key;
+        private boolean treble;
+
+        PartWriter(XMLStreamWriter xml, double stepMs, int stepsPerBar, long origin, boolean flats) {
+            this.xml = xml;
+            this.stepMs = stepMs;
+            this.stepsPerBar = stepsPerBar;
+            this.stepsPerWhole = config.getGridSubdivisions() * 4;
+            this.origin = origin;
+            this.flats = flats;
+            this.maxVoices = config.getMaxVoices();
+            this.carry = new Event[maxVoices];
+            this.cursors = new long[maxVoices];
+            this.lastOnsets = new long[maxVoices];
+            Arrays.fill(lastOnsets, -1L);
+            for (int v = 0; v < maxVoices; v++) {
+                measureEvents.add(new ArrayList<>());
+            }
+        }
+
+        /**
+         * Sets the key, clef and tempo (0 for none) written with the first measure
+         */
+        void setAttributes(KeyDetector.Key key, boolean treble, int tempoBpm) {
+            this.key = key;
+            this.treble = treble;
+            this.tempoBpm = tempoBpm;
+        }
+
+        void addNote(int key, long startMs, long durationMs) throws XMLStreamException {
+            if (groupSize > 0 && startMs - groupStartMs > config.getChordToleranceMs()) {
+                flushGroup();
+            }
+            if (groupSize == 0) {
+                groupStartMs = startMs;
+                groupOnset = Math.round((startMs - origin) / stepMs);
+            }
+            long end = Math.max(Math.round((startMs + durationMs - origin) / stepMs), groupOnset + 1);
+            if (groupSize == groupKeys.length) {
+                groupKeys = Arrays.copyOf(groupKeys, groupSize * 2);
+                groupEnds = Arrays.copyOf(groupEnds, groupSize * 2);
+            }
+            // Keep the group ordered by end, then pitch
+            int i = groupSize++;
+            while (i > 0 && (groupEnds[i - 1] > end || (groupEnds[i - 1] == end && groupKeys[i - 1] > key))) {
+                groupKeys[i] = groupKeys[i - 1];
+                groupEnds[i] = groupEnds[i - 1];
+                i--;
+            }
+            groupKeys[i] = key;
+            groupEnds[i] = end;
+        }
+
+        void finish(long measures) throws XMLStreamException {
+            flushGroup();
+            while (measure < Math.max(1, measures)) {
+                writeMeasure();
+            }
+        }
+
+        private void flushGroup() throws XMLStreamException {
+            if (groupSize == 0) {
+                return;
+            }
+            // Measures before this group are complete
+            while (measure < groupOnset / stepsPerBar) {
+                writeMeasure();
+            }
+            int from = 0;
+            while (from < groupSize) {
+                long slack = Math.max(1, (groupEnds[from] - groupOnset) / 4);
+                int to = from + 1;
+                while (to < groupSize && groupEnds[to] <= groupEnds[from] + slack) {
+                    to++;
+                }
+                int[] keys = Arrays.copyOfRange(groupKeys, from, to);
+                Arrays.sort(keys);
+                place(selectVoice(groupOnset), groupOnset, groupEnds[from], keys);
+                from = to;
+            }
+            groupSize = 0;
+        }
+
+        private int selectVoice(long onset) {
+            // Up to one grid step of overlap counts as legato rather than a second voice,
+            // but chords starting together always go to different voices
+            for (int v = 0; v < voiceCount; v++) {
+                if (cursors[v] <= onset + (lastOnsets[v] < onset ? 1 : 0)) {
+                    return v;
+                }
+            }
+            if (voiceCount < maxVoices) {
+                return voiceCount++;
+            }
+            int earliest = 0;
+            for (int v = 1; v < voiceCount; v++) {
+                if (cursors[v] < cursors[earliest]) {
+                    earliest = v;
+                }
+            }
+            return earliest;
+        }
+
+        /**
+         * Adds a chord to a voice, cutting short whatever the voice still holds at the onset.
+         * If every voice is taken by a chord starting at the same onset, the notes join that chord.
+         */
+        private void place(int voice, long onset, long end, int[] keys) {
+            List<Event> events = measureEvents.get(voice);
+            Event last = events.isEmpty() ? null : events.get(events.size() - 1);
+            if (last != null && last.start == onset) {
+                int[] merged = Arrays.copyOf(last.keys, last.keys.length + keys.length);
+                System.arraycopy(keys, 0, merged, last.keys.length, keys.length);
+                Arrays.sort(merged);
+                last.keys = merged;
+                if (carry[voice] != null) {
+                    carry[voice].keys = merged;
+                }
+                return;
+            }
+
+            carry[voice] = null;
+            if (last != null && last.end > onset) {
+                last.end = onset;
+                last.tiedToNext = false;
+            }
+
+            long measureEnd = (measure + 1) * stepsPerBar;
+            boolean crosses = end > measureEnd;
+            events.add(new Event(onset, Math.min(end, measureEnd), keys, false, crosses));
+            if (crosses) {
+                carry[voice] = new Event(measureEnd, end, keys, true, false);
+            }
+            cursors[voice] = end;
+            lastOnsets[voice] = onset;
+        }
+
+        private void writeMeasure() throws XMLStreamException {
+            long measureStart = measure * stepsPerBar;
+            long measureEnd = measureStart + stepsPerBar;
+
+            xml.writeStartElement("measure");
+            xml.writeAttribute("number", Long.toString(measure + 1));
+            if (attributesPending) {
+                writeAttributesElement();
+                attributesPending = false;
+            }
+
+            boolean first = true;
+            for (int v = 0; v < voiceCount; v++) {
+                List<Event> events = measureEvents.get(v);
+                if (v > 0 && events.isEmpty()) {
+                    continue;
+                }
+                if (!first) {
+                    xml.writeStartElement("backup");
+                    element(xml, "duration", Integer.toString(stepsPerBar));
+                    xml.writeEndElement();
+                }
+                first = false;
+
+                long position = measureStart;
+                for (Event event : events) {
+                    if (event.start > position) {
+                        writeGap(v, event.start - position);
+                    }
+                    writeChord(v, event);
+                    position = event.end;
+                }
+                if (position < measureEnd) {
+                    writeGap(v, measureEnd - position);
+                }
+            }
+            xml.writeEndElement();
+
+            // Move tied remainders into the next measure
+            measure++;
+            long nextEnd = measureEnd + stepsPerBar;
+            for (int v = 0; v < voiceCount; v++) {
+                List<Event> events = measureEvents.get(v);
+                events.clear();
+                Event remainder = carry[v];
+                if (remainder != null) {
+                    boolean crosses = remainder.end > nextEnd;
+                    events.add(new Event(measureEnd, Math.min(remainder.end, nextEnd), remainder.keys, true, crosses));
+                    carry[v] = crosses ? new Event(nextEnd, remainder.end, remainder.keys, true, false) : null;
+                }
+            }
+        }
+
+        private void writeAttributesElement() throws XMLStreamException {
+            xml.writeStartElement("attributes");
+            element(xml, "divisions", Integer.toString(config.getGridSubdivisions()));
+            xml.writeStartElement("key");
+            element(xml, "fifths", Integer.toString(key.getFifths()));
+            element(xml, "mode", key.isMinor() ? "minor" : "major");
+            xml.writeEndElement();
+            xml.writeStartElement("time");
+            element(xml, "beats", Integer.toString(config.getBeatsPerBar()));
+            element(xml, "beat-type", "4");
+            xml.writeEndElement();
+            xml.writeStartElement("clef");
+            element(xml, "sign", treble ? "G" : "F");
+            element(xml, "line", treble ? "2" : "4");
+            xml.writeEndElement();
+            xml.writeEndElement();
+
+            if (tempoBpm > 0) {
+                xml.writeStartElement("direction");
+                xml.writeAttribute("placement", "above");
+                xml.writeStartElement("direction-type");
+                xml.writeStartElement("metronome");
+                element(xml, "beat-unit", "quarter");
+                element(xml, "per-minute", Integer.toString(tempoBpm));
+                xml.writeEndElement();
+                xml.writeEndElement();
+                xml.writeEmptyElement("sound");
+                xml.writeAttribute("tempo", Integer.toString(tempoBpm));
+                xml.writeEndElement();
+            }
+        }
+
+        /**
+         * Fills a gap: rests in the first voice, an invisible forward in the others
+         */
+        private void writeGap(int voice, long steps) throws XMLStreamException {
+            if (voice > 0) {
+                xml.writeStartElement("forward");
+                element(xml, "duration", Long.toString(steps));
+                xml.writeEndElement();
+                return;
+            }
+            writeValues(voice, steps, null, false, false);
+        }
+
+        private void writeChord(int voice, Event event) throws XMLStreamException {
+            writeValues(voice, event.end - event.start, event.keys, event.tiedFromPrevious, event.tiedToNext);
+        }
+
+        /**
+         * Writes a span as a sequence of (possibly dotted) note values, tied together if they are notes
+         */
+        private void writeValues(int voice, long steps, int[] keys, boolean tiedIn, boolean tiedOut)
+                throws XMLStreamException {
+            boolean firstValue = true;
+            while (steps > 0) {
+                long value = Math.min(Long.highestOneBit(steps), stepsPerWhole);
+                boolean dotted = value >= 2 && steps >= value + value / 2;
+                long used = dotted ? value + value / 2 : value;
+                steps -= used;
+                boolean tieStop = keys != null && (firstValue ? tiedIn : true);
+                boolean tieStart = keys != null && (steps > 0 || tiedOut);
+
+                if (keys == null) {
+                    writeNote(voice, -1, false, used, value, dotted, false, false);
+                } else {
+                    for (int i = 0; i < keys.length; i++) {
+                        writeNote(voice, keys[i], i > 0, used, value, dotted, tieStop, tieStart);
+                    }
+                }
+                firstValue = false;
+            }
+        }
+
+        private void writeNote(int voice, int key, boolean chord, long duration, long value, boolean dotted,
+                               boolean tieStop, boolean tieStart) throws XMLStreamException {
+            xml.writeStartElement("note");
+            if (chord) {
+                xml.writeEmptyElement("chord");
+            }
+            if (key < 0) {
+                xml.writeEmptyElement("rest");
+            } else {
+                int pitchClass = key % 12;
+                xml.writeStartElement("pitch");
+                element(xml, "step", (flats ? FLAT_STEPS : SHARP_STEPS)[pitchClass]);
+                int alter = (flats ? FLAT_ALTERS : SHARP_ALTERS)[pitchClass];
+                if (alter != 0) {
+                    element(xml, "alter", Integer.toString(alter));
+                }
+                element(xml, "octave", Integer.toString(key / 12 - 1));
+                xml.writeEndElement();
+            }
+            element(xml, "duration", Long.toString(duration));
+            if (tieStop) {
+                xml.writeEmptyElement("tie");
+                xml.writeAttribute("type", "stop");
+            }
+            if (tieStart) {
+                xml.writeEmptyElement("tie");
+                xml.writeAttribute("type", "start");
+            }
+            element(xml, "voice", Integer.toString(voice + 1));
+            element(xml, "type", TYPES[Long.numberOfTrailingZeros(value * 32 / stepsPerWhole)]);
+            if (dotted) {
+                xml.writeEmptyElement("dot");
+            }
+            if (tieStop || tieStart) {
+                xml.writeStartElement("notations");
+                if (tieStop) {
+                    xml.writeEmptyElement("tied");
+                    xml.writeAttribute("type", "stop");
+                }
+                if (tieStart) {
+                    xml.writeEmptyElement("tied");
+                    xml.writeAttribute("type", "start");
+                }
+                xml.writeEndElement();
+            }
+            xml.writeEndElement();
+        }
+    }
+}
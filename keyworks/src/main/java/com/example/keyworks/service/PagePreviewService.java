@@ -0,0 +1,257 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.config.FileStorageConfig;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Renders lightweight page images of generated scores, so that library grids and thumbnails do not
+ * have to load whole PDFs. Once a score's PDF is in place its source is rendered again in the
+ * background, one SVG (or cropped PNG) per page, with {@code render.previews.format}. Images are
+ * named after the content hash of the source, e.g. {@code music_generated_7-3f9a0c12e4b1-page1.svg},
+ * so a URL always refers to the same image and can be cached indefinitely. The images of the current
+ * source are listed, one file name per line, in the index file {@code music_generated_7.pages} next
+ * to the PDF. Images of the version a new index replaces are deleted
+ * {@code render.previews.stale-grace-ms} later, so clients still holding the old index can load them.
+ */
+@Service
+public class PagePreviewService {
+    private static final Logger logger = LoggerFactory.getLogger(PagePreviewService.class);
+
+    private static final Pattern PAGE_FILE = Pattern.compile("music_generated_.+-[0-9a-f]{12}-page\\d+\\.(svg|png)");
+    private static final String JOB_DIRECTORY = ".render";
+    private static final String INDEX_EXTENSION = ".pages";
+
+    private final FileStorageConfig fileStorageConfig;
+    private final ScoreRenderer scoreRenderer;
+    private final RenderScheduler renderScheduler;
+    private final String format;
+    private final int resolution;
+    private final long staleGraceMs;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService cleanup;
+
+    // Latest request per file ID; an older render finishing late does not overwrite a newer index
+    private final ConcurrentMap<String, Long> latest = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+
+    public PagePreviewService(FileStorageConfig fileStorageConfig, ScoreRenderer scoreRenderer,
+                              RenderScheduler renderScheduler,
+                              @Value("${render.previews.format:svg}") String format,
+                              @Value("${render.previews.resolution:72}") int resolution,
+                              @Value("${render.previews.threads:1}") int threads,
+                              @Value("${render.previews.stale-grace-ms:3600000}") long staleGraceMs) {
+        if (!Set.of("svg", "png", "none").contains(format)) {
+            throw new IllegalArgumentException("render.previews.format must be svg, png or none: " + format);
+        }
+        this.fileStorageConfig = fileStorageConfig;
+        this.scoreRenderer = scoreRenderer;
+        this.renderScheduler = renderScheduler;
+        this.format = format;
+        this.resolution = resolution;
+        this.staleGraceMs = staleGraceMs;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "page-preview-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.cleanup = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "page-preview-cleanup");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        cleanup.shutdownNow();
+    }
+
+    /**
+     * Whether a file in the output directory is a page image, whose content never changes
+     * @param fileName The file name
+     */
+    public static boolean isPageFile(String fileName) {
+        return PAGE_FILE.matcher(fileName).matches();
+    }
+
+    /**
+     * Renders the page images of a score in the background
+     * @param fileId The ID of the generated files
+     * @param source The score's .ly file; it is copied before this method returns
+     * @param requester Who asked for the score; the images render in the background class or lower
+     */
+    public void schedule(String fileId, Path source, RenderScheduler.Requester requester) {
+        if (format.equals("none")) {
+            return;
+        }
+        long request = requests.incrementAndGet();
+        latest.put(fileId, request);
+        Path jobDir;
+        Path jobSource;
+        try {
+            jobDir = Files.createDirectories(fileStorageConfig.getOutputDirectoryPath().resolve(JOB_DIRECTORY))
+                .resolve(UUID.randomUUID().toString());
+            Files.createDirectory(jobDir);
+            jobSource = Files.copy(source, jobDir.resolve(source.getFileName()));
+        } catch (IOException e) {
+            logger.warn("Could not prepare page previews for {}: {}", fileId, e.getMessage());
+            return;
+        }
+
+        executor.execute(() -> {
+            try {
+                render(fileId, request, jobSource, new RenderScheduler.Requester(requester.user(),
+                    requester.priority().atMost(RenderScheduler.Priority.BACKGROUND)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                logger.warn("Page previews for {} failed: {}", fileId, e.getMessage());
+            } finally {
+                try {
+                    FileSystemUtils.deleteRecursively(jobDir);
+                } catch (IOException e) {
+                    logger.warn("Could not delete {}: {}", jobDir, e.getMessage());
+                }
+            }
+        });
+    }
+
+    private void render(String fileId, long request, Path source, RenderScheduler.Requester requester)
+            throws IOException, InterruptedException {
+        String prefix = "music_generated_" + fileId;
+        String hash = contentHash(source).substring(0, 12);
+        Path outputDir = fileStorageConfig.getOutputDirectoryPath();
+        Path index = outputDir.resolve(prefix + INDEX_EXTENSION);
+        if (Files.exists(index) && Files.readString(index).contains(prefix + "-" + hash + "-page")) {
+            logger.debug("Page previews of {} are up to date", prefix);
+            latest.remove(fileId, request);
+            return;
+        }
+
+        long started = System.currentTimeMillis();
+        List<Path> pages;
+        try (RenderScheduler.Ticket ticket = renderScheduler.acquire(requester, prefix + " (pages)", 0)) {
+            pages = scoreRenderer.renderPages(source, source.getParent(), format, resolution);
+        }
+        if (!Long.valueOf(request).equals(latest.get(fileId))) {
+            logger.debug("Discarding page previews of {}: a newer version was rendered", prefix);
+            return;
+        }
+
+        List<String> fileNames = new ArrayList<>();
+        for (int i = 0; i < pages.size(); i++) {
+            String fileName = prefix + "-" + hash + "-page" + (i + 1) + "." + format;
+            Files.move(pages.get(i), outputDir.resolve(fileName), StandardCopyOption.REPLACE_EXISTING);
+            fileNames.add(fileName);
+        }
+        // The index is replaced atomically, so readers see the old or the new pages, never a mix
+        List<String> replaced = getPages(fileId);
+        Path newIndex = source.resolveSibling(prefix + INDEX_EXTENSION);
+        Files.write(newIndex, fileNames, StandardCharsets.UTF_8);
+        Files.move(newIndex, index, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        deleteStalePages(outputDir, prefix, fileNames, replaced);
+        latest.remove(fileId, request);
+        logger.info("Rendered {} page previews of {} in {} ms", fileNames.size(), prefix,
+            System.currentTimeMillis() - started);
+    }
+
+    /**
+     * Gets the page images of a score
+     * @param fileId The ID of the generated files
+     * @return File names of the page images in page order, or an empty list if none were rendered yet
+     */
+    public List<String> getPages(String fileId) {
+        Path index = fileStorageConfig.resolveFilePath("music_generated_" + fileId + INDEX_EXTENSION);
+        if (!Files.exists(index)) {
+            return List.of();
+        }
+        try {
+            return Files.readAllLines(index, StandardCharsets.UTF_8).stream()
+                .filter(line -> !line.isBlank())
+                .toList();
+        } catch (IOException e) {
+            logger.warn("Could not read {}: {}", index, e.getMessage());
+            return List.of();
+        }
+    }
+
+    /**
+     * Deletes the pages the new index replaced once the grace period is over, and right away the
+     * pages of even older versions that have outlived it, e.g. because the server restarted
+     */
+    private void deleteStalePages(Path outputDir, String prefix, List<String> current, List<String> replaced)
+            throws IOException {
+        List<String> superseded = replaced.stream().filter(name -> !current.contains(name)).toList();
+        if (!superseded.isEmpty()) {
+            cleanup.schedule(() -> {
+                for (String name : superseded) {
+                    try {
+                        Files.deleteIfExists(outputDir.resolve(name));
+                    } catch (IOException e) {
+                        logger.warn("Could not delete {}: {}", name, e.getMessage());
+                    }
+                }
+            }, staleGraceMs, TimeUnit.MILLISECONDS);
+        }
+
+        long expired = System.currentTimeMillis() - staleGraceMs;
+        try (Stream<Path> files = Files.list(outputDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                // The ID must end at the hash, so that the pages of music_generated_1 are not those of music_generated_1-2
+                if (name.startsWith(prefix + "-") && !current.contains(name) && !replaced.contains(name)
+                        && name.substring(prefix.length()).matches("-[0-9a-f]{12}-page\\d+\\.(svg|png)")
+                        && Files.getLastModifiedTime(file).toMillis() < expired) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private static String contentHash(Path source) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[8192];
+            try (InputStream in = Files.newInputStream(source)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
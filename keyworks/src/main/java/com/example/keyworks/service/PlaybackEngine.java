@@ -0,0 +1,183 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.service.MidiDeviceRegistry.DeviceEntry;
+import com.example.keyworks.service.MidiDeviceService.MidiNote;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.sound.midi.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server-side playback of recordings onto MIDI outputs.
+ * Each playback runs on its own {@link MidiPlayer} thread. The target is the JDK software
+ * synthesizer, any output device from the registry, or "none", which discards the events and is
+ * used to measure the scheduling jitter of the server itself.
+ */
+@Service
+public class PlaybackEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(PlaybackEngine.class);
+
+    public static final String TARGET_SYNTHESIZER = "synth";
+    public static final String TARGET_NONE = "none";
+
+    // Finished playbacks kept for their statistics
+    private static final int MAX_FINISHED = 16;
+
+    private final MidiDeviceRegistry deviceRegistry;
+    private final long spinNanos;
+    private final int maxActive;
+
+    private final Map<String, MidiPlayer> players = new ConcurrentHashMap<>();
+    private final Map<String, String> targets = new ConcurrentHashMap<>();
+
+    public PlaybackEngine(MidiDeviceRegistry deviceRegistry,
+                          @Value("${midi.playback.spin-micros:500}") long spinMicros,
+                          @Value("${midi.playback.max-active:4}") int maxActive) {
+        this.deviceRegistry = deviceRegistry;
+        this.spinNanos = spinMicros * 1000L;
+        this.maxActive = maxActive;
+    }
+
+    /**
+     * Starts playing notes
+     * @param notes The notes to play
+     * @param target "synth", "none" or the registry ID of an output device
+     * @param tempoScale Tempo factor; 1.0 plays at the recorded speed
+     * @param looping Whether to restart at the end
+     * @param startMs Position to start from in milliseconds
+     * @return The player, registered under its name
+     */
+    public synchronized MidiPlayer start(List<MidiNote> notes, String target, double tempoScale,
+                                         boolean looping, long startMs) throws MidiUnavailableException {
+        if (!(tempoScale > 0)) {
+            throw new IllegalArgumentException("Tempo scale must be positive");
+        }
+        long active = players.values().stream().filter(MidiPlayer::isPlaying).count();
+        if (active >= maxActive) {
+            throw new IllegalStateException("Already playing " + active + " recordings");
+        }
+        pruneFinished();
+
+        String id = UUID.randomUUID().toString().substring(0, 8);
+        String targetName = target == null || target.isBlank() ? TARGET_SYNTHESIZER : target;
+        MidiPlayer player = new MidiPlayer(id, notes, openReceiver(targetName), spinNanos);
+        player.setTempoScale(tempoScale);
+        player.setLooping(looping);
+        players.put(id, player);
+        targets.put(id, targetName);
+        player.start(startMs);
+        logger.info("Playback {} started: {} notes to {} at {}x", id, notes.size(), targetName, tempoScale);
+        return player;
+    }
+
+    public Optional<MidiPlayer> find(String id) {
+        return Optional.ofNullable(players.get(id));
+    }
+
+    public String getTarget(String id) {
+        return targets.get(id);
+    }
+
+    public Collection<MidiPlayer> getPlayers() {
+        return Collections.unmodifiableCollection(players.values());
+    }
+
+    /**
+     * Stops a playback; its statistics stay available
+     * @param id The playback ID
+     * @return Whether the playback exists
+     */
+    public boolean stop(String id) {
+        MidiPlayer player = players.get(id);
+        if (player == null) {
+            return false;
+        }
+        player.stop();
+        return true;
+    }
+
+    @PreDestroy
+    public void stopAll() {
+        players.values().forEach(MidiPlayer::stop);
+    }
+
+    private Receiver openReceiver(String target) throws MidiUnavailableException {
+        if (TARGET_NONE.equals(target)) {
+            return new DiscardingReceiver();
+        }
+        if (TARGET_SYNTHESIZER.equals(target)) {
+            Synthesizer synthesizer = MidiSystem.getSynthesizer();
+            synthesizer.open();
+            return new DeviceReceiver(synthesizer.getReceiver(), synthesizer, true);
+        }
+
+        DeviceEntry entry = deviceRegistry.findById(target)
+            .orElseThrow(() -> new IllegalArgumentException("Unknown MIDI device: " + target));
+        if (!entry.isAvailable() || !entry.canReceive()) {
+            throw new IllegalArgumentException("MIDI device cannot receive: " + entry.getName());
+        }
+        MidiDevice device = entry.getDevice();
+        boolean opened = !device.isOpen();
+        if (opened) {
+            device.open();
+        }
+        return new DeviceReceiver(device.getReceiver(), device, opened);
+    }
+
+    private void pruneFinished() {
+        List<String> finished = new ArrayList<>();
+        for (Map.Entry<String, MidiPlayer> entry : players.entrySet()) {
+            if (!entry.getValue().isPlaying()) {
+                finished.add(entry.getKey());
+            }
+        }
+        for (int i = 0; i < finished.size() - MAX_FINISHED + 1; i++) {
+            players.remove(finished.get(i));
+            targets.remove(finished.get(i));
+        }
+    }
+
+    /**
+     * Receiver of a device that also closes the device if playback opened it
+     */
+    private static class DeviceReceiver implements Receiver {
+        private final Receiver receiver;
+        private final MidiDevice device;
+        private final boolean closeDevice;
+
+        DeviceReceiver(Receiver receiver, MidiDevice device, boolean closeDevice) {
+            this.receiver = receiver;
+            this.device = device;
+            this.closeDevice = closeDevice;
+        }
+
+        @Override
+        public void send(MidiMessage message, long timeStamp) {
+            receiver.send(message, timeStamp);
+        }
+
+        @Override
+        public void close() {
+            receiver.close();
+            if (closeDevice) {
+                device.close();
+            }
+        }
+    }
+
+    private static class DiscardingReceiver implements Receiver {
+        @Override
+        public void send(MidiMessage message, long timeStamp) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
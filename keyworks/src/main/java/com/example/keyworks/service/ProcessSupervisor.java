@@ -0,0 +1,182 @@
+package com.example.keyworks.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs external processes such as LilyPond without letting them stall or outlive their caller.
+ * Standard output and standard error are drained concurrently while the process runs, so a process
+ * writing more than the OS pipe buffer holds never blocks; the text is kept up to a size limit and
+ * every line is passed to the caller as it arrives. On timeout, interruption of the calling thread
+ * or application shutdown the whole process tree is killed, not only the direct child.
+ */
+@Component
+public class ProcessSupervisor {
+    private static final Logger logger = LoggerFactory.getLogger(ProcessSupervisor.class);
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    private final int outputLimitChars;
+    private final Set<Process> running = ConcurrentHashMap.newKeySet();
+    private volatile boolean shutdown;
+
+    public ProcessSupervisor(@Value("${render.output-limit-chars:262144}") int outputLimitChars) {
+        this.outputLimitChars = outputLimitChars;
+    }
+
+    /**
+     * Outcome of a process run
+     * @param exitCode Exit code, or -1 if the process was killed
+     * @param timedOut True if the process was killed because it ran out of time
+     * @param output Interleaved output lines, up to the size limit
+     * @param droppedLines Lines beyond the size limit (still passed to the line consumer)
+     */
+    public record Result(int exitCode, boolean timedOut, String output, int droppedLines) {
+    }
+
+    /**
+     * Runs a process to completion
+     * @param command Executable and arguments
+     * @param directory Working directory
+     * @param environment Variables added to the inherited environment
+     * @param timeoutSeconds Time after which the process tree is killed
+     * @param lines Called with every output line, from the draining threads
+     * @return The result
+     * @throws InterruptedException If the calling thread was interrupted; the process tree is killed first
+     */
+    public Result run(List<String> command, Path directory, Map<String, String> environment, long timeoutSeconds,
+                      Consumer<String> lines) throws IOException, InterruptedException {
+        if (shutdown) {
+            throw new IllegalStateException("Shutting down, not starting " + command.get(0));
+        }
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.directory(directory.toFile());
+        processBuilder.environment().putAll(environment);
+
+        Process process = processBuilder.start();
+        running.add(process);
+        try {
+            process.getOutputStream().close();
+            BoundedOutput output = new BoundedOutput(outputLimitChars);
+            Thread stdout = drain(process.getInputStream(), output, lines, "stdout-" + process.pid());
+            Thread stderr = drain(process.getErrorStream(), output, lines, "stderr-" + process.pid());
+
+            boolean completed;
+            try {
+                completed = process.waitFor(timeoutSeconds, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while waiting for {} (pid {}), killing it", command.get(0), process.pid());
+                destroyTree(process);
+                throw e;
+            }
+            if (!completed) {
+                logger.warn("{} (pid {}) timed out after {} s, killing it", command.get(0), process.pid(), timeoutSeconds);
+                destroyTree(process);
+            }
+
+            // The pipes close when the process tree is gone; a grandchild that kept them open was killed above
+            stdout.join(TimeUnit.SECONDS.toMillis(5));
+            stderr.join(TimeUnit.SECONDS.toMillis(5));
+            return new Result(completed ? process.exitValue() : -1, !completed, output.toString(), output.getDroppedLines());
+        } finally {
+            running.remove(process);
+        }
+    }
+
+    /**
+     * Kills all running processes and their descendants
+     */
+    @PreDestroy
+    public void shutdown() {
+        shutdown = true;
+        for (Process process : running) {
+            logger.info("Killing {} on shutdown", process.pid());
+            destroyTree(process);
+        }
+    }
+
+    private static void destroyTree(Process process) {
+        // Descendants first: once the parent is gone they are re-parented and no longer listed
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    private static Thread drain(InputStream stream, BoundedOutput output, Consumer<String> lines, String name) {
+        return Thread.ofVirtual().name(name).start(() -> {
+            try (Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+                // Lines are cut at MAX_LINE_LENGTH so that output without line breaks cannot grow the buffer
+                char[] buffer = new char[8192];
+                StringBuilder line = new StringBuilder();
+                int read;
+                while ((read = reader.read(buffer)) != -1) {
+                    for (int i = 0; i < read; i++) {
+                        char c = buffer[i];
+                        if (c == '\n') {
+                            emit(line, output, lines);
+                        } else if (c != '\r' && line.length() < MAX_LINE_LENGTH) {
+                            line.append(c);
+                        }
+                    }
+                }
+                if (!line.isEmpty()) {
+                    emit(line, output, lines);
+                }
+            } catch (IOException e) {
+                // The stream is closed when the process is killed
+                logger.debug("Stopped reading {}: {}", name, e.getMessage());
+            }
+        });
+    }
+
+    private static void emit(StringBuilder line, BoundedOutput output, Consumer<String> lines) {
+        String text = line.toString();
+        line.setLength(0);
+        output.append(text);
+        lines.accept(text);
+    }
+
+    /**
+     * Output lines up to a size limit; later lines are only counted
+     */
+    private static class BoundedOutput {
+        private final int limit;
+        private final StringBuilder text = new StringBuilder();
+        private int droppedLines;
+
+        BoundedOutput(int limit) {
+            this.limit = limit;
+        }
+
+        synchronized void append(String line) {
+            if (text.length() + line.length() + 1 > limit) {
+                droppedLines++;
+                return;
+            }
+            text.append(line).append('\n');
+        }
+
+        synchronized int getDroppedLines() {
+            return droppedLines;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package com.example.keyworks.service;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Snaps notes to a rhythmic grid and writes them as LilyPond notation.
+ * Onsets and ends are rounded to grid steps at a fixed tempo; gaps become explicit rests, notes
+ * crossing a barline are split and tied, and every bar is closed with a bar check. Notes are fed
+ * one at a time in start order, so the quantizer can run while a recording is in progress.
+ * <p>
+ * Notes are grouped in a single sweep: onsets within the chord tolerance of a group's first onset
+ * form one chord, kept in primitive arrays that are reused for every group. Notes of a group that
+ * end on the same grid step are written as one chord ({@code <c e g>4}); notes that are still
+ * sounding when the next onset arrives go to additional voices, written as {@code << { } \\ { } >>}.
+ * <p>
+ * Black keys are spelled to suit the key signature. A key change takes effect at the next barline
+ * of the first voice, where the {@code \key} command is written.
+ * <p>
+ * The quantizer counts its work (notation tokens written and chord slots shifted) so the
+ * {@link StaffWriter} can bound it. On {@link #fallBack} it completes the bar and writes all later
+ * notes with simple unquantized durations instead.
+ */
+public class Quantizer {
+
+    // LilyPond duration denominators by log2 of the length in 32nd notes
+    private static final String[] DURATIONS = {"32", "16", "8", "4", "2", "1"};
+
+    private final LilyPondEmitter emitter;
+    private final double stepMs;
+    private final int stepsPerWhole;
+    private final int stepsPerBar;
+    private final long chordToleranceMs;
+    private final int maxVoices;
+
+    private long originMs = Long.MIN_VALUE;
+    private boolean fallback;
+
+    // Spelling of black keys, and a key change waiting for the next barline
+    private boolean flats;
+    private KeyDetector.Key pendingKey;
+
+    // Current chord group: notes whose onsets lie within the tolerance of the first one
+    private long groupStartMs = Long.MIN_VALUE;
+    private long groupOnset;
+    private int[] groupKeys = new int[16];
+    private long[] groupEnds = new long[16];
+    private int groupSize;
+
+    // Voices: notation so far and the grid step each voice has been written up to
+    private final StringBuilder[] voices;
+    private final long[] cursors;
+    private int voiceCount = 1;
+
+    // Tokens written and array slots shifted so far; a deterministic measure of the effort spent
+    private long work;
+
+    /**
+     * @param emitter Writes pitches
+     * @param beatMs Quarter-note period in milliseconds
+     * @param subdivisions Grid steps per quarter note; a power of two up to 8
+     * @param beatsPerBar Quarter notes per bar
+     * @param chordToleranceMs Onsets closer than this to a chord's first onset belong to the chord
+     * @param maxVoices Maximum number of simultaneous voices
+     */
+    public Quantizer(LilyPondEmitter emitter, double beatMs, int subdivisions, int beatsPerBar,
+                     long chordToleranceMs, int maxVoices) {
+        this.emitter = emitter;
+        this.stepMs = beatMs / subdivisions;
+        this.stepsPerWhole = subdivisions * 4;
+        this.stepsPerBar = subdivisions * beatsPerBar;
+        this.chordToleranceMs = chordToleranceMs;
+        this.maxVoices = maxVoices;
+        this.voices = new StringBuilder[maxVoices];
+        this.cursors = new long[maxVoices];
+        this.voices[0] = new StringBuilder(1024);
+    }
+
+    /**
+     * Sets the time that corresponds to the start of the first bar; defaults to the first note's start
+     * @param originMs Origin in milliseconds
+     */
+    public void setOrigin(long originMs) {
+        this.originMs = originMs;
+    }
+
+    /**
+     * Sets the key the staff starts in, which decides how black keys are spelled.
+     * Call before adding notes; the key signature itself is written by the staff header.
+     * @param key Initial key
+     */
+    public void setInitialKey(KeyDetector.Key key) {
+        this.flats = key.usesFlats();
+    }
+
+    /**
+     * Changes the key from the next barline on
+     * @param key New key
+     */
+    public void changeKey(KeyDetector.Key key) throws IOException {
+        if (fallback) {
+            // Unquantized notes have no barlines, so change right away
+            emitter.writeKey(voices[0], key);
+            voices[0].append(' ');
+            flats = key.usesFlats();
+        } else {
+            pendingKey = key;
+        }
+    }
+
+    /**
+     * Adds a note. Notes must be given in start order.
+     * @param key MIDI key number
+     * @param startMs Start time in milliseconds
+     * @param durationMs Duration in milliseconds
+     */
+    public void addNote(int key, long startMs, long durationMs) throws IOException {
+        if (fallback) {
+            emitter.writeNote(voices[0], key, durationMs, flats);
+        } else {
+            if (originMs == Long.MIN_VALUE) {
+                originMs = startMs;
+            }
+            if (groupSize > 0 && startMs - groupStartMs > chordToleranceMs) {
+                flushGroup();
+            }
+            if (groupSize == 0) {
+                groupStartMs = startMs;
+                groupOnset = Math.round((startMs - originMs) / stepMs);
+            }
+            long end = Math.round((startMs + durationMs - originMs) / stepMs);
+            addToGroup(key, Math.max(end, groupOnset + 1));
+        }
+    }
+
+    /**
+     * Writes the chord still being collected, so that {@link #getLength()} covers every note added
+     */
+    public void flush() throws IOException {
+        flushGroup();
+    }
+
+    /**
+     * Stops quantizing: writes the pending chord, fills every voice with rests up to the given step
+     * (rounded up to a barline) and writes all later notes unquantized
+     * @param step Grid step to complete the bars to; staves of one system pass the same step
+     */
+    public void fallBack(long step) throws IOException {
+        if (fallback) {
+            return;
+        }
+        flushGroup();
+        padTo(Math.max(step, getLength()));
+        fallback = true;
+    }
+
+    /**
+     * Writes the last chord and fills every voice with rests up to the end of the last bar
+     */
+    public void finish() throws IOException {
+        flushGroup();
+        padTo(getLength());
+    }
+
+    /**
+     * Fills every voice with rests up to the given step, rounded up to the end of its bar.
+     * Used to make the staves of one system end together.
+     * @param step Grid step to pad to
+     */
+    public void padTo(long step) throws IOException {
+        if (fallback) {
+            return;
+        }
+        long end = step;
+        if (end % stepsPerBar != 0) {
+            end += stepsPerBar - end % stepsPerBar;
+        }
+        for (int v = 0; v < voiceCount; v++) {
+            if (cursors[v] < end) {
+                writeSpan(v, end - cursors[v]);
+            }
+        }
+    }
+
+    /**
+     * @return Number of grid steps written so far in the longest voice
+     */
+    public long getLength() {
+        long length = 0;
+        for (int v = 0; v < voiceCount; v++) {
+            length = Math.max(length, cursors[v]);
+        }
+        return length;
+    }
+
+    /**
+     * Writes everything quantized so far
+     * @param out Target
+     */
+    public void writeBody(Appendable out) throws IOException {
+        if (voiceCount == 1) {
+            out.append(voices[0]);
+            return;
+        }
+        out.append("<< { ");
+        for (int v = 0; v < voiceCount; v++) {
+            if (v > 0) {
+                out.append("} \\\\ { ");
+            }
+            out.append(voices[v]);
+        }
+        out.append("} >>");
+    }
+
+    /**
+     * @return Whether quantizing was stopped and notes are written unquantized
+     */
+    public boolean isFallback() {
+        return fallback;
+    }
+
+    /**
+     * @return Work done so far: notation tokens written plus chord slots shifted while grouping
+     */
+    public long getWork() {
+        return work;
+    }
+
+    /**
+     * @return Number of voices used so far
+     */
+    public int getVoiceCount() {
+        return voiceCount;
+    }
+
+    private void addToGroup(int key, long end) {
+        if (groupSize == groupKeys.length) {
+            groupKeys = Arrays.copyOf(groupKeys, groupSize * 2);
+            groupEnds = Arrays.copyOf(groupEnds, groupSize * 2);
+        }
+        // Keep the group ordered by end, then pitch, so notes ending together are adjacent
+        int i = groupSize++;
+        while (i > 0 && (groupEnds[i - 1] > end || (groupEnds[i - 1] == end && groupKeys[i - 1] > key))) {
+            groupKeys[i] = groupKeys[i - 1];
+            groupEnds[i] = groupEnds[i - 1];
+            i--;
+            work++;
+        }
+        groupKeys[i] = key;
+        groupEnds[i] = end;
+    }
+
+    /**
+     * Writes the current group as one chord per end step, each in the first voice that is free.
+     * Ends within a quarter of the shortest note's length (at least one step) count as the same end,
+     * so a chord released slightly unevenly stays one chord.
+     */
+    private void flushGroup() throws IOException {
+        int from = 0;
+        while (from < groupSize) {
+            long slack = Math.max(1, (groupEnds[from] - groupOnset) / 4);
+            int to = from + 1;
+            while (to < groupSize && groupEnds[to] <= groupEnds[from] + slack) {
+                to++;
+            }
+            writeChord(selectVoice(groupOnset), from, to);
+            from = to;
+        }
+        groupSize = 0;
+    }
+
+    private int selectVoice(long onset) {
+        // Up to one grid step of overlap counts as legato rather than a second voice
+        for (int v = 0; v < voiceCount; v++) {
+            if (cursors[v] <= onset + 1) {
+                return v;
+            }
+        }
+        if (voiceCount < maxVoices) {
+            voices[voiceCount] = new StringBuilder(256);
+            cursors[voiceCount] = 0;
+            return voiceCount++;
+        }
+        // All voices busy: take the one that frees up first
+        int earliest = 0;
+        for (int v = 1; v < voiceCount; v++) {
+            if (cursors[v] < cursors[earliest]) {
+                earliest = v;
+            }
+        }
+        return earliest;
+    }
+
+    private void writeChord(int voice, int from, int to) throws IOException {
+        long onset = Math.max(groupOnset, cursors[voice]);
+        long end = Math.max(groupEnds[from], onset + 1);
+        if (onset > cursors[voice]) {
+            writeSpan(voice, onset - cursors[voice]);
+        }
+        writeSpan(voice, end - onset, from, to);
+    }
+
+    private void writeSpan(int voice, long steps) throws IOException {
+        writeSpan(voice, steps, 0, 0);
+    }
+
+    /**
+     * Writes a chord of group notes [from, to), or a rest if the range is empty, for the given
+     * number of grid steps, splitting it at barlines
+     */
+    private void writeSpan(int voice, long steps, int from, int to) throws IOException {
+        StringBuilder out = voices[voice];
+        while (steps > 0) {
+            if (pendingKey != null && voice == 0 && cursors[0] % stepsPerBar == 0) {
+                emitter.writeKey(out, pendingKey);
+                out.append(' ');
+                flats = pendingKey.usesFlats();
+                pendingKey = null;
+            }
+            long roomInBar = stepsPerBar - cursors[voice] % stepsPerBar;
+            long part = Math.min(steps, roomInBar);
+            steps -= part;
+            writeValues(out, voice, part, from, to, steps > 0);
+            cursors[voice] += part;
+            if (cursors[voice] % stepsPerBar == 0) {
+                out.append("| ");
+            }
+        }
+    }
+
+    /**
+     * Writes a span within one bar as a sequence of (possibly dotted) note values
+     */
+    private void writeValues(StringBuilder out, int voice, long steps, int from, int to, boolean tieAfter)
+            throws IOException {
+        while (steps > 0) {
+            long value = Math.min(Long.highestOneBit(steps), stepsPerWhole);
+            boolean dotted = value >= 2 && steps >= value + value / 2;
+            long used = dotted ? value + value / 2 : value;
+            steps -= used;
+            work++;
+
+            if (from == to) {
+                // Secondary voices use spacer rests so they do not clutter the staff
+                out.append(voice == 0 ? 'r' : 's');
+            } else if (to - from == 1) {
+                emitter.writePitch(out, groupKeys[from], flats);
+            } else {
+                out.append('<');
+                for (int i = from; i < to; i++) {
+                    if (i > from) {
+                        out.append(' ');
+                    }
+                    emitter.writePitch(out, groupKeys[i], flats);
+                }
+                out.append('>');
+            }
+            out.append(DURATIONS[durationIndex(value)]);
+            if (dotted) {
+                out.append('.');
+            }
+            if (from != to && (steps > 0 || tieAfter)) {
+                out.append('~');
+            }
+            out.append(' ');
+        }
+    }
+
+    private int durationIndex(long steps) {
+        // Length in 32nd notes -> index of 32, 16, 8, ...
+        long thirtySeconds = steps * 32 / stepsPerWhole;
+        return Long.numberOfTrailingZeros(thirtySeconds);
+    }
+}
@@ -0,0 +1,407 @@
+package com.example.keyworks.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.*;
+
+/**
+ * Decides which render runs next when more renders are requested than there are render slots
+ * ({@code render.scheduler.slots}, by default one per processor). Every LilyPond run holds a slot.
+ * <p>
+ * Renders come in three priority classes: interactive (a user waiting for a PDF), background (page
+ * images) and bulk. A request asks for its class with the {@value #PRIORITY_HEADER} header and is
+ * interactive otherwise; a user who already has {@code render.scheduler.interactive-per-user}
+ * interactive renders queued or running gets further ones as bulk, so a generate loop cannot crowd
+ * out other users. The LilyPond runs of one render, such as the sections of a long score, share a
+ * job ID: they count as one render and all run in the class of the first. Within a class, users take turns by start-time fair queuing: every render is
+ * tagged with the virtual time at which its user's previous render in the class ends, costs are the
+ * estimated render times divided by the user's weight ({@code render.scheduler.user-weights}), and
+ * the smallest tag runs first. Across classes the higher class goes first, but every
+ * {@code render.scheduler.aging-ms} of waiting raises a render by one class, so bulk work is never
+ * starved.
+ */
+@Component
+public class RenderScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(RenderScheduler.class);
+
+    /**
+     * Request header with the priority class of the renders a request triggers
+     */
+    public static final String PRIORITY_HEADER = "X-Render-Priority";
+
+    // Estimate for renders of a class before any has completed
+    private static final long DEFAULT_ESTIMATE_MS = 2000;
+
+    /**
+     * Priority classes, highest first
+     */
+    public enum Priority {
+        INTERACTIVE, BACKGROUND, BULK;
+
+        /**
+         * @param value Class name in any case
+         * @return The class, or null if the value is not one
+         */
+        public static Priority parse(String value) {
+            for (Priority priority : values()) {
+                if (priority.name().equalsIgnoreCase(value.trim())) {
+                    return priority;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return The lower of this class and the given one
+         */
+        public Priority atMost(Priority other) {
+            return ordinal() >= other.ordinal() ? this : other;
+        }
+    }
+
+    /**
+     * Who asked for a render, and in which class
+     * @param user User name, or "system" for renders not triggered by a user
+     * @param priority Requested class
+     * @param job Groups the LilyPond runs of one render, or null if every run is a render of its own
+     */
+    public record Requester(String user, Priority priority, String job) {
+        public Requester(String user, Priority priority) {
+            this(user, priority, null);
+        }
+
+        /**
+         * @return This requester for the runs of one render
+         */
+        public Requester forJob(String job) {
+            return new Requester(user, priority, job);
+        }
+    }
+
+    private final int slots;
+    private final long agingMs;
+    private final int interactivePerUser;
+    private final Map<String, Double> userWeights;
+
+    // All state below is guarded by this
+    private int freeSlots;
+    private long nextId;
+    private final List<Entry> waiting = new ArrayList<>();
+    private final List<Entry> running = new ArrayList<>();
+    private final double[] virtualTime = new double[Priority.values().length];
+    private final List<Map<String, Double>> lastFinish = new ArrayList<>();
+    private final double[] averageMs = new double[Priority.values().length];
+
+    public RenderScheduler(@Value("${render.scheduler.slots:0}") int slots,
+                           @Value("${render.scheduler.aging-ms:30000}") long agingMs,
+                           @Value("${render.scheduler.interactive-per-user:2}") int interactivePerUser,
+                           @Value("${render.scheduler.user-weights:}") String[] userWeights) {
+        this.slots = slots > 0 ? slots : Math.max(1, Runtime.getRuntime().availableProcessors());
+        this.freeSlots = this.slots;
+        this.agingMs = Math.max(1, agingMs);
+        this.interactivePerUser = Math.max(1, interactivePerUser);
+        this.userWeights = parseWeights(userWeights);
+        for (Priority ignored : Priority.values()) {
+            lastFinish.add(new HashMap<>());
+        }
+        Arrays.fill(averageMs, DEFAULT_ESTIMATE_MS);
+        logger.info("Render scheduler: {} slots, aging every {} ms", this.slots, this.agingMs);
+    }
+
+    /**
+     * The requester of renders triggered on the current thread: the logged-in user and the class from
+     * the {@value #PRIORITY_HEADER} header. Outside of a web request renders count as background.
+     */
+    public Requester currentRequester() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        String user = authentication != null && authentication.isAuthenticated()
+            && !(authentication instanceof AnonymousAuthenticationToken) ? authentication.getName() : "system";
+
+        if (!(RequestContextHolder.getRequestAttributes() instanceof ServletRequestAttributes attributes)) {
+            return new Requester(user, Priority.BACKGROUND);
+        }
+        String header = attributes.getRequest().getHeader(PRIORITY_HEADER);
+        Priority priority = header != null ? Priority.parse(header) : null;
+        return new Requester(user, priority != null ? priority : Priority.INTERACTIVE);
+    }
+
+    /**
+     * Waits for a render slot. The slot is held until the ticket is closed.
+     * @param requester Who asked for the render
+     * @param label What is rendered, for the queue listing
+     * @param estimatedMs Expected render time, or 0 if unknown
+     * @return The ticket holding the slot
+     * @throws InterruptedException If the thread is interrupted while waiting; no slot is held then
+     */
+    public Ticket acquire(Requester requester, String label, long estimatedMs) throws InterruptedException {
+        Entry entry;
+        synchronized (this) {
+            Priority priority = requester.priority();
+            if (priority == Priority.INTERACTIVE) {
+                Priority jobPriority = findJobPriority(requester.job());
+                if (jobPriority != null) {
+                    priority = jobPriority;
+                } else if (countInteractive(requester.user()) >= interactivePerUser) {
+                    priority = Priority.BULK;
+                }
+            }
+            int c = priority.ordinal();
+            long cost = estimatedMs > 0 ? estimatedMs : Math.round(averageMs[c]);
+            entry = new Entry(++nextId, requester.user(), requester.job(), priority, label, cost, System.nanoTime());
+
+            // Start-time fair queuing: a user's renders queue behind each other in virtual time
+            double weight = userWeights.getOrDefault(requester.user(), 1.0);
+            entry.startTag = Math.max(virtualTime[c], lastFinish.get(c).getOrDefault(requester.user(), 0.0));
+            entry.finishTag = entry.startTag + cost / weight;
+            lastFinish.get(c).put(requester.user(), entry.finishTag);
+
+            waiting.add(entry);
+            dispatch();
+            try {
+                while (!entry.started) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                if (entry.started) {
+                    release(entry);
+                } else {
+                    waiting.remove(entry);
+                }
+                throw e;
+            }
+        }
+        long waitedMs = (entry.startedNanos - entry.enqueuedNanos) / 1_000_000;
+        if (waitedMs > 0) {
+            logger.debug("{} waited {} ms for a render slot ({}, {})", label, waitedMs, entry.priority, entry.user);
+        }
+        return new Ticket(entry);
+    }
+
+    /**
+     * Lists the renders of a user with their position in the queue and estimated wait
+     * @param user User name
+     * @return Slot usage, queue lengths per class and the user's renders
+     */
+    public synchronized Map<String, Object> getQueue(String user) {
+        long now = System.nanoTime();
+        // Replay the dispatch order as of now, with the running renders freeing their slots as estimated
+        PriorityQueue<Long> slotFree = new PriorityQueue<>();
+        for (int i = 0; i < freeSlots; i++) {
+            slotFree.add(0L);
+        }
+        for (Entry entry : running) {
+            slotFree.add(Math.max(0, entry.cost - (now - entry.startedNanos) / 1_000_000));
+        }
+
+        List<Map<String, Object>> requests = new ArrayList<>();
+        for (Entry entry : running) {
+            if (entry.user.equals(user)) {
+                requests.add(entry.toMap(now, "running", 0, 0));
+            }
+        }
+        List<Entry> queue = new ArrayList<>(waiting);
+        int position = 0;
+        while (!queue.isEmpty()) {
+            Entry next = selectNext(queue, now);
+            queue.remove(next);
+            position++;
+            long start = slotFree.remove();
+            slotFree.add(start + next.cost);
+            if (next.user.equals(user)) {
+                requests.add(next.toMap(now, "waiting", position, start));
+            }
+        }
+
+        Map<String, Object> waitingPerClass = new LinkedHashMap<>();
+        for (Priority priority : Priority.values()) {
+            waitingPerClass.put(priority.name().toLowerCase(), waiting.stream().filter(e -> e.priority == priority).count());
+        }
+        Map<String, Object> queueMap = new LinkedHashMap<>();
+        queueMap.put("slots", slots);
+        queueMap.put("running", running.size());
+        queueMap.put("waiting", waitingPerClass);
+        queueMap.put("requests", requests);
+        return queueMap;
+    }
+
+    /**
+     * Starts waiting renders while slots are free
+     */
+    private void dispatch() {
+        long now = System.nanoTime();
+        while (freeSlots > 0 && !waiting.isEmpty()) {
+            Entry next = selectNext(waiting, now);
+            waiting.remove(next);
+            int c = next.priority.ordinal();
+            virtualTime[c] = Math.max(virtualTime[c], next.startTag);
+            next.started = true;
+            next.startedNanos = now;
+            running.add(next);
+            freeSlots--;
+        }
+        notifyAll();
+    }
+
+    /**
+     * The render to start next: the smallest tag within each class, then the class with the best
+     * aged rank
+     */
+    private Entry selectNext(List<Entry> queue, long now) {
+        Entry[] heads = new Entry[Priority.values().length];
+        for (Entry entry : queue) {
+            int c = entry.priority.ordinal();
+            if (heads[c] == null || entry.finishTag < heads[c].finishTag
+                    || (entry.finishTag == heads[c].finishTag && entry.id < heads[c].id)) {
+                heads[c] = entry;
+            }
+        }
+        Entry next = null;
+        double bestRank = Double.MAX_VALUE;
+        for (Entry head : heads) {
+            if (head == null) {
+                continue;
+            }
+            double rank = head.priority.ordinal() - (now - head.enqueuedNanos) / 1_000_000.0 / agingMs;
+            if (rank < bestRank) {
+                bestRank = rank;
+                next = head;
+            }
+        }
+        return next;
+    }
+
+    private synchronized void release(Entry entry) {
+        if (!running.remove(entry)) {
+            return;
+        }
+        freeSlots++;
+        int c = entry.priority.ordinal();
+        long tookMs = (System.nanoTime() - entry.startedNanos) / 1_000_000;
+        averageMs[c] = 0.8 * averageMs[c] + 0.2 * tookMs;
+
+        // Users whose renders are all behind the virtual time have no credit left to remember
+        Map<String, Double> finishes = lastFinish.get(c);
+        finishes.values().removeIf(finish -> finish <= virtualTime[c]);
+        dispatch();
+    }
+
+    /**
+     * @return The class of the job's queued or running renders, or null if it has none
+     */
+    private Priority findJobPriority(String job) {
+        if (job == null) {
+            return null;
+        }
+        for (List<Entry> entries : List.of(waiting, running)) {
+            for (Entry entry : entries) {
+                if (job.equals(entry.job)) {
+                    return entry.priority;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Interactive renders of the user queued or running, counting each job once
+     */
+    private int countInteractive(String user) {
+        Set<Object> renders = new HashSet<>();
+        for (List<Entry> entries : List.of(waiting, running)) {
+            for (Entry entry : entries) {
+                if (entry.priority == Priority.INTERACTIVE && entry.user.equals(user)) {
+                    renders.add(entry.job != null ? entry.job : entry.id);
+                }
+            }
+        }
+        return renders.size();
+    }
+
+    /**
+     * Parses user=weight entries
+     */
+    private static Map<String, Double> parseWeights(String[] entries) {
+        Map<String, Double> weights = new HashMap<>();
+        for (String entry : entries) {
+            int equals = entry.indexOf('=');
+            if (equals > 0) {
+                double weight = Double.parseDouble(entry.substring(equals + 1).trim());
+                if (weight <= 0) {
+                    throw new IllegalArgumentException("render.scheduler.user-weights must be positive: " + entry);
+                }
+                weights.put(entry.substring(0, equals).trim(), weight);
+            } else if (!entry.isBlank()) {
+                throw new IllegalArgumentException("render.scheduler.user-weights entries must be USER=WEIGHT: " + entry);
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * A held render slot, released on close
+     */
+    public final class Ticket implements AutoCloseable {
+        private final Entry entry;
+
+        private Ticket(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * @return The class the render ran in, which may be lower than requested
+         */
+        public Priority getPriority() {
+            return entry.priority;
+        }
+
+        @Override
+        public void close() {
+            release(entry);
+        }
+    }
+
+    private static final class Entry {
+        private final long id;
+        private final String user;
+        private final String job;
+        private final Priority priority;
+        private final String label;
+        private final long cost;
+        private final long enqueuedNanos;
+        private double startTag;
+        private double finishTag;
+        private boolean started;
+        private long startedNanos;
+
+        Entry(long id, String user, String job, Priority priority, String label, long cost, long enqueuedNanos) {
+            this.id = id;
+            this.user = user;
+            this.job = job;
+            this.priority = priority;
+            this.label = label;
+            this.cost = cost;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+
+        Map<String, Object> toMap(long now, String state, int position, long estimatedWaitMs) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("id", id);
+            map.put("label", label);
+            map.put("priority", priority.name().toLowerCase());
+            map.put("state", state);
+            map.put("position", position);
+            map.put("waitedMs", ((started ? startedNanos : now) - enqueuedNanos) / 1_000_000);
+            map.put("estimatedWaitMs", estimatedWaitMs);
+            map.put("estimatedRenderMs", cost);
+            return map;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.keyworks.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Rendering failed or timed out. Carries the diagnostics the renderer reported, so API responses can
+ * point at the offending line instead of only an exit code.
+ */
+public class ScoreRenderException extends RuntimeException {
+
+    private final List<LilyPondDiagnostic> diagnostics;
+
+    public ScoreRenderException(String message, List<LilyPondDiagnostic> diagnostics) {
+        super(message);
+        this.diagnostics = List.copyOf(diagnostics);
+    }
+
+    public List<LilyPondDiagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * @return The diagnostics as maps, for JSON responses
+     */
+    public List<Map<String, Object>> getDiagnosticMaps() {
+        List<Map<String, Object>> maps = new ArrayList<>();
+        for (LilyPondDiagnostic diagnostic : diagnostics) {
+            maps.add(diagnostic.toMap());
+        }
+        return maps;
+    }
+
+    /**
+     * Finds a render failure in an exception or its causes, as services wrap it on the way up
+     * @param e The caught exception
+     * @return The render failure, if any
+     */
+    public static Optional<ScoreRenderException> find(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ScoreRenderException renderException) {
+                return Optional.of(renderException);
+            }
+        }
+        return Optional.empty();
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.keyworks.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Turns a LilyPond source file into a PDF and a MIDI file, or into one image per page.
+ * Outputs are named after the source: rendering {@code music_generated_7.ly} into a directory
+ * produces {@code music_generated_7.pdf} and {@code music_generated_7.midi} there. The implementation
+ * is selected with {@code render.renderer}: {@code lilypond} (default) runs the LilyPond executable,
+ * {@code stub} writes fixed files for load tests on machines without LilyPond.
+ */
+public interface ScoreRenderer {
+
+    /**
+     * Returned by {@link #getVersion()} while the version cannot be determined
+     */
+    String UNKNOWN_VERSION = "unknown";
+
+    /**
+     * Renders a source file
+     * @param source The .ly file
+     * @param outputDirectory Directory to write the outputs to
+     * @return Warnings reported while rendering
+     * @throws ScoreRenderException If rendering fails or times out, with the reported errors
+     */
+    List<LilyPondDiagnostic> render(Path source, Path outputDirectory) throws IOException, InterruptedException;
+
+    /**
+     * Renders one image per page, for previews and thumbnails
+     * @param source The .ly file
+     * @param outputDirectory Directory to write the images to
+     * @param format svg or png
+     * @param resolution Resolution of PNG images in dots per inch
+     * @return The images in page order
+     * @throws ScoreRenderException If rendering fails or times out, with the reported errors
+     */
+    List<Path> renderPages(Path source, Path outputDirectory, String format, int resolution)
+        throws IOException, InterruptedException;
+
+    /**
+     * @return Short name of the renderer for logs
+     */
+    String getName();
+
+    /**
+     * @return Version of the renderer, e.g. the LilyPond version; a change means stored outputs are outdated.
+     *         {@link #UNKNOWN_VERSION} if it cannot be determined at the moment
+     */
+    String getVersion();
+
+    /**
+     * @return The options that affect the outputs, in a stable form; a change means stored outputs are outdated
+     */
+    String getOptions();
+}
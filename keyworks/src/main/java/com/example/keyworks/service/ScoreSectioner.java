@@ -0,0 +1,442 @@
+package com.example.keyworks.service;
+
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits generated scores at barlines into sections that can be rendered independently.
+ * Works on the code written by {@link LilyPondEmitter} and {@link Quantizer}: one {@code \score} with
+ * one or more {@code \new Staff} blocks, each starting with {@code \clef}, {@code \key}, {@code \time}
+ * and {@code \tempo} commands followed by either a single voice or {@code << { } \\ { } >>} voices,
+ * with every bar closed by a bar check {@code |}. Every section keeps the header, clef and time
+ * signature and starts in the key that is in force at its first bar; the tempo mark, the title and
+ * the tagline are kept only where they belong in the whole score. Code of any other shape (hand
+ * written scores, several scores, nested music) is not split.
+ */
+@Component
+public class ScoreSectioner {
+
+    private static final String STAFF = "\\new Staff";
+
+    /**
+     * Splits a score into sections of a fixed number of bars
+     * @param code The LilyPond code
+     * @param barsPerSection Bars per section
+     * @return The code of each section, or an empty list if the score has no more than one section
+     *         or is not of the generated shape
+     */
+    public List<String> split(String code, int barsPerSection) {
+        if (barsPerSection < 1 || count(code, "\\score") != 1 || count(code, "\\book") != 0) {
+            return List.of();
+        }
+        int scoreStart = find(code, "\\score", 0);
+
+        List<Staff> staves = new ArrayList<>();
+        int from = scoreStart;
+        int bars = 0;
+        while ((from = find(code, STAFF, from)) >= 0) {
+            Staff staff = parseStaff(code, from);
+            if (staff == null) {
+                return List.of();
+            }
+            staves.add(staff);
+            bars = Math.max(bars, staff.getBarCount());
+            from = staff.bodyEnd;
+        }
+        if (staves.isEmpty() || bars <= barsPerSection) {
+            return List.of();
+        }
+
+        int sectionCount = (bars + barsPerSection - 1) / barsPerSection;
+        String tail = removeBlock(code.substring(staves.get(staves.size() - 1).bodyEnd), "\\midi");
+        List<String> sections = new ArrayList<>(sectionCount);
+        for (int section = 0; section < sectionCount; section++) {
+            StringBuilder out = new StringBuilder(code.length() / sectionCount + 1024);
+            out.append(code, 0, scoreStart);
+            appendSectionSettings(out, section, sectionCount);
+
+            int copied = scoreStart;
+            for (Staff staff : staves) {
+                out.append(code, copied, staff.bodyStart);
+                staff.writeSection(out, section * barsPerSection, (section + 1) * barsPerSection);
+                copied = staff.bodyEnd;
+            }
+            out.append(tail);
+            sections.add(out.toString());
+        }
+        return sections;
+    }
+
+    /**
+     * Removes the layout from a score, so that rendering it only writes the MIDI file
+     * @param code The LilyPond code
+     * @return The code without {@code \layout} blocks, or null if the score has no {@code \midi} block
+     */
+    public String toMidiOnly(String code) {
+        if (find(code, "\\midi", 0) < 0) {
+            return null;
+        }
+        return removeBlock(code, "\\layout");
+    }
+
+    /**
+     * Header and paper settings that make the section PDFs read as one document once concatenated:
+     * the title only above the first section, the tagline only below the last, and no page numbers,
+     * since the page count of the earlier sections is not known when a section is rendered
+     */
+    private static void appendSectionSettings(StringBuilder out, int section, int sectionCount) {
+        out.append("\\header {\n");
+        if (section > 0) {
+            out.append("  title = ##f\n  subtitle = ##f\n  composer = ##f\n");
+        }
+        if (section < sectionCount - 1) {
+            out.append("  tagline = ##f\n");
+        }
+        out.append("}\n");
+        out.append("\\paper { print-page-number = ##f }\n\n");
+    }
+
+    /**
+     * Parses the staff whose {@code \new Staff} starts at the given index
+     * @return The staff, or null if it is not of the generated shape
+     */
+    private static Staff parseStaff(String code, int start) {
+        int i = skipWhitespace(code, start + STAFF.length());
+        if (code.startsWith("\\with", i)) {
+            i = skipWhitespace(code, i + "\\with".length());
+            if (i >= code.length() || code.charAt(i) != '{') {
+                return null;
+            }
+            i = skipWhitespace(code, matchingBrace(code, i) + 1);
+        }
+        if (i >= code.length() || code.charAt(i) != '{') {
+            return null;
+        }
+        int close = matchingBrace(code, i);
+        if (close < 0) {
+            return null;
+        }
+
+        Staff staff = new Staff(i + 1, close, indentOf(code, start));
+        String[] tokens = code.substring(i + 1, close).trim().split("\\s+");
+        int t = staff.parsePreamble(tokens);
+        if (t < 0) {
+            return null;
+        }
+        String music = String.join(" ", List.of(tokens).subList(t, tokens.length));
+        return staff.parseMusic(music) ? staff : null;
+    }
+
+    /**
+     * A staff: its preamble commands and the bars of each voice
+     */
+    private static final class Staff {
+        private final int bodyStart;
+        private final int bodyEnd;
+        private final String indent;
+        private final List<String> preamble = new ArrayList<>();
+        private final List<List<String>> voices = new ArrayList<>();
+        private boolean polyphonic;
+        private String key;
+
+        Staff(int bodyStart, int bodyEnd, String indent) {
+            this.bodyStart = bodyStart;
+            this.bodyEnd = bodyEnd;
+            this.indent = indent;
+        }
+
+        /**
+         * @return Index of the first music token, or -1 if a command is not understood
+         */
+        int parsePreamble(String[] tokens) {
+            int t = 0;
+            while (t < tokens.length) {
+                String token = tokens[t];
+                int arguments;
+                if (token.equals("\\clef") || token.equals("\\time")) {
+                    arguments = 1;
+                } else if (token.equals("\\key")) {
+                    arguments = 2;
+                } else if (token.equals("\\tempo")) {
+                    // Only the metronome form written by the emitter: \tempo 4 = 120
+                    arguments = 3;
+                    if (t + 2 >= tokens.length || !tokens[t + 2].equals("=")) {
+                        return -1;
+                    }
+                } else {
+                    return t;
+                }
+                if (t + arguments >= tokens.length) {
+                    return -1;
+                }
+                String command = String.join(" ", List.of(tokens).subList(t, t + arguments + 1));
+                if (token.equals("\\key")) {
+                    key = command;
+                }
+                preamble.add(command);
+                t += arguments + 1;
+            }
+            return t;
+        }
+
+        /**
+         * Splits the music into voices and bars
+         * @return Whether the music is of the generated shape
+         */
+        boolean parseMusic(String music) {
+            if (music.startsWith("<<")) {
+                if (!music.endsWith(">>")) {
+                    return false;
+                }
+                String inner = music.substring(2, music.length() - 2).trim();
+                if (!inner.startsWith("{") || !inner.endsWith("}")) {
+                    return false;
+                }
+                polyphonic = true;
+                for (String voice : inner.substring(1, inner.length() - 1).split("\\}\\s*\\\\\\\\\\s*\\{", -1)) {
+                    if (!addVoice(voice)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            return addVoice(music);
+        }
+
+        private boolean addVoice(String voice) {
+            if (voice.contains("{") || voice.contains("}") || voice.contains("<<") || voice.contains("\"")
+                    || voice.contains("\\\\")) {
+                return false;
+            }
+            List<String> bars = new ArrayList<>();
+            StringBuilder bar = new StringBuilder();
+            for (String token : voice.trim().split("\\s+")) {
+                if (token.isEmpty()) {
+                    continue;
+                }
+                bar.append(token).append(' ');
+                if (token.equals("|")) {
+                    bars.add(bar.toString());
+                    bar.setLength(0);
+                }
+            }
+            if (!bar.isEmpty()) {
+                bars.add(bar.toString());
+            }
+            voices.add(bars);
+            return true;
+        }
+
+        int getBarCount() {
+            int count = 0;
+            for (List<String> bars : voices) {
+                count = Math.max(count, bars.size());
+            }
+            return count;
+        }
+
+        /**
+         * Writes the staff body for bars [from, to)
+         */
+        void writeSection(StringBuilder out, int from, int to) {
+            // Key changes are written in the first voice; the section starts in the last one before it
+            String sectionKey = key;
+            List<String> first = voices.get(0);
+            for (int b = 0; b < Math.min(from, first.size()); b++) {
+                sectionKey = lastKey(first.get(b), sectionKey);
+            }
+
+            String inner = indent + "  ";
+            out.append('\n');
+            boolean keyWritten = false;
+            for (String command : preamble) {
+                if (command.startsWith("\\tempo") && from > 0) {
+                    continue;
+                }
+                if (command.startsWith("\\key")) {
+                    command = sectionKey;
+                    keyWritten = true;
+                }
+                out.append(inner).append(command).append('\n');
+            }
+            if (!keyWritten && sectionKey != null) {
+                out.append(inner).append(sectionKey).append('\n');
+            }
+
+            out.append(inner);
+            boolean secondaryVoices = false;
+            for (int v = 1; v < voices.size(); v++) {
+                secondaryVoices |= voices.get(v).size() > from;
+            }
+            if (polyphonic && secondaryVoices) {
+                // All voices are kept, even empty ones, so that each keeps its stem direction
+                out.append("<< { ");
+                for (int v = 0; v < voices.size(); v++) {
+                    if (v > 0) {
+                        out.append("} \\\\ { ");
+                    }
+                    appendBars(out, voices.get(v), from, to);
+                }
+                out.append("} >>");
+            } else {
+                appendBars(out, first, from, to);
+            }
+            out.append('\n').append(indent);
+        }
+
+        private static void appendBars(StringBuilder out, List<String> bars, int from, int to) {
+            for (int b = from; b < Math.min(to, bars.size()); b++) {
+                out.append(bars.get(b));
+            }
+        }
+
+        private static String lastKey(String bar, String current) {
+            int at = bar.lastIndexOf("\\key ");
+            if (at < 0) {
+                return current;
+            }
+            String[] tokens = bar.substring(at).split(" ", 4);
+            return tokens.length >= 3 ? tokens[0] + " " + tokens[1] + " " + tokens[2] : current;
+        }
+    }
+
+    /**
+     * Removes every occurrence of a command followed by a brace block, e.g. {@code \midi { }}
+     */
+    private static String removeBlock(String code, String command) {
+        StringBuilder out = new StringBuilder(code.length());
+        int copied = 0;
+        int at;
+        while ((at = find(code, command, copied)) >= 0) {
+            int open = skipWhitespace(code, at + command.length());
+            if (open >= code.length() || code.charAt(open) != '{') {
+                out.append(code, copied, open);
+                copied = open;
+                continue;
+            }
+            int close = matchingBrace(code, open);
+            if (close < 0) {
+                break;
+            }
+            // Drop the whole line if the block was alone on it
+            int lineStart = at;
+            while (lineStart > copied && (code.charAt(lineStart - 1) == ' ' || code.charAt(lineStart - 1) == '\t')) {
+                lineStart--;
+            }
+            int end = close + 1;
+            if (end < code.length() && code.charAt(end) == '\n' && (lineStart == 0 || code.charAt(lineStart - 1) == '\n')) {
+                end++;
+            } else {
+                lineStart = at;
+            }
+            out.append(code, copied, lineStart);
+            copied = end;
+        }
+        out.append(code, copied, code.length());
+        return out.toString();
+    }
+
+    /**
+     * Finds a command outside of strings and comments
+     * @return Its index, or -1
+     */
+    private static int find(String code, String command, int from) {
+        for (int i = from; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (c == '"') {
+                i = skipString(code, i) - 1;
+            } else if (c == '%') {
+                i = skipComment(code, i) - 1;
+            } else if (c == '\\' && code.startsWith(command, i)) {
+                int end = i + command.length();
+                if (end == code.length() || !Character.isLetter(code.charAt(end))) {
+                    return i;
+                }
+            } else if (c == '\\' && i + 1 < code.length()) {
+                // An escaped character, e.g. the second backslash of \\
+                if (!Character.isLetter(code.charAt(i + 1))) {
+                    i++;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static int count(String code, String command) {
+        int count = 0;
+        int at = find(code, command, 0);
+        while (at >= 0) {
+            count++;
+            at = find(code, command, at + command.length());
+        }
+        return count;
+    }
+
+    /**
+     * @param open Index of an opening brace
+     * @return Index of the matching closing brace, or -1
+     */
+    private static int matchingBrace(String code, int open) {
+        int depth = 0;
+        for (int i = open; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (c == '"') {
+                i = skipString(code, i) - 1;
+            } else if (c == '%') {
+                i = skipComment(code, i) - 1;
+            } else if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param start Index of the opening quote
+     * @return Index after the closing quote
+     */
+    private static int skipString(String code, int start) {
+        for (int i = start + 1; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i + 1;
+            }
+        }
+        return code.length();
+    }
+
+    /**
+     * @param start Index of the percent sign
+     * @return Index after the comment
+     */
+    private static int skipComment(String code, int start) {
+        if (code.startsWith("%{", start)) {
+            int end = code.indexOf("%}", start + 2);
+            return end < 0 ? code.length() : end + 2;
+        }
+        int end = code.indexOf('\n', start);
+        return end < 0 ? code.length() : end;
+    }
+
+    private static int skipWhitespace(String code, int i) {
+        while (i < code.length() && Character.isWhitespace(code.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static String indentOf(String code, int index) {
+        int lineStart = code.lastIndexOf('\n', index - 1) + 1;
+        int end = lineStart;
+        while (end < index && (code.charAt(end) == ' ' || code.charAt(end) == '\t')) {
+            end++;
+        }
+        return code.substring(lineStart, end);
+    }
+}
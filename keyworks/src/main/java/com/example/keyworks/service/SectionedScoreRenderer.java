@@ -0,0 +1,328 @@
+package com.example.keyworks.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Renders long scores in sections on several cores.
+ * The {@link ScoreSectioner} splits the score at barlines into sections of
+ * {@code render.sections.bars-per-section} bars, which the {@link ScoreRenderer} typesets
+ * concurrently, while one more job writes the MIDI file from the whole score without typesetting it.
+ * The first section is handed to the caller as soon as it is done, as a preview. The section PDFs are
+ * then concatenated into one PDF by {@code render.sections.merge-command}, by default Ghostscript,
+ * which LilyPond itself uses to write PDFs. The merge command is looked up once at startup, before
+ * any section renders; if it is not installed, sectioning is switched off and scores are rendered in
+ * one piece. Should it still fail to start later, sectioning is switched off from then on.
+ */
+@Component
+public class SectionedScoreRenderer {
+    private static final Logger logger = LoggerFactory.getLogger(SectionedScoreRenderer.class);
+
+    private final ScoreRenderer scoreRenderer;
+    private final ScoreSectioner scoreSectioner;
+    private final ProcessSupervisor processSupervisor;
+    private final RenderScheduler renderScheduler;
+    private final int barsPerSection;
+    private final List<String> mergeCommand;
+    private final long mergeTimeoutSeconds;
+    private final ExecutorService executor;
+    private final String options;
+    private volatile boolean enabled;
+
+    public SectionedScoreRenderer(ScoreRenderer scoreRenderer, ScoreSectioner scoreSectioner,
+                                  ProcessSupervisor processSupervisor, RenderScheduler renderScheduler,
+                                  @Value("${render.sections.enabled:true}") boolean enabled,
+                                  @Value("${render.sections.bars-per-section:32}") int barsPerSection,
+                                  @Value("${render.sections.parallelism:0}") int parallelism,
+                                  @Value("${render.sections.merge-command:gs -q -dNOPAUSE -dBATCH -dSAFER -sDEVICE=pdfwrite -sOutputFile={output} {inputs}}") String mergeCommand,
+                                  @Value("${render.sections.merge-timeout-seconds:60}") long mergeTimeoutSeconds) {
+        this.scoreRenderer = scoreRenderer;
+        this.scoreSectioner = scoreSectioner;
+        this.processSupervisor = processSupervisor;
+        this.renderScheduler = renderScheduler;
+        this.mergeCommand = List.of(mergeCommand.trim().split("\\s+"));
+        if (enabled && findExecutable(this.mergeCommand.get(0)) == null) {
+            logger.warn("PDF merge command {} not found, rendering scores in one piece", this.mergeCommand.get(0));
+            enabled = false;
+        }
+        this.enabled = enabled;
+        this.barsPerSection = barsPerSection;
+        this.options = enabled ? "sections=" + barsPerSection : "sections=off";
+        this.mergeTimeoutSeconds = mergeTimeoutSeconds;
+
+        int workers = parallelism > 0 ? parallelism : Math.max(1, Runtime.getRuntime().availableProcessors());
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "section-render-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.info("Sectioned rendering {}: {} bars per section, {} workers",
+            enabled ? "enabled" : "disabled", barsPerSection, workers);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return The configured sectioning, which affects the layout of long scores
+     */
+    public String getOptions() {
+        return options;
+    }
+
+    /**
+     * Renders a source file in sections if it is long enough. The outputs are named and placed as
+     * by {@link ScoreRenderer#render}, and the logs of all sections are collected in one .log file.
+     * @param source The .ly file
+     * @param outputDirectory Directory to write the outputs to; sections are rendered in subdirectories
+     * @param requester Who asked for the render; each section waits for its own {@link RenderScheduler} slot
+     * @param estimatedMs Expected time to render the whole score in one piece, or 0 if unknown
+     * @param firstSection Called with the PDF of the first section once it is rendered
+     * @return Warnings reported while rendering, or null if the score was not split and still has to
+     *         be rendered in one piece
+     * @throws ScoreRenderException If a section fails or the PDFs cannot be merged
+     */
+    public List<LilyPondDiagnostic> render(Path source, Path outputDirectory, RenderScheduler.Requester requester,
+                                           long estimatedMs, Consumer<Path> firstSection)
+            throws IOException, InterruptedException {
+        if (!enabled) {
+            return null;
+        }
+        String code = Files.readString(source);
+        List<String> sections = scoreSectioner.split(code, barsPerSection);
+        if (sections.isEmpty()) {
+            return null;
+        }
+
+        String baseName = LilyPondProcessRenderer.baseName(source);
+        logger.info("Rendering {} in {} sections of {} bars", source.getFileName(), sections.size(), barsPerSection);
+        long started = System.currentTimeMillis();
+
+        long sectionEstimateMs = estimatedMs / sections.size();
+        List<Path> sectionSources = new ArrayList<>();
+        List<Future<List<LilyPondDiagnostic>>> jobs = new ArrayList<>();
+        Future<List<LilyPondDiagnostic>> midiJob = null;
+        try {
+            for (int i = 0; i < sections.size(); i++) {
+                Path sectionSource = writeJobSource(outputDirectory, "section-" + (i + 1),
+                    baseName + "-" + (i + 1) + ".ly", sections.get(i));
+                sectionSources.add(sectionSource);
+                boolean first = i == 0;
+                jobs.add(executor.submit(() -> {
+                    List<LilyPondDiagnostic> warnings;
+                    try (RenderScheduler.Ticket ticket = renderScheduler.acquire(requester,
+                            sectionSource.getFileName().toString(), sectionEstimateMs)) {
+                        warnings = scoreRenderer.render(sectionSource, sectionSource.getParent());
+                    }
+                    if (first) {
+                        firstSection.accept(output(sectionSource, ".pdf"));
+                    }
+                    return warnings;
+                }));
+            }
+            String midiCode = scoreSectioner.toMidiOnly(code);
+            Path midiSource = midiCode != null ? writeJobSource(outputDirectory, "midi", baseName + ".ly", midiCode) : null;
+            if (midiSource != null) {
+                midiJob = executor.submit(() -> {
+                    try (RenderScheduler.Ticket ticket = renderScheduler.acquire(requester,
+                            baseName + " (MIDI)", sectionEstimateMs)) {
+                        return scoreRenderer.render(midiSource, midiSource.getParent());
+                    }
+                });
+            }
+
+            List<LilyPondDiagnostic> warnings = new ArrayList<>();
+            try {
+                for (int i = 0; i < jobs.size(); i++) {
+                    warnings.addAll(await(jobs.get(i), "Section " + (i + 1) + " of " + jobs.size()));
+                }
+                if (midiJob != null) {
+                    await(midiJob, "MIDI");
+                }
+            } finally {
+                collectLogs(sectionSources, midiSource, outputDirectory.resolve(baseName + ".log"));
+            }
+
+            if (midiSource != null) {
+                Path midi = output(midiSource, ".midi");
+                if (!Files.exists(midi)) {
+                    midi = output(midiSource, ".mid");
+                }
+                if (Files.exists(midi)) {
+                    Files.move(midi, outputDirectory.resolve(baseName + ".midi"), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+
+            List<Path> pdfs = new ArrayList<>();
+            for (Path sectionSource : sectionSources) {
+                pdfs.add(output(sectionSource, ".pdf"));
+            }
+            if (!merge(pdfs, outputDirectory.resolve(baseName + ".pdf"))) {
+                return null;
+            }
+            logger.info("Rendered {} sections of {} in {} ms", sections.size(), source.getFileName(),
+                System.currentTimeMillis() - started);
+            return warnings;
+        } finally {
+            // A failed section cancels the rest; interrupting a job kills its LilyPond process
+            for (Future<List<LilyPondDiagnostic>> job : jobs) {
+                job.cancel(true);
+            }
+            if (midiJob != null) {
+                midiJob.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Finds an executable as the OS would: a path as given, a bare name on the PATH
+     * @return The executable, or null if there is none
+     */
+    static Path findExecutable(String name) {
+        Path path;
+        try {
+            path = Path.of(name);
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (path.getParent() != null) {
+            return Files.isRegularFile(path) && Files.isExecutable(path) ? path : null;
+        }
+        String searchPath = System.getenv("PATH");
+        if (searchPath == null) {
+            return null;
+        }
+        for (String directory : searchPath.split(File.pathSeparator)) {
+            if (directory.isEmpty()) {
+                continue;
+            }
+            for (String candidate : List.of(name, name + ".exe")) {
+                try {
+                    Path executable = Path.of(directory, candidate);
+                    if (Files.isRegularFile(executable) && Files.isExecutable(executable)) {
+                        return executable;
+                    }
+                } catch (InvalidPathException e) {
+                    // An unusable PATH entry
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Path writeJobSource(Path outputDirectory, String directory, String fileName, String code) throws IOException {
+        Path sectionSource = Files.createDirectories(outputDirectory.resolve(directory)).resolve(fileName);
+        Files.writeString(sectionSource, code);
+        return sectionSource;
+    }
+
+    private static Path output(Path source, String extension) {
+        return source.resolveSibling(LilyPondProcessRenderer.baseName(source) + extension);
+    }
+
+    /**
+     * Waits for a job and prefixes render failures with the part of the score that failed
+     */
+    private static List<LilyPondDiagnostic> await(Future<List<LilyPondDiagnostic>> job, String part)
+            throws IOException, InterruptedException {
+        try {
+            return job.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ScoreRenderException renderException) {
+                throw new ScoreRenderException(part + ": " + renderException.getMessage(), renderException.getDiagnostics());
+            }
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new RuntimeException(part + " failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Concatenates the section PDFs
+     * @return False if the merge command could not be started although it was found at startup, in which
+     *         case sectioning is switched off
+     */
+    private boolean merge(List<Path> pdfs, Path output) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        for (String part : mergeCommand) {
+            if (part.equals("{inputs}")) {
+                for (Path pdf : pdfs) {
+                    command.add(pdf.toAbsolutePath().toString());
+                }
+            } else {
+                command.add(part.replace("{output}", output.toAbsolutePath().toString()));
+            }
+        }
+
+        ProcessSupervisor.Result result;
+        try {
+            result = processSupervisor.run(command, output.toAbsolutePath().getParent(), Map.of(), mergeTimeoutSeconds,
+                line -> { });
+        } catch (IOException e) {
+            logger.error("Cannot run the PDF merge command {}, rendering scores in one piece from now on: {}",
+                command.get(0), e.getMessage());
+            enabled = false;
+            return false;
+        }
+        if (result.timedOut() || result.exitCode() != 0 || !Files.exists(output)) {
+            String reason = result.timedOut() ? "timed out after " + mergeTimeoutSeconds + " seconds"
+                : "failed with exit code " + result.exitCode();
+            logger.error("Merging {} section PDFs {}: {}", pdfs.size(), reason, result.output());
+            throw new ScoreRenderException("Merging the section PDFs " + reason, List.of());
+        }
+        return true;
+    }
+
+    /**
+     * Concatenates the logs of all jobs that wrote one
+     */
+    private static void collectLogs(List<Path> sectionSources, Path midiSource, Path log) {
+        StringBuilder text = new StringBuilder();
+        List<Path> sources = new ArrayList<>(sectionSources);
+        if (midiSource != null) {
+            sources.add(midiSource);
+        }
+        for (Path source : sources) {
+            Path sectionLog = output(source, ".log");
+            if (Files.exists(sectionLog)) {
+                try {
+                    text.append("=== ").append(source.getFileName()).append(" ===\n").append(Files.readString(sectionLog));
+                } catch (IOException e) {
+                    logger.warn("Could not read {}: {}", sectionLog, e.getMessage());
+                }
+            }
+        }
+        try {
+            Files.writeString(log, text);
+        } catch (IOException e) {
+            logger.warn("Could not write {}: {}", log, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.model.SheetMusic;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Brings generated files up to date in the background. Every {@code render.reconciler.interval-ms}
+ * it renders the next {@code render.reconciler.batch-size} sheet music whose files are out of date,
+ * e.g. all of them once after a LilyPond upgrade, or those whose code was edited since. Nothing is
+ * rendered while the renderer cannot report its version. Up-to-date rows are never rendered again,
+ * and the renders queue in the background class of the {@link RenderScheduler}, behind interactive
+ * ones. A batch runs on a thread of its own, so it does not hold up the other scheduled tasks such
+ * as the MIDI device watcher; a tick that finds the previous batch still running is skipped.
+ */
+@Component
+public class SheetMusicRenderReconciler {
+    private static final Logger logger = LoggerFactory.getLogger(SheetMusicRenderReconciler.class);
+
+    private final SheetMusicService sheetMusicService;
+    private final LilyPondService lilyPondService;
+    private final boolean enabled;
+    private final int batchSize;
+    private final ExecutorService executor;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    // Resumes after the last row of the previous batch, so that rows failing again do not block the rest
+    private long lastId;
+
+    public SheetMusicRenderReconciler(SheetMusicService sheetMusicService, LilyPondService lilyPondService,
+                                      @Value("${render.reconciler.enabled:true}") boolean enabled,
+                                      @Value("${render.reconciler.batch-size:10}") int batchSize) {
+        this.sheetMusicService = sheetMusicService;
+        this.lilyPondService = lilyPondService;
+        this.enabled = enabled;
+        this.batchSize = Math.max(1, batchSize);
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "render-reconciler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Starts a batch on the reconciler thread unless the previous one is still running
+     */
+    @Scheduled(fixedDelayString = "${render.reconciler.interval-ms:60000}",
+               initialDelayString = "${render.reconciler.interval-ms:60000}")
+    public void schedule() {
+        if (!enabled || !running.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                reconcile();
+            } catch (RuntimeException e) {
+                logger.error("Background re-rendering failed: {}", e.getMessage(), e);
+            } finally {
+                running.set(false);
+            }
+        });
+    }
+
+    /**
+     * Renders one batch of out-of-date sheet music
+     */
+    void reconcile() {
+        if (!lilyPondService.isRendererVersionKnown()) {
+            // Every row would look outdated, and rendering them all would likely fail too
+            logger.warn("Skipping background re-rendering: the renderer version is unknown");
+            return;
+        }
+        List<Long> ids = sheetMusicService.findDirtySheetMusicIds(lastId, batchSize);
+        if (ids.size() < batchSize) {
+            // Start over next time
+            lastId = 0;
+        } else {
+            lastId = ids.get(ids.size() - 1);
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        int rendered = 0;
+        long started = System.currentTimeMillis();
+        for (Long id : ids) {
+            try {
+                Optional<SheetMusic> sheetMusic = sheetMusicService.findSheetMusicById(id);
+                if (sheetMusic.isPresent()) {
+                    sheetMusicService.generateSheetMusic(sheetMusic.get());
+                    rendered++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.warn("Re-rendering sheet music {} failed: {}", id, e.getMessage());
+            }
+        }
+        logger.info("Re-rendered {} of {} out-of-date sheet music in {} ms", rendered, ids.size(),
+            System.currentTimeMillis() - started);
+    }
+}
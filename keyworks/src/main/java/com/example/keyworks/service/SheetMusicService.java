@@ -3,6 +3,9 @@ package com.example.keyworks.service;
 import com.example.keyworks.model.SheetMusic;
 import com.example.keyworks.model.User;
 import com.example.keyworks.repository.SheetMusicRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -12,6 +15,7 @@ import java.util.Optional;
 
 @Service
 public class SheetMusicService {
+    private static final Logger logger = LoggerFactory.getLogger(SheetMusicService.class);
 
     private final SheetMusicRepository sheetMusicRepository;
     private final LilyPondService lilyPondService;
@@ -47,13 +51,91 @@ public class SheetMusicService {
         return sheetMusicRepository.save(sheetMusic);
     }
 
+    /**
+     * Replaces a sheet music with an edited version. The generated files and their render state
+     * are kept from the stored version; they are marked stale if the code changed in more than
+     * comments and whitespace, so that the files are generated again
+     * @param existingSheetMusic The stored sheet music
+     * @param sheetMusic The edited version
+     * @return The saved sheet music
+     */
     @Transactional
+    public SheetMusic updateSheetMusic(SheetMusic existingSheetMusic, SheetMusic sheetMusic) {
+        sheetMusic.setId(existingSheetMusic.getId());
+        sheetMusic.setUser(existingSheetMusic.getUser());
+        sheetMusic.setPdfPath(existingSheetMusic.getPdfPath());
+        sheetMusic.setMidiPath(existingSheetMusic.getMidiPath());
+        sheetMusic.setRenderedSourceHash(existingSheetMusic.getRenderedSourceHash());
+        sheetMusic.setRendererVersion(existingSheetMusic.getRendererVersion());
+        sheetMusic.setRenderOptions(existingSheetMusic.getRenderOptions());
+        sheetMusic.setRenderStatus(existingSheetMusic.getRenderStatus());
+        sheetMusic.setRenderedAt(existingSheetMusic.getRenderedAt());
+        if (existingSheetMusic.getRenderStatus() != null
+                && !lilyPondService.isSameSource(existingSheetMusic.getLilyPondCode(), sheetMusic.getLilyPondCode())) {
+            sheetMusic.setRenderStatus(SheetMusic.RenderStatus.STALE);
+        }
+        return sheetMusicRepository.save(sheetMusic);
+    }
+
     public SheetMusic generateSheetMusic(SheetMusic sheetMusic) throws IOException, InterruptedException {
+        return generateSheetMusic(sheetMusic, false);
+    }
+
+    /**
+     * Generates the PDF and MIDI files of a sheet music and saves where they are and what they were
+     * rendered from. Not transactional: a render can take a while, and a failed render is saved too.
+     * Only the render columns are written, and only if the stored code is still the code that was
+     * rendered; an edit saved meanwhile wins, and the row stays stale for the next render.
+     * @param sheetMusic The sheet music
+     * @param force Whether to render even if the files are up to date
+     * @return The saved sheet music
+     */
+    public SheetMusic generateSheetMusic(SheetMusic sheetMusic, boolean force) throws IOException, InterruptedException {
+        if (!force && lilyPondService.isUpToDate(sheetMusic)) {
+            logger.debug("Files of sheet music {} are up to date", sheetMusic.getId());
+            return sheetMusic;
+        }
+        if (sheetMusic.getId() == null) {
+            sheetMusic = sheetMusicRepository.save(sheetMusic);
+        }
+        
         // Generate PDF and MIDI files
-        SheetMusic updatedSheetMusic = lilyPondService.generateFiles(sheetMusic);
+        try {
+            lilyPondService.generateFiles(sheetMusic);
+        } catch (IOException | RuntimeException e) {
+            // The entity is marked as failed
+            saveRenderState(sheetMusic);
+            throw e;
+        }
         
-        // Save the updated SheetMusic with file paths
-        return sheetMusicRepository.save(updatedSheetMusic);
+        // Save the file paths and render state
+        return saveRenderState(sheetMusic);
+    }
+
+    private SheetMusic saveRenderState(SheetMusic sheetMusic) {
+        int updated = sheetMusicRepository.updateRenderState(sheetMusic.getId(), sheetMusic.getLilyPondCode(),
+            sheetMusic.getPdfPath(), sheetMusic.getMidiPath(), sheetMusic.getRenderedSourceHash(),
+            sheetMusic.getRendererVersion(), sheetMusic.getRenderOptions(), sheetMusic.getRenderStatus(),
+            sheetMusic.getRenderedAt());
+        if (updated == 0) {
+            logger.info("Sheet music {} was edited or deleted while rendering; keeping the stored version",
+                sheetMusic.getId());
+            return sheetMusicRepository.findById(sheetMusic.getId()).orElse(sheetMusic);
+        }
+        return sheetMusic;
+    }
+
+    /**
+     * Finds sheet music whose generated files are out of date: the code was edited, it was
+     * rendered by another renderer version or with other options, or it predates render tracking.
+     * Failed renders are only retried when the renderer or options change.
+     * @param afterId Only sheet music with a greater ID, to page through the rows
+     * @param limit Maximum number of IDs
+     * @return IDs in ascending order
+     */
+    public List<Long> findDirtySheetMusicIds(long afterId, int limit) {
+        return sheetMusicRepository.findDirtyIds(lilyPondService.getRendererVersion(), lilyPondService.getRenderOptions(),
+            SheetMusic.RenderStatus.STALE, afterId, PageRequest.of(0, limit));
     }
 
     @Transactional
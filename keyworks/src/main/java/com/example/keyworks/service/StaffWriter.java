@@ -0,0 +1,186 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.config.TranscriptionConfig;
+
+import java.io.IOException;
+
+/**
+ * Turns the notes of one part into a staff.
+ * With a piano staff configured, notes first go through the {@link HandSplitter} and each hand gets
+ * its own {@link Quantizer}, written as a treble and a bass staff in a {@code PianoStaff}; otherwise
+ * all notes are quantized onto a single staff, whose clef follows the average pitch. Notes are fed in
+ * start order, either live or from a finished recording.
+ * <p>
+ * The staff starts in a given key. A {@link KeyDetector} window over the most recent notes watches for
+ * modulations: once the window key has differed from the current key for a quarter of the window,
+ * the staves change key at their next barline.
+ * <p>
+ * Quantizing is bounded by a work budget per 1000 notes, counted in notation tokens rather than time
+ * so the same notes always give the same score. Once all staves together exceed it, every staff
+ * completes the current bar at the same barline and the rest of the part is written unquantized.
+ */
+public class StaffWriter {
+
+    // Lowest average key still written in the treble clef on a single staff (G3)
+    private static final int TREBLE_CLEF_FLOOR = 55;
+
+    private final LilyPondEmitter emitter;
+    private final int beatsPerBar;
+    private final Quantizer upper;
+    private final Quantizer lower;
+    private final HandSplitter splitter;
+    private final long workBudgetPerThousand;
+
+    // Key signature at the start, and modulation tracking
+    private final KeyDetector.Key initialKey;
+    private final KeyDetector keyDetector;
+    private final int keyChangeNotes;
+    private KeyDetector.Key currentKey;
+    private int disagreeingNotes;
+
+    private long keySum;
+    private long noteCount;
+
+    /**
+     * @param emitter Writes pitches and staff headers
+     * @param config Transcription settings
+     * @param beatMs Quarter-note period in milliseconds
+     * @param originMs Time of the start of the first bar
+     * @param initialKey Key the staff starts in
+     */
+    public StaffWriter(LilyPondEmitter emitter, TranscriptionConfig config, double beatMs, long originMs,
+                       KeyDetector.Key initialKey) {
+        this.emitter = emitter;
+        this.beatsPerBar = config.getBeatsPerBar();
+        this.initialKey = initialKey;
+        this.currentKey = initialKey;
+        this.keyDetector = config.getKeyWindowNotes() > 0 ? new KeyDetector(config.getKeyWindowNotes()) : null;
+        this.keyChangeNotes = Math.max(1, config.getKeyWindowNotes() / 4);
+        this.workBudgetPerThousand = config.getWorkBudgetPerThousandNotes();
+        this.upper = newQuantizer(config, beatMs, originMs);
+        if (config.isPianoStaff()) {
+            this.lower = newQuantizer(config, beatMs, originMs);
+            this.splitter = new HandSplitter((key, start, duration, rightHand) ->
+                (rightHand ? upper : lower).addNote(key, start, duration),
+                config.getChordToleranceMs(), config.getHandSplitLag());
+        } else {
+            this.lower = null;
+            this.splitter = null;
+        }
+    }
+
+    private Quantizer newQuantizer(TranscriptionConfig config, double beatMs, long originMs) {
+        Quantizer quantizer = new Quantizer(emitter, beatMs, config.getGridSubdivisions(), config.getBeatsPerBar(),
+            config.getChordToleranceMs(), config.getMaxVoices());
+        quantizer.setOrigin(originMs);
+        quantizer.setInitialKey(initialKey);
+        return quantizer;
+    }
+
+    /**
+     * Adds a note. Notes must be given in start order.
+     * @param key MIDI key number
+     * @param startMs Start time in milliseconds
+     * @param durationMs Duration in milliseconds
+     */
+    public void addNote(int key, long startMs, long durationMs) throws IOException {
+        keySum += key;
+        noteCount++;
+        if (keyDetector != null) {
+            trackKey(key, durationMs);
+        }
+        if (splitter != null) {
+            splitter.addNote(key, startMs, durationMs);
+        } else {
+            upper.addNote(key, startMs, durationMs);
+        }
+        checkBudget();
+    }
+
+    private void checkBudget() throws IOException {
+        if (upper.isFallback()) {
+            return;
+        }
+        long work = upper.getWork() + (lower != null ? lower.getWork() : 0);
+        if (work <= Math.max(1000, noteCount) * workBudgetPerThousand / 1000) {
+            return;
+        }
+        // Both staves switch at the same barline, after everything either has quantized so far
+        upper.flush();
+        long length = upper.getLength();
+        if (lower != null) {
+            lower.flush();
+            length = Math.max(length, lower.getLength());
+            lower.fallBack(length);
+        }
+        upper.fallBack(length);
+    }
+
+    private void trackKey(int key, long durationMs) throws IOException {
+        keyDetector.addNote(key, durationMs);
+        KeyDetector.Key windowKey = keyDetector.getWindowKey();
+        if (windowKey == null || windowKey == currentKey) {
+            disagreeingNotes = 0;
+            return;
+        }
+        if (++disagreeingNotes >= keyChangeNotes) {
+            currentKey = windowKey;
+            disagreeingNotes = 0;
+            upper.changeKey(windowKey);
+            if (lower != null) {
+                lower.changeKey(windowKey);
+            }
+        }
+    }
+
+    /**
+     * Writes all remaining notes and completes the last bar of every staff
+     */
+    public void finish() throws IOException {
+        if (splitter == null) {
+            upper.finish();
+            return;
+        }
+        splitter.finish();
+        checkBudget();
+        upper.finish();
+        lower.finish();
+        long length = Math.max(upper.getLength(), lower.getLength());
+        upper.padTo(length);
+        lower.padTo(length);
+    }
+
+    /**
+     * Writes the staff (or piano staff) with everything quantized so far
+     * @param out Target
+     * @param indent Indentation of the staff line
+     * @param instrumentName Instrument name, or null for none
+     * @param tempoBpm Quarter notes per minute, or 0 to omit the tempo mark
+     */
+    public void writeStaff(Appendable out, String indent, String instrumentName, int tempoBpm) throws IOException {
+        if (splitter == null) {
+            String clef = noteCount > 0 && keySum / noteCount < TREBLE_CLEF_FLOOR ? "bass" : "treble";
+            emitter.openStaff(out, indent, instrumentName, clef, initialKey, beatsPerBar, tempoBpm);
+            upper.writeBody(out);
+            emitter.closeStaff(out, indent);
+            return;
+        }
+
+        String inner = indent + "  ";
+        emitter.openPianoStaff(out, indent, instrumentName);
+        emitter.openStaff(out, inner, null, "treble", initialKey, beatsPerBar, tempoBpm);
+        upper.writeBody(out);
+        emitter.closeStaff(out, inner);
+        emitter.openStaff(out, inner, null, "bass", initialKey, beatsPerBar, 0);
+        lower.writeBody(out);
+        emitter.closeStaff(out, inner);
+        emitter.closePianoStaff(out, indent);
+    }
+
+    /**
+     * @return Whether quantizing ran over its work budget and later notes were written unquantized
+     */
+    public boolean isFallback() {
+        return upper.isFallback();
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.keyworks.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renderer for load tests on machines without LilyPond.
+ * After a configurable simulated latency it writes the same one-page PDF and one-note MIDI file for
+ * every source, padded to configurable sizes, and a single page image, so the rest of the pipeline
+ * (storage, downloads, MIDI import, previews) sees valid files and every run is reproducible.
+ */
+@Component
+@ConditionalOnProperty(name = "render.renderer", havingValue = "stub")
+public class StubScoreRenderer implements ScoreRenderer {
+    private static final Logger logger = LoggerFactory.getLogger(StubScoreRenderer.class);
+
+    private final long latencyMs;
+    private final byte[] pdf;
+    private final byte[] midi;
+    private final byte[] svg;
+
+    public StubScoreRenderer(@Value("${render.stub.latency-ms:500}") long latencyMs,
+                             @Value("${render.stub.pdf-bytes:32768}") int pdfBytes,
+                             @Value("${render.stub.midi-bytes:1024}") int midiBytes) {
+        this.latencyMs = latencyMs;
+        this.pdf = buildPdf(pdfBytes);
+        this.midi = buildMidi(midiBytes);
+        this.svg = buildSvg();
+        logger.warn("Using the stub score renderer: {} ms latency, {} byte PDFs, {} byte MIDI files",
+            latencyMs, pdf.length, midi.length);
+    }
+
+    @Override
+    public List<LilyPondDiagnostic> render(Path source, Path outputDirectory) throws IOException, InterruptedException {
+        if (!Files.isRegularFile(source)) {
+            throw new RuntimeException("LilyPond source not found: " + source);
+        }
+        Thread.sleep(latencyMs);
+
+        String baseName = LilyPondProcessRenderer.baseName(source);
+        Files.write(outputDirectory.resolve(baseName + ".pdf"), pdf);
+        Files.write(outputDirectory.resolve(baseName + ".midi"), midi);
+        return List.of();
+    }
+
+    @Override
+    public List<Path> renderPages(Path source, Path outputDirectory, String format, int resolution)
+            throws IOException, InterruptedException {
+        if (!Files.isRegularFile(source)) {
+            throw new RuntimeException("LilyPond source not found: " + source);
+        }
+        Thread.sleep(latencyMs);
+
+        Path page = outputDirectory.resolve(LilyPondProcessRenderer.baseName(source) + "." + format);
+        if (format.equals("svg")) {
+            Files.write(page, svg);
+        } else {
+            // An A4 page at the requested resolution
+            BufferedImage image = new BufferedImage(Math.max(1, 827 * resolution / 100), Math.max(1, 1169 * resolution / 100),
+                BufferedImage.TYPE_BYTE_GRAY);
+            Graphics2D graphics = image.createGraphics();
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+            graphics.dispose();
+            ImageIO.write(image, "png", page.toFile());
+        }
+        return List.of(page);
+    }
+
+    @Override
+    public String getName() {
+        return "stub";
+    }
+
+    @Override
+    public String getVersion() {
+        return "1";
+    }
+
+    @Override
+    public String getOptions() {
+        return "pdf-bytes=" + pdf.length + " midi-bytes=" + midi.length;
+    }
+
+    /**
+     * A one-page PDF, padded with a comment before the cross-reference table
+     */
+    private static byte[] buildPdf(int size) {
+        String text = "BT /F1 18 Tf 72 720 Td (Rendered by the KeyWorks stub renderer) Tj ET";
+        String[] objects = {
+            "<< /Type /Catalog /Pages 2 0 R >>",
+            "<< /Type /Pages /Kids [3 0 R] /Count 1 >>",
+            "<< /Type /Page /Parent 2 0 R /MediaBox [0 0 595 842] /Contents 4 0 R "
+                + "/Resources << /Font << /F1 5 0 R >> >> >>",
+            "<< /Length " + text.length() + " >>\nstream\n" + text + "\nendstream",
+            "<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica >>"
+        };
+
+        StringBuilder body = new StringBuilder("%PDF-1.4\n");
+        List<Integer> offsets = new ArrayList<>();
+        for (int i = 0; i < objects.length; i++) {
+            offsets.add(body.length());
+            body.append(i + 1).append(" 0 obj\n").append(objects[i]).append("\nendobj\n");
+        }
+
+        StringBuilder trailer = new StringBuilder();
+        trailer.append("xref\n0 ").append(objects.length + 1).append("\n0000000000 65535 f \n");
+        for (int offset : offsets) {
+            trailer.append(String.format("%010d 00000 n \n", offset));
+        }
+        trailer.append("trailer\n<< /Size ").append(objects.length + 1).append(" /Root 1 0 R >>\nstartxref\n");
+        String end = "\n%%EOF\n";
+
+        // The padding comment shifts the cross-reference table, whose offset is written last
+        int unpadded = body.length() + trailer.length() + 10 + end.length();
+        int padding = Math.max(0, size - unpadded - 2);
+        if (padding > 0) {
+            body.append('%').append(" ".repeat(padding)).append('\n');
+        }
+        // Zero-padded so the total size does not depend on the number of digits of the offset
+        trailer.append(String.format("%010d", body.length()));
+        return (body + trailer.toString() + end).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A one-page SVG with the same text as the PDF
+     */
+    private static byte[] buildSvg() {
+        return ("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"210mm\" height=\"297mm\" viewBox=\"0 0 595 842\">"
+            + "<text x=\"72\" y=\"122\" font-family=\"Helvetica\" font-size=\"18\">Rendered by the KeyWorks stub renderer</text>"
+            + "</svg>\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A type 0 MIDI file with one quarter-note middle C, padded with a text event
+     */
+    private static byte[] buildMidi(int size) {
+        ByteArrayOutputStream track = new ByteArrayOutputStream();
+        // Note on and, a quarter note later (480 ticks), note off
+        track.writeBytes(new byte[] {0x00, (byte) 0x90, 60, 80});
+        track.writeBytes(new byte[] {(byte) 0x83, 0x60, (byte) 0x80, 60, 0});
+
+        // Header chunk, track chunk header, notes, text event header and end of track
+        int padding = size - (14 + 8 + track.size() + 7 + 4);
+        if (padding > 0) {
+            // Delta 0, text meta event, 4-byte variable-length size
+            track.writeBytes(new byte[] {0x00, (byte) 0xFF, 0x01,
+                (byte) (0x80 | (padding >> 21) & 0x7F), (byte) (0x80 | (padding >> 14) & 0x7F),
+                (byte) (0x80 | (padding >> 7) & 0x7F), (byte) (padding & 0x7F)});
+            track.writeBytes(" ".repeat(padding).getBytes(StandardCharsets.US_ASCII));
+        }
+        // End of track
+        track.writeBytes(new byte[] {0x00, (byte) 0xFF, 0x2F, 0x00});
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.writeBytes("MThd".getBytes(StandardCharsets.US_ASCII));
+        file.writeBytes(new byte[] {0, 0, 0, 6, 0, 0, 0, 1, 0x01, (byte) 0xE0});
+        file.writeBytes("MTrk".getBytes(StandardCharsets.US_ASCII));
+        int length = track.size();
+        file.writeBytes(new byte[] {(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+        file.writeBytes(track.toByteArray());
+        return file.toByteArray();
+    }
+}
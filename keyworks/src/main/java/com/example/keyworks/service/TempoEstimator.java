@@ -0,0 +1,106 @@
+package com.example.keyworks.service;
+
+/**
+ * Streaming tempo estimate from inter-onset intervals.
+ * Each interval votes for the beat periods it could represent (a half, quarter, eighth or sixteenth
+ * note) in a fixed histogram of candidate periods, weighted by a prior around 120 BPM. The best bin
+ * is tracked as votes come in, so adding an onset and reading the estimate are both O(1).
+ */
+public class TempoEstimator {
+
+    public static final double DEFAULT_BEAT_MS = 500.0;
+
+    // Candidate beat periods: 60-200 BPM in 5 ms bins
+    private static final int MIN_BEAT_MS = 300;
+    private static final int MAX_BEAT_MS = 1000;
+    private static final int BIN_MS = 5;
+    private static final int BINS = (MAX_BEAT_MS - MIN_BEAT_MS) / BIN_MS + 1;
+
+    // Onsets closer than this belong to the same chord and are not an interval
+    private static final long MIN_INTERVAL_MS = 50;
+    private static final long MAX_INTERVAL_MS = 4000;
+
+    // How an interval relates to the beat, and how much that reading is trusted
+    private static final double[] BEAT_FACTORS = {1.0, 2.0, 4.0, 0.5};
+    private static final double[] FACTOR_WEIGHTS = {1.0, 0.6, 0.4, 0.5};
+
+    private static final double[] PRIOR = new double[BINS];
+
+    static {
+        for (int bin = 0; bin < BINS; bin++) {
+            double octaves = Math.log((MIN_BEAT_MS + bin * BIN_MS) / DEFAULT_BEAT_MS) / Math.log(2);
+            PRIOR[bin] = Math.exp(-0.5 * octaves * octaves);
+        }
+    }
+
+    private final double[] histogram = new double[BINS];
+    private int bestBin = -1;
+    private double bestScore;
+
+    private long lastOnsetMs = Long.MIN_VALUE;
+    private int onsetCount;
+
+    /**
+     * Adds a note onset. Onsets must be added in time order.
+     * @param timeMs Onset time in milliseconds
+     */
+    public void addOnset(long timeMs) {
+        if (lastOnsetMs != Long.MIN_VALUE) {
+            long interval = timeMs - lastOnsetMs;
+            if (interval < MIN_INTERVAL_MS) {
+                return;
+            }
+            if (interval <= MAX_INTERVAL_MS) {
+                for (int i = 0; i < BEAT_FACTORS.length; i++) {
+                    vote(interval * BEAT_FACTORS[i], FACTOR_WEIGHTS[i]);
+                }
+            }
+        }
+        lastOnsetMs = timeMs;
+        onsetCount++;
+    }
+
+    private void vote(double beatMs, double weight) {
+        int bin = (int) Math.round((beatMs - MIN_BEAT_MS) / BIN_MS);
+        if (bin < 0 || bin >= BINS) {
+            return;
+        }
+        // Spread each vote over neighbouring bins to absorb timing jitter
+        add(bin, weight);
+        add(bin - 1, weight * 0.5);
+        add(bin + 1, weight * 0.5);
+    }
+
+    private void add(int bin, double weight) {
+        if (bin < 0 || bin >= BINS) {
+            return;
+        }
+        histogram[bin] += weight;
+        double score = histogram[bin] * PRIOR[bin];
+        if (score > bestScore) {
+            bestScore = score;
+            bestBin = bin;
+        }
+    }
+
+    /**
+     * @return Number of distinct onsets seen (chord notes count once)
+     */
+    public int getOnsetCount() {
+        return onsetCount;
+    }
+
+    /**
+     * @return Estimated quarter-note period in milliseconds, or 500 ms before any interval was seen
+     */
+    public double getBeatMs() {
+        return bestBin < 0 ? DEFAULT_BEAT_MS : MIN_BEAT_MS + bestBin * BIN_MS;
+    }
+
+    /**
+     * @return Estimated tempo in quarter notes per minute
+     */
+    public int getBpm() {
+        return (int) Math.round(60000.0 / getBeatMs());
+    }
+}
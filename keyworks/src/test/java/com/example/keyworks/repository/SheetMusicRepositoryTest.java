@@ -0,0 +1,100 @@
+package com.example.keyworks.repository;
+
+import com.example.keyworks.model.SheetMusic;
+import com.example.keyworks.model.User;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.data.domain.PageRequest;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs the queries on an in-memory H2 database
+ */
+@DataJpaTest(properties = {
+    "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect",
+    "spring.jpa.show-sql=false"
+})
+class SheetMusicRepositoryTest {
+
+    private static final String VERSION = "lilypond 2.24.3";
+    private static final String OPTIONS = "-dsafe; sections=32";
+
+    @Autowired
+    private SheetMusicRepository repository;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    private User user;
+
+    @BeforeEach
+    void setUp() {
+        user = entityManager.persist(new User("alice", "alice@example.com", "secret"));
+    }
+
+    private long save(String title, String pdfPath, SheetMusic.RenderStatus status, String version, String options) {
+        SheetMusic sheetMusic = new SheetMusic(title, null, "{ c'4 }", user);
+        sheetMusic.setPdfPath(pdfPath);
+        sheetMusic.setRenderStatus(status);
+        sheetMusic.setRendererVersion(version);
+        sheetMusic.setRenderOptions(options);
+        return entityManager.persistAndGetId(sheetMusic, Long.class);
+    }
+
+    private List<Long> findDirty(long afterId, int limit) {
+        return repository.findDirtyIds(VERSION, OPTIONS, SheetMusic.RenderStatus.STALE, afterId, PageRequest.of(0, limit));
+    }
+
+    @Test
+    void findsSheetMusicWhoseFilesAreOutOfDate() {
+        long upToDate = save("up to date", "a.pdf", SheetMusic.RenderStatus.RENDERED, VERSION, OPTIONS);
+        long edited = save("edited", "b.pdf", SheetMusic.RenderStatus.STALE, VERSION, OPTIONS);
+        long untracked = save("untracked", "c.pdf", null, null, null);
+        long otherVersion = save("other version", "d.pdf", SheetMusic.RenderStatus.RENDERED, "lilypond 2.22.1", OPTIONS);
+        long unknownVersion = save("unknown version", "e.pdf", SheetMusic.RenderStatus.RENDERED, null, OPTIONS);
+        long otherOptions = save("other options", "f.pdf", SheetMusic.RenderStatus.RENDERED, VERSION, "sections=off");
+        long failed = save("failed", "g.pdf", SheetMusic.RenderStatus.FAILED, VERSION, OPTIONS);
+        long failedBefore = save("failed before", "h.pdf", SheetMusic.RenderStatus.FAILED, "lilypond 2.22.1", OPTIONS);
+        long neverGenerated = save("never generated", null, null, null, null);
+
+        assertThat(findDirty(0, 100))
+            .containsExactly(edited, untracked, otherVersion, unknownVersion, otherOptions, failedBefore)
+            .doesNotContain(upToDate, failed, neverGenerated);
+    }
+
+    @Test
+    void pagesThroughTheDirtyRowsInIdOrder() {
+        long first = save("1", "1.pdf", SheetMusic.RenderStatus.STALE, VERSION, OPTIONS);
+        save("clean", "2.pdf", SheetMusic.RenderStatus.RENDERED, VERSION, OPTIONS);
+        long second = save("3", "3.pdf", SheetMusic.RenderStatus.STALE, VERSION, OPTIONS);
+        long third = save("4", "4.pdf", SheetMusic.RenderStatus.STALE, VERSION, OPTIONS);
+
+        assertThat(findDirty(0, 2)).containsExactly(first, second);
+        assertThat(findDirty(second, 2)).containsExactly(third);
+        assertThat(findDirty(third, 2)).isEmpty();
+    }
+
+    @Test
+    void writesTheRenderStateOnlyIfTheCodeIsUnchanged() {
+        long id = save("score", null, null, null, null);
+        LocalDateTime renderedAt = LocalDateTime.now();
+
+        assertThat(repository.updateRenderState(id, "{ d'4 }", "x.pdf", "x.midi", "hash", VERSION, OPTIONS,
+            SheetMusic.RenderStatus.RENDERED, renderedAt)).isZero();
+        assertThat(repository.updateRenderState(id, "{ c'4 }", "x.pdf", "x.midi", "hash", VERSION, OPTIONS,
+            SheetMusic.RenderStatus.RENDERED, renderedAt)).isEqualTo(1);
+
+        entityManager.clear();
+        SheetMusic stored = repository.findById(id).orElseThrow();
+        assertThat(stored.getPdfPath()).isEqualTo("x.pdf");
+        assertThat(stored.getRenderStatus()).isEqualTo(SheetMusic.RenderStatus.RENDERED);
+        assertThat(findDirty(0, 10)).isEmpty();
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.config.FileStorageConfig;
+import com.example.keyworks.service.MidiDeviceService.MidiNote;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Renders with the JDK synthesizer; needs the {@code --add-exports} the build passes to the test JVM
+ */
+class AudioRenderServiceTest {
+
+    private static final float SAMPLE_RATE = 22050;
+
+    @TempDir
+    Path outputDir;
+
+    private AudioRenderService service;
+
+    @BeforeEach
+    void setUp() {
+        service = service(2, Long.MAX_VALUE);
+        assumeTrue(service.isAvailable(), "offline synthesis not exported to the test JVM");
+    }
+
+    private AudioRenderService service(int poolSize, long cacheMaxBytes) {
+        return new AudioRenderService(new FileStorageConfig(outputDir.toString()), poolSize, SAMPLE_RATE, 50, cacheMaxBytes);
+    }
+
+    private static List<MidiNote> chord(int root) {
+        return List.of(new MidiNote(root, 100, 0, 500), new MidiNote(root + 4, 100, 0, 500),
+            new MidiNote(root + 7, 100, 250, 250));
+    }
+
+    private static byte[] render(AudioRenderService service, List<MidiNote> notes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        service.render(service.reserve().orElseThrow(), notes, service.contentHash(notes), out);
+        return out.toByteArray();
+    }
+
+    @Test
+    void hashesNotesAndFormat() {
+        assertThat(service.contentHash(chord(60))).isEqualTo(service.contentHash(chord(60))).hasSize(64);
+        assertThat(service.contentHash(chord(60))).isNotEqualTo(service.contentHash(chord(62)));
+        AudioRenderService otherRate = new AudioRenderService(new FileStorageConfig(outputDir.toString()), 1, 44100, 50, 0);
+        assertThat(otherRate.contentHash(chord(60))).isNotEqualTo(service.contentHash(chord(60)));
+    }
+
+    @Test
+    void rendersAWavFileCoveringTheNotesAndTheReleaseTail() throws IOException {
+        byte[] wav = render(service, chord(60));
+
+        // Last note off at 0.5 s plus 1.5 s of release, 16-bit stereo
+        long frames = (long) Math.ceil(2.0 * SAMPLE_RATE);
+        ByteBuffer header = ByteBuffer.wrap(wav).order(ByteOrder.LITTLE_ENDIAN);
+        assertThat(new String(wav, 0, 4)).isEqualTo("RIFF");
+        assertThat(new String(wav, 8, 8)).isEqualTo("WAVEfmt ");
+        assertThat(header.getShort(22)).isEqualTo((short) 2);
+        assertThat(header.getInt(24)).isEqualTo((int) SAMPLE_RATE);
+        assertThat(header.getInt(40)).isEqualTo((int) (frames * 4));
+        assertThat(wav).hasSize(44 + (int) (frames * 4));
+
+        boolean audible = false;
+        for (int i = 44; i < wav.length && !audible; i += 2) {
+            audible = Math.abs(header.getShort(i)) > 100;
+        }
+        assertThat(audible).isTrue();
+    }
+
+    @Test
+    void cachesTheStreamedAudio() throws IOException {
+        List<MidiNote> notes = chord(60);
+        String hash = service.contentHash(notes);
+        assertThat(service.findCached(hash)).isEmpty();
+
+        byte[] wav = render(service, notes);
+
+        Optional<Path> cached = service.findCached(hash);
+        assertThat(cached).isPresent();
+        assertThat(Files.readAllBytes(cached.get())).isEqualTo(wav);
+        try (var parts = Files.list(cached.get().getParent())) {
+            assertThat(parts.map(Path::getFileName).map(Path::toString)).noneMatch(name -> name.endsWith(".part"));
+        }
+    }
+
+    @Test
+    void evictsTheLeastRecentlyServedRendersAboveTheCacheLimit() throws IOException {
+        // Room for one render of this length
+        AudioRenderService small = service(1, 44 + (long) Math.ceil(2.0 * SAMPLE_RATE) * 4);
+        String first = small.contentHash(chord(60));
+        render(small, chord(60));
+        Files.setLastModifiedTime(small.findCached(first).orElseThrow(), FileTime.fromMillis(1000));
+
+        render(small, chord(62));
+
+        assertThat(small.findCached(first)).isEmpty();
+        assertThat(small.findCached(small.contentHash(chord(62)))).isPresent();
+    }
+
+    @Test
+    void reservesAtMostThePoolSize() throws IOException {
+        AudioRenderService single = service(1, Long.MAX_VALUE);
+        Optional<AudioRenderService.Reservation> first = single.reserve();
+        assertThat(first).isPresent();
+
+        assertThat(single.reserve()).as("pool exhausted after the timeout").isEmpty();
+
+        first.get().close();
+        Optional<AudioRenderService.Reservation> again = single.reserve();
+        assertThat(again).isPresent();
+        again.get().close();
+    }
+
+    @Test
+    void remembersFileHashesUntilTheFileChanges() throws IOException {
+        Path midi = Files.writeString(outputDir.resolve("song.mid"), "MThd");
+        assertThat(service.findFileHash(midi)).isEmpty();
+
+        service.rememberFileHash(midi, "abc");
+        assertThat(service.findFileHash(midi)).contains("abc");
+
+        Files.writeString(midi, "MThd changed");
+        assertThat(service.findFileHash(midi)).isEmpty();
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.keyworks.service;
+
+import javax.sound.midi.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory MIDI input port; tests play messages into whatever receivers are connected to its transmitters
+ */
+class FakeMidiDevice implements MidiDevice {
+
+    private final Info info;
+    private final int maxTransmitters;
+    private final List<Transmitter> transmitters = new ArrayList<>();
+    private boolean open;
+
+    FakeMidiDevice(String name, int maxTransmitters) {
+        this(info(name, "Fake port"), maxTransmitters);
+    }
+
+    FakeMidiDevice(Info info, int maxTransmitters) {
+        this.info = info;
+        this.maxTransmitters = maxTransmitters;
+    }
+
+    static Info info(String name, String description) {
+        return new Info(name, "KeyWorks", description, "1.0") { };
+    }
+
+    /**
+     * Delivers a message to every open transmitter, as the device's delivery thread would
+     */
+    void play(int command, int key, int velocity) throws InvalidMidiDataException {
+        ShortMessage message = new ShortMessage(command, 0, key, velocity);
+        for (Transmitter transmitter : List.copyOf(transmitters)) {
+            Receiver receiver = transmitter.getReceiver();
+            if (receiver != null) {
+                receiver.send(message, -1);
+            }
+        }
+    }
+
+    @Override
+    public Info getDeviceInfo() {
+        return info;
+    }
+
+    @Override
+    public void open() {
+        open = true;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        for (Transmitter transmitter : List.copyOf(transmitters)) {
+            transmitter.close();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public long getMicrosecondPosition() {
+        return -1;
+    }
+
+    @Override
+    public int getMaxReceivers() {
+        return 0;
+    }
+
+    @Override
+    public int getMaxTransmitters() {
+        return maxTransmitters;
+    }
+
+    @Override
+    public Receiver getReceiver() throws MidiUnavailableException {
+        throw new MidiUnavailableException("Input port has no receivers");
+    }
+
+    @Override
+    public List<Receiver> getReceivers() {
+        return List.of();
+    }
+
+    @Override
+    public Transmitter getTransmitter() {
+        Transmitter transmitter = new Transmitter() {
+            private Receiver receiver;
+
+            @Override
+            public void setReceiver(Receiver receiver) {
+                this.receiver = receiver;
+            }
+
+            @Override
+            public Receiver getReceiver() {
+                return receiver;
+            }
+
+            @Override
+            public void close() {
+                transmitters.remove(this);
+            }
+        };
+        transmitters.add(transmitter);
+        return transmitter;
+    }
+
+    @Override
+    public List<Transmitter> getTransmitters() {
+        return List.copyOf(transmitters);
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.keyworks.service;
+
+import org.springframework.context.ApplicationEventPublisher;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiUnavailableException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Registry over a hand-made device list instead of the MIDI subsystem
+ */
+class FakeMidiDeviceRegistry extends MidiDeviceRegistry {
+
+    private final Map<MidiDevice.Info, MidiDevice> devices = new LinkedHashMap<>();
+
+    FakeMidiDeviceRegistry(ApplicationEventPublisher eventPublisher) {
+        super(eventPublisher);
+    }
+
+    /**
+     * Adds a device; a null device is enumerated but cannot be obtained
+     */
+    void plugIn(MidiDevice.Info info, MidiDevice device) {
+        devices.put(info, device);
+    }
+
+    void plugIn(MidiDevice device) {
+        plugIn(device.getDeviceInfo(), device);
+    }
+
+    void unplug(MidiDevice.Info info) {
+        devices.remove(info);
+    }
+
+    @Override
+    MidiDevice.Info[] enumerate() {
+        return devices.keySet().toArray(new MidiDevice.Info[0]);
+    }
+
+    @Override
+    MidiDevice lookup(MidiDevice.Info info) throws MidiUnavailableException {
+        MidiDevice device = devices.get(info);
+        if (device == null) {
+            throw new MidiUnavailableException("Busy: " + info.getName());
+        }
+        return device;
+    }
+}
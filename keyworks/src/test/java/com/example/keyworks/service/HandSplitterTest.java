@@ -0,0 +1,88 @@
+package com.example.keyworks.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HandSplitterTest {
+
+    private record Assigned(int key, long startMs, boolean rightHand) {
+    }
+
+    private final List<Assigned> assigned = new ArrayList<>();
+
+    private HandSplitter splitter(int lag) {
+        return new HandSplitter((key, startMs, durationMs, rightHand) ->
+            assigned.add(new Assigned(key, startMs, rightHand)), 40, lag);
+    }
+
+    @Test
+    void splitsMelodyAndBassBetweenTheHands() throws IOException {
+        HandSplitter splitter = splitter(4);
+        int[] melody = {72, 74, 76, 77, 79, 77, 76, 74};
+        int[] bass = {48, 43, 45, 41};
+        for (int i = 0; i < melody.length; i++) {
+            long start = i * 500L;
+            if (i % 2 == 0) {
+                splitter.addNote(bass[i / 2], start, 1000);
+                splitter.addNote(bass[i / 2] + 7, start + 5, 1000);
+            }
+            splitter.addNote(melody[i], start + 10, 500);
+        }
+        splitter.finish();
+
+        assertThat(assigned).hasSize(melody.length + bass.length * 2);
+        assertThat(assigned).allSatisfy(note -> assertThat(note.rightHand()).isEqualTo(note.key() >= 60));
+    }
+
+    @Test
+    void movesTheSplitWithAMelodyBelowMiddleC() throws IOException {
+        HandSplitter splitter = splitter(4);
+        int[] melody = {64, 62, 60, 59, 57, 55};
+        for (int i = 0; i < melody.length; i++) {
+            splitter.addNote(36, i * 500L, 500);
+            splitter.addNote(43, i * 500L, 500);
+            splitter.addNote(melody[i], i * 500L + 5, 500);
+        }
+        splitter.finish();
+
+        // Giving 59 to 55 to the left hand would stretch it beyond its span over the bass
+        assertThat(assigned).filteredOn(note -> note.key() >= 55)
+            .extracting(Assigned::rightHand).containsOnly(true);
+        assertThat(assigned).filteredOn(note -> note.key() < 55)
+            .extracting(Assigned::rightHand).containsOnly(false);
+    }
+
+    @Test
+    void emitsNotesInInputOrder() throws IOException {
+        HandSplitter splitter = splitter(3);
+        List<Integer> played = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            int key = 40 + (i * 7) % 45;
+            played.add(key);
+            splitter.addNote(key, i * 250L, 250);
+        }
+        splitter.finish();
+
+        assertThat(assigned).extracting(Assigned::key).containsExactlyElementsOf(played);
+    }
+
+    @Test
+    void commitsSlicesOnceTheyAreLagSlicesOld() throws IOException {
+        HandSplitter splitter = splitter(2);
+        for (int slice = 0; slice < 5; slice++) {
+            splitter.addNote(72, slice * 500L, 500);
+            splitter.addNote(48, slice * 500L + 10, 500);
+        }
+        // Four slices are closed and the fifth is open; two of the closed ones are older than the lag
+        assertThat(assigned).hasSize(4);
+        assertThat(assigned).extracting(Assigned::startMs).containsExactly(0L, 10L, 500L, 510L);
+
+        splitter.finish();
+        assertThat(assigned).hasSize(10);
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.config.TranscriptionConfig;
+import com.example.keyworks.service.MidiDeviceService.MidiNote;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class IncrementalTranscriberTest {
+
+    private final LilyPondEmitter emitter = new LilyPondEmitter();
+
+    // Single staff, tempo fixed after 4 onsets
+    private IncrementalTranscriber transcriber() {
+        return new IncrementalTranscriber(emitter, new TranscriptionConfig(4, 4, 4, 40, 4, false, 8, 10_000, 32));
+    }
+
+    private static String staff(IncrementalTranscriber transcriber) throws IOException {
+        StringBuilder out = new StringBuilder();
+        transcriber.writeStaff(out, "", null);
+        return out.toString();
+    }
+
+    @Test
+    void holdsBackNotesThatStartAfterASoundingNote() {
+        IncrementalTranscriber transcriber = transcriber();
+        transcriber.noteOn(60, 90, 0);
+        transcriber.noteOn(64, 90, 100);
+        transcriber.noteOff(64, 200);
+        assertThat(transcriber.getNoteCount()).isZero();
+
+        transcriber.noteOff(60, 500);
+        assertThat(transcriber.getNotes()).extracting(MidiNote::getKey).containsExactly(60, 64);
+        assertThat(transcriber.getNotes()).extracting(MidiNote::getDuration).containsExactly(500L, 100L);
+    }
+
+    @Test
+    void transcribesWhilePlaying() throws IOException {
+        IncrementalTranscriber transcriber = transcriber();
+        int[] keys = {60, 62, 64, 65, 67, 65, 64, 62};
+        for (int i = 0; i < keys.length; i++) {
+            transcriber.noteOn(keys[i], 90, i * 500L);
+            transcriber.noteOff(keys[i], i * 500L + 450);
+        }
+        transcriber.finish();
+
+        assertThat(transcriber.getNoteCount()).isEqualTo(8);
+        assertThat(transcriber.getTempoBpm()).isEqualTo(120);
+        assertThat(transcriber.isQuantizationDegraded()).isFalse();
+        assertThat(staff(transcriber))
+            .contains("\\tempo 4 = 120")
+            .contains("c'4 d'4 e'4 f'4 | g'4 f'4 e'4 d'4 |");
+    }
+
+    @Test
+    void retriggeringAKeyClosesTheSoundingNote() {
+        IncrementalTranscriber transcriber = transcriber();
+        transcriber.noteOn(60, 90, 0);
+        transcriber.noteOn(60, 80, 300);
+        transcriber.noteOff(60, 500);
+
+        assertThat(transcriber.getNotes()).extracting(MidiNote::getStartTime).containsExactly(0L, 300L);
+        assertThat(transcriber.getNotes()).extracting(MidiNote::getVelocity).containsExactly(90, 80);
+    }
+
+    @Test
+    void finishDropsSoundingNotesAndCanBeRepeated() throws IOException {
+        IncrementalTranscriber transcriber = transcriber();
+        transcriber.noteOn(60, 90, 0);
+        transcriber.noteOff(60, 500);
+        transcriber.noteOn(67, 90, 500);
+        transcriber.finish();
+        String first = staff(transcriber);
+        transcriber.finish();
+
+        assertThat(transcriber.getNoteCount()).isEqualTo(1);
+        assertThat(staff(transcriber)).isEqualTo(first);
+    }
+
+    @Test
+    void isEmptyWithoutNotes() {
+        IncrementalTranscriber transcriber = transcriber();
+        transcriber.noteOff(60, 100);
+        transcriber.finish();
+        assertThat(transcriber.isEmpty()).isTrue();
+    }
+
+    @Test
+    void rejectsKeysOutsideTheMidiRange() {
+        IncrementalTranscriber transcriber = transcriber();
+
+        assertThatThrownBy(() -> transcriber.noteOn(128, 90, 0)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> transcriber.noteOff(-1, 0)).isInstanceOf(IllegalArgumentException.class);
+        assertThat(transcriber.getNoteCount()).isZero();
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.keyworks.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class KeyDetectorTest {
+
+    private static final int[] C_MAJOR_SCALE = {60, 62, 64, 65, 67, 69, 71, 72};
+
+    private static void play(KeyDetector detector, int transpose, int... keys) {
+        for (int key : keys) {
+            detector.addNote(key + transpose, 500);
+        }
+    }
+
+    @Test
+    void defaultsToCMajor() {
+        KeyDetector detector = new KeyDetector(8);
+        assertThat(detector.getKey()).isSameAs(KeyDetector.defaultKey());
+        assertThat(detector.getKey().toLilyPond()).isEqualTo("c \\major");
+        assertThat(detector.getWindowKey()).isNull();
+    }
+
+    @Test
+    void detectsMajorKeysAndTheirSignature() {
+        KeyDetector g = new KeyDetector(8);
+        play(g, 7, C_MAJOR_SCALE);
+        play(g, 7, 60, 64, 67, 60);
+        assertThat(g.getKey().toLilyPond()).isEqualTo("g \\major");
+        assertThat(g.getKey().getFifths()).isEqualTo(1);
+        assertThat(g.getKey().usesFlats()).isFalse();
+
+        KeyDetector f = new KeyDetector(8);
+        play(f, 5, C_MAJOR_SCALE);
+        play(f, 5, 60, 64, 67, 60);
+        assertThat(f.getKey().toLilyPond()).isEqualTo("f \\major");
+        assertThat(f.getKey().getFifths()).isEqualTo(-1);
+        assertThat(f.getKey().usesFlats()).isTrue();
+    }
+
+    @Test
+    void detectsMinorKeys() {
+        KeyDetector detector = new KeyDetector(8);
+        // A harmonic minor, dwelling on the tonic triad
+        play(detector, 0, 57, 59, 60, 62, 64, 65, 68, 69);
+        for (int i = 0; i < 4; i++) {
+            detector.addNote(57, 2000);
+            detector.addNote(60, 1000);
+            detector.addNote(64, 1000);
+        }
+        KeyDetector.Key key = detector.getKey();
+        assertThat(key.isMinor()).isTrue();
+        assertThat(key.getTonic()).isEqualTo(9);
+        assertThat(key.getFifths()).isZero();
+        assertThat(key.toLilyPond()).isEqualTo("a \\minor");
+    }
+
+    @Test
+    void windowFollowsModulations() {
+        KeyDetector detector = new KeyDetector(12);
+        for (int i = 0; i < 4; i++) {
+            play(detector, 0, C_MAJOR_SCALE);
+        }
+        assertThat(detector.getWindowKey().toLilyPond()).isEqualTo("c \\major");
+
+        // E flat major from here on
+        play(detector, 3, C_MAJOR_SCALE);
+        play(detector, 3, 60, 64, 67, 60);
+        assertThat(detector.getWindowKey().toLilyPond()).isEqualTo("es \\major");
+        assertThat(detector.getKey().toLilyPond()).isEqualTo("c \\major");
+    }
+}
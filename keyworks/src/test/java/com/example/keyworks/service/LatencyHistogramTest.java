@@ -0,0 +1,93 @@
+package com.example.keyworks.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class LatencyHistogramTest {
+
+    @Test
+    void isEmptyInitially() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getCount()).isZero();
+        assertThat(histogram.getMeanNanos()).isZero();
+        assertThat(histogram.percentileNanos(99)).isZero();
+        assertThat(histogram.toMap()).containsEntry("count", 0L);
+    }
+
+    @Test
+    void keepsSmallValuesExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 0; value < 16; value++) {
+            histogram.record(value);
+        }
+        assertThat(histogram.percentileNanos(50)).isEqualTo(7);
+        assertThat(histogram.percentileNanos(100)).isEqualTo(15);
+    }
+
+    @Test
+    void percentilesAreUpperBoundsWithinTheBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10_000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertThat(histogram.getCount()).isEqualTo(10_000);
+        assertThat(histogram.getMeanNanos()).isCloseTo(5_000_500.0, within(0.001));
+        assertThat(histogram.getMaxNanos()).isEqualTo(10_000_000);
+
+        for (double percentile : new double[] {50, 90, 99, 99.9}) {
+            long exact = (long) Math.ceil(10_000 * percentile / 100) * 1000;
+            assertThat(histogram.percentileNanos(percentile))
+                .isGreaterThanOrEqualTo(exact)
+                .isLessThanOrEqualTo(Math.round(exact * 1.0625));
+        }
+        assertThat(histogram.percentileNanos(100)).isEqualTo(10_000_000);
+    }
+
+    @Test
+    void countsNegativeValuesAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertThat(histogram.getMaxNanos()).isZero();
+        assertThat(histogram.percentileNanos(50)).isZero();
+    }
+
+    @Test
+    void summaryBucketsAddUpToTheCount() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 1000; i++) {
+            histogram.record(1_000_000L + i * 997L);
+        }
+        Map<String, Object> summary = histogram.toMap();
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> buckets = (List<Map<String, Object>>) summary.get("buckets");
+        long total = buckets.stream().mapToLong(bucket -> (Long) bucket.get("count")).sum();
+        assertThat(total).isEqualTo(1000);
+        assertThat((Double) summary.get("p50Us")).isBetween(1498.0, 1600.0);
+    }
+
+    @Test
+    void recordsFromManyThreads() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    histogram.record(i);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(histogram.getCount()).isEqualTo(40_000);
+        assertThat(histogram.getMaxNanos()).isEqualTo(9_999);
+    }
+}
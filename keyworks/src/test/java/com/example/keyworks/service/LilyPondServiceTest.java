@@ -0,0 +1,234 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.config.FileStorageConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class LilyPondServiceTest {
+
+    private static final String CODE = "\\version \"2.24.0\"\n{ c'4 d'4 e'4 f'4 }\n";
+
+    @TempDir
+    Path outputDir;
+
+    private BlockingRenderer renderer;
+    private SectionedScoreRenderer sectionedScoreRenderer;
+    private PagePreviewService pagePreviewService;
+    private LilyPondService service;
+
+    /**
+     * Writes a PDF and a MIDI file holding the source, once released
+     */
+    private static class BlockingRenderer implements ScoreRenderer {
+        final AtomicInteger renders = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile RuntimeException failure;
+
+        @Override
+        public List<LilyPondDiagnostic> render(Path source, Path outputDirectory) throws IOException, InterruptedException {
+            renders.incrementAndGet();
+            started.countDown();
+            if (!release.await(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("not released");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            String baseName = LilyPondProcessRenderer.baseName(source);
+            Files.writeString(outputDirectory.resolve(baseName + ".pdf"), "%PDF " + Files.readString(source));
+            Files.writeString(outputDirectory.resolve(baseName + ".midi"), "MThd");
+            return List.of();
+        }
+
+        @Override
+        public List<Path> renderPages(Path source, Path outputDirectory, String format, int resolution) {
+            return List.of();
+        }
+
+        @Override
+        public String getName() {
+            return "blocking";
+        }
+
+        @Override
+        public String getVersion() {
+            return "1";
+        }
+
+        @Override
+        public String getOptions() {
+            return "";
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        renderer = new BlockingRenderer();
+        FileStorageConfig config = new FileStorageConfig(outputDir.toString());
+        RenderScheduler scheduler = new RenderScheduler(4, 30000, 2, new String[0]);
+        sectionedScoreRenderer = new SectionedScoreRenderer(renderer, new ScoreSectioner(), new ProcessSupervisor(1024),
+            scheduler, false, 32, 1, "gs {output} {inputs}", 10);
+        pagePreviewService = new PagePreviewService(config, renderer, scheduler, "none", 72, 1, 1000);
+        service = new LilyPondService(config, renderer, new LilyPondValidator(200_000, 64, 50_000),
+            sectionedScoreRenderer, pagePreviewService, scheduler);
+    }
+
+    @AfterEach
+    void tearDown() {
+        renderer.release.countDown();
+        sectionedScoreRenderer.shutdown();
+        pagePreviewService.shutdown();
+    }
+
+    private CompletableFuture<Map<String, String>> generateAsync(String code) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return service.generateFiles(code, "7");
+            } catch (IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Starts a second caller and waits until it is parked on the render in flight
+     */
+    private CompletableFuture<Map<String, String>> joinRender(Callable<Map<String, String>> render)
+            throws InterruptedException {
+        CompletableFuture<Map<String, String>> result = new CompletableFuture<>();
+        Thread thread = Thread.ofPlatform().start(() -> {
+            try {
+                result.complete(render.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        for (int i = 0; i < 1000 && thread.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(thread.getState()).as("second caller waits for the render in flight").isEqualTo(Thread.State.WAITING);
+        return result;
+    }
+
+    private List<String> outputFiles() throws IOException {
+        try (Stream<Path> files = Files.list(outputDir)) {
+            return files.map(file -> file.getFileName().toString()).sorted().toList();
+        }
+    }
+
+    @Test
+    void concurrentRendersOfTheSameCodeShareOneRender() throws Exception {
+        CompletableFuture<Map<String, String>> first = generateAsync(CODE);
+        assertThat(renderer.started.await(10, TimeUnit.SECONDS)).isTrue();
+
+        // Only comments and whitespace differ, so the content hash is the same
+        CompletableFuture<Map<String, String>> second = joinRender(
+            () -> service.generateFiles("% the same score\n" + CODE + "\n", "7"));
+        renderer.release.countDown();
+
+        Map<String, String> files = first.get(10, TimeUnit.SECONDS);
+        assertThat(files).containsEntry("pdf", "music_generated_7.pdf").containsEntry("midi", "music_generated_7.midi");
+        assertThat(second.get(10, TimeUnit.SECONDS)).isEqualTo(files);
+        assertThat(renderer.renders).hasValue(1);
+    }
+
+    @Test
+    void rendersAgainOnceTheRenderInFlightIsDone() throws Exception {
+        renderer.release.countDown();
+        service.generateFiles(CODE, "7");
+        service.generateFiles(CODE, "7");
+        service.generateFiles("\\version \"2.24.0\"\n{ g'1 }\n", "7");
+
+        assertThat(renderer.renders).hasValue(3);
+        assertThat(Files.readString(outputDir.resolve("music_generated_7.pdf"))).contains("g'1");
+    }
+
+    @Test
+    void sharesTheFailureOfTheRenderInFlight() throws Exception {
+        renderer.failure = new ScoreRenderException("LilyPond failed", List.of());
+        CompletableFuture<Map<String, String>> first = generateAsync(CODE);
+        assertThat(renderer.started.await(10, TimeUnit.SECONDS)).isTrue();
+        CompletableFuture<Map<String, String>> second = joinRender(() -> service.generateFiles(CODE, "7"));
+        renderer.release.countDown();
+
+        assertThatThrownBy(() -> first.get(10, TimeUnit.SECONDS)).isInstanceOf(ExecutionException.class)
+            .hasRootCauseInstanceOf(ScoreRenderException.class);
+        assertThatThrownBy(() -> second.get(10, TimeUnit.SECONDS)).isInstanceOf(ExecutionException.class)
+            .hasCauseInstanceOf(ScoreRenderException.class);
+        assertThat(renderer.renders).hasValue(1);
+    }
+
+    @Test
+    void publishesOutputsOnlyOnceTheRenderIsComplete() throws Exception {
+        CompletableFuture<Map<String, String>> render = generateAsync(CODE);
+        assertThat(renderer.started.await(10, TimeUnit.SECONDS)).isTrue();
+
+        // While rendering, everything lives in the job directory
+        assertThat(outputFiles()).containsExactly(".render");
+
+        renderer.release.countDown();
+        render.get(10, TimeUnit.SECONDS);
+        assertThat(outputFiles()).containsExactly(".render", "music_generated_7.ly", "music_generated_7.midi",
+            "music_generated_7.pdf");
+        assertThat(Files.readString(outputDir.resolve("music_generated_7.pdf"))).isEqualTo("%PDF " + CODE);
+        try (Stream<Path> jobs = Files.list(outputDir.resolve(".render"))) {
+            assertThat(jobs).isEmpty();
+        }
+    }
+
+    @Test
+    void keepsThePublishedPdfWhenARenderFails() throws Exception {
+        renderer.release.countDown();
+        service.generateFiles(CODE, "7");
+        renderer.failure = new ScoreRenderException("LilyPond failed", List.of());
+
+        assertThatThrownBy(() -> service.generateFiles("\\version \"2.24.0\"\n{ g'1 }\n", "7"))
+            .isInstanceOf(ScoreRenderException.class);
+
+        assertThat(Files.readString(outputDir.resolve("music_generated_7.pdf"))).isEqualTo("%PDF " + CODE);
+        // The failed source is kept for debugging
+        assertThat(Files.readString(outputDir.resolve("music_generated_7.ly"))).contains("g'1");
+        try (Stream<Path> jobs = Files.list(outputDir.resolve(".render"))) {
+            assertThat(jobs).isEmpty();
+        }
+    }
+
+    @Test
+    void coalescesConcurrentRendersOfTheSameDocument() throws Exception {
+        LilyPondEmitter.Document document = out -> out.append(CODE);
+        CompletableFuture<Map<String, String>> first = CompletableFuture.supplyAsync(() -> {
+            try {
+                return service.generateFiles(document, "7");
+            } catch (IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertThat(renderer.started.await(10, TimeUnit.SECONDS)).isTrue();
+
+        CompletableFuture<Map<String, String>> second = joinRender(
+            () -> service.generateFiles(out -> out.append(CODE), "7"));
+        renderer.release.countDown();
+
+        assertThat(second.get(10, TimeUnit.SECONDS)).isEqualTo(first.get(10, TimeUnit.SECONDS));
+        assertThat(renderer.renders).hasValue(1);
+    }
+}
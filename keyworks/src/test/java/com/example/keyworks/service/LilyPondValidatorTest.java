@@ -0,0 +1,134 @@
+package com.example.keyworks.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class LilyPondValidatorTest {
+
+    private static final String SCORE = """
+        \\version "2.24.0"
+        \\header {
+          title = "Test"
+        }
+        \\score {
+          \\new Staff {
+            \\clef treble
+            \\key c \\major
+            \\time 4/4
+            <c' e' g'>4 d'8 e'8 r2 | << { f'1 } \\\\ { a1 } >> |
+          }
+          \\layout { }
+          \\midi { }
+        }
+        """;
+
+    private final LilyPondValidator validator = new LilyPondValidator(200_000, 64, 50_000);
+
+    private static String messages(LilyPondValidator.Validation validation) {
+        return validation.getErrors().toString();
+    }
+
+    @Test
+    void acceptsGeneratedScores() {
+        LilyPondValidator.Validation validation = validator.validate(SCORE);
+        assertThat(validation.isValid()).as(messages(validation)).isTrue();
+        assertThat(validation.getCost().staves()).isEqualTo(1);
+        assertThat(validation.getCost().bars()).isEqualTo(2);
+        // c' e' g' d' e' r f' a and the tonic of \key c, but not "treble" or "major"
+        assertThat(validation.getCost().notes()).isEqualTo(9);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+        "#(system \"rm -rf /\")",
+        "#(ly:system '(\"ls\"))",
+        "$(open-input-pipe \"id\")",
+        "#(define data (ly:gulp-file \"/etc/passwd\"))",
+        "#(let ((port (open-output-file \"x\"))) (display 1 port))",
+        "#(eval (read (open-input-string \"(+ 1 2)\")) (interaction-environment))",
+        "#(primitive-load \"evil.scm\")",
+        "#(system* \"sh\" \"-c\" \"id\")",
+        "#((resolve-module '(ice-9 popen)) 'x)",
+        "#'getenv"
+    })
+    void rejectsSchemeThatReachesFilesOrProcesses(String scheme) {
+        LilyPondValidator.Validation validation = validator.validate("{ c'4 }\n" + scheme + "\n");
+        assertThat(validation.isValid()).isFalse();
+        assertThat(messages(validation)).contains("is not allowed");
+    }
+
+    @Test
+    void acceptsHarmlessScheme() {
+        LilyPondValidator.Validation validation = validator.validate(
+            "\\paper { indent = #0 ragged-right = ##t }\n"
+            + "{ \\override Staff.TimeSignature.color = #red c'4 #(display \"system\") }\n"
+            + "#(define (twice x) (* 2 x)) % system in a comment\n");
+        assertThat(validation.isValid()).as(messages(validation)).isTrue();
+    }
+
+    @Test
+    void rejectsInclude() {
+        LilyPondValidator.Validation validation = validator.validate("\\include \"/etc/passwd\"\n{ c'4 }");
+        assertThat(messages(validation)).contains("\\include is not allowed");
+    }
+
+    @Test
+    void reportsBracketErrorsWithTheirPosition() {
+        LilyPondValidator.Validation unclosed = validator.validate("{ c'4\n  d'4 << e'4");
+        assertThat(unclosed.isValid()).isFalse();
+        assertThat(messages(unclosed)).contains("Unclosed '<<'").contains("Unclosed '{'");
+        assertThat(unclosed.getErrors()).extracting(LilyPondDiagnostic::getLine).contains(1, 2);
+
+        assertThat(messages(validator.validate("{ c'4 >> }"))).contains("'>>' does not match");
+        assertThat(messages(validator.validate("c'4 }"))).contains("without an opening bracket");
+        assertThat(messages(validator.validate("{ c'4^\"text }"))).contains("Unterminated string");
+        assertThat(messages(validator.validate("{ c'4 } %{ open"))).contains("Unterminated block comment");
+        assertThat(messages(validator.validate("{ c'4 #(+ 1 2 }"))).contains("Unterminated Scheme expression");
+    }
+
+    @Test
+    void enforcesLimits() {
+        LilyPondValidator small = new LilyPondValidator(100, 3, 4);
+        assertThat(messages(small.validate("{ c'4 }".repeat(20)))).contains("the limit is 100");
+        assertThat(messages(small.validate("{ { { { c'4 } } } }"))).contains("Nesting deeper than 3");
+        assertThat(messages(small.validate("{ c d e f g }"))).contains("More than 4 notes");
+        assertThat(messages(validator.validate("   "))).contains("No LilyPond code");
+    }
+
+    @Test
+    void hashIgnoresCommentsAndWhitespaceButNotStrings() {
+        String hash = validator.validate("{ c'4  d'4 }").getContentHash();
+        assertThat(validator.validate("% a comment\n{\n  c'4\td'4 %{ block %}\n}").getContentHash()).isEqualTo(hash);
+        assertThat(validator.validate("{ c'4 d'2 }").getContentHash()).isNotEqualTo(hash);
+
+        assertThat(validator.validate("\\header { title = \"a  b\" }").getNormalized()).contains("\"a  b\"");
+        assertThat(validator.validate("\\header { title = \"a  b\" }").getContentHash())
+            .isNotEqualTo(validator.validate("\\header { title = \"a b\" }").getContentHash());
+    }
+
+    @Test
+    void orThrowCarriesTheDiagnostics() {
+        LilyPondValidator.Validation validation = validator.validate("{ c'4");
+        assertThatThrownBy(validation::orThrow)
+            .isInstanceOf(ScoreRenderException.class)
+            .hasMessageContaining("Unclosed '{'");
+        validator.validate(SCORE).orThrow();
+    }
+
+    @Test
+    void recognizesDutchNoteNames() {
+        assertThat(LilyPondValidator.isNoteName("c")).isTrue();
+        assertThat(LilyPondValidator.isNoteName("cis")).isTrue();
+        assertThat(LilyPondValidator.isNoteName("bes")).isTrue();
+        assertThat(LilyPondValidator.isNoteName("as")).isTrue();
+        assertThat(LilyPondValidator.isNoteName("eeses")).isTrue();
+        assertThat(LilyPondValidator.isNoteName("r")).isTrue();
+        assertThat(LilyPondValidator.isNoteName("treble")).isFalse();
+        assertThat(LilyPondValidator.isNoteName("major")).isFalse();
+        assertThat(LilyPondValidator.isNoteName("h")).isFalse();
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.service.MidiDeviceRegistry.DeviceEntry;
+import com.example.keyworks.service.MidiDeviceRegistry.MidiDeviceEvent;
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.MidiDevice;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MidiDeviceRegistryTest {
+
+    private final List<MidiDeviceEvent> events = new ArrayList<>();
+    private final FakeMidiDeviceRegistry registry = new FakeMidiDeviceRegistry(event -> events.add((MidiDeviceEvent) event));
+
+    @Test
+    void keepsIdsAndDeviceObjectsAcrossRefreshes() {
+        registry.plugIn(new FakeMidiDevice("Keys", -1));
+        registry.refresh();
+        DeviceEntry first = registry.getDevices().get(0);
+
+        registry.refresh();
+
+        assertThat(registry.getDevices()).containsExactly(first);
+        assertThat(registry.findById(first.getId())).containsSame(first);
+        assertThat(events).singleElement().satisfies(event -> {
+            assertThat(event.getType()).isEqualTo(MidiDeviceEvent.Type.ATTACHED);
+            assertThat(event.getDevice()).isSameAs(first);
+        });
+    }
+
+    @Test
+    void derivesIdsFromTheDescriptor() {
+        FakeMidiDeviceRegistry other = new FakeMidiDeviceRegistry(event -> { });
+        registry.plugIn(new FakeMidiDevice("Keys", -1));
+        other.plugIn(new FakeMidiDevice("Keys", -1));
+        registry.refresh();
+        other.refresh();
+
+        assertThat(other.getDevices().get(0).getId()).isEqualTo(registry.getDevices().get(0).getId());
+    }
+
+    @Test
+    void tellsIdenticalDescriptorsApartByOrdinal() {
+        registry.plugIn(new FakeMidiDevice("Port", -1));
+        registry.plugIn(new FakeMidiDevice("Port", -1));
+        registry.refresh();
+        List<String> ids = registry.getDevices().stream().map(DeviceEntry::getId).toList();
+
+        registry.refresh();
+
+        assertThat(ids).doesNotHaveDuplicates().hasSize(2);
+        assertThat(registry.getDevices()).extracting(DeviceEntry::getId).containsExactlyElementsOf(ids);
+        assertThat(events).hasSize(2);
+    }
+
+    @Test
+    void publishesDetachForRemovedDevices() {
+        FakeMidiDevice keys = new FakeMidiDevice("Keys", -1);
+        registry.plugIn(keys);
+        registry.plugIn(new FakeMidiDevice("Pads", -1));
+        registry.refresh();
+        DeviceEntry keysEntry = registry.getDevices().get(0);
+        events.clear();
+
+        registry.unplug(keys.getDeviceInfo());
+        registry.refresh();
+
+        assertThat(registry.findById(keysEntry.getId())).isEmpty();
+        assertThat(registry.getDevices()).extracting(DeviceEntry::getName).containsExactly("Pads");
+        assertThat(events).singleElement().satisfies(event -> {
+            assertThat(event.getType()).isEqualTo(MidiDeviceEvent.Type.DETACHED);
+            assertThat(event.getDevice()).isSameAs(keysEntry);
+        });
+    }
+
+    @Test
+    void retriesDevicesThatWereUnavailable() {
+        MidiDevice.Info info = FakeMidiDevice.info("Keys", "Fake port");
+        registry.plugIn(info, null);
+        registry.refresh();
+        DeviceEntry unavailable = registry.getDevices().get(0);
+        assertThat(unavailable.isAvailable()).isFalse();
+        assertThat(registry.getInputDevices()).isEmpty();
+
+        FakeMidiDevice device = new FakeMidiDevice(info, -1);
+        registry.plugIn(info, device);
+        registry.refresh();
+
+        DeviceEntry available = registry.findById(unavailable.getId()).orElseThrow();
+        assertThat(available.getDevice()).isSameAs(device);
+        assertThat(registry.getInputDevices()).containsExactly(available);
+        // Same descriptor, so no new attach
+        assertThat(events).hasSize(1);
+    }
+
+    @Test
+    void listsOnlyTransmittingDevicesAsInputs() {
+        registry.plugIn(new FakeMidiDevice("Output", 0));
+        registry.plugIn(new FakeMidiDevice("Input", -1));
+        registry.refresh();
+
+        assertThat(registry.getInputDevices()).extracting(DeviceEntry::getName).containsExactly("Input");
+        assertThat(registry.findFirstPhysicalInput()).hasValueSatisfying(
+            entry -> assertThat(entry.getName()).isEqualTo("Input"));
+        assertThat(registry.findInputByName("Output", false)).isEmpty();
+    }
+}
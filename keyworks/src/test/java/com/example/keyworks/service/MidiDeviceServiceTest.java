@@ -0,0 +1,76 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.config.TranscriptionConfig;
+import com.example.keyworks.service.MidiDeviceRegistry.MidiDeviceEvent;
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.ShortMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MidiDeviceServiceTest {
+
+    private final List<MidiDeviceEvent> events = new ArrayList<>();
+    private final FakeMidiDeviceRegistry registry = new FakeMidiDeviceRegistry(event -> events.add((MidiDeviceEvent) event));
+    private final MidiDeviceService service = new MidiDeviceService(registry, new MidiTraceService(64),
+        new LilyPondEmitter(), new TranscriptionConfig(4, 4, 4, 40, 4, false, 8, 10_000, 32));
+
+    @Test
+    void endsTheRecordingWhenItsDeviceIsDetached() throws Exception {
+        FakeMidiDevice keys = new FakeMidiDevice("Keys", -1);
+        registry.plugIn(keys);
+        registry.refresh();
+
+        String recordingId = service.startRecording("Keys");
+        keys.play(ShortMessage.NOTE_ON, 60, 90);
+        keys.play(ShortMessage.NOTE_OFF, 60, 0);
+
+        registry.unplug(keys.getDeviceInfo());
+        registry.refresh();
+        service.onDeviceEvent(events.get(events.size() - 1));
+
+        assertThat(keys.isOpen()).isFalse();
+        assertThat(service.isConnected()).isFalse();
+        assertThat(service.isRecording()).isFalse();
+        Map<String, Object> recording = service.getRecordingData(recordingId);
+        assertThat(recording).containsEntry("deviceDetached", "Keys").containsEntry("noteCount", 1);
+    }
+
+    @Test
+    void ignoresDevicesItIsNotListeningTo() throws Exception {
+        FakeMidiDevice keys = new FakeMidiDevice("Keys", -1);
+        FakeMidiDevice pads = new FakeMidiDevice("Pads", -1);
+        registry.plugIn(keys);
+        registry.plugIn(pads);
+        registry.refresh();
+        service.startRecording("Keys");
+
+        registry.unplug(pads.getDeviceInfo());
+        registry.refresh();
+        service.onDeviceEvent(events.get(events.size() - 1));
+
+        assertThat(keys.isOpen()).isTrue();
+        assertThat(service.isRecording()).isTrue();
+        service.stopRecording(false);
+    }
+
+    @Test
+    void rejectsSimulatedNotesOutsideTheMidiRange() {
+        MidiDeviceService.InProcessRecording recording = service.startInProcessRecording("Test");
+
+        assertThatThrownBy(() -> service.simulateNote("B9", 90, true))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageContaining("B9");
+        service.simulateNote("G9", 90, true);
+        service.simulateNote("G9", 0, false);
+        service.simulateNote("C0", 90, true);
+        service.simulateNote("C0", 0, false);
+
+        Map<String, Object> data = service.stopRecording(recording.id(), false);
+        assertThat(data).containsEntry("noteCount", 2);
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.service.MidiDeviceService.MidiNote;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+/**
+ * Round trips through {@link MidiFileWriter}; times are multiples of 25 ms, which are whole ticks at
+ * the tempos used
+ */
+class MidiFileReaderTest {
+
+    private final MidiFileWriter writer = new MidiFileWriter();
+    private final MidiFileReader reader = new MidiFileReader();
+
+    @AfterEach
+    void shutdown() {
+        reader.shutdown();
+    }
+
+    private static List<MidiNote> twoHands() {
+        List<MidiNote> notes = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            notes.add(new MidiNote(72 + i % 5, 90, i * 250L, 225, 0, 0));
+            if (i % 4 == 0) {
+                notes.add(new MidiNote(48, 70, i * 250L, 975, 1, 1));
+            }
+        }
+        return notes;
+    }
+
+    private byte[] write(List<MidiNote> notes, int fileType, int tempoBpm) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.write(notes, fileType, tempoBpm, out);
+        return out.toByteArray();
+    }
+
+    private static List<MidiNote> notesOf(MidiFileReader.Result result) {
+        List<MidiNote> notes = new ArrayList<>();
+        for (MidiFileReader.ImportedTrack track : result.getTracks()) {
+            notes.addAll(track.getNotes());
+        }
+        return notes;
+    }
+
+    @Test
+    void roundTripsType1FilesWithATrackPerSource() throws IOException {
+        List<MidiNote> notes = twoHands();
+        MidiFileReader.Result result = reader.readSequence(new ByteArrayInputStream(write(notes, 1, 120)));
+
+        assertThat(result.getFormat()).isEqualTo(1);
+        assertThat(result.isStreamed()).isFalse();
+        assertThat(result.getDurationMs()).isEqualTo(3975);
+
+        List<MidiFileReader.ImportedTrack> withNotes = result.getTracks().stream()
+            .filter(track -> !track.getNotes().isEmpty()).toList();
+        assertThat(withNotes).extracting(MidiFileReader.ImportedTrack::getName).containsExactly("Source 1", "Source 2");
+        assertThat(withNotes.get(0).getNotes())
+            .extracting(MidiNote::getKey, MidiNote::getStartTime, MidiNote::getDuration, MidiNote::getVelocity)
+            .containsExactlyElementsOf(notes.stream().filter(n -> n.getSource() == 0)
+                .map(n -> tuple(n.getKey(), n.getStartTime(), n.getDuration(), n.getVelocity())).toList());
+        assertThat(withNotes.get(1).getChannels()).containsExactly(2);
+        assertThat(withNotes.get(1).getLowestKey()).isEqualTo(48);
+    }
+
+    @Test
+    void streamingReadMatchesTheSequenceRead() throws IOException {
+        byte[] file = write(twoHands(), 1, 90);
+        MidiFileReader.Result sequence = reader.readSequence(new ByteArrayInputStream(file));
+        MidiFileReader.Result streamed = reader.readStreaming(new ByteArrayInputStream(file), file.length);
+
+        assertThat(streamed.isStreamed()).isTrue();
+        assertThat(streamed.getDurationMs()).isEqualTo(sequence.getDurationMs()).isEqualTo(3975);
+        assertThat(notesOf(streamed))
+            .extracting(MidiNote::getKey, MidiNote::getStartTime, MidiNote::getDuration, MidiNote::getSource)
+            .containsExactlyElementsOf(notesOf(sequence).stream()
+                .map(n -> tuple(n.getKey(), n.getStartTime(), n.getDuration(), n.getSource())).toList());
+    }
+
+    @Test
+    void writesType0FilesAsOneTrack() throws IOException {
+        List<MidiNote> notes = twoHands();
+        byte[] file = write(notes, 0, 120);
+        MidiFileReader.Result result = reader.readStreaming(new ByteArrayInputStream(file), file.length);
+
+        assertThat(result.getFormat()).isZero();
+        assertThat(result.getTracks()).hasSize(1);
+        assertThat(result.getTracks().get(0).getNotes()).hasSize(notes.size());
+        assertThat(result.getTracks().get(0).getChannels()).containsExactly(1, 2);
+    }
+
+    @Test
+    void rejectsOtherFiles() {
+        byte[] notMidi = "RIFF....WAVEfmt ".getBytes();
+        assertThatThrownBy(() -> reader.readStreaming(new ByteArrayInputStream(notMidi), notMidi.length))
+            .isInstanceOf(IOException.class).hasMessageContaining("MThd");
+        assertThatThrownBy(() -> reader.readSequence(new ByteArrayInputStream(notMidi)))
+            .isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> writer.write(List.of(), 2, 120, new ByteArrayOutputStream()))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    // Header of a format 1 file with 480 PPQ, followed by one track chunk
+    private static byte[] fileWithTrack(long declaredLength, int... events) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(new byte[] {'M', 'T', 'h', 'd', 0, 0, 0, 6, 0, 1, 0, 1, 0x01, (byte) 0xE0});
+        out.writeBytes(new byte[] {'M', 'T', 'r', 'k',
+            (byte) (declaredLength >> 24), (byte) (declaredLength >> 16), (byte) (declaredLength >> 8), (byte) declaredLength});
+        for (int event : events) {
+            out.write(event);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void rejectsChunksLongerThanTheFile() {
+        // A few bytes claiming a track of almost 4 GB must not be allocated
+        byte[] file = fileWithTrack(0xFFFFFFF0L, 0x00, 0x90, 60, 100);
+
+        assertThatThrownBy(() -> reader.readStreaming(new ByteArrayInputStream(file), file.length))
+            .isInstanceOf(IOException.class).hasMessageContaining("only 4 bytes left");
+        assertThatThrownBy(() -> reader.readSequence(new ByteArrayInputStream(file)))
+            .isInstanceOf(IOException.class).hasMessageContaining("only 4 bytes left");
+    }
+
+    @Test
+    void rejectsMetaEventsRunningPastTheirChunk() {
+        // Track name meta event claiming 100 bytes with only 3 present
+        byte[] file = fileWithTrack(7, 0x00, 0xFF, 0x03, 100, 'a', 'b', 'c');
+
+        assertThatThrownBy(() -> reader.readStreaming(new ByteArrayInputStream(file), file.length))
+            .isInstanceOf(IOException.class).hasMessageContaining("truncated event");
+    }
+
+    @Test
+    void rejectsChannelMessagesCutOffByTheChunkEnd() {
+        byte[] file = fileWithTrack(3, 0x00, 0x90, 60);
+
+        assertThatThrownBy(() -> reader.readStreaming(new ByteArrayInputStream(file), file.length))
+            .isInstanceOf(IOException.class).hasMessageContaining("truncated event");
+    }
+
+    @Test
+    void readsRunningStatusAndSkipsUnknownChunks() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(new byte[] {'M', 'T', 'h', 'd', 0, 0, 0, 6, 0, 0, 0, 1, 0x01, (byte) 0xE0});
+        out.writeBytes(new byte[] {'X', 'Y', 'Z', 'W', 0, 0, 0, 2, 1, 2});
+        // Note on, then a note off as running status note on with velocity 0 after one quarter
+        byte[] events = {0x00, (byte) 0x90, 60, 100, (byte) 0x83, 0x60, 60, 0, 0x00, (byte) 0xFF, 0x2F, 0x00};
+        out.writeBytes(new byte[] {'M', 'T', 'r', 'k', 0, 0, 0, (byte) events.length});
+        out.writeBytes(events);
+        byte[] file = out.toByteArray();
+
+        MidiFileReader.Result result = reader.readStreaming(new ByteArrayInputStream(file), file.length);
+
+        assertThat(result.getFormat()).isZero();
+        assertThat(notesOf(result)).extracting(MidiNote::getKey, MidiNote::getStartTime, MidiNote::getDuration)
+            .containsExactly(tuple(60, 0L, 500L));
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.keyworks.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MidiLaneMergerTest {
+
+    private static MidiEventLane lane(int source, long... times) {
+        MidiEventLane lane = new MidiEventLane(source, "lane" + source);
+        for (long time : times) {
+            // The key carries the time so the merged order can be checked from the message alone
+            lane.append(time, 0x90, (int) (time % 128), 100);
+        }
+        return lane;
+    }
+
+    private static List<String> merge(List<MidiEventLane> lanes) {
+        List<String> merged = new ArrayList<>();
+        MidiLaneMerger.merge(lanes, (time, source, message) -> merged.add(source + "@" + time));
+        return merged;
+    }
+
+    @Test
+    void interleavesLanesByTime() {
+        List<String> merged = merge(List.of(lane(0, 10, 40, 70), lane(1, 20, 50), lane(2, 30, 60, 80, 90)));
+
+        assertThat(merged).containsExactly("0@10", "1@20", "2@30", "0@40", "1@50", "2@60", "0@70", "2@80", "2@90");
+    }
+
+    @Test
+    void breaksTiesByLaneOrder() {
+        List<String> merged = merge(List.of(lane(0, 5, 10), lane(1, 10), lane(2, 5, 10)));
+
+        assertThat(merged).containsExactly("0@5", "2@5", "0@10", "1@10", "2@10");
+    }
+
+    @Test
+    void skipsEmptyLanesAndCountsEvents() {
+        long count = MidiLaneMerger.merge(List.of(lane(0), lane(1, 3), lane(2)), (time, source, message) -> { });
+
+        assertThat(count).isEqualTo(1);
+        assertThat(merge(List.of())).isEmpty();
+    }
+
+    @Test
+    void mergesLanesSpanningSeveralChunks() {
+        MidiEventLane even = new MidiEventLane(0, "even");
+        MidiEventLane odd = new MidiEventLane(1, "odd");
+        for (long i = 0; i < 20_000; i++) {
+            even.append(2 * i, 0x90, 60, 100);
+            odd.append(2 * i + 1, 0x80, 60, 0);
+        }
+
+        long[] previous = {-1};
+        long count = MidiLaneMerger.merge(List.of(even, odd), (time, source, message) -> {
+            assertThat(time).isEqualTo(previous[0] + 1);
+            assertThat(source).isEqualTo((int) (time % 2));
+            assertThat(MidiEventLane.status(message)).isEqualTo(source == 0 ? 0x90 : 0x80);
+            previous[0] = time;
+        });
+
+        assertThat(count).isEqualTo(40_000);
+    }
+
+    @Test
+    void mergesOnlyTheEventsPublishedWhenItStarted() {
+        MidiEventLane live = lane(0, 1, 2, 3);
+        List<String> merged = new ArrayList<>();
+
+        MidiLaneMerger.merge(List.of(live), (time, source, message) -> {
+            if (time == 1) {
+                live.append(4, 0x90, 4, 100);
+            }
+            merged.add(source + "@" + time);
+        });
+
+        assertThat(merged).containsExactly("0@1", "0@2", "0@3");
+        assertThat(live.size()).isEqualTo(4);
+    }
+
+    @Test
+    void packsMessagesLosslessly() {
+        int packed = MidiEventLane.pack(0x9F, 127, 1);
+
+        assertThat(MidiEventLane.status(packed)).isEqualTo(0x9F);
+        assertThat(MidiEventLane.data1(packed)).isEqualTo(127);
+        assertThat(MidiEventLane.data2(packed)).isEqualTo(1);
+    }
+}
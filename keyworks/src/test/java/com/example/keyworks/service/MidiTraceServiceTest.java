@@ -0,0 +1,101 @@
+package com.example.keyworks.service;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.ShortMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MidiTraceServiceTest {
+
+    @Test
+    void roundsTheCapacityUpToAPowerOfTwo() {
+        assertThat(new MidiTraceService(100).getCapacity()).isEqualTo(128);
+        assertThat(new MidiTraceService(64).getCapacity()).isEqualTo(64);
+        assertThat(new MidiTraceService(1).getCapacity()).isEqualTo(16);
+    }
+
+    @Test
+    void dumpsDecodedEventsOldestFirst() throws Exception {
+        MidiTraceService trace = new MidiTraceService(16);
+        int keys = trace.registerSource("Keys");
+        int pads = trace.registerSource("Pads");
+        assertThat(trace.registerSource("Keys")).isEqualTo(keys);
+
+        trace.record(keys, new ShortMessage(ShortMessage.NOTE_ON, 2, 60, 100));
+        trace.record(pads, new ShortMessage(ShortMessage.CONTROL_CHANGE, 0, 64, 127));
+        trace.record(keys, new ShortMessage(ShortMessage.PROGRAM_CHANGE, 0, 5, 0));
+
+        List<Map<String, Object>> events = trace.dump(10);
+        assertThat(events).extracting(event -> event.get("sequence")).containsExactly(0L, 1L, 2L);
+        assertThat(events.get(0))
+            .containsEntry("source", "Keys")
+            .containsEntry("command", "NOTE_ON")
+            .containsEntry("channel", 3)
+            .containsEntry("data1", 60)
+            .containsEntry("data2", 100)
+            .containsEntry("hex", "92 3C 64");
+        assertThat(events.get(1)).containsEntry("source", "Pads").containsEntry("command", "CONTROL_CHANGE");
+        assertThat(events.get(2)).containsEntry("length", 2).containsEntry("hex", "C0 05");
+        assertThat(trace.dump(1)).extracting(event -> event.get("sequence")).containsExactly(2L);
+    }
+
+    @Test
+    void keepsOnlyTheMostRecentEventsWhenTheRingWraps() {
+        MidiTraceService trace = new MidiTraceService(16);
+        int source = trace.registerSource("Keys");
+        for (int i = 0; i < 40; i++) {
+            trace.record(source, 0x90, i, 100, 3);
+        }
+
+        List<Map<String, Object>> events = trace.dump(100);
+        assertThat(trace.getTotalEvents()).isEqualTo(40);
+        assertThat(events).hasSize(16);
+        assertThat(events).extracting(event -> event.get("data1"))
+            .containsExactlyElementsOf(List.of(24, 25, 26, 27, 28, 29, 30, 31, 32, 33, 34, 35, 36, 37, 38, 39));
+    }
+
+    @Test
+    void neverReturnsTornEventsWhileWritersLapTheRing() throws Exception {
+        MidiTraceService trace = new MidiTraceService(16);
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < 4; w++) {
+            int source = trace.registerSource("Writer " + w);
+            Thread writer = new Thread(() -> {
+                int i = 0;
+                while (running.get()) {
+                    // Every field of an event is derived from the source, so a mix of two events shows up
+                    int value = (source * 31 + i++) & 0x7F;
+                    trace.record(source, 0x90 | source, value, value, 3);
+                }
+            });
+            writer.setDaemon(true);
+            writer.start();
+            writers.add(writer);
+        }
+
+        try {
+            long dumped = 0;
+            long deadline = System.nanoTime() + 300_000_000L;
+            while (System.nanoTime() < deadline) {
+                for (Map<String, Object> event : trace.dump(16)) {
+                    int channel = (Integer) event.get("channel") - 1;
+                    assertThat(event.get("source")).isEqualTo("Writer " + channel);
+                    assertThat(event.get("data1")).isEqualTo(event.get("data2"));
+                    dumped++;
+                }
+            }
+            assertThat(dumped).isPositive();
+        } finally {
+            running.set(false);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.config.TranscriptionConfig;
+import com.example.keyworks.service.MidiDeviceService.MidiNote;
+import com.example.keyworks.service.MidiDeviceRegistry.MidiDeviceEvent;
+import com.example.keyworks.service.MultiDeviceRecordingService.RecordingSession;
+import com.example.keyworks.service.MultiDeviceRecordingService.StaffLayout;
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.ShortMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MultiDeviceRecordingServiceTest {
+
+    private final List<MidiDeviceEvent> events = new ArrayList<>();
+    private final FakeMidiDeviceRegistry registry = new FakeMidiDeviceRegistry(event -> events.add((MidiDeviceEvent) event));
+    private final MidiTraceService traceService = new MidiTraceService(64);
+    private final MidiDeviceService midiDeviceService = new MidiDeviceService(registry, traceService,
+        new LilyPondEmitter(), new TranscriptionConfig(4, 4, 4, 40, 4, false, 8, 10_000, 32));
+    private final MultiDeviceRecordingService service =
+        new MultiDeviceRecordingService(registry, midiDeviceService, traceService, 600_000);
+
+    private final FakeMidiDevice keys = new FakeMidiDevice("Keys", -1);
+    private final FakeMidiDevice pads = new FakeMidiDevice("Pads", -1);
+
+    private List<String> plugIn() {
+        registry.plugIn(keys);
+        registry.plugIn(pads);
+        registry.refresh();
+        return registry.getDevices().stream().map(MidiDeviceRegistry.DeviceEntry::getId).toList();
+    }
+
+    @Test
+    void endsSessionsThatRecordFromADetachedDevice() throws Exception {
+        RecordingSession session = service.startSession(plugIn(), StaffLayout.DEVICE);
+        keys.play(ShortMessage.NOTE_ON, 60, 90);
+        keys.play(ShortMessage.NOTE_OFF, 60, 0);
+        pads.play(ShortMessage.NOTE_ON, 36, 90);
+        pads.play(ShortMessage.NOTE_OFF, 36, 0);
+
+        registry.unplug(pads.getDeviceInfo());
+        registry.refresh();
+        service.onDeviceEvent(events.get(events.size() - 1));
+
+        assertThat(service.getSession(session.getId())).isEmpty();
+        assertThat(keys.isOpen()).isFalse();
+        assertThat(keys.getTransmitters()).isEmpty();
+        assertThat(midiDeviceService.getRecordingData(session.getId()))
+            .containsEntry("deviceDetached", "Pads")
+            .containsEntry("noteCount", 2);
+    }
+
+    @Test
+    void keepsSessionsThatDoNotUseTheDetachedDevice() throws Exception {
+        List<String> ids = plugIn();
+        RecordingSession session = service.startSession(ids.subList(0, 1), StaffLayout.DEVICE);
+
+        registry.unplug(pads.getDeviceInfo());
+        registry.refresh();
+        service.onDeviceEvent(events.get(events.size() - 1));
+
+        assertThat(service.getSession(session.getId())).isPresent();
+        assertThat(service.stopSession(session.getId())).doesNotContainKey("deviceDetached");
+    }
+
+    @Test
+    void endsNotesStillHeldWhenTheSessionStops() throws Exception {
+        RecordingSession session = service.startSession(plugIn(), StaffLayout.DEVICE);
+        keys.play(ShortMessage.NOTE_ON, 60, 90);
+        keys.play(ShortMessage.NOTE_ON, 64, 90);
+        keys.play(ShortMessage.NOTE_OFF, 64, 0);
+        pads.play(ShortMessage.NOTE_ON, 36, 80);
+        Thread.sleep(20);
+
+        Map<String, Object> recording = service.stopSession(session.getId());
+
+        @SuppressWarnings("unchecked")
+        List<MidiNote> notes = (List<MidiNote>) recording.get("notes");
+        assertThat(notes).extracting(MidiNote::getKey).containsExactlyInAnyOrder(60, 64, 36);
+        MidiNote held = notes.stream().filter(note -> note.getKey() == 36).findFirst().orElseThrow();
+        assertThat(held.getSource()).isEqualTo(1);
+        assertThat(held.getVelocity()).isEqualTo(80);
+        assertThat(held.getStartTime() + held.getDuration()).isLessThanOrEqualTo((Long) recording.get("duration"));
+        assertThat(held.getDuration()).isGreaterThanOrEqualTo(20);
+    }
+
+    @Test
+    void stopsSessionsWithoutInputAfterTheIdleTimeout() throws Exception {
+        MultiDeviceRecordingService impatient =
+            new MultiDeviceRecordingService(registry, midiDeviceService, traceService, 10);
+        RecordingSession session = impatient.startSession(plugIn(), StaffLayout.DEVICE);
+
+        impatient.stopIdleSessions();
+        assertThat(impatient.getSession(session.getId())).as("not idle long enough yet").isPresent();
+
+        Thread.sleep(30);
+        impatient.stopIdleSessions();
+
+        assertThat(impatient.getSession(session.getId())).isEmpty();
+        assertThat(keys.isOpen()).isFalse();
+        assertThat(midiDeviceService.getRecordingData(session.getId())).containsEntry("idleTimeout", true);
+    }
+
+    @Test
+    void inputKeepsASessionAlive() throws Exception {
+        MultiDeviceRecordingService impatient =
+            new MultiDeviceRecordingService(registry, midiDeviceService, traceService, 50);
+        RecordingSession session = impatient.startSession(plugIn(), StaffLayout.DEVICE);
+
+        Thread.sleep(60);
+        pads.play(ShortMessage.NOTE_ON, 36, 80);
+        impatient.stopIdleSessions();
+
+        assertThat(impatient.getSession(session.getId())).isPresent();
+        impatient.shutdown();
+    }
+
+    @Test
+    void releasesDevicesOfRunningSessionsAtShutdown() throws Exception {
+        RecordingSession session = service.startSession(plugIn(), StaffLayout.DEVICE);
+
+        service.shutdown();
+
+        assertThat(service.getSession(session.getId())).isEmpty();
+        assertThat(keys.isOpen()).isFalse();
+        assertThat(pads.isOpen()).isFalse();
+        assertThat(keys.getTransmitters()).isEmpty();
+    }
+}
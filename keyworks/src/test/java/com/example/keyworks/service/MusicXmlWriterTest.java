@@ -0,0 +1,132 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.config.TranscriptionConfig;
+import com.example.keyworks.service.MidiDeviceService.MidiNote;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MusicXmlWriterTest {
+
+    // 16 grid steps per 4/4 measure
+    private final MusicXmlWriter writer = new MusicXmlWriter(new TranscriptionConfig(4, 4, 16, 40, 4, true, 8, 50, 32));
+
+    private Document write(Map<String, List<MidiNote>> parts, int tempoBpm) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.write("Etude <1>", parts, tempoBpm, out);
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static String text(Element parent, String name) {
+        return parent.getElementsByTagName(name).item(0).getTextContent();
+    }
+
+    private static List<Element> children(Element parent, String name) {
+        List<Element> children = new ArrayList<>();
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element element && (name == null || element.getTagName().equals(name))) {
+                children.add(element);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Every voice of the measure must fill exactly one measure; chord notes take no extra time
+     */
+    private static void assertMeasureFilled(Element measure) {
+        int position = 0;
+        for (Element child : children(measure, null)) {
+            switch (child.getTagName()) {
+                case "note" -> {
+                    if (child.getElementsByTagName("chord").getLength() == 0) {
+                        position += Integer.parseInt(text(child, "duration"));
+                    }
+                }
+                case "forward" -> position += Integer.parseInt(text(child, "duration"));
+                case "backup" -> {
+                    assertThat(position).as("measure %s", measure.getAttribute("number")).isEqualTo(16);
+                    position -= Integer.parseInt(text(child, "duration"));
+                }
+                default -> {
+                }
+            }
+        }
+        assertThat(position).as("measure %s", measure.getAttribute("number")).isEqualTo(16);
+    }
+
+    @Test
+    void writesPartsWithFilledMeasures() throws Exception {
+        List<MidiNote> right = new ArrayList<>();
+        List<MidiNote> left = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            right.add(new MidiNote(72 + i % 4, 90, i * 500L, 450));
+        }
+        // A chord, a note held across the barline and one overlapping a later note
+        left.add(new MidiNote(48, 80, 0, 1000));
+        left.add(new MidiNote(52, 80, 10, 1000));
+        left.add(new MidiNote(43, 80, 1500, 1500));
+        left.add(new MidiNote(45, 80, 2500, 500));
+        Map<String, List<MidiNote>> parts = new LinkedHashMap<>();
+        parts.put("Right", right);
+        parts.put("Left", left);
+
+        Document document = write(parts, 120);
+
+        assertThat(text(document.getDocumentElement(), "work-title")).isEqualTo("Etude <1>");
+        NodeList partNames = document.getElementsByTagName("part-name");
+        assertThat(partNames.getLength()).isEqualTo(2);
+        assertThat(partNames.item(1).getTextContent()).isEqualTo("Left");
+
+        List<Element> partElements = children(document.getDocumentElement(), "part");
+        assertThat(partElements).hasSize(2);
+        for (Element part : partElements) {
+            List<Element> measures = children(part, "measure");
+            assertThat(measures).hasSize(3);
+            measures.forEach(MusicXmlWriterTest::assertMeasureFilled);
+        }
+
+        Element leftPart = partElements.get(1);
+        assertThat(text(leftPart, "sign")).isEqualTo("F");
+        assertThat(leftPart.getElementsByTagName("chord").getLength()).isEqualTo(1);
+        assertThat(leftPart.getElementsByTagName("tie").getLength()).isGreaterThanOrEqualTo(2);
+        assertThat(text(partElements.get(0), "sign")).isEqualTo("G");
+        assertThat(document.getElementsByTagName("sound").getLength()).isEqualTo(1);
+    }
+
+    @Test
+    void groupsNotesBySource() {
+        List<MidiNote> notes = List.of(
+            new MidiNote(60, 90, 500, 100, 0, 2),
+            new MidiNote(64, 90, 0, 100, 0, 0),
+            new MidiNote(62, 90, 250, 100, 0, 2));
+
+        Map<String, List<MidiNote>> parts = MusicXmlWriter.partsBySource(notes, List.of("Piano"));
+
+        assertThat(parts.keySet()).containsExactly("Piano", "Part 3");
+        assertThat(parts.get("Part 3")).extracting(MidiNote::getKey).containsExactly(62, 60);
+    }
+
+    @Test
+    void writesAnEmptyMeasureWithoutNotes() throws Exception {
+        Document document = write(Map.of("Empty", List.of()), 0);
+
+        List<Element> measures = children(children(document.getDocumentElement(), "part").get(0), "measure");
+        assertThat(measures).hasSize(1);
+        assertMeasureFilled(measures.get(0));
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.config.FileStorageConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PagePreviewServiceTest {
+
+    private static final RenderScheduler.Requester REQUESTER =
+        new RenderScheduler.Requester("alice", RenderScheduler.Priority.INTERACTIVE);
+
+    @TempDir
+    Path outputDir;
+
+    private final PageRenderer renderer = new PageRenderer();
+    private PagePreviewService service;
+
+    /**
+     * Renders one page per line of the source; sources containing "slow" wait to be released
+     */
+    private static class PageRenderer implements ScoreRenderer {
+        final AtomicInteger renders = new AtomicInteger();
+        final CountDownLatch slowStarted = new CountDownLatch(1);
+        final CountDownLatch releaseSlow = new CountDownLatch(1);
+
+        @Override
+        public List<LilyPondDiagnostic> render(Path source, Path outputDirectory) {
+            return List.of();
+        }
+
+        @Override
+        public List<Path> renderPages(Path source, Path outputDirectory, String format, int resolution)
+                throws IOException, InterruptedException {
+            renders.incrementAndGet();
+            List<String> lines = Files.readAllLines(source);
+            if (lines.contains("slow")) {
+                slowStarted.countDown();
+                releaseSlow.await(10, TimeUnit.SECONDS);
+            }
+            List<Path> pages = new ArrayList<>();
+            for (int i = 0; i < lines.size(); i++) {
+                pages.add(Files.writeString(outputDirectory.resolve("page-" + (i + 1) + "." + format), lines.get(i)));
+            }
+            return pages;
+        }
+
+        @Override
+        public String getName() {
+            return "pages";
+        }
+
+        @Override
+        public String getVersion() {
+            return "1";
+        }
+
+        @Override
+        public String getOptions() {
+            return "";
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        renderer.releaseSlow.countDown();
+        if (service != null) {
+            service.shutdown();
+        }
+    }
+
+    private PagePreviewService service(String format, int threads, long staleGraceMs) {
+        service = new PagePreviewService(new FileStorageConfig(outputDir.toString()), renderer,
+            new RenderScheduler(4, 30000, 2, new String[0]), format, 72, threads, staleGraceMs);
+        return service;
+    }
+
+    private Path source(String name, String... pages) throws IOException {
+        return Files.write(outputDir.resolve(name), List.of(pages));
+    }
+
+    private List<String> awaitPages(String fileId, Predicate<List<String>> condition) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            List<String> pages = service.getPages(fileId);
+            if (condition.test(pages)) {
+                return pages;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("page previews of " + fileId + " not rendered: " + service.getPages(fileId));
+    }
+
+    private static String content(Path file) throws IOException {
+        return Files.readString(file).trim();
+    }
+
+    @Test
+    void rendersOneImagePerPageNamedAfterTheContent() throws Exception {
+        service("svg", 1, 60_000);
+        Path source = source("music_generated_7.ly", "one", "two");
+
+        service.schedule("7", source, REQUESTER);
+        // The source is copied, so the caller may replace it right away
+        Files.delete(source);
+
+        List<String> pages = awaitPages("7", list -> !list.isEmpty());
+        assertThat(pages).hasSize(2).allMatch(PagePreviewService::isPageFile);
+        assertThat(pages.get(0)).matches("music_generated_7-[0-9a-f]{12}-page1\\.svg");
+        assertThat(pages.get(1)).isEqualTo(pages.get(0).replace("page1", "page2"));
+        assertThat(content(outputDir.resolve(pages.get(0)))).isEqualTo("one");
+        assertThat(content(outputDir.resolve(pages.get(1)))).isEqualTo("two");
+        assertThat(outputDir.resolve(".render")).isEmptyDirectory();
+    }
+
+    @Test
+    void skipsRenderingWhenTheSourceIsUnchanged() throws Exception {
+        service("svg", 1, 60_000);
+        service.schedule("7", source("music_generated_7.ly", "one"), REQUESTER);
+        List<String> pages = awaitPages("7", list -> !list.isEmpty());
+
+        service.schedule("7", source("music_generated_7.ly", "one"), REQUESTER);
+        // Runs on the same single thread, so once this one is done the skipped one was too
+        service.schedule("8", source("music_generated_8.ly", "eight"), REQUESTER);
+        awaitPages("8", list -> !list.isEmpty());
+
+        assertThat(renderer.renders).hasValue(2);
+        assertThat(service.getPages("7")).isEqualTo(pages);
+    }
+
+    @Test
+    void deletesSupersededPagesAfterTheGracePeriod() throws Exception {
+        service("svg", 1, 300);
+        service.schedule("7", source("music_generated_7.ly", "old"), REQUESTER);
+        List<String> oldPages = awaitPages("7", list -> !list.isEmpty());
+
+        service.schedule("7", source("music_generated_7.ly", "new one", "new two"), REQUESTER);
+        List<String> newPages = awaitPages("7", list -> list.size() == 2);
+
+        // Clients holding the old index can still load its pages for a while
+        assertThat(outputDir.resolve(oldPages.get(0))).exists();
+        Thread.sleep(1000);
+        assertThat(outputDir.resolve(oldPages.get(0))).doesNotExist();
+        assertThat(newPages).allMatch(page -> Files.exists(outputDir.resolve(page)));
+    }
+
+    @Test
+    void doesNotDeletePagesOfAnotherScoreWithALongerId() throws Exception {
+        service("svg", 1, 0);
+        service.schedule("1-2", source("music_generated_1-2.ly", "other"), REQUESTER);
+        List<String> otherPages = awaitPages("1-2", list -> !list.isEmpty());
+        // Old enough to be swept up if it were taken for a page of music_generated_1
+        Thread.sleep(20);
+
+        service.schedule("1", source("music_generated_1.ly", "first"), REQUESTER);
+        List<String> firstPages = awaitPages("1", list -> !list.isEmpty());
+        service.schedule("1", source("music_generated_1.ly", "second"), REQUESTER);
+        awaitPages("1", list -> !list.isEmpty() && !list.equals(firstPages));
+
+        assertThat(outputDir.resolve(otherPages.get(0))).exists();
+    }
+
+    @Test
+    void discardsAnOlderRenderThatFinishesLast() throws Exception {
+        service("svg", 2, 60_000);
+        service.schedule("7", source("music_generated_7.ly", "slow"), REQUESTER);
+        assertThat(renderer.slowStarted.await(10, TimeUnit.SECONDS)).isTrue();
+
+        service.schedule("7", source("music_generated_7.ly", "newer"), REQUESTER);
+        List<String> pages = awaitPages("7", list -> !list.isEmpty());
+        renderer.releaseSlow.countDown();
+
+        // Give the older render time to finish; it must not replace the newer index
+        Thread.sleep(200);
+        assertThat(service.getPages("7")).isEqualTo(pages);
+        assertThat(content(outputDir.resolve(pages.get(0)))).isEqualTo("newer");
+    }
+
+    @Test
+    void rendersNothingWhenPreviewsAreOff() throws Exception {
+        service("none", 1, 60_000);
+        service.schedule("7", source("music_generated_7.ly", "one"), REQUESTER);
+
+        assertThat(service.getPages("7")).isEmpty();
+        assertThat(renderer.renders).hasValue(0);
+        assertThatThrownBy(() -> service("pdf", 1, 0)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void recognizesPageFiles() {
+        assertThat(PagePreviewService.isPageFile("music_generated_7-3f9a0c12e4b1-page1.svg")).isTrue();
+        assertThat(PagePreviewService.isPageFile("music_generated_7-3f9a0c12e4b1-page12.png")).isTrue();
+        assertThat(PagePreviewService.isPageFile("music_generated_7.pdf")).isFalse();
+        assertThat(PagePreviewService.isPageFile("music_generated_7.pages")).isFalse();
+        assertThat(PagePreviewService.isPageFile("music_generated_7-3f9a0c12-page1.svg")).isFalse();
+    }
+}
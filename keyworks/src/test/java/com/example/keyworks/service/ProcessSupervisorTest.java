@@ -0,0 +1,138 @@
+package com.example.keyworks.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Runs real processes through /bin/sh
+ */
+class ProcessSupervisorTest {
+
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void requireShell() {
+        assumeTrue(Files.isExecutable(Path.of("/bin/sh")), "needs /bin/sh");
+    }
+
+    private static List<String> sh(String script) {
+        return List.of("/bin/sh", "-c", script);
+    }
+
+    /**
+     * Waits briefly for a process to be gone, as a killed process is reaped asynchronously
+     */
+    private static boolean isGone(long pid) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            Optional<ProcessHandle> handle = ProcessHandle.of(pid);
+            if (handle.isEmpty() || !handle.get().isAlive()) {
+                return true;
+            }
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+    @Test
+    void collectsOutputAndExitCode() throws Exception {
+        ProcessSupervisor supervisor = new ProcessSupervisor(1024);
+        List<String> lines = new CopyOnWriteArrayList<>();
+
+        ProcessSupervisor.Result result = supervisor.run(sh("echo one; echo \"$GREETING\" >&2; pwd; exit 3"), dir,
+            Map.of("GREETING", "two"), 10, lines::add);
+
+        assertThat(result.exitCode()).isEqualTo(3);
+        assertThat(result.timedOut()).isFalse();
+        assertThat(lines).containsExactlyInAnyOrder("one", "two", dir.toRealPath().toString());
+        assertThat(result.output().lines()).containsExactlyInAnyOrderElementsOf(lines);
+        assertThat(result.droppedLines()).isZero();
+    }
+
+    @Test
+    void drainsOutputBeyondThePipeBufferAndTheLimit() throws Exception {
+        ProcessSupervisor supervisor = new ProcessSupervisor(100);
+        List<String> lines = new CopyOnWriteArrayList<>();
+
+        // 20000 lines is far more than a pipe buffer; without draining the process would block
+        ProcessSupervisor.Result result = supervisor.run(sh("i=0; while [ $i -lt 20000 ]; do echo line$i; i=$((i+1)); done"),
+            dir, Map.of(), 30, lines::add);
+
+        assertThat(result.exitCode()).isZero();
+        assertThat(lines).hasSize(20000);
+        assertThat(result.output().length()).isLessThanOrEqualTo(100);
+        assertThat(result.output().lines().count() + result.droppedLines()).isEqualTo(20000);
+    }
+
+    @Test
+    void killsTheProcessTreeOnTimeout() throws Exception {
+        ProcessSupervisor supervisor = new ProcessSupervisor(1024);
+        List<String> lines = new CopyOnWriteArrayList<>();
+
+        // The grandchild keeps the output pipes open, so only killing the tree lets the run return
+        long start = System.nanoTime();
+        ProcessSupervisor.Result result = supervisor.run(sh("sleep 60 & echo $!; wait"), dir, Map.of(), 1, lines::add);
+
+        assertThat(result.timedOut()).isTrue();
+        assertThat(result.exitCode()).isEqualTo(-1);
+        assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)).isLessThan(10);
+        assertThat(lines).hasSize(1);
+        assertThat(isGone(Long.parseLong(lines.get(0)))).as("grandchild killed").isTrue();
+    }
+
+    @Test
+    void killsTheProcessTreeWhenTheCallerIsInterrupted() throws Exception {
+        ProcessSupervisor supervisor = new ProcessSupervisor(1024);
+        CompletableFuture<String> grandchild = new CompletableFuture<>();
+        CompletableFuture<Throwable> failure = new CompletableFuture<>();
+
+        Thread caller = Thread.ofPlatform().start(() -> {
+            try {
+                supervisor.run(sh("sleep 60 & echo $!; wait"), dir, Map.of(), 60, grandchild::complete);
+                failure.complete(null);
+            } catch (Exception e) {
+                failure.complete(e);
+            }
+        });
+        long pid = Long.parseLong(grandchild.get(10, TimeUnit.SECONDS));
+        caller.interrupt();
+
+        assertThat(failure.get(10, TimeUnit.SECONDS)).isInstanceOf(InterruptedException.class);
+        assertThat(isGone(pid)).as("grandchild killed").isTrue();
+    }
+
+    @Test
+    void killsRunningProcessesOnShutdownAndRefusesNewOnes() throws Exception {
+        ProcessSupervisor supervisor = new ProcessSupervisor(1024);
+        CompletableFuture<String> grandchild = new CompletableFuture<>();
+
+        CompletableFuture<ProcessSupervisor.Result> run = CompletableFuture.supplyAsync(() -> {
+            try {
+                return supervisor.run(sh("sleep 60 & echo $!; wait"), dir, Map.of(), 60, grandchild::complete);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        long pid = Long.parseLong(grandchild.get(10, TimeUnit.SECONDS));
+        supervisor.shutdown();
+
+        assertThat(run.get(10, TimeUnit.SECONDS).timedOut()).isFalse();
+        assertThat(isGone(pid)).as("grandchild killed").isTrue();
+        assertThatThrownBy(() -> supervisor.run(sh("true"), dir, Map.of(), 10, line -> { }))
+            .isInstanceOf(IllegalStateException.class);
+    }
+}
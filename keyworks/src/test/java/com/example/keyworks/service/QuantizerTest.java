@@ -0,0 +1,147 @@
+package com.example.keyworks.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class QuantizerTest {
+
+    private final LilyPondEmitter emitter = new LilyPondEmitter();
+
+    // 120 BPM, sixteenth-note grid, 4/4
+    private Quantizer quantizer() {
+        return new Quantizer(emitter, 500, 4, 4, 40, 4);
+    }
+
+    private static String body(Quantizer quantizer) throws IOException {
+        StringBuilder out = new StringBuilder();
+        quantizer.writeBody(out);
+        return out.toString();
+    }
+
+    @Test
+    void snapsSlightlyEarlyAndLateNotesToTheGrid() throws IOException {
+        Quantizer quantizer = quantizer();
+        quantizer.addNote(60, 0, 480);
+        quantizer.addNote(62, 510, 480);
+        quantizer.addNote(64, 1000, 480);
+        quantizer.addNote(65, 1495, 480);
+        quantizer.addNote(67, 2000, 2000);
+        quantizer.finish();
+
+        assertThat(body(quantizer)).isEqualTo("c'4 d'4 e'4 f'4 | g'1 | ");
+        assertThat(quantizer.getLength()).isEqualTo(32);
+        assertThat(quantizer.isFallback()).isFalse();
+    }
+
+    @Test
+    void groupsNearOnsetsIntoChordsAndTiesNotesAcrossBarlines() throws IOException {
+        Quantizer quantizer = quantizer();
+        quantizer.addNote(60, 0, 500);
+        quantizer.addNote(64, 10, 500);
+        quantizer.addNote(67, 20, 500);
+        quantizer.addNote(72, 1500, 1000);
+        quantizer.finish();
+
+        assertThat(body(quantizer)).isEqualTo("<c' e' g'>4 r2 c''4~ | c''4 r2. | ");
+    }
+
+    @Test
+    void writesHeldNotesInASecondVoice() throws IOException {
+        Quantizer quantizer = quantizer();
+        quantizer.addNote(48, 0, 2000);
+        quantizer.addNote(72, 0, 500);
+        quantizer.addNote(74, 500, 500);
+        quantizer.addNote(76, 1000, 500);
+        quantizer.addNote(77, 1500, 500);
+        quantizer.finish();
+
+        assertThat(quantizer.getVoiceCount()).isEqualTo(2);
+        assertThat(body(quantizer)).isEqualTo("<< { c''4 d''4 e''4 f''4 | } \\\\ { c1 | } >>");
+    }
+
+    @Test
+    void fillsTheBarFromTheOrigin() throws IOException {
+        Quantizer fromFirstNote = quantizer();
+        fromFirstNote.addNote(60, 1500, 1000);
+        fromFirstNote.finish();
+        assertThat(body(fromFirstNote)).isEqualTo("c'2 r2 | ");
+
+        Quantizer fromZero = quantizer();
+        fromZero.setOrigin(0);
+        fromZero.addNote(60, 1000, 500);
+        fromZero.finish();
+        assertThat(body(fromZero)).isEqualTo("r2 c'4 r4 | ");
+    }
+
+    @Test
+    void changesKeyAndSpellingAtTheNextBarline() throws IOException {
+        KeyDetector.Key fMajor = keyOf(65, 70, 62, 67, 60, 65, 70, 69);
+        Quantizer quantizer = quantizer();
+        quantizer.setInitialKey(KeyDetector.defaultKey());
+        quantizer.addNote(61, 0, 500);
+        quantizer.addNote(70, 500, 500);
+        quantizer.changeKey(fMajor);
+        quantizer.addNote(61, 1000, 500);
+        quantizer.addNote(70, 2000, 500);
+        quantizer.finish();
+
+        assertThat(body(quantizer)).isEqualTo("cis'4 ais'4 cis'4 r4 | \\key f \\major bes'4 r2. | ");
+    }
+
+    @Test
+    void padsEveryVoiceToTheEndOfTheBar() throws IOException {
+        Quantizer quantizer = quantizer();
+        quantizer.addNote(60, 0, 500);
+        quantizer.finish();
+        quantizer.padTo(20);
+
+        assertThat(body(quantizer)).isEqualTo("c'4 r2. | r1 | ");
+        assertThat(quantizer.getLength()).isEqualTo(32);
+    }
+
+    @Test
+    void fallingBackCompletesTheBarAndStopsQuantizing() throws IOException {
+        Quantizer quantizer = quantizer();
+        quantizer.addNote(60, 0, 500);
+        quantizer.addNote(62, 500, 500);
+        quantizer.fallBack(0);
+        quantizer.addNote(64, 1010, 490);
+        quantizer.finish();
+
+        assertThat(quantizer.isFallback()).isTrue();
+        assertThat(body(quantizer)).startsWith("c'4 d'4 r2 | e'");
+        assertThat(body(quantizer).substring("c'4 d'4 r2 | ".length())).doesNotContain("|");
+    }
+
+    @Test
+    void fallingBackPadsToTheGivenStep() throws IOException {
+        Quantizer quantizer = quantizer();
+        quantizer.addNote(60, 0, 500);
+        quantizer.fallBack(20);
+
+        assertThat(body(quantizer)).isEqualTo("c'4 r2. | r1 | ");
+    }
+
+    @Test
+    void countsWrittenTokensAsWork() throws IOException {
+        Quantizer quantizer = quantizer();
+        quantizer.addNote(60, 0, 500);
+        quantizer.addNote(62, 500, 2500);
+        quantizer.finish();
+
+        // Four note values: c'4, d'2., d'2 and r2
+        assertThat(body(quantizer)).isEqualTo("c'4 d'2.~ | d'2 r2 | ");
+        assertThat(quantizer.getWork()).isEqualTo(4);
+    }
+
+    private static KeyDetector.Key keyOf(int... keys) {
+        KeyDetector detector = new KeyDetector(keys.length);
+        for (int key : keys) {
+            detector.addNote(key, 500);
+        }
+        return detector.getKey();
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.service.RenderScheduler.Priority;
+import com.example.keyworks.service.RenderScheduler.Requester;
+import com.example.keyworks.service.RenderScheduler.Ticket;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RenderSchedulerTest {
+
+    private final List<Thread> threads = new ArrayList<>();
+    private final List<String> started = Collections.synchronizedList(new ArrayList<>());
+
+    @AfterEach
+    void stopThreads() throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.interrupt();
+            thread.join(5000);
+        }
+    }
+
+    private static RenderScheduler scheduler(int slots, long agingMs, int interactivePerUser, String... weights) {
+        return new RenderScheduler(slots, agingMs, interactivePerUser, weights);
+    }
+
+    /**
+     * Requests a render on a new thread that records its label once it holds a slot and releases it
+     * right away; returns once the render is queued
+     */
+    private void enqueue(RenderScheduler scheduler, Requester requester, String label, long estimatedMs)
+            throws InterruptedException {
+        Thread thread = new Thread(() -> {
+            try (Ticket ignored = scheduler.acquire(requester, label, estimatedMs)) {
+                started.add(label);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        threads.add(thread);
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!isWaiting(scheduler, requester.user(), label)) {
+            assertThat(System.currentTimeMillis()).as("%s queued", label).isLessThan(deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean isWaiting(RenderScheduler scheduler, String user, String label) {
+        List<Map<String, Object>> requests = (List<Map<String, Object>>) scheduler.getQueue(user).get("requests");
+        return requests.stream().anyMatch(r -> label.equals(r.get("label")) && "waiting".equals(r.get("state")));
+    }
+
+    /**
+     * Releases the blocking ticket and waits until the queued renders have all run
+     */
+    private List<String> runAll(Ticket blocker, int expected) throws InterruptedException {
+        blocker.close();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        assertThat(started).hasSize(expected);
+        return started;
+    }
+
+    @Test
+    void usersTakeTurnsWithinAClass() throws InterruptedException {
+        RenderScheduler scheduler = scheduler(1, 60_000, 100);
+        Ticket blocker = scheduler.acquire(new Requester("blocker", Priority.INTERACTIVE), "blocker", 1000);
+
+        enqueue(scheduler, new Requester("alice", Priority.INTERACTIVE), "alice-1", 1000);
+        enqueue(scheduler, new Requester("alice", Priority.INTERACTIVE), "alice-2", 1000);
+        enqueue(scheduler, new Requester("alice", Priority.INTERACTIVE), "alice-3", 1000);
+        enqueue(scheduler, new Requester("bob", Priority.INTERACTIVE), "bob-1", 1000);
+        enqueue(scheduler, new Requester("bob", Priority.INTERACTIVE), "bob-2", 1000);
+
+        assertThat(runAll(blocker, 5)).containsExactly("alice-1", "bob-1", "alice-2", "bob-2", "alice-3");
+    }
+
+    @Test
+    void userWeightsScaleTheShare() throws InterruptedException {
+        RenderScheduler scheduler = scheduler(1, 60_000, 100, "alice=2");
+        Ticket blocker = scheduler.acquire(new Requester("blocker", Priority.INTERACTIVE), "blocker", 1000);
+
+        for (int i = 1; i <= 4; i++) {
+            enqueue(scheduler, new Requester("alice", Priority.INTERACTIVE), "alice-" + i, 1000);
+        }
+        enqueue(scheduler, new Requester("bob", Priority.INTERACTIVE), "bob-1", 1000);
+        enqueue(scheduler, new Requester("bob", Priority.INTERACTIVE), "bob-2", 1000);
+
+        // Alice's renders cost half as much virtual time, so she gets two turns for each of Bob's
+        assertThat(runAll(blocker, 6)).containsExactly("alice-1", "alice-2", "bob-1", "alice-3", "alice-4", "bob-2");
+    }
+
+    @Test
+    void higherClassesGoFirst() throws InterruptedException {
+        RenderScheduler scheduler = scheduler(1, 60_000, 100);
+        Ticket blocker = scheduler.acquire(new Requester("blocker", Priority.INTERACTIVE), "blocker", 1000);
+
+        enqueue(scheduler, new Requester("alice", Priority.BULK), "bulk", 1000);
+        enqueue(scheduler, new Requester("alice", Priority.BACKGROUND), "background", 1000);
+        enqueue(scheduler, new Requester("alice", Priority.INTERACTIVE), "interactive", 1000);
+
+        assertThat(runAll(blocker, 3)).containsExactly("interactive", "background", "bulk");
+    }
+
+    @Test
+    void waitingRaisesTheClass() throws InterruptedException {
+        RenderScheduler scheduler = scheduler(1, 50, 100);
+        Ticket blocker = scheduler.acquire(new Requester("blocker", Priority.INTERACTIVE), "blocker", 1000);
+
+        enqueue(scheduler, new Requester("alice", Priority.BULK), "bulk", 1000);
+        Thread.sleep(200);
+        enqueue(scheduler, new Requester("bob", Priority.INTERACTIVE), "interactive", 1000);
+
+        assertThat(runAll(blocker, 2)).containsExactly("bulk", "interactive");
+    }
+
+    @Test
+    void demotesInteractiveRendersOverTheUserLimit() throws InterruptedException {
+        RenderScheduler scheduler = scheduler(4, 60_000, 2);
+        Requester alice = new Requester("alice", Priority.INTERACTIVE);
+
+        try (Ticket first = scheduler.acquire(alice, "first", 1000);
+             Ticket second = scheduler.acquire(alice, "second", 1000);
+             Ticket third = scheduler.acquire(alice, "third", 1000);
+             Ticket bob = scheduler.acquire(new Requester("bob", Priority.INTERACTIVE), "bob", 1000)) {
+            assertThat(first.getPriority()).isEqualTo(Priority.INTERACTIVE);
+            assertThat(second.getPriority()).isEqualTo(Priority.INTERACTIVE);
+            assertThat(third.getPriority()).isEqualTo(Priority.BULK);
+            assertThat(bob.getPriority()).isEqualTo(Priority.INTERACTIVE);
+        }
+
+        try (Ticket again = scheduler.acquire(alice, "again", 1000)) {
+            assertThat(again.getPriority()).isEqualTo(Priority.INTERACTIVE);
+        }
+    }
+
+    @Test
+    void runsOfOneJobCountAsOneRender() throws InterruptedException {
+        RenderScheduler scheduler = scheduler(8, 60_000, 1);
+        Requester sections = new Requester("alice", Priority.INTERACTIVE).forJob("job-1");
+
+        try (Ticket first = scheduler.acquire(sections, "section 1", 1000);
+             Ticket second = scheduler.acquire(sections, "section 2", 1000);
+             Ticket third = scheduler.acquire(sections, "section 3", 1000)) {
+            assertThat(List.of(first, second, third)).extracting(Ticket::getPriority).containsOnly(Priority.INTERACTIVE);
+
+            try (Ticket other = scheduler.acquire(sections.forJob("job-2"), "other", 1000)) {
+                assertThat(other.getPriority()).isEqualTo(Priority.BULK);
+                // Later runs of a demoted job stay in its class
+                try (Ticket otherSection = scheduler.acquire(sections.forJob("job-2"), "other 2", 1000)) {
+                    assertThat(otherSection.getPriority()).isEqualTo(Priority.BULK);
+                }
+            }
+        }
+    }
+
+    @Test
+    void interruptedWaitsLeaveTheQueue() throws InterruptedException {
+        RenderScheduler scheduler = scheduler(1, 60_000, 100);
+        Ticket blocker = scheduler.acquire(new Requester("blocker", Priority.INTERACTIVE), "blocker", 1000);
+        enqueue(scheduler, new Requester("alice", Priority.INTERACTIVE), "interrupted", 1000);
+
+        threads.get(0).interrupt();
+        threads.get(0).join(5000);
+        assertThat(isWaiting(scheduler, "alice", "interrupted")).isFalse();
+
+        blocker.close();
+        assertThat(scheduler.getQueue("blocker")).containsEntry("running", 0);
+        assertThat(started).isEmpty();
+    }
+
+    @Test
+    void parsesPriorities() {
+        assertThat(Priority.parse(" bulk ")).isEqualTo(Priority.BULK);
+        assertThat(Priority.parse("Interactive")).isEqualTo(Priority.INTERACTIVE);
+        assertThat(Priority.parse("urgent")).isNull();
+        assertThat(Priority.INTERACTIVE.atMost(Priority.BACKGROUND)).isEqualTo(Priority.BACKGROUND);
+    }
+}
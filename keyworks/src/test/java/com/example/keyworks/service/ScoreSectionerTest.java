@@ -0,0 +1,132 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.config.TranscriptionConfig;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ScoreSectionerTest {
+
+    private static final String SCORE = """
+        \\version "2.24.0"
+        \\header {
+          title = "Etude"
+          composer = "KeyWorks"
+        }
+
+        \\score {
+          \\new Staff {
+            \\clef treble
+            \\key c \\major
+            \\time 4/4
+            \\tempo 4 = 120
+            c'4 d'4 e'4 f'4 | g'1 | \\key g \\major fis'1 | g'1 | a'1 |
+          }
+          \\layout { }
+          \\midi { }
+        }
+        """;
+
+    private final ScoreSectioner sectioner = new ScoreSectioner();
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int at = text.indexOf(part); at >= 0; at = text.indexOf(part, at + part.length())) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    void splitsAtBarlines() {
+        List<String> sections = sectioner.split(SCORE, 2);
+
+        assertThat(sections).hasSize(3);
+        assertThat(sections.get(0)).contains("c'4 d'4 e'4 f'4 | g'1 |").doesNotContain("fis'1");
+        assertThat(sections.get(1)).contains("\\key g \\major fis'1 | g'1 |").doesNotContain("g'1 | a'1");
+        assertThat(sections.get(2)).contains("a'1 |").doesNotContain("fis'1");
+        for (String section : sections) {
+            assertThat(section).startsWith("\\version \"2.24.0\"").contains("\\clef treble", "\\time 4/4", "\\layout { }");
+            assertThat(count(section, "|")).isLessThanOrEqualTo(2);
+            assertThat(section).doesNotContain("\\midi");
+        }
+    }
+
+    @Test
+    void startsEverySectionInTheKeyInForce() {
+        List<String> sections = sectioner.split(SCORE, 2);
+
+        assertThat(sections.get(0)).contains("\\key c \\major");
+        assertThat(sections.get(1)).contains("\\key c \\major");
+        assertThat(sections.get(2)).contains("\\key g \\major").doesNotContain("\\key c \\major");
+    }
+
+    @Test
+    void keepsTempoTitleAndTaglineWhereTheyBelong() {
+        List<String> sections = sectioner.split(SCORE, 2);
+
+        assertThat(sections.get(0)).contains("\\tempo 4 = 120", "tagline = ##f").doesNotContain("title = ##f");
+        assertThat(sections.get(1)).doesNotContain("\\tempo").contains("title = ##f", "tagline = ##f");
+        assertThat(sections.get(2)).doesNotContain("\\tempo").contains("title = ##f").doesNotContain("tagline = ##f");
+    }
+
+    @Test
+    void dropsSecondaryVoicesOnceTheyEnd() {
+        String score = SCORE.replace("c'4 d'4 e'4 f'4 | g'1 | \\key g \\major fis'1 | g'1 | a'1 |",
+            "<< { c'2 d'2 | e'1 | f'1 | } \\\\ { c1 | } >>");
+        List<String> sections = sectioner.split(score, 1);
+
+        assertThat(sections).hasSize(3);
+        assertThat(sections.get(0)).contains("<< { c'2 d'2 | } \\\\ { c1 | } >>");
+        assertThat(sections.get(1)).contains("e'1 |").doesNotContain("<<").doesNotContain("\\\\");
+    }
+
+    @Test
+    void doesNotSplitShortOrHandWrittenScores() {
+        assertThat(sectioner.split(SCORE, 5)).isEmpty();
+        assertThat(sectioner.split(SCORE, 0)).isEmpty();
+        assertThat(sectioner.split(SCORE + SCORE.substring(SCORE.indexOf("\\score")), 2)).isEmpty();
+        assertThat(sectioner.split(SCORE.replace("c'4 d'4", "\\relative { c'4 } d'4"), 2)).isEmpty();
+        assertThat(sectioner.split("{ c'1 | d'1 | e'1 | }", 1)).isEmpty();
+    }
+
+    @Test
+    void splitsTranscribedPianoScores() {
+        LilyPondEmitter emitter = new LilyPondEmitter();
+        IncrementalTranscriber transcriber = new IncrementalTranscriber(emitter,
+            new TranscriptionConfig(4, 4, 16, 40, 4, true, 8, 10_000, 32));
+        for (int i = 0; i < 64; i++) {
+            long start = i * 500L;
+            transcriber.noteOn(72 + i % 8, 90, start);
+            transcriber.noteOff(72 + i % 8, start + 450);
+            if (i % 4 == 0) {
+                transcriber.noteOn(48, 80, start);
+                transcriber.noteOff(48, start + 1900);
+            }
+        }
+        transcriber.finish();
+        String score = emitter.toString(out -> {
+            emitter.writeHeader(out, "Piano", "KeyWorks");
+            out.append("\\score {\n");
+            transcriber.writeStaff(out, "  ", null);
+            emitter.closeScore(out);
+        });
+
+        List<String> sections = sectioner.split(score, 4);
+
+        // 16 bars in each hand
+        assertThat(sections).hasSize(4);
+        for (String section : sections) {
+            assertThat(count(section, "\\new Staff")).isEqualTo(2);
+            assertThat(count(section, "|")).isEqualTo(8);
+        }
+    }
+
+    @Test
+    void removesTheLayoutForMidiOnlyRenders() {
+        assertThat(sectioner.toMidiOnly(SCORE)).contains("\\midi { }").doesNotContain("\\layout");
+        assertThat(sectioner.toMidiOnly(SCORE.replace("\\midi { }", ""))).isNull();
+    }
+}
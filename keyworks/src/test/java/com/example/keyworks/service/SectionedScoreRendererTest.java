@@ -0,0 +1,137 @@
+package com.example.keyworks.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class SectionedScoreRendererTest {
+
+    private static final String SCORE = """
+        \\version "2.24.0"
+        \\score {
+          \\new Staff {
+            \\time 4/4
+            c'1 | d'1 | e'1 | f'1 | g'1 |
+          }
+          \\layout { }
+          \\midi { }
+        }
+        """;
+
+    @TempDir
+    Path dir;
+
+    private final RecordingRenderer renderer = new RecordingRenderer();
+    private SectionedScoreRenderer sectionedRenderer;
+
+    /**
+     * Writes a PDF holding the source, and a MIDI file
+     */
+    private static class RecordingRenderer implements ScoreRenderer {
+        final List<String> rendered = new CopyOnWriteArrayList<>();
+
+        @Override
+        public List<LilyPondDiagnostic> render(Path source, Path outputDirectory) throws IOException {
+            rendered.add(source.getFileName().toString());
+            String baseName = LilyPondProcessRenderer.baseName(source);
+            Files.writeString(outputDirectory.resolve(baseName + ".pdf"), source.getFileName() + "\n");
+            Files.writeString(outputDirectory.resolve(baseName + ".midi"), "MThd");
+            return List.of();
+        }
+
+        @Override
+        public List<Path> renderPages(Path source, Path outputDirectory, String format, int resolution) {
+            return List.of();
+        }
+
+        @Override
+        public String getName() {
+            return "recording";
+        }
+
+        @Override
+        public String getVersion() {
+            return "1";
+        }
+
+        @Override
+        public String getOptions() {
+            return "";
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (sectionedRenderer != null) {
+            sectionedRenderer.shutdown();
+        }
+    }
+
+    private SectionedScoreRenderer sectionedRenderer(String mergeCommand) {
+        sectionedRenderer = new SectionedScoreRenderer(renderer, new ScoreSectioner(), new ProcessSupervisor(4096),
+            new RenderScheduler(4, 30000, 2, new String[0]), true, 2, 2, mergeCommand, 10);
+        return sectionedRenderer;
+    }
+
+    private Path source() throws IOException {
+        Path jobDir = Files.createDirectories(dir.resolve("job"));
+        return Files.writeString(jobDir.resolve("music_generated_7.ly"), SCORE);
+    }
+
+    @Test
+    void switchesSectioningOffAtStartupWithoutAMergeCommand() throws Exception {
+        SectionedScoreRenderer sectioned = sectionedRenderer("/nonexistent/gs -sOutputFile={output} {inputs}");
+        assertThat(sectioned.getOptions()).isEqualTo("sections=off");
+
+        Path source = source();
+        List<Path> previews = new CopyOnWriteArrayList<>();
+        assertThat(sectioned.render(source, source.getParent(), new RenderScheduler.Requester("alice",
+            RenderScheduler.Priority.INTERACTIVE), 0, previews::add)).isNull();
+
+        // Nothing was rendered in sections that would have to be thrown away
+        assertThat(renderer.rendered).isEmpty();
+        assertThat(previews).isEmpty();
+    }
+
+    @Test
+    void rendersSectionsAndMergesThem() throws Exception {
+        assumeTrue(Files.isExecutable(Path.of("/bin/sh")), "needs /bin/sh");
+        Path merge = Files.writeString(dir.resolve("merge.sh"), "#!/bin/sh\nout=\"$1\"; shift; cat \"$@\" > \"$out\"\n");
+        assertThat(merge.toFile().setExecutable(true)).isTrue();
+        SectionedScoreRenderer sectioned = sectionedRenderer(merge + " {output} {inputs}");
+        assertThat(sectioned.getOptions()).isEqualTo("sections=2");
+
+        Path source = source();
+        List<Path> previews = new CopyOnWriteArrayList<>();
+        List<LilyPondDiagnostic> warnings = sectioned.render(source, source.getParent(),
+            new RenderScheduler.Requester("alice", RenderScheduler.Priority.INTERACTIVE), 0, previews::add);
+
+        assertThat(warnings).isEmpty();
+        // Five bars in sections of two, plus the MIDI-only run
+        assertThat(renderer.rendered).containsExactlyInAnyOrder("music_generated_7-1.ly", "music_generated_7-2.ly",
+            "music_generated_7-3.ly", "music_generated_7.ly");
+        assertThat(previews).extracting(Path::getFileName).extracting(Path::toString)
+            .containsExactly("music_generated_7-1.pdf");
+        assertThat(Files.readString(source.resolveSibling("music_generated_7.pdf")))
+            .isEqualTo("music_generated_7-1.ly\nmusic_generated_7-2.ly\nmusic_generated_7-3.ly\n");
+        assertThat(source.resolveSibling("music_generated_7.midi")).exists();
+    }
+
+    @Test
+    void findsExecutablesOnThePath() {
+        assumeTrue(Files.isExecutable(Path.of("/bin/sh")), "needs /bin/sh");
+        assertThat(SectionedScoreRenderer.findExecutable("/bin/sh")).isEqualTo(Path.of("/bin/sh"));
+        assertThat(SectionedScoreRenderer.findExecutable("sh")).isNotNull();
+        assertThat(SectionedScoreRenderer.findExecutable("keyworks-no-such-command")).isNull();
+        assertThat(SectionedScoreRenderer.findExecutable("/nonexistent/gs")).isNull();
+    }
+}
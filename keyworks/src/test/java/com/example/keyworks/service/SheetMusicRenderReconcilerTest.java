@@ -0,0 +1,120 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.model.SheetMusic;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SheetMusicRenderReconcilerTest {
+
+    private final SheetMusicService sheetMusicService = mock(SheetMusicService.class);
+    private final LilyPondService lilyPondService = mock(LilyPondService.class);
+    private SheetMusicRenderReconciler reconciler;
+
+    @BeforeEach
+    void setUp() {
+        when(lilyPondService.isRendererVersionKnown()).thenReturn(true);
+        when(sheetMusicService.findSheetMusicById(any())).thenAnswer(invocation -> {
+            SheetMusic sheetMusic = new SheetMusic();
+            sheetMusic.setId(invocation.getArgument(0));
+            return Optional.of(sheetMusic);
+        });
+        reconciler = new SheetMusicRenderReconciler(sheetMusicService, lilyPondService, true, 2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        reconciler.shutdown();
+    }
+
+    private static SheetMusic withId(long id) {
+        return argThat(sheetMusic -> sheetMusic != null && sheetMusic.getId() == id);
+    }
+
+    @Test
+    void rendersOneBatchAndResumesAfterIt() throws Exception {
+        when(sheetMusicService.findDirtySheetMusicIds(0, 2)).thenReturn(List.of(3L, 5L));
+        when(sheetMusicService.findDirtySheetMusicIds(5, 2)).thenReturn(List.of(8L));
+
+        reconciler.reconcile();
+        verify(sheetMusicService).generateSheetMusic(withId(3));
+        verify(sheetMusicService).generateSheetMusic(withId(5));
+
+        reconciler.reconcile();
+        verify(sheetMusicService).generateSheetMusic(withId(8));
+
+        // A short batch was the end of the table, so the next one starts over
+        reconciler.reconcile();
+        verify(sheetMusicService, times(2)).findDirtySheetMusicIds(0, 2);
+    }
+
+    @Test
+    void keepsGoingWhenARenderFails() throws Exception {
+        when(sheetMusicService.findDirtySheetMusicIds(0, 2)).thenReturn(List.of(3L, 5L));
+        when(sheetMusicService.generateSheetMusic(withId(3))).thenThrow(new IOException("LilyPond failed"));
+
+        reconciler.reconcile();
+
+        verify(sheetMusicService).generateSheetMusic(withId(5));
+    }
+
+    @Test
+    void rendersNothingWhileTheRendererVersionIsUnknown() throws Exception {
+        when(lilyPondService.isRendererVersionKnown()).thenReturn(false);
+
+        reconciler.reconcile();
+
+        verify(sheetMusicService, never()).findDirtySheetMusicIds(anyLong(), anyInt());
+        verify(sheetMusicService, never()).generateSheetMusic(any());
+    }
+
+    @Test
+    void skipsATickWhileThePreviousBatchIsRunning() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(sheetMusicService.findDirtySheetMusicIds(anyLong(), anyInt())).thenAnswer(invocation -> {
+            started.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return List.of();
+        });
+
+        reconciler.schedule();
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+        reconciler.schedule();
+        release.countDown();
+
+        verify(sheetMusicService, timeout(1000).times(1)).findDirtySheetMusicIds(anyLong(), anyInt());
+        Thread.sleep(100);
+        verify(sheetMusicService, times(1)).findDirtySheetMusicIds(anyLong(), anyInt());
+    }
+
+    @Test
+    void doesNothingWhenDisabled() throws Exception {
+        SheetMusicRenderReconciler disabled = new SheetMusicRenderReconciler(sheetMusicService, lilyPondService, false, 2);
+        try {
+            disabled.schedule();
+            Thread.sleep(100);
+            verify(sheetMusicService, never()).findDirtySheetMusicIds(anyLong(), anyInt());
+        } finally {
+            disabled.shutdown();
+        }
+    }
+}
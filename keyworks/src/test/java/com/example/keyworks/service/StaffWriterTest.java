@@ -0,0 +1,71 @@
+package com.example.keyworks.service;
+
+import com.example.keyworks.config.TranscriptionConfig;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StaffWriterTest {
+
+    private final LilyPondEmitter emitter = new LilyPondEmitter();
+
+    // Piano staff at 120 BPM; melody in quarters over a held bass note every half bar
+    private static String pianoStaff(long workBudget) throws IOException {
+        TranscriptionConfig config = new TranscriptionConfig(4, 4, 4, 40, 4, true, 0, workBudget, 0);
+        StaffWriter writer = new StaffWriter(new LilyPondEmitter(), config, 500, 0, KeyDetector.defaultKey());
+        for (int i = 0; i < 8; i++) {
+            writer.addNote(72 + i % 3, i * 500L, 450);
+            if (i % 2 == 0) {
+                writer.addNote(48, i * 500L, 900);
+            }
+        }
+        writer.finish();
+        StringBuilder out = new StringBuilder();
+        writer.writeStaff(out, "", null, 120);
+        return out.toString();
+    }
+
+    @Test
+    void quantizesEverythingWithinTheBudget() throws IOException {
+        assertThat(pianoStaff(20_000))
+            .contains("c''4 cis''4 d''4 c''4 | cis''4 d''4 c''4 cis''4 | ")
+            .contains("c4.~ c16 r16 c4.~ c16 r16 | c4.~ c16 r16 c4.~ c16 r16 | ");
+    }
+
+    @Test
+    void switchesBothStavesToUnquantizedNotesAtTheSameBarline() throws IOException {
+        String staff = pianoStaff(6);
+
+        // Both hands complete bar 2 and continue without barlines
+        assertThat(staff)
+            .contains("c''4 cis''4 d''4 c''4 | cis''4 r2. | d''4 c''4 cis''4 \n")
+            .contains("c4.~ c16 r16 c4.~ c16 r16 | c4.~ c16 r2 r16 | c2 \n");
+    }
+
+    @Test
+    void givesTheSameScoreForTheSameNotes() throws IOException {
+        assertThat(pianoStaff(6)).isEqualTo(pianoStaff(6));
+        assertThat(pianoStaff(10)).isEqualTo(pianoStaff(10));
+    }
+
+    @Test
+    void reportsTheFallback() throws IOException {
+        TranscriptionConfig config = new TranscriptionConfig(4, 4, 4, 40, 4, false, 0, 1, 0);
+        StaffWriter writer = new StaffWriter(emitter, config, 500, 0, KeyDetector.defaultKey());
+        writer.addNote(60, 0, 450);
+        writer.addNote(62, 500, 450);
+        assertThat(writer.isFallback()).isFalse();
+
+        // The third note writes the second token, which exceeds the budget; notes already added stay quantized
+        writer.addNote(64, 1000, 450);
+        writer.addNote(65, 1500, 450);
+        writer.finish();
+
+        assertThat(writer.isFallback()).isTrue();
+        StringBuilder out = new StringBuilder();
+        writer.writeStaff(out, "", null, 0);
+        assertThat(out).contains("c'4 d'4 e'4 r4 | f'");
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.keyworks.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import java.awt.image.BufferedImage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class StubScoreRendererTest {
+
+    @TempDir
+    Path dir;
+
+    private Path source() throws Exception {
+        return Files.writeString(dir.resolve("music_generated_7.ly"), "{ c'4 }");
+    }
+
+    @Test
+    void writesPaddedPdfAndMidiNamedAfterTheSource() throws Exception {
+        StubScoreRenderer renderer = new StubScoreRenderer(0, 32768, 1024);
+
+        assertThat(renderer.render(source(), dir)).isEmpty();
+
+        byte[] pdf = Files.readAllBytes(dir.resolve("music_generated_7.pdf"));
+        assertThat(pdf).hasSize(32768);
+        String text = new String(pdf, StandardCharsets.US_ASCII);
+        assertThat(text).startsWith("%PDF-1.4\n").endsWith("%%EOF\n");
+        // startxref must point at the cross-reference table after the padding
+        String offset = text.substring(text.lastIndexOf("startxref\n") + 10, text.lastIndexOf("\n%%EOF"));
+        assertThat(text.substring(Integer.parseInt(offset))).startsWith("xref\n0 6\n");
+
+        Path midi = dir.resolve("music_generated_7.midi");
+        assertThat(Files.size(midi)).isEqualTo(1024);
+        Sequence sequence = MidiSystem.getSequence(midi.toFile());
+        assertThat(sequence.getResolution()).isEqualTo(480);
+        assertThat(sequence.getTickLength()).isEqualTo(480);
+        assertThat(sequence.getTracks()[0].get(0).getMessage()).isInstanceOfSatisfying(ShortMessage.class, message -> {
+            assertThat(message.getCommand()).isEqualTo(ShortMessage.NOTE_ON);
+            assertThat(message.getData1()).isEqualTo(60);
+        });
+    }
+
+    @Test
+    void producesTheSameFilesForEverySource() throws Exception {
+        StubScoreRenderer renderer = new StubScoreRenderer(0, 4096, 256);
+        renderer.render(source(), dir);
+        Path other = Files.writeString(dir.resolve("other.ly"), "{ d'2 e'2 }");
+        renderer.render(other, dir);
+
+        assertThat(Files.readAllBytes(dir.resolve("other.pdf"))).isEqualTo(Files.readAllBytes(dir.resolve("music_generated_7.pdf")));
+        assertThat(Files.readAllBytes(dir.resolve("other.midi"))).isEqualTo(Files.readAllBytes(dir.resolve("music_generated_7.midi")));
+    }
+
+    @Test
+    void keepsFilesValidWhenTheRequestedSizeIsTooSmallToPad() throws Exception {
+        StubScoreRenderer renderer = new StubScoreRenderer(0, 1, 1);
+        renderer.render(source(), dir);
+
+        assertThat(new String(Files.readAllBytes(dir.resolve("music_generated_7.pdf")), StandardCharsets.US_ASCII))
+            .startsWith("%PDF").endsWith("%%EOF\n");
+        assertThat(MidiSystem.getSequence(dir.resolve("music_generated_7.midi").toFile()).getTickLength()).isEqualTo(480);
+    }
+
+    @Test
+    void rendersOnePageImageInTheRequestedFormat() throws Exception {
+        StubScoreRenderer renderer = new StubScoreRenderer(0, 1024, 128);
+
+        List<Path> png = renderer.renderPages(source(), dir, "png", 50);
+        assertThat(png).containsExactly(dir.resolve("music_generated_7.png"));
+        BufferedImage image = ImageIO.read(png.get(0).toFile());
+        assertThat(image.getWidth()).isEqualTo(413);
+        assertThat(image.getHeight()).isEqualTo(584);
+
+        List<Path> svg = renderer.renderPages(source(), dir, "svg", 50);
+        assertThat(Files.readString(svg.get(0))).startsWith("<svg").contains("viewBox=\"0 0 595 842\"");
+    }
+
+    @Test
+    void waitsForTheSimulatedLatency() throws Exception {
+        StubScoreRenderer renderer = new StubScoreRenderer(100, 1024, 128);
+        long start = System.nanoTime();
+        renderer.render(source(), dir);
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(100_000_000L);
+    }
+
+    @Test
+    void rejectsAMissingSource() {
+        StubScoreRenderer renderer = new StubScoreRenderer(0, 1024, 128);
+        assertThatThrownBy(() -> renderer.render(dir.resolve("missing.ly"), dir)).hasMessageContaining("not found");
+        assertThat(renderer.getOptions()).isEqualTo("pdf-bytes=1024 midi-bytes=128");
+    }
+}
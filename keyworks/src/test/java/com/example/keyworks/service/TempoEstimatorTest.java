@@ -0,0 +1,59 @@
+package com.example.keyworks.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TempoEstimatorTest {
+
+    private static TempoEstimator play(long intervalMs, int onsets) {
+        TempoEstimator estimator = new TempoEstimator();
+        for (int i = 0; i < onsets; i++) {
+            estimator.addOnset(i * intervalMs);
+        }
+        return estimator;
+    }
+
+    @Test
+    void defaultsTo120WithoutIntervals() {
+        TempoEstimator estimator = new TempoEstimator();
+        assertThat(estimator.getBeatMs()).isEqualTo(TempoEstimator.DEFAULT_BEAT_MS);
+        assertThat(estimator.getBpm()).isEqualTo(120);
+
+        estimator.addOnset(1000);
+        assertThat(estimator.getBpm()).isEqualTo(120);
+    }
+
+    @Test
+    void readsQuarterNotes() {
+        assertThat(play(500, 16).getBpm()).isEqualTo(120);
+        assertThat(play(400, 16).getBpm()).isEqualTo(150);
+        assertThat(play(750, 16).getBpm()).isEqualTo(80);
+    }
+
+    @Test
+    void readsEighthNotesAsTheBeatTheyDivide() {
+        assertThat(play(250, 32).getBpm()).isEqualTo(120);
+    }
+
+    @Test
+    void absorbsTimingJitter() {
+        TempoEstimator estimator = new TempoEstimator();
+        long[] jitter = {0, 12, -9, 5, -14, 8, 0, -6};
+        for (int i = 0; i < 32; i++) {
+            estimator.addOnset(i * 500L + jitter[i % jitter.length]);
+        }
+        // Within a few 5 ms bins of 500 ms
+        assertThat(estimator.getBpm()).isBetween(115, 125);
+    }
+
+    @Test
+    void countsChordNotesAsOneOnset() {
+        TempoEstimator estimator = new TempoEstimator();
+        estimator.addOnset(0);
+        estimator.addOnset(10);
+        estimator.addOnset(500);
+        estimator.addOnset(530);
+        assertThat(estimator.getOnsetCount()).isEqualTo(2);
+    }
+}